@@ -0,0 +1,115 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the per-file bookkeeping the task performs before deciding
+ * whether to process a file: the file name checks and the file system
+ * calls. Each benchmark operation covers {@value #FILE_COUNT} files.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookkeepingBenchmark {
+
+   /**
+    * The number of files per operation.
+    */
+   private static final int FILE_COUNT = 1000;
+
+   /**
+    * Precompiled version of the file name pattern.
+    */
+   private static final Pattern PNG_PATTERN = Pattern.compile("\\.png$");
+
+   private File     _sourceDir;
+   private File     _destDir;
+   private String[] _names;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      _sourceDir = SyntheticTree.create(FILE_COUNT);
+      _destDir   = SyntheticTree.tempDir("pngquant-benchmark-out-");
+      _names     = new String[FILE_COUNT];
+      for (int i = 0; i < FILE_COUNT; i++) {
+         _names[i] = "dir" + (i / 100) + File.separator + "image" + i + ".png";
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      SyntheticTree.delete(_sourceDir);
+      SyntheticTree.delete(_destDir);
+   }
+
+   /**
+    * The file name check as done by the task: compiling the regular
+    * expression for each file.
+    */
+   @Benchmark
+   public void matchesCompiled(Blackhole blackhole) {
+      for (String name : _names) {
+         blackhole.consume(Pattern.compile("\\.png$").matcher(name.toLowerCase()).find());
+      }
+   }
+
+   /**
+    * The file name check with a precompiled regular expression.
+    */
+   @Benchmark
+   public void matchesPrecompiled(Blackhole blackhole) {
+      for (String name : _names) {
+         blackhole.consume(PNG_PATTERN.matcher(name.toLowerCase()).find());
+      }
+   }
+
+   /**
+    * Determining the output file name.
+    */
+   @Benchmark
+   public void replaceFirst(Blackhole blackhole) {
+      for (String name : _names) {
+         blackhole.consume(name.replaceFirst("\\.[a-zA-Z]+$", ".png"));
+      }
+   }
+
+   /**
+    * The file system calls made for each file: <code>exists()</code>,
+    * <code>lastModified()</code> and <code>length()</code> on the input
+    * file and <code>exists()</code> on the output file.
+    */
+   @Benchmark
+   public void stat(Blackhole blackhole) {
+      for (String name : _names) {
+         File  inFile = new File(_sourceDir, name);
+         File outFile = new File(_destDir,   name);
+         blackhole.consume(inFile.exists());
+         blackhole.consume(outFile.exists());
+         blackhole.consume(inFile.lastModified());
+         blackhole.consume(inFile.length());
+      }
+   }
+}
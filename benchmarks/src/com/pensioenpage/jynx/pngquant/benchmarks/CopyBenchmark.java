@@ -0,0 +1,76 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Benchmarks the copy that the task performs for each file with
+ * <code>process="false"</code> and for each fallback with
+ * <code>process="try"</code>.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmark {
+
+   /**
+    * The size of the file to copy, in bytes.
+    */
+   @Param({ "16384", "1048576", "16777216" })
+   public int size;
+
+   private File _dir;
+   private File _source;
+   private File _target;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      _dir    = SyntheticTree.tempDir("pngquant-benchmark-copy-");
+      _source = new File(_dir, "source.png");
+      _target = new File(_dir, "target.png");
+
+      byte[] bytes = new byte[size];
+      new Random(size).nextBytes(bytes);
+      OutputStream out = new FileOutputStream(_source);
+      try {
+         out.write(bytes);
+      } finally {
+         out.close();
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      SyntheticTree.delete(_dir);
+   }
+
+   @Benchmark
+   public void copyFile() throws IOException {
+      FileUtils.getFileUtils().copyFile(_source, _target, null, true);
+   }
+}
@@ -0,0 +1,82 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pensioenpage.jynx.pngquant.PngquantTask;
+
+/**
+ * Benchmarks a complete execution of the task on synthetic trees of
+ * different sizes, using the stub quantizer as the command.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ExecuteBenchmark {
+
+   /**
+    * The number of files in the tree.
+    */
+   @Param({ "100", "1000", "10000" })
+   public int files;
+
+   /**
+    * The value of the <em>process</em> parameter: <code>"true"</code>
+    * forks the stub for each file, <code>"false"</code> only copies.
+    */
+   @Param({ "true", "false" })
+   public String process;
+
+   private Project _project;
+   private String  _command;
+   private File    _sourceDir;
+   private File    _destDir;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      _project   = SyntheticTree.project();
+      _command   = SyntheticTree.stubCommand();
+      _sourceDir = SyntheticTree.create(files);
+      _destDir   = SyntheticTree.tempDir("pngquant-benchmark-out-");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      SyntheticTree.delete(_sourceDir);
+      SyntheticTree.delete(_destDir);
+   }
+
+   @Benchmark
+   public void execute() {
+      PngquantTask task = new PngquantTask();
+      task.setProject(_project);
+      task.setDir(_sourceDir);
+      task.setToDir(_destDir);
+      task.setOverwrite(true);
+      task.setProcess(process);
+      task.setCommand(_command);
+      task.execute();
+   }
+}
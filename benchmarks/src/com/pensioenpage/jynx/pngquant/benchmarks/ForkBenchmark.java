@@ -0,0 +1,84 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the cost of forking the command through Ant's
+ * <code>Execute</code>, the same way the task does: with a
+ * <code>PumpStreamHandler</code> and an <code>ExecuteWatchdog</code>.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForkBenchmark {
+
+   private Project _project;
+   private String  _command;
+   private File    _dir;
+   private File    _image;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      _project = SyntheticTree.project();
+      _command = SyntheticTree.stubCommand();
+      _dir     = SyntheticTree.tempDir("pngquant-benchmark-fork-");
+      _image   = new File(_dir, "image.png");
+      SyntheticTree.writeImage(_image, 32, 0);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      SyntheticTree.delete(_dir);
+   }
+
+   private int execute(String[] cmdline) throws IOException {
+      ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+      ByteArrayOutputStream errStream = new ByteArrayOutputStream();
+      Execute execute = new Execute(new PumpStreamHandler(outStream, errStream), new ExecuteWatchdog(60000L));
+      execute.setAntRun(_project);
+      execute.setCommandline(cmdline);
+      return execute.execute();
+   }
+
+   /**
+    * Runs the command without arguments, as done to probe the version.
+    */
+   @Benchmark
+   public int probe() throws IOException {
+      return execute(new String[] { _command });
+   }
+
+   /**
+    * Runs the command on a single small image.
+    */
+   @Benchmark
+   public int quantize() throws IOException {
+      return execute(new String[] { _command, "256", _image.getPath() });
+   }
+}
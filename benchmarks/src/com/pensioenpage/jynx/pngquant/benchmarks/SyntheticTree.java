@@ -0,0 +1,141 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Utility functions for creating the synthetic input used by the
+ * benchmarks.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class SyntheticTree {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The number of files per subdirectory in a synthetic tree.
+    */
+   private static final int FILES_PER_DIR = 100;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the stub quantizer script to use as the command, from the
+    * <code>benchmark.stub</code> system property.
+    *
+    * @return
+    *    the path to the stub, never <code>null</code>.
+    */
+   static String stubCommand() {
+      String stub = System.getProperty("benchmark.stub");
+      if (stub == null || ! new File(stub).canExecute()) {
+         throw new IllegalStateException("System property \"benchmark.stub\" does not point to an executable file: \"" + stub + "\".");
+      }
+      return stub;
+   }
+
+   /**
+    * Creates a new Ant project to execute tasks in.
+    */
+   static Project project() {
+      Project project = new Project();
+      project.init();
+      return project;
+   }
+
+   /**
+    * Creates a new, empty, temporary directory.
+    */
+   static File tempDir(String prefix) throws IOException {
+      File dir = File.createTempFile(prefix, "");
+      if (! dir.delete() || ! dir.mkdir()) {
+         throw new IOException("Failed to create temporary directory \"" + dir + "\".");
+      }
+      return dir;
+   }
+
+   /**
+    * Writes a small synthetic PNG image.
+    *
+    * @param file
+    *    the file to write to, cannot be <code>null</code>.
+    *
+    * @param size
+    *    the width and height of the image, in pixels.
+    *
+    * @param seed
+    *    the seed that determines the colors of the image.
+    */
+   static void writeImage(File file, int size, int seed) throws IOException {
+      BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            image.setRGB(x, y, 0xff000000 | ((x * 255 / size) << 16) | ((y * 255 / size) << 8) | (seed & 0xff));
+         }
+      }
+      ImageIO.write(image, "png", file);
+   }
+
+   /**
+    * Creates a temporary tree of small PNG files, spread over
+    * subdirectories of at most {@value #FILES_PER_DIR} files each.
+    *
+    * @param fileCount
+    *    the number of files to create.
+    *
+    * @return
+    *    the root directory of the tree, never <code>null</code>.
+    */
+   static File create(int fileCount) throws IOException {
+      File  root = tempDir("pngquant-benchmark-");
+      File image = new File(root, "template.png");
+      writeImage(image, 32, fileCount);
+      for (int i = 0; i < fileCount; i++) {
+         File dir = new File(root, "dir" + (i / FILES_PER_DIR));
+         FileUtils.getFileUtils().copyFile(image, new File(dir, "image" + i + ".png"));
+      }
+      image.delete();
+      return root;
+   }
+
+   /**
+    * Deletes the specified directory and all its contents.
+    */
+   static void delete(File dir) {
+      if (dir != null) {
+         File[] files = dir.listFiles();
+         for (File file : (files == null ? new File[0] : files)) {
+            if (file.isDirectory()) {
+               delete(file);
+            } else {
+               file.delete();
+            }
+         }
+         dir.delete();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>SyntheticTree</code>; not used.
+    */
+   private SyntheticTree() {
+      // empty
+   }
+}
@@ -0,0 +1,303 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+
+/**
+ * Search for the number of colors to use for an individual image, given a
+ * minimum quality and/or a maximum output size. A number of candidate
+ * color counts are tried (see {@link #candidates()}), after which
+ * {@link #choose(List)} picks the smallest output that meets the target.
+ *
+ * <p>Quality is measured against the decoded source image, either as the
+ * peak signal-to-noise ratio (PSNR, in dB) over all four channels, or as
+ * the mean structural similarity (SSIM, between 0 and 1) of the luma
+ * channel, computed over 8x8 windows.
+ *
+ * <p>Instances of this class are immutable and can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class ColorSearch {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The size of the windows used to compute the SSIM.
+    */
+   private static final int WINDOW = 8;
+
+   /**
+    * The SSIM stabilization constants, for a dynamic range of 255.
+    */
+   private static final double C1 = (0.01 * 255) * (0.01 * 255),
+                               C2 = (0.03 * 255) * (0.03 * 255);
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Computes the peak signal-to-noise ratio between two images of the same
+    * size, over the alpha, red, green and blue channels. The color of fully
+    * transparent pixels is ignored.
+    *
+    * @return
+    *    the PSNR in dB, or {@link Double#POSITIVE_INFINITY} if the images
+    *    are identical.
+    */
+   static double psnr(int[] a, int[] b) {
+      long sum = 0L;
+      for (int i = 0; i < a.length; i++) {
+         int x = (a[i] >>> 24 == 0) ? 0 : a[i];
+         int y = (b[i] >>> 24 == 0) ? 0 : b[i];
+         for (int shift = 0; shift < 32; shift += 8) {
+            int d = ((x >>> shift) & 0xff) - ((y >>> shift) & 0xff);
+            sum += d * d;
+         }
+      }
+      if (sum == 0L) {
+         return Double.POSITIVE_INFINITY;
+      }
+      double mse = (double) sum / (4.0 * a.length);
+      return 10.0 * Math.log10(255.0 * 255.0 / mse);
+   }
+
+   /**
+    * Computes the mean structural similarity between two images of the
+    * same size, over the luma channel, using non-overlapping windows.
+    *
+    * @return
+    *    the SSIM, between -1 and 1; 1 if the images are identical.
+    */
+   static double ssim(int[] a, int[] b, int width, int height) {
+      double total = 0.0;
+      int  windows = 0;
+      for (int y0 = 0; y0 < height; y0 += WINDOW) {
+         for (int x0 = 0; x0 < width; x0 += WINDOW) {
+            double sa = 0.0, sb = 0.0, saa = 0.0, sbb = 0.0, sab = 0.0;
+            int     n = 0;
+            for (int y = y0; y < Math.min(y0 + WINDOW, height); y++) {
+               for (int x = x0; x < Math.min(x0 + WINDOW, width); x++) {
+                  double la = luma(a[y * width + x]);
+                  double lb = luma(b[y * width + x]);
+                  sa  += la;
+                  sb  += lb;
+                  saa += la * la;
+                  sbb += lb * lb;
+                  sab += la * lb;
+                  n++;
+               }
+            }
+            double ma = sa / n, mb = sb / n;
+            double va = saa / n - ma * ma, vb = sbb / n - mb * mb, cov = sab / n - ma * mb;
+            total += ((2 * ma * mb + C1) * (2 * cov + C2)) / ((ma * ma + mb * mb + C1) * (va + vb + C2));
+            windows++;
+         }
+      }
+      return windows == 0 ? 1.0 : total / windows;
+   }
+
+   /**
+    * Computes the luma of the specified color, composited on black.
+    */
+   private static double luma(int argb) {
+      int a = argb >>> 24;
+      return (0.299 * ((argb >>> 16) & 0xff) + 0.587 * ((argb >>> 8) & 0xff) + 0.114 * (argb & 0xff)) * a / 255.0;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ColorSearch</code>.
+    *
+    * @param ssim
+    *    <code>true</code> if quality should be measured as SSIM,
+    *    <code>false</code> for PSNR.
+    *
+    * @param minQuality
+    *    the minimum quality, or 0 if there is no quality target.
+    *
+    * @param maxBytes
+    *    the maximum output size in bytes, or 0 if there is no size target.
+    *
+    * @param maxColors
+    *    the maximum number of colors, between 2 and 256.
+    */
+   ColorSearch(boolean ssim, double minQuality, long maxBytes, int maxColors) {
+      _ssim       = ssim;
+      _minQuality = minQuality;
+      _maxBytes   = maxBytes;
+      _maxColors  = maxColors;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   private final boolean _ssim;
+   private final double  _minQuality;
+   private final long    _maxBytes;
+   private final int     _maxColors;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the color counts to try: the maximum number of colors, and
+    * then halving down to 2.
+    *
+    * @return
+    *    the candidate color counts, in descending order, never
+    *    <code>null</code>.
+    */
+   int[] candidates() {
+      List<Integer> list = new ArrayList<Integer>();
+      for (int colors = _maxColors; colors >= 2; colors = (colors + 1) / 2) {
+         list.add(colors);
+      }
+      int[] candidates = new int[list.size()];
+      for (int i = 0; i < candidates.length; i++) {
+         candidates[i] = list.get(i);
+      }
+      return candidates;
+   }
+
+   /**
+    * Measures the quality of a quantized image relative to the source.
+    *
+    * @return
+    *    the quality, in dB for PSNR or between -1 and 1 for SSIM.
+    */
+   double quality(Pixels source, Pixels result) throws IOException {
+      if (source._width != result._width || source._height != result._height) {
+         throw new IOException("Output size " + result._width + 'x' + result._height + " differs from input size " + source._width + 'x' + source._height + '.');
+      }
+      return _ssim ? ssim(source._argb, result._argb, source._width, source._height)
+                   : psnr(source._argb, result._argb);
+   }
+
+   /**
+    * Determines if the specified trial meets the target.
+    */
+   boolean meets(Trial trial) {
+      return (_minQuality <= 0.0 || trial._quality >= _minQuality)
+          && (_maxBytes   <= 0L  || trial._bytes   <= _maxBytes);
+   }
+
+   /**
+    * Chooses the smallest output that meets the target. If no trial meets
+    * the target, then the trial with the highest quality is chosen if there
+    * is a quality target, otherwise the smallest.
+    *
+    * @param trials
+    *    the successful trials, cannot be <code>null</code>.
+    *
+    * @return
+    *    the chosen trial, or <code>null</code> if there are no trials.
+    */
+   Trial choose(List<Trial> trials) {
+      Trial best = null;
+      for (Trial trial : trials) {
+         if (meets(trial) && (best == null || trial._bytes < best._bytes)) {
+            best = trial;
+         }
+      }
+      if (best != null) {
+         return best;
+      }
+      for (Trial trial : trials) {
+         if (best == null
+          || (_minQuality >  0.0 && trial._quality > best._quality)
+          || (_minQuality <= 0.0 && trial._bytes   < best._bytes)) {
+            best = trial;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Formats the specified quality for logging.
+    */
+   String format(double quality) {
+      return _ssim ? String.format(Locale.US, "SSIM %.4f", quality) : String.format(Locale.US, "PSNR %.2f dB", quality);
+   }
+
+   /**
+    * Describes the target, for inclusion in cache keys.
+    */
+   @Override
+   public String toString() {
+      return (_ssim ? "ssim" : "psnr") + ">=" + _minQuality + ",bytes<=" + _maxBytes;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A decoded image, as non-premultiplied ARGB pixels.
+    */
+   static final class Pixels {
+
+      /**
+       * Decodes the specified image file.
+       *
+       * @throws IOException
+       *    if the file could not be read or is not a supported image.
+       */
+      static Pixels read(File file) throws IOException {
+         BufferedImage image = ImageIO.read(file);
+         if (image == null) {
+            throw new IOException("Unsupported image format.");
+         }
+         int  width = image.getWidth();
+         int height = image.getHeight();
+         return new Pixels(width, height, image.getRGB(0, 0, width, height, null, 0, width));
+      }
+
+      Pixels(int width, int height, int[] argb) {
+         _width  = width;
+         _height = height;
+         _argb   = argb;
+      }
+
+      final int   _width;
+      final int   _height;
+      final int[] _argb;
+   }
+
+   /**
+    * The outcome of quantizing an image with a specific number of colors.
+    */
+   static final class Trial {
+
+      Trial(int colors, File file, double quality) {
+         _colors  = colors;
+         _file    = file;
+         _bytes   = file.length();
+         _quality = quality;
+      }
+
+      final int    _colors;
+      final File   _file;
+      final long   _bytes;
+      final double _quality;
+   }
+}
@@ -0,0 +1,226 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Locale;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Adjusts the number of threads of a pool at runtime, based on the observed
+ * throughput (in input bytes per second) and the system load average.
+ *
+ * <p>Every {@value #WINDOW} ms the throughput is compared to that of the
+ * previous window. If it improved, the pool keeps growing or shrinking in
+ * the same direction; if it got worse, the direction is reversed; if it
+ * stayed about the same, the pool shrinks, since the extra threads did not
+ * help. The pool never grows beyond the number of processors that are not
+ * busy with other work, judging from the load average, nor beyond the
+ * configured maximum.
+ *
+ * <p>This class is not thread-safe; it should only be used from the thread
+ * that collects the results.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class ConcurrencyController {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The minimum duration of a measurement window, in milliseconds.
+    */
+   static final long WINDOW = 1000L;
+
+   /**
+    * The relative change in throughput that is considered significant.
+    */
+   private static final double THRESHOLD = 0.05;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ConcurrencyController</code>.
+    *
+    * @param pool
+    *    the pool to adjust, cannot be <code>null</code>.
+    *
+    * @param max
+    *    the maximum number of threads, at least 1.
+    */
+   ConcurrencyController(ThreadPoolExecutor pool, int max) {
+      this(pool, max, Runtime.getRuntime().availableProcessors(), System.currentTimeMillis());
+   }
+
+   /**
+    * Constructs a new <code>ConcurrencyController</code> for the specified
+    * number of processors, starting the first window at the specified time.
+    *
+    * @param pool
+    *    the pool to adjust, cannot be <code>null</code>.
+    *
+    * @param max
+    *    the maximum number of threads, at least 1.
+    *
+    * @param processors
+    *    the number of processors, at least 1.
+    *
+    * @param start
+    *    the start of the first window, in milliseconds since the epoch.
+    */
+   ConcurrencyController(ThreadPoolExecutor pool, int max, int processors, long start) {
+      _pool        = pool;
+      _max         = max;
+      _processors  = processors;
+      _system      = ManagementFactory.getOperatingSystemMXBean();
+      _direction   = 1;
+      _windowStart = start;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   private final ThreadPoolExecutor    _pool;
+   private final int                   _max;
+   private final int                   _processors;
+   private final OperatingSystemMXBean _system;
+
+   /**
+    * The direction of the last adjustment: 1 for growing, -1 for shrinking.
+    */
+   private int _direction;
+
+   /**
+    * The start of the current window and the number of input bytes
+    * completed in it.
+    */
+   private long _windowStart, _windowBytes;
+
+   /**
+    * The throughput in the previous window, in bytes per second, or 0 if
+    * there was none.
+    */
+   private double _lastThroughput;
+
+   /**
+    * The throughput and load average at the last adjustment, for logging.
+    */
+   private double _throughput, _load;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Records that work has completed and adjusts the pool if the current
+    * window is over.
+    *
+    * @param bytes
+    *    the number of input bytes completed.
+    *
+    * @return
+    *    <code>true</code> if the number of threads was changed,
+    *    <code>false</code> otherwise.
+    */
+   boolean completed(long bytes) {
+      _windowBytes += Math.max(0L, bytes);
+      long now = System.currentTimeMillis();
+      return now - _windowStart >= WINDOW && adjust(now, _system.getSystemLoadAverage());
+   }
+
+   /**
+    * Records that work has completed at the specified time and adjusts the
+    * pool if the window is over, using the specified load average.
+    *
+    * @param bytes
+    *    the number of input bytes completed.
+    *
+    * @param now
+    *    the current time, in milliseconds since the epoch.
+    *
+    * @param load
+    *    the system load average, or a negative value if unknown.
+    *
+    * @return
+    *    <code>true</code> if the number of threads was changed,
+    *    <code>false</code> otherwise.
+    */
+   boolean completed(long bytes, long now, double load) {
+      _windowBytes += Math.max(0L, bytes);
+      return now - _windowStart >= WINDOW && adjust(now, load);
+   }
+
+   /**
+    * Adjusts the pool at the end of a window.
+    *
+    * @return
+    *    <code>true</code> if the number of threads was changed,
+    *    <code>false</code> otherwise.
+    */
+   private boolean adjust(long now, double load) {
+      int current = _pool.getMaximumPoolSize();
+      _throughput = _windowBytes * 1000.0 / (now - _windowStart);
+      _load       = load;
+      if (_lastThroughput > 0.0) {
+         double change = (_throughput - _lastThroughput) / _lastThroughput;
+         if (change < -THRESHOLD) {
+            _direction = -_direction;
+         } else if (change <= THRESHOLD) {
+            _direction = -1;
+         }
+      }
+      _lastThroughput = _throughput;
+      _windowStart    = now;
+      _windowBytes    = 0L;
+
+      // Leave the processors that are busy with other work alone
+      int cap = _max;
+      if (_load >= 0.0) {
+         double others = Math.max(0.0, _load - current);
+         cap = Math.min(cap, Math.max(1, (int) Math.round(_processors - others)));
+      }
+
+      int next = Math.max(1, Math.min(cap, current + _direction));
+      if (next == current && current + _direction > cap) {
+         _direction = -1;
+      } else if (next == current && current + _direction < 1) {
+         _direction = 1;
+      }
+      if (next == current) {
+         return false;
+      }
+      resize(next);
+      return true;
+   }
+
+   /**
+    * Sets the number of threads of the pool. Threads in excess of the new
+    * size terminate once they have finished their current work.
+    */
+   private void resize(int threads) {
+      if (threads > _pool.getMaximumPoolSize()) {
+         _pool.setMaximumPoolSize(threads);
+         _pool.setCorePoolSize(threads);
+      } else {
+         _pool.setCorePoolSize(threads);
+         _pool.setMaximumPoolSize(threads);
+      }
+   }
+
+   /**
+    * Describes the current state, for logging.
+    */
+   @Override
+   public String toString() {
+      return String.format(Locale.US, "%d thread(s) at %.0f KB/s, load average %.2f",
+                           _pool.getMaximumPoolSize(), _throughput / 1024.0, _load);
+   }
+}
@@ -0,0 +1,108 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds input files with identical contents, so that only one of each set
+ * of duplicates has to be processed. Candidates are first grouped by size;
+ * only files that share their size with another file are hashed.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Duplicates {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Finds the PNG files with identical contents. Empty files are ignored.
+    * Of each set of duplicates, the file with the lowest path is the
+    * representative.
+    *
+    * @param dir
+    *    the source directory, cannot be <code>null</code>.
+    *
+    * @param fileNames
+    *    the paths of the files, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the duplicates of each representative, in order of the path of
+    *    the representative, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if a file could not be read.
+    */
+   static Map<String,List<String>> find(File dir, String[] fileNames) throws IOException {
+
+      // Group by size first, that is cheap
+      String[] sorted = fileNames.clone();
+      Arrays.sort(sorted);
+      Map<Long,List<String>> bySize = new HashMap<Long,List<String>>();
+      for (String fileName : sorted) {
+         long size = new File(dir, fileName).length();
+         if (size > 0L && fileName.toLowerCase().endsWith(".png")) {
+            List<String> sameSize = bySize.get(size);
+            if (sameSize == null) {
+               sameSize = new ArrayList<String>();
+               bySize.put(size, sameSize);
+            }
+            sameSize.add(fileName);
+         }
+      }
+
+      // Then by content, for the files that share their size
+      Map<String,List<String>> duplicates = new HashMap<String,List<String>>();
+      for (List<String> sameSize : bySize.values()) {
+         if (sameSize.size() < 2) {
+            continue;
+         }
+         Map<String,String> byHash = new HashMap<String,String>();
+         for (String fileName : sameSize) {
+            String hash           = ResultCache.hash(new File(dir, fileName), null);
+            String representative = byHash.get(hash);
+            if (representative == null) {
+               byHash.put(hash, fileName);
+            } else {
+               List<String> others = duplicates.get(representative);
+               if (others == null) {
+                  others = new ArrayList<String>();
+                  duplicates.put(representative, others);
+               }
+               others.add(fileName);
+            }
+         }
+      }
+
+      // Order by representative, so the outcome is deterministic
+      Map<String,List<String>> ordered = new LinkedHashMap<String,List<String>>();
+      for (String fileName : sorted) {
+         if (duplicates.containsKey(fileName)) {
+            ordered.put(fileName, duplicates.get(fileName));
+         }
+      }
+      return ordered;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Duplicates</code>. This constructor is private,
+    * since this class only has class functions.
+    */
+   private Duplicates() {
+      // empty
+   }
+}
@@ -0,0 +1,226 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Materializes a file under another name as cheaply as possible: as a hard
+ * link, as a reflink (a copy-on-write clone, on file systems that support
+ * it) or, if neither is possible, as a copy. A method that fails once is
+ * not attempted again by the same instance, since it typically fails for
+ * all files in the same directory. Copies are made using
+ * <code>FileChannel.transferTo</code>, so the kernel can transfer the
+ * bytes without passing them through the Java heap.
+ *
+ * <p>The JDK does not expose reflinks, so these are created by executing
+ * <code>cp --reflink=always</code>, which is only available on Linux.
+ *
+ * <p>Instances of this class can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class FileLinker {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * Method indicating the file was materialized as a hard link.
+    */
+   static final String HARDLINK = "hardlink";
+
+   /**
+    * Method indicating the file was materialized as a reflink.
+    */
+   static final String REFLINK = "reflink";
+
+   /**
+    * Method indicating the file was copied.
+    */
+   static final String COPY = "copy";
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Makes sure the specified file does not share its contents with
+    * another path, so it can be overwritten without affecting that other
+    * path. If the file has multiple hard links, then it is deleted.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be deleted.
+    */
+   static void unshare(File file) throws IOException {
+      Path path = file.toPath();
+      Object links;
+      try {
+         links = Files.getAttribute(path, "unix:nlink");
+      } catch (UnsupportedOperationException exception) {
+         return;
+      } catch (IllegalArgumentException exception) {
+         return;
+      } catch (IOException exception) {
+         return;
+      }
+      if (links instanceof Integer && (Integer) links > 1) {
+         Files.delete(path);
+      }
+   }
+
+   /**
+    * Copies a file, using <code>FileChannel.transferTo</code>. The parent
+    * directory of the target file is created if necessary; an existing
+    * target file is overwritten.
+    *
+    * @param source
+    *    the source file, cannot be <code>null</code>.
+    *
+    * @param target
+    *    the target file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be copied.
+    */
+   static void copy(File source, File target) throws IOException {
+      File targetDir = target.getParentFile();
+      if (targetDir != null && ! targetDir.isDirectory() && ! targetDir.mkdirs()) {
+         throw new IOException("Failed to create directory \"" + targetDir.getPath() + "\".");
+      }
+      FileInputStream in = new FileInputStream(source);
+      try {
+         FileOutputStream out = new FileOutputStream(target);
+         try {
+            FileChannel  inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long              size = inChannel.size();
+            for (long position = 0L; position < size; ) {
+               position += inChannel.transferTo(position, size - position, outChannel);
+            }
+         } finally {
+            out.close();
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileLinker</code>.
+    *
+    * @param first
+    *    the cheapest method to attempt, {@link #HARDLINK},
+    *    {@link #REFLINK} or {@link #COPY}; the methods after it (in that
+    *    order) are the fallbacks.
+    */
+   FileLinker(String first) {
+      _hardlink = HARDLINK.equals(first);
+      _reflink  = _hardlink || REFLINK.equals(first);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * Flags that indicate if hard links and reflinks should (still) be
+    * attempted.
+    */
+   private volatile boolean _hardlink, _reflink;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Materializes the source file as the target file. An existing target
+    * file is replaced. If both are the same file, nothing is done.
+    *
+    * @param source
+    *    the source file, cannot be <code>null</code>.
+    *
+    * @param target
+    *    the target file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the method used, {@link #HARDLINK}, {@link #REFLINK} or
+    *    {@link #COPY}.
+    *
+    * @throws IOException
+    *    if the file could not even be copied.
+    */
+   String link(File source, File target) throws IOException {
+      if (source.getCanonicalFile().equals(target.getCanonicalFile())) {
+         return COPY;
+      }
+      File targetDir = target.getParentFile();
+      if (targetDir != null && ! targetDir.isDirectory() && ! targetDir.mkdirs()) {
+         throw new IOException("Failed to create directory \"" + targetDir.getPath() + "\".");
+      }
+      Files.deleteIfExists(target.toPath());
+
+      if (_hardlink) {
+         try {
+            Files.createLink(target.toPath(), source.toPath());
+            return HARDLINK;
+         } catch (IOException exception) {
+            _hardlink = false;
+         } catch (UnsupportedOperationException exception) {
+            _hardlink = false;
+         }
+      }
+
+      if (_reflink) {
+         if (reflink(source, target)) {
+            return REFLINK;
+         }
+         _reflink = false;
+         Files.deleteIfExists(target.toPath());
+      }
+
+      copy(source, target);
+      return COPY;
+   }
+
+   /**
+    * Attempts to create a reflink.
+    *
+    * @return
+    *    <code>true</code> if the reflink was created,
+    *    <code>false</code> if not.
+    */
+   private static boolean reflink(File source, File target) {
+      if (! "Linux".equals(System.getProperty("os.name"))) {
+         return false;
+      }
+      ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", "--", source.getAbsolutePath(), target.getAbsolutePath());
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+      try {
+         return builder.start().waitFor() == 0;
+      } catch (IOException exception) {
+         return false;
+      } catch (InterruptedException exception) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+}
@@ -0,0 +1,115 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+/**
+ * Metrics for a single file handled by the task, see {@link ReportWriter}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class FileRecord {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * Action indicating the file was processed.
+    */
+   static final String PROCESSED = "processed";
+
+   /**
+    * Action indicating the file was copied unchanged.
+    */
+   static final String COPIED = "copied";
+
+   /**
+    * Action indicating the file was skipped.
+    */
+   static final String SKIPPED = "skipped";
+
+   /**
+    * Action indicating the file was not processed, because it is identical
+    * to another file; its output was linked to the output of that file.
+    */
+   static final String DEDUPLICATED = "deduplicated";
+
+   /**
+    * Action indicating the file could neither be processed nor copied.
+    */
+   static final String FAILED = "failed";
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileRecord</code>.
+    *
+    * @param path
+    *    the path of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param action
+    *    the action taken, one of the constants in this class,
+    *    cannot be <code>null</code>.
+    *
+    * @param wallTime
+    *    the total time spent on the file, in milliseconds.
+    *
+    * @param processTime
+    *    the time spent quantizing the file, in milliseconds.
+    *
+    * @param inputBytes
+    *    the size of the input file, or -1 if unknown.
+    *
+    * @param outputBytes
+    *    the size of the output file, or -1 if there is none.
+    *
+    * @param colors
+    *    the number of colors the file was quantized to, or -1 if not
+    *    applicable or unknown.
+    *
+    * @param error
+    *    the error message, or <code>null</code> if there was no error.
+    */
+   FileRecord(String path, String action, long wallTime, long processTime, long inputBytes, long outputBytes, int colors, String error) {
+      _path        = path;
+      _action      = action;
+      _wallTime    = wallTime;
+      _processTime = processTime;
+      _inputBytes  = inputBytes;
+      _outputBytes = outputBytes;
+      _colors      = colors;
+      _error       = error;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   final String _path;
+   final String _action;
+   final long   _wallTime;
+   final long   _processTime;
+   final long   _inputBytes;
+   final long   _outputBytes;
+   final int    _colors;
+   final String _error;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the ratio of the output size to the input size.
+    *
+    * @return
+    *    the ratio, or -1 if either size is unknown.
+    */
+   double ratio() {
+      return (_inputBytes > 0L && _outputBytes >= 0L) ? (double) _outputBytes / (double) _inputBytes : -1.0;
+   }
+}
@@ -0,0 +1,933 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Pure-Java implementation of image quantization. The palette is determined
+ * using the median cut algorithm on a histogram of the exact colors in the
+ * image, after which the image is remapped to the palette, using either
+ * ordered or Floyd-Steinberg dithering. The result is written as an indexed
+ * PNG image.
+ *
+ * <p>Images with at least a configurable number of pixels are streamed
+ * instead: the image is decoded row by row twice, using a
+ * {@link PngRowReader}. The first pass builds a histogram of a sample of
+ * the pixels, which is bounded in size by reducing the precision of the
+ * colors when needed. The second pass remaps each row and passes it to a
+ * {@link PngRowWriter}. The memory used then only depends on the width of
+ * the image, not on its height. Interlaced images are never streamed.
+ *
+ * <p>Instances of this class are immutable and can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class JavaQuantizer {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The version of the algorithm, part of the cache key. Should be
+    * incremented whenever the output of this class changes.
+    */
+   static final String VERSION = "1";
+
+   /**
+    * The 4x4 Bayer matrix used for ordered dithering, values 0-15.
+    */
+   private static final int[] BAYER = { 0,  8,  2, 10,
+                                       12,  4, 14,  6,
+                                        3, 11,  1,  9,
+                                       15,  7, 13,  5 };
+
+   /**
+    * The approximate number of pixels sampled for the histogram of a
+    * streamed image.
+    */
+   private static final long SAMPLE_SIZE = 1L << 22;
+
+   /**
+    * The maximum number of distinct colors in the histogram of a streamed
+    * image. If there are more, the precision of the colors is reduced.
+    */
+   private static final int MAX_SAMPLED_COLORS = 1 << 16;
+
+   /**
+    * The maximum number of colors cached by {@link Nearest}.
+    */
+   private static final int MAX_CACHED_COLORS = 1 << 16;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   private static int alpha(int argb) { return  argb >>> 24;         }
+   private static int red(int argb)   { return (argb >>> 16) & 0xff; }
+   private static int green(int argb) { return (argb >>>  8) & 0xff; }
+   private static int blue(int argb)  { return  argb         & 0xff; }
+
+   private static int clamp(int value) {
+      return value < 0 ? 0 : (value > 255 ? 255 : value);
+   }
+
+   private static int argb(int a, int r, int g, int b) {
+      return (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+   }
+
+   /**
+    * Normalizes the specified color: all fully transparent colors are
+    * considered equal.
+    */
+   private static int normalize(int argb) {
+      return (argb >>> 24) == 0 ? 0 : argb;
+   }
+
+   /**
+    * Determines the value of the specified channel of a color.
+    *
+    * @param argb
+    *    the color.
+    *
+    * @param channel
+    *    the channel: 0 for alpha, 1 for red, 2 for green, 3 for blue.
+    */
+   private static int channel(int argb, int channel) {
+      return (argb >>> (24 - channel * 8)) & 0xff;
+   }
+
+   /**
+    * Reduces the precision of the specified color, by replacing the lowest
+    * bits of each channel with the middle of the range they cover. Fully
+    * opaque colors stay fully opaque.
+    *
+    * @param argb
+    *    the normalized color.
+    *
+    * @param shift
+    *    the number of bits to drop, 0 to 8.
+    */
+   private static int reduce(int argb, int shift) {
+      if (shift == 0 || argb == 0) {
+         return argb;
+      }
+      int mask = (0xff >>> shift) << shift;
+      int half = 1 << (shift - 1);
+      int    a = alpha(argb) == 0xff ? 0xff : (alpha(argb) & mask) | half;
+      return normalize((a << 24) | (((red(argb) & mask) | half) << 16)
+                     | (((green(argb) & mask) | half) << 8) | ((blue(argb) & mask) | half));
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>JavaQuantizer</code> that never streams images.
+    *
+    * @param numColors
+    *    the maximum number of colors, between 2 and 256.
+    *
+    * @param dithering
+    *    <code>true</code> for Floyd-Steinberg dithering,
+    *    <code>false</code> for ordered dithering.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>numColors &lt; 2 || numColors &gt; 256</code>.
+    */
+   JavaQuantizer(int numColors, boolean dithering)
+   throws IllegalArgumentException {
+      this(numColors, dithering, Long.MAX_VALUE);
+   }
+
+   /**
+    * Constructs a new <code>JavaQuantizer</code>.
+    *
+    * @param numColors
+    *    the maximum number of colors, between 2 and 256.
+    *
+    * @param dithering
+    *    <code>true</code> for Floyd-Steinberg dithering,
+    *    <code>false</code> for ordered dithering.
+    *
+    * @param streamingPixels
+    *    the minimum number of pixels for an image to be streamed; 0 to
+    *    stream all images.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>numColors &lt; 2 || numColors &gt; 256</code>.
+    */
+   JavaQuantizer(int numColors, boolean dithering, long streamingPixels)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      if (numColors < 2 || numColors > 256) {
+         throw new IllegalArgumentException("numColors (" + numColors + ") is not between 2 and 256.");
+      }
+
+      _numColors       = numColors;
+      _dithering       = dithering;
+      _streamingPixels = streamingPixels;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The maximum number of colors in the palette, between 2 and 256.
+    */
+   private final int _numColors;
+
+   /**
+    * Flag that indicates if Floyd-Steinberg dithering should be used.
+    * If <code>false</code>, ordered dithering is applied instead.
+    */
+   private final boolean _dithering;
+
+   /**
+    * The minimum number of pixels for an image to be streamed.
+    */
+   private final long _streamingPixels;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Quantizes the specified PNG image and writes the result.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the input file cannot be read or decoded,
+    *    or if the output file cannot be written.
+    */
+   void quantize(File inFile, File outFile) throws IOException {
+      if (streams(inFile)) {
+         remapRows(inFile, outFile, palette(sampledHistogram(inFile)));
+         return;
+      }
+
+      BufferedImage source = read(inFile);
+      int   width = source.getWidth();
+      int  height = source.getHeight();
+      int[] pixels = source.getRGB(0, 0, width, height, null, 0, width);
+
+      quantize(pixels, width, height, outFile);
+   }
+
+   /**
+    * Remaps the specified PNG image to a given palette and writes the
+    * result. The output uses the complete palette, even if some of its
+    * colors do not occur in the image, so that all images remapped to the
+    * same palette have identical <code>PLTE</code> chunks.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param palette
+    *    the palette, at most 256 ARGB colors, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the input file cannot be read or decoded,
+    *    or if the output file cannot be written.
+    */
+   void quantize(File inFile, File outFile, int[] palette) throws IOException {
+      if (streams(inFile)) {
+         remapRows(inFile, outFile, palette);
+         return;
+      }
+
+      BufferedImage source = read(inFile);
+      int   width = source.getWidth();
+      int  height = source.getHeight();
+      int[] pixels = source.getRGB(0, 0, width, height, null, 0, width);
+
+      byte[] indices = remap(pixels, width, height, palette);
+      BufferedImage result = indexedImage(width, height, palette, indices);
+      if (! ImageIO.write(result, "png", outFile)) {
+         throw new IOException("No PNG image writer available.");
+      }
+   }
+
+   /**
+    * Builds a histogram of the exact colors in the specified PNG image,
+    * or of a sample of the colors if the image is streamed. Histograms of
+    * multiple images can be combined using
+    * {@link IntHistogram#addAll(IntHistogram)}, to derive a single palette
+    * for all of them using {@link #palette(IntHistogram)}.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the histogram, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the input file cannot be read or decoded.
+    */
+   IntHistogram histogram(File inFile) throws IOException {
+      if (streams(inFile)) {
+         return sampledHistogram(inFile);
+      }
+
+      BufferedImage source = read(inFile);
+      int   width = source.getWidth();
+      int  height = source.getHeight();
+      int[]   row = new int[width];
+      IntHistogram histogram = new IntHistogram();
+      for (int y = 0; y < height; y++) {
+         source.getRGB(0, y, width, 1, row, 0, width);
+         for (int pixel : row) {
+            histogram.add(normalize(pixel), 1);
+         }
+      }
+      return histogram;
+   }
+
+   /**
+    * Determines if the specified image file should be streamed.
+    */
+   private boolean streams(File inFile) throws IOException {
+      if (_streamingPixels == Long.MAX_VALUE) {
+         return false;
+      }
+      PngHeader header = PngHeader.read(inFile);
+      return header != null && ! header._interlaced
+          && (long) header._width * header._height >= _streamingPixels;
+   }
+
+   /**
+    * Builds a histogram of a sample of the pixels of the specified PNG
+    * image, decoding it row by row. About {@link #SAMPLE_SIZE} pixels are
+    * sampled, spread over the image. The histogram holds at most
+    * {@link #MAX_SAMPLED_COLORS} colors; when it would grow beyond that,
+    * the precision of all colors is reduced by another bit per channel.
+    */
+   private IntHistogram sampledHistogram(File inFile) throws IOException {
+      PngRowReader reader = new PngRowReader(inFile);
+      try {
+         int   width = reader._width;
+         int  height = reader._height;
+         int[]   row = new int[width];
+         long stride = Math.max(1L, ((long) width * height + SAMPLE_SIZE - 1L) / SAMPLE_SIZE);
+         int   shift = 0;
+         IntHistogram histogram = new IntHistogram();
+         for (int y = 0; y < height; y++) {
+            reader.readRow(row);
+
+            // Vary the first column per row, so the sample does not only
+            // contain the same columns
+            for (long x = (y * 7L) % stride; x < width; x += stride) {
+               histogram.add(reduce(normalize(row[(int) x]), shift), 1);
+               while (histogram.size() > MAX_SAMPLED_COLORS) {
+                  shift++;
+                  IntHistogram reduced = new IntHistogram();
+                  int[] colors = histogram.keys();
+                  int[] counts = histogram.values();
+                  for (int i = 0; i < colors.length; i++) {
+                     reduced.add(reduce(colors[i], shift), counts[i]);
+                  }
+                  histogram = reduced;
+               }
+            }
+         }
+         return histogram;
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Remaps the specified PNG image to a given palette and writes the
+    * result, decoding and encoding it row by row. The output uses the
+    * complete palette.
+    */
+   private void remapRows(File inFile, File outFile, int[] palette) throws IOException {
+      PngRowReader reader = new PngRowReader(inFile);
+      try {
+         int      width = reader._width;
+         int     height = reader._height;
+         int[]      row = new int[width];
+         byte[] indices = new byte[width];
+         Remapper remapper = new Remapper(palette, width);
+         PngRowWriter writer = new PngRowWriter(outFile, width, height, palette);
+         try {
+            for (int y = 0; y < height; y++) {
+               reader.readRow(row);
+               remapper.remapRow(row, 0, y, indices, 0);
+               writer.writeRow(indices);
+            }
+            writer.finish();
+         } finally {
+            writer.close();
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Decodes the specified image file.
+    */
+   private static BufferedImage read(File inFile) throws IOException {
+      BufferedImage source = ImageIO.read(inFile);
+      if (source == null) {
+         throw new IOException("Unsupported image format.");
+      }
+      return source;
+   }
+
+   /**
+    * Quantizes the specified decoded image and writes the result to the
+    * specified PNG file. The pixels are not modified.
+    *
+    * @param pixels
+    *    the non-premultiplied ARGB pixels, cannot be <code>null</code>.
+    *
+    * @param width
+    *    the width of the image.
+    *
+    * @param height
+    *    the height of the image.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the output file could not be written.
+    */
+   void quantize(int[] pixels, int width, int height, File outFile) throws IOException {
+
+      // Build the palette and remap the image to it
+      int[]  palette = palette(pixels);
+      byte[] indices = remap(pixels, width, height, palette);
+
+      // Write the result
+      BufferedImage result = indexedImage(width, height, palette, indices);
+      if (! ImageIO.write(result, "png", outFile)) {
+         throw new IOException("No PNG image writer available.");
+      }
+   }
+
+   /**
+    * Determines the palette for the specified pixels, using median cut.
+    *
+    * @param pixels
+    *    the ARGB pixels, cannot be <code>null</code>.
+    *
+    * @return
+    *    the palette, at most {@link #_numColors} ARGB colors.
+    */
+   int[] palette(int[] pixels) {
+      IntHistogram histogram = new IntHistogram();
+      for (int pixel : pixels) {
+         histogram.add(normalize(pixel), 1);
+      }
+      return palette(histogram);
+   }
+
+   /**
+    * Determines the palette for the specified histogram, using median cut.
+    *
+    * @param histogram
+    *    the histogram of the colors, cannot be <code>null</code>.
+    *
+    * @return
+    *    the palette, at most {@link #_numColors} ARGB colors.
+    */
+   int[] palette(IntHistogram histogram) {
+      int[] colors = histogram.keys();
+      int[] counts = histogram.values();
+
+      // Short-circuit if the image already has few enough colors
+      if (colors.length <= _numColors) {
+         return colors;
+      }
+
+      return medianCut(colors, counts, _numColors);
+   }
+
+   /**
+    * Applies the median cut algorithm to the specified histogram.
+    *
+    * @param colors
+    *    the distinct colors, will be reordered.
+    *
+    * @param counts
+    *    the number of occurrences of each color, will be reordered.
+    *
+    * @param numColors
+    *    the maximum number of colors in the palette.
+    *
+    * @return
+    *    the palette, never <code>null</code>.
+    */
+   static int[] medianCut(int[] colors, int[] counts, int numColors) {
+
+      // Each box is a range of entries in the colors array
+      int[]  boxStart   = new int[numColors];
+      int[]  boxEnd     = new int[numColors];
+      int[]  boxChannel = new int[numColors];
+      long[] boxScore   = new long[numColors];
+      int    boxCount   = 1;
+      boxEnd[0] = colors.length;
+      scoreBox(colors, counts, 0, boxStart, boxEnd, boxChannel, boxScore);
+
+      while (boxCount < numColors) {
+
+         // Find the box with the widest channel range, weighted by its size
+         int splitBox = -1;
+         for (int box = 0; box < boxCount; box++) {
+            if (boxScore[box] > 0L && (splitBox < 0 || boxScore[box] > boxScore[splitBox])) {
+               splitBox = box;
+            }
+         }
+
+         // No box can be split any further
+         if (splitBox < 0) {
+            break;
+         }
+
+         // Sort the box along the channel and split at the weighted median
+         int start = boxStart[splitBox], end = boxEnd[splitBox];
+         sort(colors, counts, start, end, boxChannel[splitBox]);
+         long total = 0L;
+         for (int i = start; i < end; i++) {
+            total += counts[i];
+         }
+         long sum   = 0L;
+         int  split = start + 1;
+         for (int i = start; i < end - 1; i++) {
+            sum += counts[i];
+            split = i + 1;
+            if (sum * 2L >= total) {
+               break;
+            }
+         }
+
+         boxEnd[splitBox]   = split;
+         boxStart[boxCount] = split;
+         boxEnd[boxCount]   = end;
+         scoreBox(colors, counts, splitBox, boxStart, boxEnd, boxChannel, boxScore);
+         scoreBox(colors, counts, boxCount, boxStart, boxEnd, boxChannel, boxScore);
+         boxCount++;
+      }
+
+      // Each palette color is the weighted average of its box
+      int[] palette = new int[boxCount];
+      for (int box = 0; box < boxCount; box++) {
+         long a = 0L, r = 0L, g = 0L, b = 0L, weight = 0L;
+         for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+            long count = counts[i];
+            a += alpha(colors[i]) * count;
+            r += red(colors[i])   * count;
+            g += green(colors[i]) * count;
+            b += blue(colors[i])  * count;
+            weight += count;
+         }
+         palette[box] = normalize(argb((int) ((a + weight / 2) / weight),
+                                       (int) ((r + weight / 2) / weight),
+                                       (int) ((g + weight / 2) / weight),
+                                       (int) ((b + weight / 2) / weight)));
+      }
+      return palette;
+   }
+
+   /**
+    * Determines the channel with the widest range in the specified box and
+    * the score of the box: that range, weighted by the number of pixels.
+    * Boxes that cannot be split get a score of 0.
+    */
+   private static void scoreBox(int[] colors, int[] counts, int box,
+                                int[] boxStart, int[] boxEnd, int[] boxChannel, long[] boxScore) {
+      int[] min = { 255, 255, 255, 255 };
+      int[] max = {   0,   0,   0,   0 };
+      long weight = 0L;
+      for (int i = boxStart[box]; i < boxEnd[box]; i++) {
+         weight += counts[i];
+         for (int channel = 0; channel < 4; channel++) {
+            int value = channel(colors[i], channel);
+            min[channel] = Math.min(min[channel], value);
+            max[channel] = Math.max(max[channel], value);
+         }
+      }
+
+      boxChannel[box] = 0;
+      boxScore[box]   = 0L;
+      if (boxEnd[box] - boxStart[box] < 2) {
+         return;
+      }
+      for (int channel = 0; channel < 4; channel++) {
+         long score = (long) (max[channel] - min[channel]) * (long) Math.sqrt(weight);
+         if (score > boxScore[box]) {
+            boxScore[box]   = score;
+            boxChannel[box] = channel;
+         }
+      }
+   }
+
+   /**
+    * Sorts a range of the histogram by the value of the specified channel,
+    * using a counting sort, since there are only 256 possible values.
+    */
+   private static void sort(int[] colors, int[] counts, int start, int end, int channel) {
+      int[] offsets = new int[257];
+      for (int i = start; i < end; i++) {
+         offsets[channel(colors[i], channel) + 1]++;
+      }
+      for (int v = 1; v < 257; v++) {
+         offsets[v] += offsets[v - 1];
+      }
+      int[] sortedColors = new int[end - start];
+      int[] sortedCounts = new int[end - start];
+      for (int i = start; i < end; i++) {
+         int position = offsets[channel(colors[i], channel)]++;
+         sortedColors[position] = colors[i];
+         sortedCounts[position] = counts[i];
+      }
+      System.arraycopy(sortedColors, 0, colors, start, end - start);
+      System.arraycopy(sortedCounts, 0, counts, start, end - start);
+   }
+
+   /**
+    * Remaps the specified pixels to the palette, applying dithering.
+    *
+    * @return
+    *    the palette index for each pixel, never <code>null</code>.
+    */
+   byte[] remap(int[] pixels, int width, int height, int[] palette) {
+      byte[]   indices = new byte[pixels.length];
+      Remapper remapper = new Remapper(palette, width);
+      for (int y = 0; y < height; y++) {
+         remapper.remapRow(pixels, y * width, y, indices, y * width);
+      }
+      return indices;
+   }
+
+   /**
+    * Creates an indexed image, using the smallest bit depth possible.
+    */
+   private static BufferedImage indexedImage(int width, int height, int[] palette, byte[] indices) {
+
+      // Determine the bit depth
+      int bits = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+
+      // Only include alpha in the color model if needed, to avoid a tRNS chunk
+      boolean hasAlpha = false;
+      byte[] r = new byte[palette.length], g = new byte[palette.length],
+             b = new byte[palette.length], a = new byte[palette.length];
+      for (int i = 0; i < palette.length; i++) {
+         a[i] = (byte) alpha(palette[i]);
+         r[i] = (byte) red(palette[i]);
+         g[i] = (byte) green(palette[i]);
+         b[i] = (byte) blue(palette[i]);
+         hasAlpha |= alpha(palette[i]) != 255;
+      }
+      IndexColorModel model = hasAlpha
+                            ? new IndexColorModel(bits, palette.length, r, g, b, a)
+                            : new IndexColorModel(bits, palette.length, r, g, b);
+
+      BufferedImage image;
+      if (bits == 8) {
+         image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, model);
+         byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+         System.arraycopy(indices, 0, data, 0, indices.length);
+      } else {
+         image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, model);
+         WritableRaster raster = image.getRaster();
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               raster.setSample(x, y, 0, indices[y * width + x] & 0xff);
+            }
+         }
+      }
+      return image;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Histogram of ARGB colors, implemented as an open-addressing hash table
+    * on primitive <code>int</code> arrays.
+    */
+   static final class IntHistogram {
+
+      private int[]     _keys = new int[1024];
+      private int[]   _values = new int[1024];
+      private boolean[] _used = new boolean[1024];
+      private int       _size;
+
+      /**
+       * Adds the specified count to the specified color.
+       */
+      void add(int key, int count) {
+         int slot = slot(key);
+         if (_used[slot]) {
+            _values[slot] += count;
+            return;
+         }
+         _used[slot]   = true;
+         _keys[slot]   = key;
+         _values[slot] = count;
+         if (++_size * 2 > _keys.length) {
+            grow();
+         }
+      }
+
+      /**
+       * Returns the count for the specified color, 0 if it is absent.
+       */
+      int get(int key) {
+         int slot = slot(key);
+         return _used[slot] ? _values[slot] : 0;
+      }
+
+      /**
+       * Finds the slot for the specified color, using linear probing.
+       */
+      private int slot(int key) {
+         int mask = _keys.length - 1;
+         int hash = key * 0x9E3779B9;
+         int slot = (hash ^ (hash >>> 16)) & mask;
+         while (_used[slot] && _keys[slot] != key) {
+            slot = (slot + 1) & mask;
+         }
+         return slot;
+      }
+
+      private void grow() {
+         int[]     keys = _keys;
+         int[]   values = _values;
+         boolean[] used = _used;
+         _keys   = new int[keys.length * 2];
+         _values = new int[keys.length * 2];
+         _used   = new boolean[keys.length * 2];
+         _size   = 0;
+         for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+               add(keys[i], values[i]);
+            }
+         }
+      }
+
+      /**
+       * Adds all counts of the specified histogram to this one.
+       */
+      void addAll(IntHistogram other) {
+         for (int i = 0; i < other._keys.length; i++) {
+            if (other._used[i]) {
+               add(other._keys[i], other._values[i]);
+            }
+         }
+      }
+
+      int size() {
+         return _size;
+      }
+
+      /**
+       * Returns the distinct colors, in table order.
+       */
+      int[] keys() {
+         int[] result = new int[_size];
+         for (int i = 0, j = 0; i < _keys.length; i++) {
+            if (_used[i]) {
+               result[j++] = _keys[i];
+            }
+         }
+         return result;
+      }
+
+      /**
+       * Returns the counts, in the same order as {@link #keys()}.
+       */
+      int[] values() {
+         int[] result = new int[_size];
+         for (int i = 0, j = 0; i < _keys.length; i++) {
+            if (_used[i]) {
+               result[j++] = _values[i];
+            }
+         }
+         return result;
+      }
+   }
+
+   /**
+    * Remaps consecutive rows of pixels to a palette, applying dithering.
+    * Only the dithering errors of the current and the next row are kept.
+    * Not thread-safe.
+    */
+   final class Remapper {
+
+      /**
+       * Constructs a new <code>Remapper</code>.
+       *
+       * @param palette
+       *    the palette, cannot be <code>null</code>.
+       *
+       * @param width
+       *    the width of the rows.
+       */
+      Remapper(int[] palette, int width) {
+         _palette = palette;
+         _width   = width;
+         _nearest = new Nearest(palette);
+         _spread  = (int) (255.0 / Math.cbrt(palette.length));
+         if (_dithering) {
+            _thisError = new int[(width + 2) * 4];
+            _nextError = new int[(width + 2) * 4];
+         }
+      }
+
+      private final int[]   _palette;
+      private final int     _width;
+      private final Nearest _nearest;
+
+      /**
+       * The expected distance between palette colors, for ordered
+       * dithering.
+       */
+      private final int _spread;
+
+      /**
+       * The accumulated Floyd-Steinberg errors for the current and the next
+       * row, 16 times the actual error, or <code>null</code> for ordered
+       * dithering.
+       */
+      private int[] _thisError, _nextError;
+
+      /**
+       * Remaps a single row.
+       *
+       * @param pixels
+       *    the ARGB pixels, cannot be <code>null</code>.
+       *
+       * @param offset
+       *    the index of the first pixel of the row.
+       *
+       * @param y
+       *    the index of the row, for ordered dithering.
+       *
+       * @param indices
+       *    the array to store the palette indices in,
+       *    cannot be <code>null</code>.
+       *
+       * @param indicesOffset
+       *    the index to store the first palette index at.
+       */
+      void remapRow(int[] pixels, int offset, int y, byte[] indices, int indicesOffset) {
+
+         // Floyd-Steinberg dithering: the error of each pixel is distributed
+         // over the neighbouring pixels that have not been processed yet
+         if (_dithering) {
+            for (int x = 0; x < _width; x++) {
+               int pixel = normalize(pixels[offset + x]);
+               int e     = (x + 1) * 4;
+               int a = clamp(alpha(pixel) + _thisError[e]     / 16);
+               int r = clamp(red(pixel)   + _thisError[e + 1] / 16);
+               int g = clamp(green(pixel) + _thisError[e + 2] / 16);
+               int b = clamp(blue(pixel)  + _thisError[e + 3] / 16);
+
+               int index  = _nearest.find(normalize(argb(a, r, g, b)));
+               int chosen = _palette[index];
+               indices[indicesOffset + x] = (byte) index;
+
+               int[] error = { a - alpha(chosen), r - red(chosen), g - green(chosen), b - blue(chosen) };
+               for (int c = 0; c < 4; c++) {
+                  _thisError[e + 4 + c] += error[c] * 7;
+                  _nextError[e - 4 + c] += error[c] * 3;
+                  _nextError[e     + c] += error[c] * 5;
+                  _nextError[e + 4 + c] += error[c];
+               }
+            }
+            int[] swap = _thisError;
+            _thisError = _nextError;
+            _nextError = swap;
+            Arrays.fill(_nextError, 0);
+
+         // Ordered dithering: a fixed threshold pattern is added to each pixel,
+         // scaled to the expected distance between palette colors
+         } else {
+            for (int x = 0; x < _width; x++) {
+               int pixel = normalize(pixels[offset + x]);
+               int delta = ((BAYER[(y & 3) * 4 + (x & 3)] * 2 - 15) * _spread) / 32;
+               int dithered = alpha(pixel) == 0
+                            ? 0
+                            : argb(alpha(pixel), red(pixel) + delta, green(pixel) + delta, blue(pixel) + delta);
+               indices[indicesOffset + x] = (byte) _nearest.find(dithered);
+            }
+         }
+      }
+   }
+
+   /**
+    * Finds the nearest palette entry for a color, caching earlier results.
+    * The cache is cleared when it holds {@link #MAX_CACHED_COLORS} colors,
+    * so it cannot grow without bounds on large dithered images.
+    * Not thread-safe.
+    */
+   static final class Nearest {
+
+      Nearest(int[] palette) {
+         _palette = palette;
+      }
+
+      private final int[] _palette;
+
+      /**
+       * Cache of earlier results, the value is the index plus 1.
+       */
+      private IntHistogram _cache = new IntHistogram();
+
+      int find(int argb) {
+         int cached = _cache.get(argb);
+         if (cached > 0) {
+            return cached - 1;
+         }
+
+         int best = 0;
+         long bestDistance = Long.MAX_VALUE;
+         for (int i = 0; i < _palette.length; i++) {
+            int  p  = _palette[i];
+            long da = alpha(argb) - alpha(p);
+            long dr = red(argb)   - red(p);
+            long dg = green(argb) - green(p);
+            long db = blue(argb)  - blue(p);
+            long distance = da * da * 2 + dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+               bestDistance = distance;
+               best = i;
+            }
+         }
+         if (_cache.size() >= MAX_CACHED_COLORS) {
+            _cache = new IntHistogram();
+         }
+         _cache.add(argb, best + 1);
+         return best;
+      }
+   }
+}
@@ -0,0 +1,130 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+/**
+ * Histogram of durations with a fixed memory footprint, used to determine
+ * percentiles. Values below 1024 are recorded exactly; larger values are
+ * recorded with a relative precision of about 1.5%, using 64 buckets per
+ * power of two.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class LatencyHistogram {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The number of values recorded exactly.
+    */
+   private static final int EXACT = 1024;
+
+   /**
+    * The number of buckets per power of two, above {@link #EXACT}.
+    */
+   private static final int SUB_BUCKETS = 64;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the bucket for the specified value.
+    */
+   private static int bucket(long value) {
+      if (value < EXACT) {
+         return (int) Math.max(0L, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int      sub = (int) (value >>> (exponent - 6)) & (SUB_BUCKETS - 1);
+      return EXACT + (exponent - 10) * SUB_BUCKETS + sub;
+   }
+
+   /**
+    * Determines the (lowest) value in the specified bucket.
+    */
+   private static long value(int bucket) {
+      if (bucket < EXACT) {
+         return bucket;
+      }
+      int exponent = (bucket - EXACT) / SUB_BUCKETS + 10;
+      int      sub = (bucket - EXACT) % SUB_BUCKETS;
+      return (1L << exponent) | ((long) sub << (exponent - 6));
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The count per bucket.
+    */
+   private final long[] _counts = new long[EXACT + (63 - 10) * SUB_BUCKETS];
+
+   /**
+    * The total number of recorded values.
+    */
+   private long _total;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Records a value.
+    *
+    * @param value
+    *    the value, negative values are recorded as 0.
+    */
+   void record(long value) {
+      _counts[bucket(value)]++;
+      _total++;
+   }
+
+   /**
+    * Records all values recorded by another histogram.
+    *
+    * @param other
+    *    the other histogram, cannot be <code>null</code>.
+    */
+   void add(LatencyHistogram other) {
+      for (int bucket = 0; bucket < _counts.length; bucket++) {
+         _counts[bucket] += other._counts[bucket];
+      }
+      _total += other._total;
+   }
+
+   /**
+    * Returns the total number of recorded values.
+    */
+   long count() {
+      return _total;
+   }
+
+   /**
+    * Determines the specified percentile.
+    *
+    * @param percentile
+    *    the percentile, between 0 and 100.
+    *
+    * @return
+    *    the value at the percentile, or 0 if no values were recorded.
+    */
+   long percentile(double percentile) {
+      long threshold = (long) Math.ceil(_total * percentile / 100.0);
+      long     count = 0L;
+      for (int bucket = 0; bucket < _counts.length; bucket++) {
+         count += _counts[bucket];
+         if (count >= threshold && count > 0L) {
+            return value(bucket);
+         }
+      }
+      return 0L;
+   }
+}
@@ -0,0 +1,392 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Build manifest, stored in the destination directory. For each input file
+ * the manifest records the size, modification time and content hash of the
+ * input file, the parameters it was processed with and the size,
+ * modification time and content hash of the output file.
+ *
+ * <p>An output file is up-to-date if the parameters are unchanged and both
+ * the input and the output file still have the recorded contents. A file
+ * is only hashed if its size or modification time differs from the
+ * recorded values, so checking an unchanged tree only costs a few
+ * <code>stat</code> calls per file.
+ *
+ * <p>A destination directory may be shared by multiple source directories,
+ * so each entry also records the source directory. Entries for other
+ * source directories are left untouched.
+ *
+ * <p>The methods {@link #isUpToDate(String,File,long,long,File,String)},
+ * {@link #put(String,File,File,String)} and {@link #remove(String)} can be
+ * called concurrently, as long as they are not called concurrently for
+ * the same input file.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Manifest {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the manifest file: <code>".pngquant-manifest"</code>.
+    */
+   static final String FILE_NAME = ".pngquant-manifest";
+
+   /**
+    * The first line of the manifest file. Files with a different first
+    * line are ignored.
+    */
+   private static final String HEADER = "# pngquant manifest 2";
+
+   /**
+    * The number of fields on each line.
+    */
+   private static final int FIELD_COUNT = 10;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Manifest</code> and loads it from the
+    * specified file, if it exists. Malformed lines are ignored.
+    *
+    * @param file
+    *    the manifest file, cannot be <code>null</code>.
+    *
+    * @param sourceDir
+    *    the source directory, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the manifest file exists but could not be read.
+    */
+   Manifest(File file, File sourceDir) throws IOException {
+      _file      = file;
+      _sourceDir = sourceDir.getAbsolutePath();
+      _entries   = new ConcurrentHashMap<String,Entry>();
+      _others    = new ArrayList<String>();
+
+      BufferedReader reader;
+      try {
+         reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      } catch (FileNotFoundException cause) {
+         return;
+      }
+      try {
+         if (! HEADER.equals(reader.readLine())) {
+            _dirty = true;
+            return;
+         }
+         for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == FIELD_COUNT && ! _sourceDir.equals(fields[0])) {
+               _others.add(line);
+            } else if (fields.length == FIELD_COUNT) {
+               try {
+                  Entry entry = new Entry(fields);
+                  _entries.put(entry._inPath, entry);
+               } catch (NumberFormatException cause) {
+                  _dirty = true;
+               }
+            } else {
+               _dirty = true;
+            }
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The manifest file, never <code>null</code>.
+    */
+   private final File _file;
+
+   /**
+    * The absolute path of the source directory, never <code>null</code>.
+    */
+   private final String _sourceDir;
+
+   /**
+    * The entries, indexed by input path, never <code>null</code>.
+    */
+   private final Map<String,Entry> _entries;
+
+   /**
+    * The lines for other source directories, never <code>null</code>.
+    */
+   private final List<String> _others;
+
+   /**
+    * Flag that indicates if the manifest has changed since it was loaded.
+    */
+   private volatile boolean _dirty;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if the specified output file is up-to-date.
+    *
+    * @param inPath
+    *    the path of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param inSize
+    *    the current size of the input file.
+    *
+    * @param inMtime
+    *    the current modification time of the input file.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param parameters
+    *    a string describing all parameters that affect the output,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the output file is up-to-date,
+    *    <code>false</code> if it must be (re)generated.
+    *
+    * @throws IOException
+    *    if an input or output file could not be hashed.
+    */
+   boolean isUpToDate(String inPath, File inFile, long inSize, long inMtime, File outFile, String parameters) throws IOException {
+      Entry entry = _entries.get(inPath);
+      if (entry == null || ! entry._parameters.equals(parameters)) {
+         return false;
+      }
+
+      // Hash the files only if their size or modification time changed
+      long   outSize = outFile.length();
+      long  outMtime = outFile.lastModified();
+      if (outMtime == 0L) {
+         return false;
+      }
+      boolean inSame = inFile.equals(outFile);
+      boolean  inStat = inSize  == entry._inSize  && inMtime  == entry._inMtime;
+      boolean outStat = outSize == entry._outSize && outMtime == entry._outMtime;
+      if (inStat && outStat) {
+         return true;
+      }
+      String inHash = inStat ? entry._inHash : ResultCache.hash(inFile, null);
+      if (! inHash.equals(entry._inHash)) {
+         return false;
+      }
+      String outHash = inSame ? inHash : outStat ? entry._outHash : ResultCache.hash(outFile, null);
+      if (! outHash.equals(entry._outHash)) {
+         return false;
+      }
+
+      // Contents unchanged, record the new timestamps to avoid hashing again
+      _entries.put(inPath, new Entry(inPath, inSize, inMtime, inHash, parameters,
+                                     entry._outPath, outSize, outMtime, outHash));
+      _dirty = true;
+      return true;
+   }
+
+   /**
+    * Records that the specified output file was generated from the
+    * specified input file.
+    *
+    * @param inPath
+    *    the path of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>. If it is the same file
+    *    as the output file, then the current contents are recorded for
+    *    both.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param parameters
+    *    a string describing all parameters that affect the output,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the input or output file could not be hashed.
+    */
+   void put(String inPath, File inFile, File outFile, String parameters) throws IOException {
+      String outHash = ResultCache.hash(outFile, null);
+      boolean inSame = inFile.equals(outFile);
+      String  inHash = inSame ? outHash : ResultCache.hash(inFile, null);
+      String outPath = outFile.getName();
+      File    parent = outFile.getParentFile();
+      File   destDir = _file.getParentFile();
+      while (parent != null && ! parent.equals(destDir)) {
+         outPath = parent.getName() + File.separatorChar + outPath;
+         parent  = parent.getParentFile();
+      }
+      _entries.put(inPath, new Entry(inPath, inFile.length(), inFile.lastModified(), inHash, parameters,
+                                     outPath, outFile.length(), outFile.lastModified(), outHash));
+      _dirty = true;
+   }
+
+   /**
+    * Removes the entry for the specified input file, if any.
+    *
+    * @param inPath
+    *    the path of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    */
+   void remove(String inPath) {
+      if (_entries.remove(inPath) != null) {
+         _dirty = true;
+      }
+   }
+
+   /**
+    * Removes the entries for all input files that no longer exist and,
+    * optionally, deletes the corresponding output files. An output file is
+    * only deleted if its size and modification time are still the recorded
+    * ones, so files changed by others are left alone.
+    *
+    * @param delete
+    *    <code>true</code> if the output files should be deleted,
+    *    <code>false</code> if only the entries should be removed.
+    *
+    * @return
+    *    the output files that were deleted, never <code>null</code>.
+    */
+   List<File> prune(boolean delete) {
+      File      destDir = _file.getParentFile();
+      List<File> pruned = new ArrayList<File>();
+      for (Entry entry : new ArrayList<Entry>(_entries.values())) {
+         if (! new File(_sourceDir, entry._inPath).exists()) {
+            File outFile = new File(destDir, entry._outPath);
+            if (delete && outFile.length() == entry._outSize && outFile.lastModified() == entry._outMtime && outFile.delete()) {
+               pruned.add(outFile);
+            }
+            _entries.remove(entry._inPath);
+            _dirty = true;
+         }
+      }
+      return pruned;
+   }
+
+   /**
+    * Writes the manifest to its file, if it has changed. The manifest is
+    * written to a temporary file first, which is then renamed into place.
+    *
+    * @throws IOException
+    *    if the manifest could not be written.
+    */
+   void store() throws IOException {
+      if (! _dirty) {
+         return;
+      }
+
+      Entry[] entries = _entries.values().toArray(new Entry[0]);
+      Arrays.sort(entries);
+
+      File temp = File.createTempFile(FILE_NAME, ".tmp", _file.getParentFile());
+      try {
+         Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+         try {
+            out.write(HEADER);
+            out.write('\n');
+            for (String line : _others) {
+               out.write(line);
+               out.write('\n');
+            }
+            for (Entry entry : entries) {
+               out.write(_sourceDir);
+               out.write('\t');
+               entry.write(out);
+            }
+         } finally {
+            out.close();
+         }
+         if (! temp.renameTo(_file) && ! (_file.delete() && temp.renameTo(_file))) {
+            throw new IOException("Unable to rename \"" + temp.getPath() + "\" to \"" + _file.getPath() + "\".");
+         }
+         temp = null;
+         _dirty = false;
+      } finally {
+         if (temp != null) {
+            temp.delete();
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A single line in the manifest. Instances are immutable.
+    */
+   private static final class Entry implements Comparable<Entry> {
+
+      Entry(String inPath, long inSize, long inMtime, String inHash, String parameters,
+            String outPath, long outSize, long outMtime, String outHash) {
+         _inPath     = inPath;
+         _inSize     = inSize;
+         _inMtime    = inMtime;
+         _inHash     = inHash;
+         _parameters = parameters;
+         _outPath    = outPath;
+         _outSize    = outSize;
+         _outMtime   = outMtime;
+         _outHash    = outHash;
+      }
+
+      Entry(String[] fields) throws NumberFormatException {
+         this(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], fields[5],
+              fields[6], Long.parseLong(fields[7]), Long.parseLong(fields[8]), fields[9]);
+      }
+
+      final String _inPath;
+      final long   _inSize;
+      final long   _inMtime;
+      final String _inHash;
+      final String _parameters;
+      final String _outPath;
+      final long   _outSize;
+      final long   _outMtime;
+      final String _outHash;
+
+      void write(Writer out) throws IOException {
+         out.write(_inPath  + '\t' + _inSize  + '\t' + _inMtime  + '\t' + _inHash  + '\t' + _parameters + '\t'
+                 + _outPath + '\t' + _outSize + '\t' + _outMtime + '\t' + _outHash + '\n');
+      }
+
+      public int compareTo(Entry that) {
+         return _inPath.compareTo(that._inPath);
+      }
+   }
+}
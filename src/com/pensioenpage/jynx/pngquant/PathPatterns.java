@@ -0,0 +1,138 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Include and exclude patterns, matched against paths relative to a base
+ * directory the same way <code>DirectoryScanner</code> does. Unlike
+ * <code>DirectoryScanner</code>, this class does not scan anything itself,
+ * so it can be used to match individual files as they are found.
+ *
+ * <p>Instances of this class are immutable and can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class PathPatterns {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Normalizes patterns like <code>DirectoryScanner</code> does: uses the
+    * platform file separator and appends <code>"**"</code> to patterns that
+    * end in a separator.
+    */
+   private static List<String> normalize(String[] patterns) {
+      List<String> normalized = new ArrayList<String>();
+      for (int i = 0; patterns != null && i < patterns.length; i++) {
+         String pattern = patterns[i].replace('/', File.separatorChar).replace('\\', File.separatorChar);
+         normalized.add(pattern.endsWith(File.separator) ? pattern + "**" : pattern);
+      }
+      return normalized;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>PathPatterns</code>.
+    *
+    * @param includes
+    *    the include patterns, or <code>null</code> or empty to include all
+    *    files.
+    *
+    * @param excludes
+    *    the exclude patterns, or <code>null</code>.
+    *
+    * @param defaultExcludes
+    *    <code>true</code> if the default excludes of
+    *    <code>DirectoryScanner</code> should be applied as well.
+    *
+    * @param caseSensitive
+    *    <code>true</code> if the patterns are case-sensitive.
+    */
+   PathPatterns(String[] includes, String[] excludes, boolean defaultExcludes, boolean caseSensitive) {
+      _includes      = normalize(includes);
+      _excludes      = normalize(excludes);
+      _caseSensitive = caseSensitive;
+      if (defaultExcludes) {
+         _excludes.addAll(normalize(DirectoryScanner.getDefaultExcludes()));
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The normalized include patterns, never <code>null</code>; empty if all
+    * files are included.
+    */
+   private final List<String> _includes;
+
+   /**
+    * The normalized exclude patterns, never <code>null</code>.
+    */
+   private final List<String> _excludes;
+
+   /**
+    * Flag that indicates if the patterns are case-sensitive.
+    */
+   private final boolean _caseSensitive;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if the specified file is included and not excluded.
+    *
+    * @param name
+    *    the path of the file, relative to the base directory,
+    *    cannot be <code>null</code>.
+    */
+   boolean matches(String name) {
+      boolean included = _includes.isEmpty();
+      for (int i = 0; i < _includes.size() && ! included; i++) {
+         included = SelectorUtils.matchPath(_includes.get(i), name, _caseSensitive);
+      }
+      for (int i = 0; i < _excludes.size() && included; i++) {
+         included = ! SelectorUtils.matchPath(_excludes.get(i), name, _caseSensitive);
+      }
+      return included;
+   }
+
+   /**
+    * Determines if the specified directory can contain any files that are
+    * included and not excluded. If not, then the directory does not have
+    * to be traversed at all.
+    *
+    * @param name
+    *    the path of the directory, relative to the base directory,
+    *    cannot be <code>null</code>.
+    */
+   boolean couldHoldIncluded(String name) {
+      boolean possible = _includes.isEmpty();
+      for (int i = 0; i < _includes.size() && ! possible; i++) {
+         possible = SelectorUtils.matchPatternStart(_includes.get(i), name, _caseSensitive);
+      }
+
+      // A pattern like "dir/**" excludes everything in the directory
+      for (int i = 0; i < _excludes.size() && possible; i++) {
+         String exclude = _excludes.get(i);
+         possible = ! (exclude.endsWith("**") && SelectorUtils.matchPath(exclude, name, _caseSensitive));
+      }
+      return possible;
+   }
+}
@@ -0,0 +1,201 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The header information of a PNG file, as far as it is relevant to decide
+ * whether quantization can make a difference: the <code>IHDR</code>,
+ * <code>PLTE</code> and <code>tRNS</code> chunks. Only the chunks that
+ * precede the image data are read, using positional reads; the image data
+ * itself is never touched.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class PngHeader {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The PNG file signature.
+    */
+   private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+
+   /**
+    * Chunk types, as big-endian integers.
+    */
+   private static final int IHDR = 0x49484452,
+                            PLTE = 0x504c5445,
+                            TRNS = 0x74524e53,
+                            IDAT = 0x49444154,
+                            IEND = 0x49454e44;
+
+   /**
+    * The PNG color types that can have at most 256 colors.
+    */
+   private static final int GRAYSCALE = 0,
+                            INDEXED   = 3;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Reads the header information from the specified file.
+    *
+    * @param file
+    *    the file to read, cannot be <code>null</code>.
+    *
+    * @return
+    *    the header information, or <code>null</code> if the file is not a
+    *    valid PNG file.
+    *
+    * @throws IOException
+    *    if the file could not be read.
+    */
+   static PngHeader read(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         long           size = channel.size();
+         ByteBuffer   buffer = ByteBuffer.allocate(13);
+
+         // Check the signature
+         if (! readFully(channel, buffer, 0L, 8) || buffer.getLong(0) != SIGNATURE) {
+            return null;
+         }
+
+         // Walk the chunks up to the image data
+         PngHeader header = null;
+         for (long position = 8L; position + 12L <= size; ) {
+            if (! readFully(channel, buffer, position, 8)) {
+               return null;
+            }
+            long length = buffer.getInt(0) & 0xffffffffL;
+            int    type = buffer.getInt(4);
+            long   data = position + 8L;
+            if (data + length + 4L > size) {
+               return null;
+            }
+
+            if (type == IHDR) {
+               if (length != 13L || ! readFully(channel, buffer, data, 13)) {
+                  return null;
+               }
+               header = new PngHeader(buffer.getInt(0), buffer.getInt(4), buffer.get(8) & 0xff, buffer.get(9) & 0xff, buffer.get(12) != 0);
+            } else if (header == null) {
+               return null;
+            } else if (type == PLTE) {
+               header._paletteSize = (int) (length / 3L);
+            } else if (type == TRNS) {
+               header._transparency = true;
+            } else if (type == IDAT || type == IEND) {
+               return header;
+            }
+            position = data + length + 4L;
+         }
+         return null;
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads exactly the specified number of bytes at the specified position
+    * into the start of the buffer.
+    *
+    * @return
+    *    <code>true</code> if the bytes were read, <code>false</code> if the
+    *    end of the file was reached first.
+    */
+   private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int count)
+   throws IOException {
+      buffer.clear();
+      buffer.limit(count);
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   private PngHeader(int width, int height, int bitDepth, int colorType, boolean interlaced) {
+      _width      = width;
+      _height     = height;
+      _bitDepth   = bitDepth;
+      _colorType  = colorType;
+      _interlaced = interlaced;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   final int _width;
+   final int _height;
+   final int _bitDepth;
+   final int _colorType;
+
+   /**
+    * Flag that indicates if the image is interlaced.
+    */
+   final boolean _interlaced;
+
+   /**
+    * The number of palette entries, or 0 if there is no palette.
+    */
+   int _paletteSize;
+
+   /**
+    * Flag that indicates if there is a <code>tRNS</code> chunk.
+    */
+   boolean _transparency;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the maximum number of distinct colors the image can
+    * contain, judging from the header only.
+    *
+    * @return
+    *    the maximum number of colors, or -1 if the image can contain more
+    *    than 256 colors.
+    */
+   int maxColors() {
+      if (_colorType == INDEXED && _paletteSize > 0) {
+         return Math.min(_paletteSize, 1 << _bitDepth);
+      } else if (_colorType == GRAYSCALE && _bitDepth <= 8) {
+         return 1 << _bitDepth;
+      } else {
+         return -1;
+      }
+   }
+
+   /**
+    * Describes the image, for logging.
+    */
+   @Override
+   public String toString() {
+      String kind = _colorType == INDEXED   ? "indexed"
+                  : _colorType == GRAYSCALE ? "grayscale"
+                  : "color type " + _colorType;
+      return kind + ", " + _bitDepth + "-bit" + (_transparency ? ", with transparency" : "");
+   }
+}
@@ -0,0 +1,450 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless PNG re-encoder. Strips all ancillary chunks except
+ * <code>tRNS</code> and re-compresses the image data, trying each of the
+ * row filter strategies and a number of deflate settings, keeping the
+ * smallest result. The file is only replaced if the result is smaller.
+ *
+ * <p>The image data is filtered and compressed row by row, feeding all
+ * deflate settings at once, so apart from the file itself only the
+ * decompressed image data and the compressed candidates are held in
+ * memory. Images with at least a configurable number of pixels are not
+ * optimized at all.
+ *
+ * <p>Interlaced images and images with unknown critical chunks are left
+ * alone.
+ *
+ * <p>Instances of this class are immutable and can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class PngOptimizer {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The PNG file signature.
+    */
+   private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+   /**
+    * The deflate levels to try.
+    */
+   private static final int[] LEVELS = { 6, 9 };
+
+   /**
+    * The deflate strategies to try.
+    */
+   private static final int[] STRATEGIES = { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED };
+
+   /**
+    * Pseudo filter type that selects the filter per row, using the minimum
+    * sum of absolute differences heuristic.
+    */
+   private static final int ADAPTIVE = 5;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   private static int readInt(byte[] data, int offset) {
+      return ((data[offset]     & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+           | ((data[offset + 2] & 0xff) <<  8) |  (data[offset + 3] & 0xff);
+   }
+
+   private static byte[] copyOfRange(byte[] data, int from, int to) {
+      byte[] result = new byte[to - from];
+      System.arraycopy(data, from, result, 0, result.length);
+      return result;
+   }
+
+   private static int paeth(int a, int b, int c) {
+      int p  = a + b - c;
+      int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+      return (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+   }
+
+   /**
+    * Applies the specified filter to a single row.
+    *
+    * @param type
+    *    the filter type, 0 to 4.
+    *
+    * @param row
+    *    the unfiltered row, cannot be <code>null</code>.
+    *
+    * @param prior
+    *    the unfiltered previous row, or all zeroes for the first row,
+    *    cannot be <code>null</code>.
+    *
+    * @param bpp
+    *    the number of bytes per complete pixel, at least 1.
+    *
+    * @param out
+    *    the buffer to write the filtered row to (without the filter type
+    *    byte), cannot be <code>null</code>.
+    */
+   private static void filter(int type, byte[] row, byte[] prior, int bpp, byte[] out) {
+      for (int i = 0; i < row.length; i++) {
+         int x = row[i] & 0xff;
+         int a = (i >= bpp) ? row[i - bpp]   & 0xff : 0;
+         int b = prior[i] & 0xff;
+         int c = (i >= bpp) ? prior[i - bpp] & 0xff : 0;
+         int predictor = type == 1 ? a
+                       : type == 2 ? b
+                       : type == 3 ? (a + b) >>> 1
+                       : type == 4 ? paeth(a, b, c)
+                       : 0;
+         out[i] = (byte) (x - predictor);
+      }
+   }
+
+   /**
+    * Reverses the specified filter on a single row, in place.
+    */
+   static void unfilter(int type, byte[] row, byte[] prior, int bpp) throws IOException {
+      for (int i = 0; i < row.length; i++) {
+         int a = (i >= bpp) ? row[i - bpp]   & 0xff : 0;
+         int b = prior[i] & 0xff;
+         int c = (i >= bpp) ? prior[i - bpp] & 0xff : 0;
+         int predictor;
+         switch (type) {
+            case 0: predictor = 0;                 break;
+            case 1: predictor = a;                 break;
+            case 2: predictor = b;                 break;
+            case 3: predictor = (a + b) >>> 1;     break;
+            case 4: predictor = paeth(a, b, c);    break;
+            default: throw new IOException("Invalid filter type " + type + '.');
+         }
+         row[i] = (byte) (row[i] + predictor);
+      }
+   }
+
+   /**
+    * Filters all rows of an image and compresses the result with each of
+    * the deflate settings. The rows are filtered one at a time and fed to
+    * all deflaters, so the filtered image data is never held in memory as
+    * a whole.
+    *
+    * @param type
+    *    the filter type, 0 to 4, or {@link #ADAPTIVE}.
+    *
+    * @param raw
+    *    the unfiltered image data, each row preceded by a (ignored) filter
+    *    type byte, cannot be <code>null</code>.
+    *
+    * @return
+    *    the smallest compressed image data, never <code>null</code>.
+    */
+   private static byte[] filterAndDeflate(int type, byte[] raw, int rowBytes, int height, int bpp) {
+      Deflater[]              deflaters = new Deflater[LEVELS.length * STRATEGIES.length];
+      ByteArrayOutputStream[]   outputs = new ByteArrayOutputStream[deflaters.length];
+      byte[]                     buffer = new byte[8192];
+      try {
+         for (int i = 0; i < deflaters.length; i++) {
+            deflaters[i] = new Deflater(LEVELS[i / STRATEGIES.length]);
+            deflaters[i].setStrategy(STRATEGIES[i % STRATEGIES.length]);
+            outputs[i]   = new ByteArrayOutputStream(raw.length / 4 + 64);
+         }
+
+         byte[]   row = new byte[rowBytes];
+         byte[] prior = new byte[rowBytes];
+         byte[]  line = new byte[rowBytes + 1];
+         byte[]  test = new byte[rowBytes];
+         for (int y = 0; y < height; y++) {
+            System.arraycopy(raw, y * (rowBytes + 1) + 1, row, 0, rowBytes);
+            int chosen = type;
+            if (type == ADAPTIVE) {
+               long bestSum = Long.MAX_VALUE;
+               for (int t = 0; t < 5; t++) {
+                  filter(t, row, prior, bpp, test);
+                  long sum = 0L;
+                  for (byte v : test) {
+                     sum += Math.abs((int) v);
+                  }
+                  if (sum < bestSum) {
+                     bestSum = sum;
+                     chosen  = t;
+                     System.arraycopy(test, 0, line, 1, rowBytes);
+                  }
+               }
+            } else {
+               filter(type, row, prior, bpp, test);
+               System.arraycopy(test, 0, line, 1, rowBytes);
+            }
+            line[0] = (byte) chosen;
+
+            for (int i = 0; i < deflaters.length; i++) {
+               deflaters[i].setInput(line);
+               while (! deflaters[i].needsInput()) {
+                  outputs[i].write(buffer, 0, deflaters[i].deflate(buffer));
+               }
+            }
+
+            byte[] swap = prior;
+            prior = row;
+            row   = swap;
+         }
+
+         byte[] best = null;
+         for (int i = 0; i < deflaters.length; i++) {
+            deflaters[i].finish();
+            while (! deflaters[i].finished()) {
+               outputs[i].write(buffer, 0, deflaters[i].deflate(buffer));
+            }
+            if (best == null || outputs[i].size() < best.length) {
+               best = outputs[i].toByteArray();
+            }
+            outputs[i] = null;
+         }
+         return best;
+      } finally {
+         for (Deflater deflater : deflaters) {
+            if (deflater != null) {
+               deflater.end();
+            }
+         }
+      }
+   }
+
+   private static byte[] inflate(byte[] data, int expected) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(data);
+         byte[] result = new byte[expected];
+         int     count = 0;
+         while (count < expected && ! inflater.finished()) {
+            int n = inflater.inflate(result, count, expected - count);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+            count += n;
+         }
+         if (count != expected) {
+            throw new IOException("Image data is truncated.");
+         }
+         return result;
+      } catch (DataFormatException cause) {
+         throw new IOException("Image data is corrupt: " + cause.getMessage());
+      } finally {
+         inflater.end();
+      }
+   }
+
+   private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+      byte[] typeBytes = type.getBytes("US-ASCII");
+      CRC32        crc = new CRC32();
+      crc.update(typeBytes);
+      crc.update(data);
+      out.writeInt(data.length);
+      out.write(typeBytes);
+      out.write(data);
+      out.writeInt((int) crc.getValue());
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>PngOptimizer</code>.
+    *
+    * @param pixelLimit
+    *    the number of pixels from which images are left alone.
+    */
+   PngOptimizer(long pixelLimit) {
+      _pixelLimit = pixelLimit;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The number of pixels from which images are left alone.
+    */
+   private final long _pixelLimit;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Optimizes the specified PNG file, in place.
+    *
+    * @param file
+    *    the file to optimize, cannot be <code>null</code>.
+    *
+    * @return
+    *    the number of bytes saved, 0 if the file was left unchanged, or -1
+    *    if the image has too many pixels to be optimized.
+    *
+    * @throws IOException
+    *    if the file could not be read or written, or if it is not a valid
+    *    PNG file.
+    */
+   long optimize(File file) throws IOException {
+
+      // Check the size of the image before reading it as a whole
+      PngHeader png = PngHeader.read(file);
+      if (png == null) {
+         throw new IOException("Not a PNG file.");
+      } else if ((long) png._width * png._height >= _pixelLimit) {
+         return -1L;
+      }
+
+      // Read the file
+      byte[] original;
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+         if (in.length() > Integer.MAX_VALUE) {
+            return 0L;
+         }
+         original = new byte[(int) in.length()];
+         in.readFully(original);
+      } finally {
+         in.close();
+      }
+      for (int i = 0; i < SIGNATURE.length; i++) {
+         if (original.length < SIGNATURE.length || original[i] != SIGNATURE[i]) {
+            throw new IOException("Not a PNG file.");
+         }
+      }
+
+      // Collect the chunks to keep and the image data
+      byte[] header = null, palette = null, transparency = null;
+      ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+      for (int offset = SIGNATURE.length; ; ) {
+         if (offset + 12 > original.length) {
+            throw new IOException("Missing IEND chunk.");
+         }
+         int length = readInt(original, offset);
+         if (length < 0 || offset + 12 + length > original.length) {
+            throw new IOException("Chunk extends beyond end of file.");
+         }
+         String type = new String(original, offset + 4, 4, "US-ASCII");
+         int    data = offset + 8;
+         if ("IHDR".equals(type)) {
+            header = copyOfRange(original, data, data + length);
+         } else if ("PLTE".equals(type)) {
+            palette = copyOfRange(original, data, data + length);
+         } else if ("tRNS".equals(type)) {
+            transparency = copyOfRange(original, data, data + length);
+         } else if ("IDAT".equals(type)) {
+            imageData.write(original, data, length);
+         } else if ("IEND".equals(type)) {
+            break;
+         } else if (Character.isUpperCase(type.charAt(0))) {
+            return 0L;
+         }
+         offset = data + length + 4;
+      }
+      if (header == null || header.length != 13) {
+         throw new IOException("Missing or invalid IHDR chunk.");
+      }
+      long originalLength = original.length;
+      original = null;
+
+      // Interpret the header
+      int     width = readInt(header, 0);
+      int    height = readInt(header, 4);
+      int  bitDepth = header[8]  & 0xff;
+      int colorType = header[9]  & 0xff;
+      int interlace = header[12] & 0xff;
+      int  channels = colorType == 0 ? 1 : colorType == 2 ? 3 : colorType == 3 ? 1 : colorType == 4 ? 2 : colorType == 6 ? 4 : -1;
+      if (channels < 0 || interlace != 0 || width <= 0 || height <= 0) {
+         return 0L;
+      }
+      int bitsPerPixel = channels * bitDepth;
+      long   rowBytesL = ((long) width * bitsPerPixel + 7L) / 8L;
+      if ((rowBytesL + 1L) * height > Integer.MAX_VALUE) {
+         return 0L;
+      }
+      int rowBytes = (int) rowBytesL;
+      int      bpp = Math.max(1, bitsPerPixel / 8);
+
+      // Decompress and unfilter the image data, in place
+      byte[]   raw = inflate(imageData.toByteArray(), (rowBytes + 1) * height);
+      imageData    = null;
+      byte[]   row = new byte[rowBytes];
+      byte[] prior = new byte[rowBytes];
+      for (int y = 0; y < height; y++) {
+         int offset = y * (rowBytes + 1);
+         System.arraycopy(raw, offset + 1, row, 0, rowBytes);
+         unfilter(raw[offset] & 0xff, row, prior, bpp);
+         System.arraycopy(row, 0, raw, offset + 1, rowBytes);
+         byte[] swap = prior;
+         prior = row;
+         row   = swap;
+      }
+
+      // Try all combinations of filters and deflate settings
+      byte[] best = null;
+      for (int filter = 0; filter <= ADAPTIVE; filter++) {
+         byte[] compressed = filterAndDeflate(filter, raw, rowBytes, height, bpp);
+         if (best == null || compressed.length < best.length) {
+            best = compressed;
+         }
+      }
+      raw = null;
+
+      // Assemble the result
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(best.length + 1024);
+      DataOutputStream         out = new DataOutputStream(buffer);
+      out.write(SIGNATURE);
+      writeChunk(out, "IHDR", header);
+      if (palette != null) {
+         writeChunk(out, "PLTE", palette);
+      }
+      if (transparency != null) {
+         writeChunk(out, "tRNS", transparency);
+      }
+      writeChunk(out, "IDAT", best);
+      writeChunk(out, "IEND", new byte[0]);
+      out.flush();
+      byte[] result = buffer.toByteArray();
+      if (result.length >= originalLength) {
+         return 0L;
+      }
+
+      // Replace the file, via a temporary file in the same directory
+      File temp = File.createTempFile('.' + getClass().getSimpleName(), ".tmp", file.getAbsoluteFile().getParentFile());
+      try {
+         OutputStream fileOut = new FileOutputStream(temp);
+         try {
+            fileOut.write(result);
+         } finally {
+            fileOut.close();
+         }
+         if (! temp.renameTo(file) && ! (file.delete() && temp.renameTo(file))) {
+            throw new IOException("Failed to rename \"" + temp.getPath() + "\" to \"" + file.getPath() + "\".");
+         }
+         temp = null;
+      } finally {
+         if (temp != null) {
+            temp.delete();
+         }
+      }
+      return originalLength - result.length;
+   }
+}
@@ -0,0 +1,407 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a PNG file one row at a time. The image data is inflated as the
+ * rows are read, so only the current and the previous row are held in
+ * memory, regardless of the height of the image.
+ *
+ * <p>All color types and bit depths are supported; 16-bit samples are
+ * reduced to 8 bits. Interlaced images are not supported, since their rows
+ * are not stored in order.
+ *
+ * <p>Instances of this class are not thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class PngRowReader {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The PNG file signature.
+    */
+   private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+
+   /**
+    * Chunk types, as big-endian integers.
+    */
+   private static final int IHDR = 0x49484452,
+                            PLTE = 0x504c5445,
+                            TRNS = 0x74524e53,
+                            IDAT = 0x49444154;
+
+   /**
+    * The PNG color types.
+    */
+   private static final int GRAYSCALE       = 0,
+                            TRUECOLOR       = 2,
+                            INDEXED         = 3,
+                            GRAYSCALE_ALPHA = 4,
+                            TRUECOLOR_ALPHA = 6;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>PngRowReader</code> and reads the chunks that
+    * precede the image data.
+    *
+    * @param file
+    *    the PNG file to read, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be read, if it is not a valid PNG file or if
+    *    it is interlaced.
+    */
+   PngRowReader(File file) throws IOException {
+      _in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+         if (_in.readLong() != SIGNATURE) {
+            throw new IOException("Not a PNG file.");
+         }
+
+         // Read the chunks up to the image data
+         byte[] header = null, palette = null, transparency = null;
+         int length, type;
+         while (true) {
+            length = _in.readInt();
+            type   = _in.readInt();
+            if (length < 0) {
+               throw new IOException("Invalid chunk length.");
+            } else if (type == IDAT) {
+               break;
+            } else if (type == IHDR) {
+               header = readData(length);
+            } else if (header == null) {
+               throw new IOException("Missing IHDR chunk.");
+            } else if (type == PLTE) {
+               palette = readData(length);
+            } else if (type == TRNS) {
+               transparency = readData(length);
+            } else {
+               skipFully(length);
+            }
+            skipFully(4);
+         }
+         if (header == null || header.length != 13) {
+            throw new IOException("Missing or invalid IHDR chunk.");
+         }
+
+         // Interpret the header
+         _width     = readInt(header, 0);
+         _height    = readInt(header, 4);
+         _bitDepth  = header[8] & 0xff;
+         _colorType = header[9] & 0xff;
+         int channels = _colorType == GRAYSCALE       ? 1
+                      : _colorType == TRUECOLOR       ? 3
+                      : _colorType == INDEXED         ? 1
+                      : _colorType == GRAYSCALE_ALPHA ? 2
+                      : _colorType == TRUECOLOR_ALPHA ? 4
+                      : -1;
+         if (channels < 0 || _width <= 0 || _height <= 0) {
+            throw new IOException("Invalid IHDR chunk.");
+         } else if ((header[12] & 0xff) != 0) {
+            throw new IOException("Interlaced images cannot be read row by row.");
+         } else if (_colorType == INDEXED && palette == null) {
+            throw new IOException("Missing PLTE chunk.");
+         }
+         int bitsPerPixel = channels * _bitDepth;
+         long   rowBytes  = ((long) _width * bitsPerPixel + 7L) / 8L;
+         if (rowBytes > Integer.MAX_VALUE - 1) {
+            throw new IOException("Image is too wide.");
+         }
+         _bpp   = Math.max(1, bitsPerPixel / 8);
+         _row   = new byte[(int) rowBytes];
+         _prior = new byte[(int) rowBytes];
+
+         // Convert the palette to ARGB colors
+         if (_colorType == INDEXED) {
+            _palette = new int[256];
+            for (int i = 0; i < palette.length / 3; i++) {
+               int alpha = (transparency != null && i < transparency.length) ? transparency[i] & 0xff : 0xff;
+               _palette[i] = (alpha << 24) | ((palette[i * 3] & 0xff) << 16)
+                           | ((palette[i * 3 + 1] & 0xff) << 8) | (palette[i * 3 + 2] & 0xff);
+            }
+         } else {
+            _palette = null;
+         }
+
+         // The transparent color, as raw samples
+         if (transparency != null && _colorType == GRAYSCALE && transparency.length >= 2) {
+            _transparent = readShort(transparency, 0);
+         } else if (transparency != null && _colorType == TRUECOLOR && transparency.length >= 6) {
+            _transparent = ((long) readShort(transparency, 0) << 32)
+                         | ((long) readShort(transparency, 2) << 16)
+                         |  (long) readShort(transparency, 4);
+         } else {
+            _transparent = -1L;
+         }
+
+         // From here on, the image data is inflated as the rows are read
+         _inflater = new Inflater();
+         _data     = new DataInputStream(new InflaterInputStream(new ImageDataStream(length), _inflater, 8192));
+      } catch (IOException exception) {
+         _in.close();
+         throw exception;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The width and height of the image, in pixels.
+    */
+   final int _width, _height;
+
+   /**
+    * The bit depth and color type, as in the <code>IHDR</code> chunk.
+    */
+   private final int _bitDepth, _colorType;
+
+   /**
+    * The number of bytes per complete pixel, at least 1.
+    */
+   private final int _bpp;
+
+   /**
+    * The palette, as ARGB colors, or <code>null</code> if the image is not
+    * indexed.
+    */
+   private final int[] _palette;
+
+   /**
+    * The raw samples of the transparent color, or -1 if there is none.
+    */
+   private final long _transparent;
+
+   /**
+    * The file.
+    */
+   private final DataInputStream _in;
+
+   /**
+    * The inflater and the inflated image data.
+    */
+   private final Inflater        _inflater;
+   private final DataInputStream _data;
+
+   /**
+    * The current and the previous row, unfiltered.
+    */
+   private byte[] _row, _prior;
+
+   /**
+    * The number of rows read so far.
+    */
+   private int _rowsRead;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   private static int readInt(byte[] data, int offset) {
+      return ((data[offset]     & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+           | ((data[offset + 2] & 0xff) <<  8) |  (data[offset + 3] & 0xff);
+   }
+
+   private static int readShort(byte[] data, int offset) {
+      return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+   }
+
+   private byte[] readData(int length) throws IOException {
+      byte[] data = new byte[length];
+      _in.readFully(data);
+      return data;
+   }
+
+   private void skipFully(int count) throws IOException {
+      for (int remaining = count; remaining > 0; ) {
+         int skipped = _in.skipBytes(remaining);
+         if (skipped <= 0) {
+            throw new EOFException();
+         }
+         remaining -= skipped;
+      }
+   }
+
+   /**
+    * Determines the value of the sample at the specified index in the
+    * current row, as it is stored.
+    */
+   private int sample(int index) {
+      if (_bitDepth == 8) {
+         return _row[index] & 0xff;
+      } else if (_bitDepth == 16) {
+         return readShort(_row, index * 2);
+      } else {
+         int   bit = index * _bitDepth;
+         int shift = 8 - _bitDepth - (bit & 7);
+         return ((_row[bit >>> 3] & 0xff) >>> shift) & ((1 << _bitDepth) - 1);
+      }
+   }
+
+   /**
+    * Scales a sample to 8 bits.
+    */
+   private int scale(int sample) {
+      return _bitDepth == 16 ? (sample * 255 + 32767) / 65535
+           : _bitDepth ==  8 ? sample
+           : sample * 255 / ((1 << _bitDepth) - 1);
+   }
+
+   /**
+    * Reads the next row and converts it to non-premultiplied ARGB pixels.
+    *
+    * @param argb
+    *    the array to store the pixels in, at least {@link #_width} long,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if all rows have been read already, or if the image data could not
+    *    be read or is corrupt.
+    */
+   void readRow(int[] argb) throws IOException {
+      if (_rowsRead >= _height) {
+         throw new IOException("All rows have been read.");
+      }
+
+      // Inflate and unfilter the row
+      byte[] swap = _prior;
+      _prior = _row;
+      _row   = swap;
+      int filterType;
+      try {
+         filterType = _data.readUnsignedByte();
+         _data.readFully(_row);
+      } catch (EOFException cause) {
+         throw new IOException("Image data is truncated.");
+      }
+      PngOptimizer.unfilter(filterType, _row, _prior, _bpp);
+      _rowsRead++;
+
+      // Convert the pixels
+      for (int x = 0; x < _width; x++) {
+         int pixel;
+         if (_colorType == INDEXED) {
+            pixel = _palette[sample(x)];
+         } else if (_colorType == GRAYSCALE) {
+            int raw   = sample(x);
+            int gray  = scale(raw);
+            int alpha = raw == _transparent ? 0 : 0xff;
+            pixel = (alpha << 24) | (gray << 16) | (gray << 8) | gray;
+         } else if (_colorType == TRUECOLOR) {
+            int r = sample(x * 3), g = sample(x * 3 + 1), b = sample(x * 3 + 2);
+            int alpha = (((long) r << 32) | ((long) g << 16) | b) == _transparent ? 0 : 0xff;
+            pixel = (alpha << 24) | (scale(r) << 16) | (scale(g) << 8) | scale(b);
+         } else if (_colorType == GRAYSCALE_ALPHA) {
+            int gray = scale(sample(x * 2));
+            pixel = (scale(sample(x * 2 + 1)) << 24) | (gray << 16) | (gray << 8) | gray;
+         } else {
+            pixel = (scale(sample(x * 4 + 3)) << 24) | (scale(sample(x * 4)) << 16)
+                  | (scale(sample(x * 4 + 1)) << 8) | scale(sample(x * 4 + 2));
+         }
+         argb[x] = pixel;
+      }
+   }
+
+   /**
+    * Releases all resources held by this reader.
+    *
+    * @throws IOException
+    *    if the file could not be closed.
+    */
+   void close() throws IOException {
+      _inflater.end();
+      _in.close();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * The contents of the consecutive <code>IDAT</code> chunks, as a single
+    * stream. The CRCs are not checked.
+    */
+   private final class ImageDataStream extends InputStream {
+
+      /**
+       * Constructs a new <code>ImageDataStream</code>, positioned at the
+       * data of the first <code>IDAT</code> chunk.
+       *
+       * @param length
+       *    the length of the first <code>IDAT</code> chunk.
+       */
+      ImageDataStream(int length) {
+         _remaining = length;
+      }
+
+      /**
+       * The number of bytes left in the current chunk, or -1 after the
+       * last <code>IDAT</code> chunk.
+       */
+      private int _remaining;
+
+      /**
+       * Advances to the next <code>IDAT</code> chunk, if the current one is
+       * exhausted.
+       *
+       * @return
+       *    <code>true</code> if there is data left,
+       *    <code>false</code> if the image data has ended.
+       */
+      private boolean advance() throws IOException {
+         while (_remaining == 0) {
+            skipFully(4);
+            int length = _in.readInt();
+            int   type = _in.readInt();
+            _remaining = (type == IDAT && length >= 0) ? length : -1;
+         }
+         return _remaining > 0;
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (! advance()) {
+            return -1;
+         }
+         _remaining--;
+         return _in.read();
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+         if (length == 0) {
+            return 0;
+         } else if (! advance()) {
+            return -1;
+         }
+         int count = _in.read(buffer, offset, Math.min(length, _remaining));
+         if (count < 0) {
+            throw new EOFException();
+         }
+         _remaining -= count;
+         return count;
+      }
+   }
+}
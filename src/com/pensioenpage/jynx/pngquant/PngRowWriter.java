@@ -0,0 +1,276 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes an indexed PNG file one row at a time. The rows are deflated as
+ * they are written and the image data is flushed in <code>IDAT</code>
+ * chunks of at most {@value #CHUNK_SIZE} bytes, so the memory used does not
+ * depend on the height of the image. The smallest bit depth that fits the
+ * palette is used.
+ *
+ * <p>Instances of this class are not thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class PngRowWriter {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The PNG file signature.
+    */
+   private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+   /**
+    * The maximum size of an <code>IDAT</code> chunk.
+    */
+   static final int CHUNK_SIZE = 65536;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+      byte[] typeBytes = type.getBytes("US-ASCII");
+      CRC32        crc = new CRC32();
+      crc.update(typeBytes);
+      crc.update(data, 0, length);
+      out.writeInt(length);
+      out.write(typeBytes);
+      out.write(data, 0, length);
+      out.writeInt((int) crc.getValue());
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>PngRowWriter</code> and writes the chunks that
+    * precede the image data. A <code>tRNS</code> chunk is only written if
+    * the palette contains colors that are not fully opaque.
+    *
+    * @param file
+    *    the file to write, cannot be <code>null</code>.
+    *
+    * @param width
+    *    the width of the image, at least 1.
+    *
+    * @param height
+    *    the height of the image, at least 1.
+    *
+    * @param palette
+    *    the palette, 1 to 256 ARGB colors, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be written.
+    */
+   PngRowWriter(File file, int width, int height, int[] palette) throws IOException {
+      _width    = width;
+      _height   = height;
+      _bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+      _row      = new byte[(int) (((long) width * _bitDepth + 7L) / 8L)];
+      _out      = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      try {
+         _out.write(SIGNATURE);
+
+         byte[] header = new byte[13];
+         for (int i = 0; i < 4; i++) {
+            header[i]     = (byte) (width  >>> (24 - i * 8));
+            header[i + 4] = (byte) (height >>> (24 - i * 8));
+         }
+         header[8] = (byte) _bitDepth;
+         header[9] = 3;
+         writeChunk(_out, "IHDR", header, header.length);
+
+         byte[]   colors = new byte[palette.length * 3];
+         byte[]   alphas = new byte[palette.length];
+         int    trnsSize = 0;
+         for (int i = 0; i < palette.length; i++) {
+            colors[i * 3]     = (byte) (palette[i] >>> 16);
+            colors[i * 3 + 1] = (byte) (palette[i] >>>  8);
+            colors[i * 3 + 2] = (byte)  palette[i];
+            alphas[i]         = (byte) (palette[i] >>> 24);
+            if ((palette[i] >>> 24) != 0xff) {
+               trnsSize = i + 1;
+            }
+         }
+         writeChunk(_out, "PLTE", colors, colors.length);
+         if (trnsSize > 0) {
+            writeChunk(_out, "tRNS", alphas, trnsSize);
+         }
+
+         _data = new DeflaterOutputStream(new ImageDataStream(), _deflater, 8192);
+      } catch (IOException exception) {
+         close();
+         throw exception;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The width and height of the image, in pixels.
+    */
+   private final int _width, _height;
+
+   /**
+    * The bit depth, 1, 2, 4 or 8.
+    */
+   private final int _bitDepth;
+
+   /**
+    * Buffer for the packed row.
+    */
+   private final byte[] _row;
+
+   /**
+    * The file.
+    */
+   private final DataOutputStream _out;
+
+   /**
+    * The deflater and the stream it feeds.
+    */
+   private final Deflater       _deflater;
+   private DeflaterOutputStream _data;
+
+   /**
+    * The number of rows written so far.
+    */
+   private int _rowsWritten;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Writes the next row. The rows are not filtered, since filtering rarely
+    * helps for indexed images.
+    *
+    * @param indices
+    *    the palette index of each pixel, at least as long as the width of
+    *    the image, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if all rows have been written already, or if the file could not be
+    *    written.
+    */
+   void writeRow(byte[] indices) throws IOException {
+      if (_rowsWritten >= _height) {
+         throw new IOException("All rows have been written.");
+      }
+      if (_bitDepth == 8) {
+         System.arraycopy(indices, 0, _row, 0, _width);
+      } else {
+         Arrays.fill(_row, (byte) 0);
+         for (int x = 0; x < _width; x++) {
+            int   bit = x * _bitDepth;
+            int shift = 8 - _bitDepth - (bit & 7);
+            _row[bit >>> 3] |= (byte) ((indices[x] & ((1 << _bitDepth) - 1)) << shift);
+         }
+      }
+      _data.write(0);
+      _data.write(_row);
+      _rowsWritten++;
+   }
+
+   /**
+    * Completes the file: flushes the remaining image data and writes the
+    * <code>IEND</code> chunk. The file must still be closed afterwards.
+    *
+    * @throws IOException
+    *    if not all rows have been written, or if the file could not be
+    *    written.
+    */
+   void finish() throws IOException {
+      if (_rowsWritten != _height) {
+         throw new IOException("Only " + _rowsWritten + " of " + _height + " rows have been written.");
+      }
+      _data.close();
+      writeChunk(_out, "IEND", new byte[0], 0);
+      _out.flush();
+   }
+
+   /**
+    * Releases all resources held by this writer.
+    *
+    * @throws IOException
+    *    if the file could not be closed.
+    */
+   void close() throws IOException {
+      _deflater.end();
+      _out.close();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Splits the deflated image data into <code>IDAT</code> chunks.
+    */
+   private final class ImageDataStream extends OutputStream {
+
+      private final byte[] _buffer = new byte[CHUNK_SIZE];
+      private int          _count;
+
+      @Override
+      public void write(int b) throws IOException {
+         if (_count == _buffer.length) {
+            flushChunk();
+         }
+         _buffer[_count++] = (byte) b;
+      }
+
+      @Override
+      public void write(byte[] data, int offset, int length) throws IOException {
+         while (length > 0) {
+            if (_count == _buffer.length) {
+               flushChunk();
+            }
+            int n = Math.min(length, _buffer.length - _count);
+            System.arraycopy(data, offset, _buffer, _count, n);
+            _count += n;
+            offset += n;
+            length -= n;
+         }
+      }
+
+      /**
+       * Writes the last chunk, without closing the file.
+       */
+      @Override
+      public void close() throws IOException {
+         flushChunk();
+      }
+
+      private void flushChunk() throws IOException {
+         if (_count > 0) {
+            writeChunk(_out, "IDAT", _buffer, _count);
+            _count = 0;
+         }
+      }
+   }
+}
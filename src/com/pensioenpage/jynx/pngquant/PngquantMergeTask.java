@@ -0,0 +1,306 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import static org.apache.tools.ant.Project.MSG_ERR;
+import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import static org.apache.tools.ant.Project.MSG_WARN;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * An Apache Ant task that merges the report fragments written by a number
+ * of sharded runs of the {@link PngquantTask} (see its
+ * <em>shardIndex</em> and <em>shardCount</em> parameters) into an overall
+ * report and summary. The build fails if any file failed in any shard, or
+ * if a fragment is missing or incomplete.
+ *
+ * <p>The parameters supported by this task are:
+ *
+ * <dl>
+ * <dt>shardCount
+ * <dd>The expected number of fragments; if set, the task fails if a
+ *     different number of fragments is found.
+ *     Optional, by default any number of fragments is accepted.
+ *
+ * <dt>report
+ * <dd>File to write the merged report to.
+ *     Optional, by default no merged report is written.
+ *
+ * <dt>reportFormat
+ * <dd>The format of the merged report, either <code>csv</code> or
+ *     <code>json</code>.
+ *     Optional, defaults to <code>json</code> if the report file name ends
+ *     in <code>.json</code>, and <code>csv</code> otherwise.
+ *
+ * <dt>summaryPrefix
+ * <dd>Prefix for the properties that are set to the merged summary: file
+ *     counts, byte totals and latency percentiles.
+ *     Optional, by default no summary properties are set.
+ *
+ * <dt>failOnError
+ * <dd>Flag that indicates if the task should fail if any file failed.
+ *     Optional, defaults to <em>true</em>.
+ * </dl>
+ *
+ * <p>The fragments are specified using nested <code>&lt;fileset&gt;</code>
+ * elements. Fragments are read in order of their path.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class PngquantMergeTask extends Task {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>PngquantMergeTask</code> object.
+    */
+   public PngquantMergeTask() {
+      _fileSets    = new ArrayList<FileSet>();
+      _failOnError = true;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The file sets with the fragments, never <code>null</code>.
+    */
+   private final List<FileSet> _fileSets;
+
+   /**
+    * The expected number of fragments, or 0 if any number is accepted.
+    */
+   private int _shardCount;
+
+   /**
+    * The merged report file, or <code>null</code> if none should be
+    * written.
+    */
+   private File _report;
+
+   /**
+    * The format of the merged report, or <code>null</code> for the default.
+    */
+   private String _reportFormat;
+
+   /**
+    * The prefix for the summary properties, or <code>null</code> if no
+    * summary properties should be set.
+    */
+   private String _summaryPrefix;
+
+   /**
+    * Flag that indicates if the task should fail if any file failed.
+    */
+   private boolean _failOnError;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Adds a set of fragments.
+    *
+    * @param fileSet
+    *    the file set, cannot be <code>null</code>.
+    */
+   public void addFileset(FileSet fileSet) {
+      _fileSets.add(fileSet);
+   }
+
+   /**
+    * Sets the expected number of fragments.
+    *
+    * @param shardCount
+    *    the expected number of fragments, or 0 to accept any number.
+    */
+   public void setShardCount(int shardCount) {
+      log("Setting \"shardCount\" to: " + shardCount + '.', MSG_VERBOSE);
+      _shardCount = shardCount;
+   }
+
+   /**
+    * Sets the file to write the merged report to.
+    *
+    * @param report
+    *    the report file, or <code>null</code> if no merged report should be
+    *    written.
+    */
+   public void setReport(File report) {
+      log("Setting \"report\" to: " + report + '.', MSG_VERBOSE);
+      _report = report;
+   }
+
+   /**
+    * Sets the format of the merged report: either <code>"csv"</code> or
+    * <code>"json"</code>.
+    *
+    * @param format
+    *    the report format, or <code>null</code> for the default.
+    */
+   public void setReportFormat(String format) {
+      log("Setting \"reportFormat\" to: " + format + '.', MSG_VERBOSE);
+      _reportFormat = format;
+   }
+
+   /**
+    * Sets the prefix for the summary properties. If set, then the
+    * properties <code><em>prefix</em>.processed</code>,
+    * <code>.copied</code>, <code>.skipped</code>, <code>.failed</code>,
+    * <code>.deduplicated</code>, <code>.bytesDeduplicated</code>,
+    * <code>.bytesIn</code>, <code>.bytesOut</code>,
+    * <code>.bytesSaved</code>, <code>.p50</code>, <code>.p95</code> and
+    * <code>.p99</code> are set, as well as <code>.shards</code>.
+    *
+    * @param prefix
+    *    the property name prefix, or <code>null</code>.
+    */
+   public void setSummaryPrefix(String prefix) {
+      log("Setting \"summaryPrefix\" to: " + prefix + '.', MSG_VERBOSE);
+      _summaryPrefix = prefix;
+   }
+
+   /**
+    * Sets whether the task should fail if any file failed.
+    *
+    * @param flag
+    *    <code>true</code> if the task should fail, <code>false</code> if
+    *    failures should only be logged.
+    */
+   public void setFailOnError(boolean flag) {
+      log("Setting \"failOnError\" to: " + flag + '.', MSG_VERBOSE);
+      _failOnError = flag;
+   }
+
+   @Override
+   public void execute() throws BuildException {
+
+      // Collect the fragments
+      List<File> fragments = new ArrayList<File>();
+      for (FileSet fileSet : _fileSets) {
+         DirectoryScanner scanner = fileSet.getDirectoryScanner(getProject());
+         for (String name : scanner.getIncludedFiles()) {
+            File fragment = new File(scanner.getBasedir(), name);
+            if (! fragment.equals(_report)) {
+               fragments.add(fragment);
+            }
+         }
+      }
+      Collections.sort(fragments);
+      if (fragments.isEmpty()) {
+         throw new BuildException("No report fragments found.");
+      } else if (_shardCount > 0 && fragments.size() != _shardCount) {
+         throw new BuildException("Expected " + _shardCount + " report fragment(s), found " + fragments.size() + '.');
+      }
+
+      // Determine the report format
+      boolean jsonReport = false;
+      if (_report != null) {
+         String f = (_reportFormat == null) ? null : _reportFormat.toLowerCase().trim();
+         if (f == null || f.length() < 1) {
+            jsonReport = _report.getName().toLowerCase().endsWith(".json");
+         } else if ("json".equals(f)) {
+            jsonReport = true;
+         } else if (! "csv".equals(f)) {
+            throw new BuildException("Invalid value for \"reportFormat\" option: \"" + _reportFormat + "\".");
+         }
+      }
+
+      // Read all fragments, writing the merged report as we go
+      int  failedCount = 0, processCount = 0, copyCount = 0, skippedCount = 0, dedupCount = 0;
+      long bytesIn     = 0L, bytesOut = 0L, dedupBytes = 0L;
+      LatencyHistogram latencies = new LatencyHistogram();
+      ReportWriter report = null;
+      try {
+         if (_report != null) {
+            report = new ReportWriter(_report, jsonReport);
+         }
+         for (File fragment : fragments) {
+            log("Merging report fragment \"" + fragment.getPath() + "\".", MSG_VERBOSE);
+            ReportReader reader;
+            try {
+               reader = new ReportReader(fragment);
+            } catch (IOException cause) {
+               throw new BuildException("Unable to read report fragment \"" + fragment.getPath() + "\": " + cause.getMessage(), cause);
+            }
+            try {
+               for (FileRecord record = reader.next(); record != null; record = reader.next()) {
+                  if (FileRecord.PROCESSED.equals(record._action)) {
+                     processCount++;
+                     bytesIn  += record._inputBytes;
+                     bytesOut += record._outputBytes;
+                  } else if (FileRecord.COPIED.equals(record._action)) {
+                     copyCount++;
+                  } else if (FileRecord.SKIPPED.equals(record._action)) {
+                     skippedCount++;
+                  } else if (FileRecord.DEDUPLICATED.equals(record._action)) {
+                     dedupCount++;
+                     dedupBytes += record._inputBytes;
+                  } else if (FileRecord.FAILED.equals(record._action)) {
+                     failedCount++;
+                     log("Failed: " + record._path + (record._error == null ? "" : ": " + record._error), MSG_ERR);
+                  }
+                  if (! FileRecord.SKIPPED.equals(record._action)) {
+                     latencies.record(record._wallTime);
+                  }
+                  if (report != null) {
+                     report.write(record);
+                  }
+               }
+            } catch (IOException cause) {
+               throw new BuildException("Unable to read report fragment \"" + fragment.getPath() + "\": " + cause.getMessage(), cause);
+            } finally {
+               reader.close();
+            }
+         }
+      } catch (IOException cause) {
+         throw new BuildException("Failed to merge report fragments.", cause);
+      } finally {
+         if (report != null) {
+            try {
+               report.close();
+            } catch (IOException cause) {
+               log("Failed to close report file \"" + _report.getPath() + "\": " + cause.getMessage(), MSG_WARN);
+            }
+         }
+      }
+
+      // Export the summary, if requested
+      if (_summaryPrefix != null && _summaryPrefix.length() > 0) {
+         Project project = getProject();
+         project.setNewProperty(_summaryPrefix + ".shards",            String.valueOf(fragments.size()));
+         project.setNewProperty(_summaryPrefix + ".processed",         String.valueOf(processCount));
+         project.setNewProperty(_summaryPrefix + ".copied",            String.valueOf(copyCount));
+         project.setNewProperty(_summaryPrefix + ".skipped",           String.valueOf(skippedCount));
+         project.setNewProperty(_summaryPrefix + ".failed",            String.valueOf(failedCount));
+         project.setNewProperty(_summaryPrefix + ".deduplicated",      String.valueOf(dedupCount));
+         project.setNewProperty(_summaryPrefix + ".bytesDeduplicated", String.valueOf(dedupBytes));
+         project.setNewProperty(_summaryPrefix + ".bytesIn",           String.valueOf(bytesIn));
+         project.setNewProperty(_summaryPrefix + ".bytesOut",          String.valueOf(bytesOut));
+         project.setNewProperty(_summaryPrefix + ".bytesSaved",        String.valueOf(bytesIn - bytesOut));
+         project.setNewProperty(_summaryPrefix + ".p50",               String.valueOf(latencies.percentile(50.0)));
+         project.setNewProperty(_summaryPrefix + ".p95",               String.valueOf(latencies.percentile(95.0)));
+         project.setNewProperty(_summaryPrefix + ".p99",               String.valueOf(latencies.percentile(99.0)));
+      }
+
+      String message = "Merged " + fragments.size() + " report fragment(s): " + processCount + " file(s) processed and " + copyCount + " file(s) copied; " + skippedCount + " file(s) skipped; " + dedupCount + " duplicate file(s) linked; " + failedCount + " file(s) failed. Saved " + (bytesIn - bytesOut) + " byte(s).";
+      if (failedCount > 0 && _failOnError) {
+         throw new BuildException(message);
+      }
+      log(message, failedCount > 0 ? MSG_ERR : Project.MSG_INFO);
+   }
+}
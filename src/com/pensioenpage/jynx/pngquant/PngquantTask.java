@@ -1,15 +1,47 @@
 // Copyright 2007-2009, PensioenPage B.V.
 package com.pensioenpage.jynx.pngquant;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.zip.CRC32;
+import javax.management.JMException;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
@@ -17,13 +49,8 @@ import org.apache.tools.ant.Project;
 import static org.apache.tools.ant.Project.MSG_ERR;
 import static org.apache.tools.ant.Project.MSG_VERBOSE;
 import static org.apache.tools.ant.Project.MSG_WARN;
-import org.apache.tools.ant.taskdefs.Execute;
-import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
-import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
 import org.apache.tools.ant.taskdefs.MatchingTask;
-import org.apache.tools.ant.taskdefs.PumpStreamHandler;
 import org.apache.tools.ant.types.FileSet;
-import org.apache.tools.ant.util.FileUtils;
 
 /**
  * An Apache Ant task for applying quantization to a number of PNG images,
@@ -33,32 +60,243 @@ import org.apache.tools.ant.util.FileUtils;
  * <p>The most notable parameters supported by this task are:
  *
  * <dl>
+ * <dt>versionProperty
+ * <dd>The name of a property to set to the version of the command.
+ *     Optional, by default no property is set.
+ *
+ * <dt>engine
+ * <dd>The quantization engine to use, either "pngquant" (execute the
+ *     command) or "java" (quantize in-process, without executing any
+ *     command). Optional, default is "pngquant".
+ *
  * <dt>command
  * <dd>The name of the command to execute.
  *     Optional, defaults to <code>pngquant</code>.
  *
  * <dt>method
  * <dd>The algorithm to use, either "ordered" or "dithering"
- *     (Floyd-Steinberg). Optional, default is "dithering".
+ *     (Floyd-Steinberg, alternative is "diffusion").
+ *     Optional, default is "dithering".
  *
  * <dt>colors
  * <dd>The maximum number of colors for the result image, must be between 2
  *     and 256. Optional, default is 256.
  *
+ * <dt>speed
+ * <dd>The speed/quality trade-off of pngquant, between 1 (slowest, best
+ *     quality) and 11 (fastest). Requires pngquant 2 or later; ignored for
+ *     the "java" engine.
+ *     Optional, by default the default of pngquant applies.
+ *
+ * <dt>quality
+ * <dd>The quality range for pngquant, as <code>min-max</code> (both
+ *     between 0 and 100); files for which the minimum cannot be met fail.
+ *     Requires pngquant 2 or later; ignored for the "java" engine.
+ *     Optional, by default the default of pngquant applies.
+ *
+ * <dt>posterize
+ * <dd>The number of least significant bits pngquant ignores per color
+ *     channel, between 0 and 4. Requires pngquant 2 or later; ignored for
+ *     the "java" engine.
+ *     Optional, by default the default of pngquant applies.
+ *
+ * <dt>timeBudget
+ * <dd>The intended duration of the run, in milliseconds. The <em>speed</em>
+ *     is then chosen per file: the slowest speed for which the remaining
+ *     files are estimated to fit in the remaining time, based on their
+ *     number of pixels and the throughput measured so far. Unlike the
+ *     <em>deadline</em>, this never stops files from being processed.
+ *     With a <em>cacheDir</em>, only results at the slowest speed are
+ *     cached. Requires pngquant 2 or later; ignored for the "java" engine.
+ *     Optional, by default there is no time budget.
+ *
+ * <dt>targetQuality
+ * <dd>The minimum quality of each output file; if set, the number of colors
+ *     is chosen per file, as the smallest output that meets the target,
+ *     with <em>colors</em> as the upper bound.
+ *     Optional, by default every file is quantized to <em>colors</em>.
+ *
+ * <dt>qualityMetric
+ * <dd>The metric for <em>targetQuality</em>: <code>psnr</code> (in dB) or
+ *     <code>ssim</code> (between 0 and 1).
+ *     Optional, defaults to <code>psnr</code>.
+ *
+ * <dt>maxBytes
+ * <dd>The maximum size of each output file; if set, the number of colors
+ *     is chosen per file, like with <em>targetQuality</em>.
+ *     Optional, by default there is no size target.
+ *
  * <dt>timeOut
  * <dd>The time-out for each individual invocation of the command, in
  *     milliseconds. Optional, defaults to 60000 (60 seconds).
  *
+ * <dt>timeOutPerMegapixel
+ * <dd>The time-out added to <em>timeOut</em> for each megapixel of the
+ *     image, in milliseconds.
+ *     Optional, defaults to 0.
+ *
+ * <dt>deadline
+ * <dd>The maximum duration of the run, in milliseconds. Files that are
+ *     not processed by then are copied (or fail, with
+ *     <code>process="true"</code>); running commands are killed.
+ *     Optional, by default there is no deadline.
+ *
+ * <dt>retries
+ * <dd>The number of times to retry starting the command if it could not be
+ *     started, with exponential backoff.
+ *     Optional, defaults to 2.
+ *
+ * <dt>threads
+ * <dd>The number of files to process concurrently.
+ *     Optional, defaults to the number of available processors.
+ *
+ * <dt>adaptiveThreads
+ * <dd>Flag that indicates if the number of threads should be adjusted at
+ *     runtime, based on the observed throughput and the system load
+ *     average, with <em>threads</em> as the maximum.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>order
+ * <dd>The order in which files are processed: <code>scan</code> (as found)
+ *     or <code>largest</code> (longest first, by the durations in the
+ *     previous report or else by size).
+ *     Optional, defaults to <code>scan</code>.
+ *
+ * <dt>streaming
+ * <dd>Flag that indicates if the input file should be piped into the
+ *     command, with the output read directly into a temporary file in the
+ *     destination directory that is then renamed into place. This avoids
+ *     the temporary copies of the input and output files. For the "java"
+ *     engine, all images are streamed instead, see
+ *     <em>streamingMegapixels</em>. Overrides <em>batchSize</em>.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>streamingMegapixels
+ * <dd>The minimum size of an image, in megapixels, for it to be streamed
+ *     when it is quantized in-process: decoded, remapped and encoded row
+ *     by row, with the palette derived from a bounded sample of the
+ *     pixels. Interlaced images are never streamed. 0 disables this.
+ *     Optional, defaults to 16.
+ *
+ * <dt>batchSize
+ * <dd>The maximum number of files to process with a single invocation of
+ *     the command. Files for which a batch invocation produces no output
+ *     are processed individually. Ignored for the "java" engine.
+ *     Optional, defaults to 1.
+ *
+ * <dt>cacheDir
+ * <dd>Directory holding a persistent cache of quantization results, keyed
+ *     by the content of the input file and the parameters that affect the
+ *     output. The directory can be shared between builds.
+ *     Optional, by default no cache is used.
+ *
+ * <dt>cacheSize
+ * <dd>The maximum size of the cache, in megabytes. When exceeded, the
+ *     least-recently-used results are evicted.
+ *     Optional, defaults to 512.
+ *
+ * <dt>report
+ * <dd>File to write a report to, with metrics for each individual file.
+ *     Optional, by default no report is written.
+ *
+ * <dt>reportFormat
+ * <dd>The format of the report, either <code>csv</code> or
+ *     <code>json</code>.
+ *     Optional, defaults to <code>json</code> if the report file name ends
+ *     in <code>.json</code>, and <code>csv</code> otherwise.
+ *
+ * <dt>summaryPrefix
+ * <dd>Prefix for the properties that are set to the summary of the run:
+ *     file counts, byte totals and latency percentiles.
+ *     Optional, by default no summary properties are set.
+ *
+ * <dt>progressInterval
+ * <dd>The interval between progress lines logged while the files are
+ *     processed, in milliseconds. The progress is also available as an
+ *     MBean (see {@link ProgressMBean}) while the task executes.
+ *     Optional, by default no progress lines are logged.
+ *
+ * <dt>shardCount
+ * <dd>The number of shards to partition the files in, so that multiple
+ *     machines can each process a part of them. Use a separate report per
+ *     shard and merge them with the {@link PngquantMergeTask}.
+ *     Optional, defaults to 1.
+ *
+ * <dt>shardIndex
+ * <dd>The shard to process, between 0 and <em>shardCount</em> - 1.
+ *     Optional, defaults to 0.
+ *
+ * <dt>shardBy
+ * <dd>How files are assigned to shards: <code>hash</code> (of the relative
+ *     path) or <code>size</code> (balancing the bytes per shard).
+ *     Optional, defaults to <code>hash</code>.
+ *
  * <dt>dir
  * <dd>The source directory to read from.
  *     Optional, defaults to the project base directory.
  *
+ * <dt>traversal
+ * <dd>How the source directory is traversed: <code>scanner</code> (scan
+ *     the complete tree first) or <code>walk</code> (process files as soon
+ *     as they are found, reading their attributes only once; selectors are
+ *     not supported).
+ *     Optional, defaults to <code>scanner</code>.
+ *
+ * <dt>linkMode
+ * <dd>How input files are copied to the destination directory, and how
+ *     the outputs of duplicates are materialized: <code>hardlink</code>,
+ *     <code>reflink</code> or <code>copy</code>. If a method is not
+ *     possible, the next one is used.
+ *     Optional, defaults to <code>copy</code> for copies and
+ *     <code>hardlink</code> for duplicates.
+ *
+ * <dt>deduplicate
+ * <dd>Flag that indicates if input files with identical contents should
+ *     be processed only once, materializing the other outputs as hard
+ *     links, reflinks or copies of the first. Not supported with
+ *     traversal <code>walk</code>.
+ *     Optional, defaults to <em>false</em>.
+ *
  * <dt>includes
  * <dd>The files to match in the source directory.
  *     Optional, defaults to all files.
  *
  * <dt>overwrite
- * <dd>Flag that can be used to force overwriting of existing newer files.
+ * <dd>Flag that can be used to force overwriting of existing up-to-date
+ *     files.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>watch
+ * <dd>Flag that indicates if the source directory should be watched for
+ *     changes after the initial pass, until the build is interrupted.
+ *     Requires <em>manifest</em> when processing in place.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>optimize
+ * <dd>Flag that indicates if processed files should be re-encoded
+ *     losslessly, stripping ancillary chunks and trying all row filters
+ *     and several deflate settings. Runs concurrently with the processing
+ *     of the next files. Images of at least <em>streamingMegapixels</em>
+ *     are not optimized.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>preflight
+ * <dd>Flag that indicates if files that cannot benefit from quantization
+ *     should be copied instead: images that are already indexed with no
+ *     more than <em>colors</em> colors (judging from their header), and
+ *     images for which the output is not smaller than the original.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>manifest
+ * <dd>Flag that indicates if a build manifest in the destination directory
+ *     should be used to determine which files are up-to-date, based on
+ *     content hashes and parameters rather than modification times.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>prune
+ * <dd>Flag that indicates if output files whose source file was removed
+ *     should be deleted: those recorded in the build manifest and, with
+ *     <em>watch</em>, those of files deleted while watching.
  *     Optional, defaults to <em>false</em>.
  *
  * <dt>excludes
@@ -70,6 +308,12 @@ import org.apache.tools.ant.util.FileUtils;
  *     Optional, defaults to the source directory.
  * </dl>
  *
+ * <p>Files that should share a single palette can be specified using nested
+ * <code>&lt;palettegroup&gt;</code> elements, which are file sets. Each
+ * group is quantized to one palette derived from all its members, so they
+ * all get identical <code>PLTE</code> chunks. Groups are always quantized
+ * in-process; their members are not processed individually.
+ *
  * <p>This task supports more parameters and contained elements, inherited
  * from {@link MatchingTask}. For more information, see
  * <a href="http://ant.apache.org/manual/dirtasks.html">the Ant site</a>.
@@ -92,11 +336,89 @@ public final class PngquantTask extends MatchingTask {
     */
    public static final long DEFAULT_TIMEOUT = 60L * 1000L;
 
+   /**
+    * The default number of retries when the command could not be started.
+    */
+   public static final int DEFAULT_RETRIES = 2;
+
+   /**
+    * The default minimum size of an image for it to be streamed by the
+    * Java engine, in megapixels.
+    */
+   public static final int DEFAULT_STREAMING_MEGAPIXELS = 16;
+
+   /**
+    * The default maximum cache size, in megabytes: 512.
+    */
+   public static final long DEFAULT_CACHE_SIZE = 512L;
+
+   /**
+    * The maximum length of a command line, in characters. This is well
+    * within the limits of all common platforms, the lowest being Windows
+    * with 32767 characters.
+    */
+   private static final int MAX_COMMAND_LENGTH = 30000;
+
+   /**
+    * In watch mode, the time to wait for more file system events before
+    * processing the changes, in milliseconds.
+    */
+   private static final long WATCH_QUIET_PERIOD = 50L;
+
+   /**
+    * In watch mode, the maximum time to defer processing while file
+    * system events keep coming in, in milliseconds.
+    */
+   private static final long WATCH_MAX_DELAY = 500L;
+
+   /**
+    * The results of probing commands for their version, shared by all task
+    * instances in the JVM. The key is the path of the executable, or the
+    * command itself if it could not be resolved to a file.
+    */
+   private static final ConcurrentMap<String,ProbeResult> PROBE_CACHE = new ConcurrentHashMap<String,ProbeResult>();
+
 
    //-------------------------------------------------------------------------
    // Class functions
    //-------------------------------------------------------------------------
 
+   /**
+    * Resolves the specified command to an executable file, the same way the
+    * operating system does: either the command is a path, or it is looked
+    * up in the directories on the <code>PATH</code>.
+    *
+    * @param command
+    *    the command, cannot be <code>null</code>.
+    *
+    * @return
+    *    the absolute executable file, or <code>null</code> if it cannot be
+    *    found.
+    */
+   private static final File resolveCommand(String command) {
+
+      // The command is a path
+      File file = new File(command);
+      if (file.isAbsolute() || command.indexOf('/') >= 0 || command.indexOf(File.separatorChar) >= 0) {
+         return file.isFile() ? file.getAbsoluteFile() : null;
+      }
+
+      // Look up the command in the PATH, also trying the executable
+      // extensions on Windows
+      String path = System.getenv("PATH");
+      String  ext = System.getenv("PATHEXT");
+      String[] extensions = (ext == null) ? new String[] { "" } : ("" + File.pathSeparator + ext).split(File.pathSeparator);
+      for (String dir : (path == null ? new String[0] : path.split(File.pathSeparator))) {
+         for (String extension : extensions) {
+            File candidate = new File(dir, command + extension);
+            if (candidate.isFile()) {
+               return candidate.getAbsoluteFile();
+            }
+         }
+      }
+      return null;
+   }
+
    /**
     * Returns a quoted version of the specified string,
     * or <code>"(null)"</code> if the argument is <code>null</code>.
@@ -251,7 +573,15 @@ public final class PngquantTask extends MatchingTask {
     * Constructs a new <code>PngquantTask</code> object.
     */
    public PngquantTask() {
-      _numColors = 256;
+      _numColors           = 256;
+      _threads             = Runtime.getRuntime().availableProcessors();
+      _timeOut             = DEFAULT_TIMEOUT;
+      _retries             = DEFAULT_RETRIES;
+      _streamingMegapixels = DEFAULT_STREAMING_MEGAPIXELS;
+      _posterize           = -1;
+      _cacheSize           = DEFAULT_CACHE_SIZE;
+      _batchSize           = 1;
+      _shardCount          = 1;
    }
 
 
@@ -289,6 +619,23 @@ public final class PngquantTask extends MatchingTask {
     */
    private long _timeOut;
 
+   /**
+    * The time-out to add per megapixel, in milliseconds, or 0 (or lower) if
+    * the time-out should not depend on the size of the image.
+    */
+   private long _timeOutPerMegapixel;
+
+   /**
+    * The maximum duration of a run, in milliseconds, or 0 (or lower) if
+    * there is no deadline.
+    */
+   private long _deadline;
+
+   /**
+    * The number of times to retry starting the command.
+    */
+   private int _retries;
+
    /**
     * Character string that indicates whether the files should be processed
     * at all. There are 3 options:
@@ -305,12 +652,222 @@ public final class PngquantTask extends MatchingTask {
     */
    private String _process;
 
+   /**
+    * The name of the property to set to the version of the command, or
+    * <code>null</code> if no property should be set.
+    */
+   private String _versionProperty;
+
+   /**
+    * The quantization engine to use, see {@link #setEngine(String)}.
+    * If <code>null</code>, then the command is executed.
+    */
+   private String _engine;
+
+   /**
+    * The quantization method, see {@link #setMethod(String)}.
+    * If <code>null</code>, then Floyd-Steinberg dithering is applied.
+    */
+   private String _method;
+
    /**
     * The number of colors to reduce to. Must be between 2 and 256, although
     * the value of this field can be outside this range.
     */
    private int _numColors;
 
+   /**
+    * The speed/quality trade-off of the command, or 0 (or lower) for its
+    * default. See {@link #setSpeed(int)}.
+    */
+   private int _speed;
+
+   /**
+    * The quality range for the command, or <code>null</code> for its
+    * default. See {@link #setQuality(String)}.
+    */
+   private String _quality;
+
+   /**
+    * The number of bits to ignore per color channel, or -1 for the default
+    * of the command. See {@link #setPosterize(int)}.
+    */
+   private int _posterize;
+
+   /**
+    * The intended duration of a run, in milliseconds, or 0 (or lower) if
+    * there is no time budget. See {@link #setTimeBudget(long)}.
+    */
+   private long _timeBudget;
+
+   /**
+    * The maximum number of files to process concurrently. Should be at
+    * least 1, although the value of this field can be outside this range.
+    */
+   private int _threads;
+
+   /**
+    * Flag that indicates if the files should be streamed through the
+    * command. See {@link #setStreaming(boolean)}.
+    */
+   private boolean _streaming;
+
+   /**
+    * The minimum size of an image for it to be streamed by the Java engine,
+    * in megapixels. See {@link #setStreamingMegapixels(int)}.
+    */
+   private int _streamingMegapixels;
+
+   /**
+    * The maximum number of files to process per invocation of the command.
+    * See {@link #setBatchSize(int)}.
+    */
+   private int _batchSize;
+
+   /**
+    * The directory holding the result cache, or <code>null</code> if no
+    * cache should be used. See {@link #setCacheDir(File)}.
+    */
+   private File _cacheDir;
+
+   /**
+    * The maximum size of the result cache, in megabytes.
+    */
+   private long _cacheSize;
+
+   /**
+    * The minimum quality for the color search, or 0 if there is no quality
+    * target. See {@link #setTargetQuality(double)}.
+    */
+   private double _targetQuality;
+
+   /**
+    * The quality metric, either <code>"psnr"</code> or <code>"ssim"</code>,
+    * or <code>null</code> for the default (PSNR).
+    */
+   private String _qualityMetric;
+
+   /**
+    * The maximum output size for the color search, in bytes, or 0 if there
+    * is no size target. See {@link #setMaxBytes(long)}.
+    */
+   private long _maxBytes;
+
+   /**
+    * Flag that indicates if the source directory should be watched for
+    * changes after the initial pass. See {@link #setWatch(boolean)}.
+    */
+   private boolean _watch;
+
+   /**
+    * Flag that indicates if the processed files should be re-encoded
+    * losslessly. See {@link #setOptimize(boolean)}.
+    */
+   private boolean _optimize;
+
+   /**
+    * Flag that indicates if files that cannot benefit from quantization
+    * should be detected. See {@link #setPreflight(boolean)}.
+    */
+   private boolean _preflight;
+
+   /**
+    * Flag that indicates if a build manifest should be used to determine
+    * which output files are up-to-date. See {@link #setManifest(boolean)}.
+    */
+   private boolean _manifest;
+
+   /**
+    * Flag that indicates if output files whose source file was removed
+    * should be deleted. See {@link #setPrune(boolean)}.
+    */
+   private boolean _prune;
+
+   /**
+    * The file to write the per-file metrics report to, or <code>null</code>
+    * if no report should be written. See {@link #setReport(File)}.
+    */
+   private File _report;
+
+   /**
+    * The format of the report, either <code>"csv"</code> or
+    * <code>"json"</code>, or <code>null</code> if it should be derived from
+    * the report file name.
+    */
+   private String _reportFormat;
+
+   /**
+    * The prefix for the summary properties, or <code>null</code> if no
+    * summary properties should be set. See
+    * {@link #setSummaryPrefix(String)}.
+    */
+   private String _summaryPrefix;
+
+   /**
+    * The index of the shard to process, between 0 and
+    * <code>_shardCount - 1</code>. See {@link #setShardIndex(int)}.
+    */
+   private int _shardIndex;
+
+   /**
+    * The number of shards the files are partitioned in. See
+    * {@link #setShardCount(int)}.
+    */
+   private int _shardCount;
+
+   /**
+    * How files are assigned to shards, either <code>"hash"</code> or
+    * <code>"size"</code>, or <code>null</code> for the default.
+    * See {@link #setShardBy(String)}.
+    */
+   private String _shardBy;
+
+   /**
+    * How the source directory is traversed, either <code>"scanner"</code>
+    * or <code>"walk"</code>, or <code>null</code> for the default.
+    * See {@link #setTraversal(String)}.
+    */
+   private String _traversal;
+
+   /**
+    * The order in which files are processed, either <code>"scan"</code> or
+    * <code>"largest"</code>, or <code>null</code> for the default.
+    * See {@link #setOrder(String)}.
+    */
+   private String _order;
+
+   /**
+    * How files are materialized, either <code>"hardlink"</code>,
+    * <code>"reflink"</code> or <code>"copy"</code>, or <code>null</code>
+    * for the default. See {@link #setLinkMode(String)}.
+    */
+   private String _linkMode;
+
+   /**
+    * Flag that indicates if input files with identical contents should be
+    * processed only once. See {@link #setDeduplicate(boolean)}.
+    */
+   private boolean _deduplicate;
+
+   /**
+    * The palette groups, never <code>null</code>. See
+    * {@link #addPaletteGroup(FileSet)}.
+    */
+   private final List<FileSet> _paletteGroups = new ArrayList<FileSet>();
+
+   /**
+    * Flag that indicates if the number of worker threads should be adjusted
+    * at runtime. See {@link #setAdaptiveThreads(boolean)}.
+    */
+   private boolean _adaptiveThreads;
+
+   /**
+    * The interval between progress lines, in milliseconds, or 0 (or lower)
+    * if no progress lines should be logged. See
+    * {@link #setProgressInterval(long)}.
+    */
+   private long _progressInterval;
+
    
    //-------------------------------------------------------------------------
    // Methods
@@ -376,6 +933,51 @@ public final class PngquantTask extends MatchingTask {
       _timeOut = timeOut;
    }
 
+   /**
+    * Configures the time-out to add for each megapixel of the image, so
+    * that large images get more time than small ones. The number of pixels
+    * is read from the image header. The default is 0.
+    *
+    * @param timeOut
+    *    the time-out per megapixel in milliseconds, or 0 (or lower) if the
+    *    time-out should not depend on the size of the image.
+    */
+   public void setTimeOutPerMegapixel(long timeOut) {
+      log("Setting \"timeOutPerMegapixel\" to: " + timeOut + " ms.", MSG_VERBOSE);
+      _timeOutPerMegapixel = timeOut;
+   }
+
+   /**
+    * Configures the maximum duration of a run. Once it has passed, the
+    * remaining files take the fallback: they are copied, unless
+    * <code>process="true"</code>, in which case they fail. Commands still
+    * running at that moment are killed. Files that are being quantized
+    * in-process are completed.
+    *
+    * @param deadline
+    *    the maximum duration in milliseconds, or 0 (or lower) if there is
+    *    no deadline.
+    */
+   public void setDeadline(long deadline) {
+      log("Setting \"deadline\" to: " + deadline + " ms.", MSG_VERBOSE);
+      _deadline = deadline;
+   }
+
+   /**
+    * Configures how often to retry starting the command if it could not be
+    * started, for example because the system is temporarily out of
+    * processes. The delay between attempts starts at
+    * {@value Quantizer#RETRY_DELAY} ms and doubles with each retry. The
+    * default is {@value #DEFAULT_RETRIES}.
+    *
+    * @param retries
+    *    the number of retries, 0 or more.
+    */
+   public void setRetries(int retries) {
+      log("Setting \"retries\" to: " + retries + '.', MSG_VERBOSE);
+      _retries = retries;
+   }
+
    /**
     * Sets whether the files should be processed at all.
     * There are 3 options:
@@ -404,6 +1006,53 @@ public final class PngquantTask extends MatchingTask {
       _process = s;
    }
 
+   /**
+    * Sets the name of the property to set to the version of the command,
+    * as determined when the task is executed. The version is cached for the
+    * lifetime of the JVM, so setting this property is cheap.
+    *
+    * @param name
+    *    the name of the property, or <code>null</code> if no property
+    *    should be set.
+    */
+   public void setVersionProperty(String name) {
+      log("Setting \"versionProperty\" to: " + quote(name) + '.', MSG_VERBOSE);
+      _versionProperty = name;
+   }
+
+   /**
+    * Sets the quantization engine to use. There are 2 options:
+    * <dl>
+    * <dt><code>"pngquant"</code>
+    * <dd>Execute the command for each file (the default).
+    *
+    * <dt><code>"java"</code>
+    * <dd>Quantize in-process, without executing any command.
+    * </dl>
+    *
+    * @param engine
+    *    the engine, should be one of the allowed values (otherwise the task
+    *    will fail during execution).
+    */
+   public void setEngine(String engine) {
+      log("Setting \"engine\" to: " + quote(engine) + '.', MSG_VERBOSE);
+      _engine = engine;
+   }
+
+   /**
+    * Sets the quantization method: <code>"ordered"</code> for ordered
+    * dithering or <code>"dithering"</code> (or <code>"diffusion"</code>) for
+    * Floyd-Steinberg error diffusion, the default.
+    *
+    * @param method
+    *    the method, should be one of the allowed values (otherwise the task
+    *    will fail during execution).
+    */
+   public void setMethod(String method) {
+      log("Setting \"method\" to: " + quote(method) + '.', MSG_VERBOSE);
+      _method = method;
+   }
+
    /**
     * Sets the number of colors to reduce the color palette to. Must be
     * between 2 and 256.
@@ -415,24 +1064,523 @@ public final class PngquantTask extends MatchingTask {
       _numColors = numColors;
    }
 
-   @Override
-   public void execute() throws BuildException {
+   /**
+    * Sets the speed/quality trade-off of the command. Lower speeds give
+    * better quality, at the cost of more time. Requires pngquant 2 or
+    * later; ignored for the "java" engine.
+    *
+    * @param speed
+    *    the speed, between 1 (slowest) and 11 (fastest), or 0 for the
+    *    default of the command.
+    */
+   public void setSpeed(int speed) {
+      log("Setting \"speed\" to: " + speed + '.', MSG_VERBOSE);
+      _speed = speed;
+   }
 
-      // Source directory defaults to current directory
-      if (_sourceDir == null) {
-         _sourceDir = getProject().getBaseDir();
-      }
+   /**
+    * Sets the quality range for the command. The command uses the fewest
+    * colors that achieve the maximum quality; if even <em>colors</em>
+    * colors do not achieve the minimum, then the file fails and, unless
+    * <code>process="true"</code>, it is copied instead. Requires pngquant 2
+    * or later; ignored for the "java" engine.
+    *
+    * @param quality
+    *    the quality range, as <code>"min-max"</code>, with both between 0
+    *    and 100, or <code>null</code> for the default of the command.
+    */
+   public void setQuality(String quality) {
+      log("Setting \"quality\" to: " + quote(quality) + '.', MSG_VERBOSE);
+      _quality = quality;
+   }
 
-      // Destination directory defaults to source directory
-      if (_destDir == null) {
-         _destDir = _sourceDir;
-      }
+   /**
+    * Sets the number of least significant bits the command ignores per
+    * color channel, for output that is displayed with a reduced color
+    * depth. Requires pngquant 2 or later; ignored for the "java" engine.
+    *
+    * @param bits
+    *    the number of bits, between 0 and 4.
+    */
+   public void setPosterize(int bits) {
+      log("Setting \"posterize\" to: " + bits + '.', MSG_VERBOSE);
+      _posterize = bits;
+   }
 
-      // Check the directories
-      checkDir("Source directory",      _sourceDir,  true, false);
-      checkDir("Destination directory",   _destDir, false,  true);
+   /**
+    * Sets the time budget for a run. With a time budget, the speed of the
+    * command is chosen per file (see {@link TimeBudget}): the slowest of
+    * the speeds {@link TimeBudget#SPEEDS} for which this file and the files
+    * not started yet are estimated to fit in the remaining time. The
+    * estimate is based on the number of pixels of the files and the
+    * throughput measured so far, so as the run falls behind, faster speeds
+    * are chosen. The number of files per speed is part of the summary.
+    * With a cache, only results at the slowest speed are used and stored,
+    * so results of a run that fell behind are not reused by later runs.
+    * Requires pngquant 2 or later; ignored for the "java" engine.
+    *
+    * @param budget
+    *    the time budget in milliseconds, or 0 (or lower) if there is none.
+    */
+   public void setTimeBudget(long budget) {
+      log("Setting \"timeBudget\" to: " + budget + " ms.", MSG_VERBOSE);
+      _timeBudget = budget;
+   }
 
-      // Interpret the "process" option
+   /**
+    * Sets the maximum number of files to process concurrently. The default
+    * is the number of processors available to the JVM.
+    *
+    * @param threads
+    *    the number of worker threads, must be at least 1.
+    */
+   public void setThreads(int threads) {
+      log("Setting \"threads\" to: " + threads + '.', MSG_VERBOSE);
+      _threads = threads;
+   }
+
+   /**
+    * Sets the <em>streaming</em> flag. If set, each input file is piped
+    * into the command and its output is written to a temporary file in the
+    * destination directory, which is then renamed to the output file. This
+    * requires a command that reads from stdin and writes to stdout when
+    * <code>"-"</code> is passed as the file name.
+    *
+    * @param flag
+    *    the value for the flag.
+    */
+   public void setStreaming(boolean flag) {
+      log("Setting \"streaming\" to: " + flag + '.', MSG_VERBOSE);
+      _streaming = flag;
+   }
+
+   /**
+    * Sets the minimum size of an image for it to be streamed when it is
+    * quantized in-process (by the Java engine, or for a palette group).
+    * Streamed images are decoded and encoded row by row, so the memory
+    * used does not depend on the height of the image; the palette is then
+    * derived from a sample of the pixels. With <code>engine="java"</code>,
+    * setting <code>streaming</code> streams all images. The default is
+    * {@value #DEFAULT_STREAMING_MEGAPIXELS} megapixels.
+    *
+    * @param megapixels
+    *    the minimum number of megapixels, or 0 (or lower) if images should
+    *    not be streamed because of their size.
+    */
+   public void setStreamingMegapixels(int megapixels) {
+      log("Setting \"streamingMegapixels\" to: " + megapixels + '.', MSG_VERBOSE);
+      _streamingMegapixels = megapixels;
+   }
+
+   /**
+    * Sets the maximum number of files to process with a single invocation
+    * of the command. The default is 1. The actual number of files per
+    * invocation may be lower, to keep the command line within the limits
+    * of the platform.
+    *
+    * @param batchSize
+    *    the maximum number of files per invocation, must be at least 1.
+    */
+   public void setBatchSize(int batchSize) {
+      log("Setting \"batchSize\" to: " + batchSize + '.', MSG_VERBOSE);
+      _batchSize = batchSize;
+   }
+
+   /**
+    * Sets the directory to use for caching quantization results. By default
+    * no cache is used.
+    *
+    * @param dir
+    *    the cache directory, or <code>null</code> if no cache should be
+    *    used. It will be created if it does not exist.
+    */
+   public void setCacheDir(File dir) {
+      log("Setting \"cacheDir\" to: " + quote(dir) + '.', MSG_VERBOSE);
+      _cacheDir = dir;
+   }
+
+   /**
+    * Sets the maximum size of the result cache. The default is
+    * {@value #DEFAULT_CACHE_SIZE} megabytes.
+    *
+    * @param megabytes
+    *    the maximum cache size, in megabytes, must be at least 1.
+    */
+   public void setCacheSize(long megabytes) {
+      log("Setting \"cacheSize\" to: " + megabytes + " MB.", MSG_VERBOSE);
+      _cacheSize = megabytes;
+   }
+
+   /**
+    * Sets the minimum quality of each output file. If set, then the number
+    * of colors is determined per file: a number of candidate color counts
+    * (up to the configured number of colors) is tried and the smallest
+    * output that meets the target is kept. The quality is measured
+    * according to the quality metric, see
+    * {@link #setQualityMetric(String)}.
+    *
+    * @param quality
+    *    the minimum quality, in dB for PSNR or between 0 and 1 for SSIM,
+    *    or 0 if there is no quality target.
+    */
+   public void setTargetQuality(double quality) {
+      log("Setting \"targetQuality\" to: " + quality + '.', MSG_VERBOSE);
+      _targetQuality = quality;
+   }
+
+   /**
+    * Sets the quality metric for the target quality: either
+    * <code>"psnr"</code> (peak signal-to-noise ratio, in dB) or
+    * <code>"ssim"</code> (structural similarity). The default is PSNR.
+    *
+    * @param metric
+    *    the quality metric, or <code>null</code> for the default.
+    */
+   public void setQualityMetric(String metric) {
+      log("Setting \"qualityMetric\" to: " + quote(metric) + '.', MSG_VERBOSE);
+      _qualityMetric = metric;
+   }
+
+   /**
+    * Sets the maximum size of each output file. If set, then the number of
+    * colors is determined per file, like with
+    * {@link #setTargetQuality(double)}.
+    *
+    * @param bytes
+    *    the maximum output size in bytes, or 0 if there is no size target.
+    */
+   public void setMaxBytes(long bytes) {
+      log("Setting \"maxBytes\" to: " + bytes + '.', MSG_VERBOSE);
+      _maxBytes = bytes;
+   }
+
+   /**
+    * Sets whether the source directory should be watched for changes after
+    * the initial pass. If set, then this task does not complete until the
+    * build is interrupted: new and changed files that match the include and
+    * exclude patterns are processed as soon as they settle, and with
+    * {@link #setPrune(boolean) prune} the output files of deleted source
+    * files are removed. Failures are logged instead of failing the build.
+    * When processing in place, the build manifest is required to recognize
+    * the output files written as up-to-date, and <em>overwrite</em> cannot
+    * be set. The default is <code>false</code>.
+    *
+    * @param watch
+    *    <code>true</code> if the source directory should be watched,
+    *    <code>false</code> otherwise.
+    */
+   public void setWatch(boolean watch) {
+      log("Setting \"watch\" to: " + watch + '.', MSG_VERBOSE);
+      _watch = watch;
+   }
+
+   /**
+    * Sets whether processed files should be re-encoded losslessly: all
+    * ancillary chunks except <code>tRNS</code> are stripped and the image
+    * data is recompressed, trying each row filter strategy and a number of
+    * deflate settings. This is done on a separate pool of threads, so that
+    * it overlaps with the processing of the next files. Images of at least
+    * {@link #setStreamingMegapixels(int) streamingMegapixels} are not
+    * optimized, since that requires the whole image in memory. The default
+    * is <code>false</code>.
+    *
+    * @param optimize
+    *    <code>true</code> if processed files should be re-encoded,
+    *    <code>false</code> otherwise.
+    */
+   public void setOptimize(boolean optimize) {
+      log("Setting \"optimize\" to: " + optimize + '.', MSG_VERBOSE);
+      _optimize = optimize;
+   }
+
+   /**
+    * Sets whether files that cannot benefit from quantization should be
+    * detected. If enabled, then images that are already indexed (or
+    * grayscale) with no more than the configured number of colors are
+    * copied instead of processed, judging from their header only. And
+    * whenever a processed file is not smaller than the original, the
+    * original is kept. The default is <code>false</code>.
+    *
+    * @param preflight
+    *    <code>true</code> if files that cannot benefit from quantization
+    *    should be detected, <code>false</code> otherwise.
+    */
+   public void setPreflight(boolean preflight) {
+      log("Setting \"preflight\" to: " + preflight + '.', MSG_VERBOSE);
+      _preflight = preflight;
+   }
+
+   /**
+    * Sets whether a build manifest should be used to determine which output
+    * files are up-to-date. The manifest is stored in the destination
+    * directory and records the content hashes of the input and output
+    * files and the parameters used. If disabled, an output file is
+    * considered up-to-date if it is newer than the input file.
+    * The default is <code>false</code>.
+    *
+    * @param manifest
+    *    <code>true</code> if a build manifest should be used,
+    *    <code>false</code> otherwise.
+    */
+   public void setManifest(boolean manifest) {
+      log("Setting \"manifest\" to: " + manifest + '.', MSG_VERBOSE);
+      _manifest = manifest;
+   }
+
+   /**
+    * Sets whether output files for which the source file no longer exists
+    * should be deleted. This applies to the output files recorded in the
+    * build manifest (see {@link #setManifest(boolean)}) and, when watching,
+    * to the output files of source files deleted while watching. Output
+    * files that were changed after this task wrote them are left alone.
+    * The default is <code>false</code>.
+    *
+    * @param prune
+    *    <code>true</code> if output files should be deleted along with
+    *    their source file, <code>false</code> otherwise.
+    */
+   public void setPrune(boolean prune) {
+      log("Setting \"prune\" to: " + prune + '.', MSG_VERBOSE);
+      _prune = prune;
+   }
+
+   /**
+    * Sets the file to write a report with metrics for each individual file
+    * to. By default no report is written.
+    *
+    * @param report
+    *    the report file, or <code>null</code> if no report should be
+    *    written.
+    */
+   public void setReport(File report) {
+      log("Setting \"report\" to: " + quote(report) + '.', MSG_VERBOSE);
+      _report = report;
+   }
+
+   /**
+    * Sets the format of the report: either <code>"csv"</code> or
+    * <code>"json"</code>. By default the format is JSON if the report file
+    * name ends in <code>".json"</code>, and CSV otherwise.
+    *
+    * @param format
+    *    the report format, or <code>null</code> for the default.
+    */
+   public void setReportFormat(String format) {
+      log("Setting \"reportFormat\" to: " + quote(format) + '.', MSG_VERBOSE);
+      _reportFormat = format;
+   }
+
+   /**
+    * Sets the prefix for the summary properties. If set, then after
+    * processing the properties <code><em>prefix</em>.processed</code>,
+    * <code>.copied</code>, <code>.skipped</code>, <code>.failed</code>,
+    * <code>.preflight</code>, <code>.kept</code>, <code>.bytesIn</code>,
+    * <code>.bytesOut</code>, <code>.bytesSaved</code>, <code>.p50</code>,
+    * <code>.p95</code> and <code>.p99</code> are set.
+    *
+    * @param prefix
+    *    the property name prefix, or <code>null</code> if no summary
+    *    properties should be set.
+    */
+   public void setSummaryPrefix(String prefix) {
+      log("Setting \"summaryPrefix\" to: " + quote(prefix) + '.', MSG_VERBOSE);
+      _summaryPrefix = prefix;
+   }
+
+   /**
+    * Sets the index of the shard to process. When the files are partitioned
+    * over multiple shards (see {@link #setShardCount(int)}), only the files
+    * in this shard are considered. The default is 0.
+    *
+    * @param index
+    *    the shard index, between 0 and the shard count minus 1.
+    */
+   public void setShardIndex(int index) {
+      log("Setting \"shardIndex\" to: " + index + '.', MSG_VERBOSE);
+      _shardIndex = index;
+   }
+
+   /**
+    * Sets the number of shards to partition the files in, so that multiple
+    * machines can each process a part of them. The partitioning is
+    * deterministic, so all machines agree on it without coordination. Each
+    * shard can write its own report, which can then be merged using the
+    * {@link PngquantMergeTask}. The default is 1.
+    *
+    * @param count
+    *    the number of shards, at least 1.
+    */
+   public void setShardCount(int count) {
+      log("Setting \"shardCount\" to: " + count + '.', MSG_VERBOSE);
+      _shardCount = count;
+   }
+
+   /**
+    * Sets how files are assigned to shards: <code>"hash"</code> assigns each
+    * file by a hash of its path, so the assignment of a file does not
+    * change when other files are added or removed; <code>"size"</code>
+    * balances the total number of bytes per shard. The default is
+    * <code>"hash"</code>.
+    *
+    * @param s
+    *    the sharding mode, or <code>null</code> for the default.
+    */
+   public void setShardBy(String s) {
+      log("Setting \"shardBy\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _shardBy = s;
+   }
+
+   /**
+    * Sets how the source directory is traversed. With <code>"scanner"</code>
+    * the complete directory tree is scanned first, using the Ant
+    * <code>DirectoryScanner</code>, after which the files are processed.
+    * With <code>"walk"</code> the files are handed to the worker threads as
+    * soon as they are found, so scanning and processing overlap, and the
+    * attributes of each file are read only once; only the include and
+    * exclude patterns are supported, not selectors. The default is
+    * <code>"scanner"</code>.
+    *
+    * @param traversal
+    *    the traversal mode, or <code>null</code> for the default.
+    */
+   public void setTraversal(String traversal) {
+      log("Setting \"traversal\" to: " + quote(traversal) + '.', MSG_VERBOSE);
+      _traversal = traversal;
+   }
+
+   /**
+    * Sets the order in which files are processed. With <code>"scan"</code>
+    * the files are processed in the order they were found. With
+    * <code>"largest"</code> the files that take longest are processed
+    * first, to avoid a long tail at the end; the duration of each file is
+    * taken from the previous report, if there is one (see
+    * {@link #setReport(File)}), otherwise it is estimated from the file
+    * size. The default is <code>"scan"</code>.
+    *
+    * @param order
+    *    the order, or <code>null</code> for the default.
+    */
+   public void setOrder(String order) {
+      log("Setting \"order\" to: " + quote(order) + '.', MSG_VERBOSE);
+      _order = order;
+   }
+
+   /**
+    * Sets whether the number of worker threads should be adjusted at
+    * runtime, based on the observed throughput and the system load
+    * average. If enabled, processing starts with one thread per processor
+    * and the number of threads stays between 1 and the value of the
+    * <em>threads</em> parameter. The default is <code>false</code>.
+    *
+    * @param flag
+    *    <code>true</code> if the number of threads should be adjusted,
+    *    <code>false</code> if it is fixed.
+    */
+   public void setAdaptiveThreads(boolean flag) {
+      log("Setting \"adaptiveThreads\" to: " + flag + '.', MSG_VERBOSE);
+      _adaptiveThreads = flag;
+   }
+
+   /**
+    * Sets how files are materialized in the destination directory, when
+    * they are copied unchanged (with <code>process="false"</code>, or as a
+    * fallback) and for the outputs of duplicates (see
+    * {@link #setDeduplicate(boolean)}). The value is the cheapest method to
+    * attempt:
+    *
+    * <ul>
+    * <li><code>"hardlink"</code>: a hard link, falling back to a reflink
+    *     and then to a copy;
+    * <li><code>"reflink"</code>: a copy-on-write clone, on file systems
+    *     that support it, falling back to a copy;
+    * <li><code>"copy"</code>: a copy, made within the kernel where
+    *     possible.
+    * </ul>
+    *
+    * <p>A hard link shares the contents with the source file, so changing
+    * one changes the other; this task itself replaces a linked output file
+    * rather than overwriting it. Without a manifest, an output file that is
+    * a hard link to its source file is up-to-date, even though its
+    * modification time is not newer. If not set, copies are made for
+    * unchanged files and hard links for duplicates.
+    *
+    * @param mode
+    *    the link mode, or <code>null</code> for the default.
+    */
+   public void setLinkMode(String mode) {
+      log("Setting \"linkMode\" to: " + mode + '.', MSG_VERBOSE);
+      _linkMode = mode;
+   }
+
+   /**
+    * Sets whether input files with identical contents should be processed
+    * only once. If enabled, the files are grouped by size and then by
+    * content hash; only the first file (by path) of each set of duplicates
+    * is processed and the outputs for the others are hard links to its
+    * output, or reflinks or copies if hard links are not possible. If the
+    * source and destination directory are the same, copies are always
+    * used. The default is <code>false</code>.
+    *
+    * @param flag
+    *    <code>true</code> if duplicates should be processed only once,
+    *    <code>false</code> if each file should be processed.
+    */
+   public void setDeduplicate(boolean flag) {
+      log("Setting \"deduplicate\" to: " + flag + '.', MSG_VERBOSE);
+      _deduplicate = flag;
+   }
+
+   /**
+    * Sets the interval between progress lines. While the files are
+    * processed, a line with the number of files done, in flight and
+    * queued, the current rate and the estimated time remaining is logged
+    * at most once per interval, when a file completes. The same figures,
+    * and the latency percentiles, are available from the MBean that is
+    * registered while the task executes, see {@link ProgressMBean}. The
+    * default is 0.
+    *
+    * @param interval
+    *    the interval in milliseconds, or 0 (or lower) if no progress lines
+    *    should be logged.
+    */
+   public void setProgressInterval(long interval) {
+      log("Setting \"progressInterval\" to: " + interval + " ms.", MSG_VERBOSE);
+      _progressInterval = interval;
+   }
+
+   /**
+    * Adds a palette group: a set of files that are quantized to one shared
+    * palette, so that they all get identical <code>PLTE</code> chunks. A
+    * single histogram is built over all members, from which the palette is
+    * derived; each member is then remapped to that palette. This is done
+    * in-process, for both engines. The files must be in the source
+    * directory (or below it); they are not processed individually.
+    *
+    * @param group
+    *    the files in the group, cannot be <code>null</code>.
+    */
+   public void addPaletteGroup(FileSet group) {
+      _paletteGroups.add(group);
+   }
+
+   @Override
+   public void execute() throws BuildException {
+
+      // Source directory defaults to current directory
+      if (_sourceDir == null) {
+         _sourceDir = getProject().getBaseDir();
+      }
+
+      // Destination directory defaults to source directory
+      if (_destDir == null) {
+         _destDir = _sourceDir;
+      }
+
+      // Check the directories
+      checkDir("Source directory",      _sourceDir,  true, false);
+      checkDir("Destination directory",   _destDir, false,  true);
+
+      // Interpret the "process" option
       ProcessOption processOption;
       String p = (_process == null) ? null : _process.toLowerCase().trim();
       if (p == null || "true".equals(p) || "yes".equals(p)) {
@@ -445,312 +1593,2491 @@ public final class PngquantTask extends MatchingTask {
          throw new BuildException("Invalid value for \"process\" option: " + quote(_process) + '.');
       }
 
-      // Determine what command to execute
-      String command = (_command == null || _command.length() < 1)
-                     ? DEFAULT_COMMAND
-                     : _command;
+      // Interpret the "engine" option
+      String e = (_engine == null) ? null : _engine.toLowerCase().trim();
+      boolean inProcess;
+      if (e == null || "pngquant".equals(e)) {
+         inProcess = false;
+      } else if ("java".equals(e)) {
+         inProcess = true;
+      } else {
+         throw new BuildException("Invalid value for \"engine\" option: " + quote(_engine) + '.');
+      }
+
+      // Interpret the "method" option
+      String m = (_method == null) ? null : _method.toLowerCase().trim();
+      boolean dithering;
+      if (m == null || "dithering".equals(m) || "diffusion".equals(m)) {
+         dithering = true;
+      } else if ("ordered".equals(m)) {
+         dithering = false;
+      } else {
+         throw new BuildException("Invalid value for \"method\" option: " + quote(_method) + '.');
+      }
+
+      // Determine what command to execute
+      String command = inProcess
+                     ? "java"
+                     : (_command == null || _command.length() < 1)
+                     ? DEFAULT_COMMAND
+                     : _command;
+
+      // Test that the command is available (the Java engine always is)
+      String          version = inProcess
+                              ? (processOption == ProcessOption.MUST_NOT ? null : JavaQuantizer.VERSION)
+                              : testCommand(command, processOption);
+      boolean commandAvailable = version != null;
+      if (commandAvailable && ! inProcess && ! isEmpty(_versionProperty)) {
+         getProject().setNewProperty(_versionProperty, version);
+      }
+
+      // Determine if transformation should be attempted at all
+      // (alternative is just copying)
+      boolean transform = processOption != ProcessOption.MUST_NOT && commandAvailable;
+
+      // Determine the number of colors
+      if (_numColors < 2) {
+         throw new BuildException("Number of colors (" + _numColors + ") is invalid, it is too low. It should be between 2 and 256.");
+      } else if (_numColors > 256) {
+         throw new BuildException("Number of colors (" + _numColors + ") is invalid, it is too high. It should be between 2 and 256.");
+      }
+
+      // Determine the number of worker threads
+      if (_threads < 1) {
+         throw new BuildException("Number of threads (" + _threads + ") is invalid, it should be at least 1.");
+      }
+
+      // Determine the batch size
+      if (_batchSize < 1) {
+         throw new BuildException("Batch size (" + _batchSize + ") is invalid, it should be at least 1.");
+      }
+
+      // Determine the shard, if any
+      if (_shardCount < 1) {
+         throw new BuildException("Shard count (" + _shardCount + ") is invalid, it should be at least 1.");
+      } else if (_shardIndex < 0 || _shardIndex >= _shardCount) {
+         throw new BuildException("Shard index (" + _shardIndex + ") is invalid, it should be between 0 and " + (_shardCount - 1) + '.');
+      } else if (_shardCount > 1 && _watch) {
+         throw new BuildException("The \"watch\" option cannot be combined with sharding.");
+      }
+      String sb = (_shardBy == null) ? null : _shardBy.toLowerCase().trim();
+      boolean shardBySize;
+      if (sb == null || "hash".equals(sb)) {
+         shardBySize = false;
+      } else if ("size".equals(sb)) {
+         shardBySize = true;
+      } else {
+         throw new BuildException("Invalid value for \"shardBy\" option: " + quote(_shardBy) + '.');
+      }
+
+
+      // Determine the number of retries and check the options that cannot
+      // be combined
+      if (_retries < 0) {
+         throw new BuildException("Number of retries (" + _retries + ") is invalid, it should be at least 0.");
+      } else if (_deadline > 0L && _watch) {
+         throw new BuildException("The \"deadline\" option cannot be combined with the \"watch\" option.");
+      } else if (_timeBudget > 0L && _watch) {
+         throw new BuildException("The \"timeBudget\" option cannot be combined with the \"watch\" option.");
+      } else if (_watch && _sourceDir.equals(_destDir) && (! _manifest || _overwrite)) {
+         throw new BuildException("The \"watch\" option requires the \"manifest\" option (and no \"overwrite\") when processing in place, otherwise each output file written would be processed again.");
+      } else if (_timeBudget > 0L && _batchSize > 1 && ! inProcess) {
+         throw new BuildException("The \"timeBudget\" option cannot be combined with a \"batchSize\" above 1, since the speed is chosen per file.");
+      }
+
+      // Interpret the "traversal" option
+      String t = (_traversal == null) ? null : _traversal.toLowerCase().trim();
+      boolean walk;
+      if (t == null || "scanner".equals(t)) {
+         walk = false;
+      } else if ("walk".equals(t)) {
+         walk = true;
+      } else {
+         throw new BuildException("Invalid value for \"traversal\" option: " + quote(_traversal) + '.');
+      }
+      if (walk && fileset.hasSelectors()) {
+         throw new BuildException("Selectors are not supported with traversal=\"walk\".");
+      } else if (walk && shardBySize && _shardCount > 1) {
+         throw new BuildException("Sharding by size is not supported with traversal=\"walk\", since it requires all files to be known up front.");
+      }
+
+      // Interpret the "order" option
+      String o = (_order == null) ? null : _order.toLowerCase().trim();
+      boolean largestFirst;
+      if (o == null || "scan".equals(o)) {
+         largestFirst = false;
+      } else if ("largest".equals(o)) {
+         largestFirst = true;
+      } else {
+         throw new BuildException("Invalid value for \"order\" option: " + quote(_order) + '.');
+      }
+      if (largestFirst && walk) {
+         throw new BuildException("The \"order\" option cannot be combined with traversal=\"walk\", since files are processed as soon as they are found.");
+      } else if (_deduplicate && walk) {
+         throw new BuildException("The \"deduplicate\" option cannot be combined with traversal=\"walk\", since files are processed as soon as they are found.");
+      }
+
+      // Interpret the "linkMode" option
+      String l = (_linkMode == null) ? null : _linkMode.toLowerCase().trim();
+      if (l != null && ! FileLinker.HARDLINK.equals(l) && ! FileLinker.REFLINK.equals(l) && ! FileLinker.COPY.equals(l)) {
+         throw new BuildException("Invalid value for \"linkMode\" option: " + quote(_linkMode) + '.');
+      }
+      FileLinker linker = new FileLinker(l == null ? FileLinker.COPY : l);
+
+      // Determine the color search, if any
+      ColorSearch search = null;
+      if (_targetQuality > 0.0 || _maxBytes > 0L) {
+         String q = (_qualityMetric == null) ? null : _qualityMetric.toLowerCase().trim();
+         boolean ssim;
+         if (q == null || "psnr".equals(q)) {
+            ssim = false;
+         } else if ("ssim".equals(q)) {
+            ssim = true;
+         } else {
+            throw new BuildException("Invalid value for \"qualityMetric\" option: " + quote(_qualityMetric) + '.');
+         }
+         if (ssim && _targetQuality > 1.0) {
+            throw new BuildException("Target quality (" + _targetQuality + ") is invalid, SSIM cannot exceed 1.");
+         }
+         search = new ColorSearch(ssim, Math.max(0.0, _targetQuality), Math.max(0L, _maxBytes), _numColors);
+      }
+
+      // Initialize the result cache, if any
+      ResultCache cache = null;
+      if (_cacheDir != null && transform) {
+         if (_cacheSize < 1L) {
+            throw new BuildException("Cache size (" + _cacheSize + " MB) is invalid, it should be at least 1.");
+         }
+         try {
+            cache = new ResultCache(_cacheDir, _cacheSize * 1024L * 1024L);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to use cache directory " + quote(_cacheDir.getPath()) + '.', cause);
+         }
+      }
+
+      // Determine the options for the command and the time budget, if any
+      Quantizer engine = new Quantizer(inProcess ? null : command, _numColors, dithering, _timeOut, _retries, streamingPixels(inProcess));
+      TimeBudget budget = null;
+      if (inProcess && (_speed > 0 || ! isEmpty(_quality) || _posterize >= 0 || _timeBudget > 0L)) {
+         log("Ignoring \"speed\", \"quality\", \"posterize\" and \"timeBudget\" for the Java engine.", MSG_VERBOSE);
+      } else if (! inProcess) {
+         try {
+            engine = engine.withOptions(Math.max(0, _speed), isEmpty(_quality) ? null : _quality.trim(), _posterize);
+         } catch (IllegalArgumentException cause) {
+            throw new BuildException(cause.getMessage());
+         }
+         if (_timeBudget > 0L && search != null) {
+            throw new BuildException("The \"timeBudget\" option cannot be combined with a color search (\"targetQuality\" or \"maxBytes\").");
+         } else if (_timeBudget > 0L && transform) {
+            budget = new TimeBudget(_timeBudget, _threads);
+         }
+      }
+
+      String cacheParameters = "command=" + command + ";version=" + version + ";colors=" + _numColors + ";dithering=" + dithering;
+      if (! inProcess && budget != null) {
+         cacheParameters += ";speed=" + TimeBudget.SPEEDS[0];
+      } else if (! inProcess && _speed > 0) {
+         cacheParameters += ";speed=" + _speed;
+      }
+      if (! inProcess && ! isEmpty(_quality)) {
+         cacheParameters += ";quality=" + _quality.trim();
+      }
+      if (! inProcess && _posterize >= 0) {
+         cacheParameters += ";posterize=" + _posterize;
+      }
+      if (search != null) {
+         cacheParameters += ";search=" + search;
+      }
+      if (_optimize) {
+         cacheParameters += ";optimize=true";
+      }
+      if (_preflight) {
+         cacheParameters += ";preflight=true";
+      }
+      if (inProcess || ! _paletteGroups.isEmpty()) {
+         cacheParameters += ";streaming=" + streamingPixels(inProcess);
+      }
+
+      // Determine the report format
+      boolean jsonReport = false;
+      if (_report != null) {
+         String f = (_reportFormat == null) ? null : _reportFormat.toLowerCase().trim();
+         if (isEmpty(f)) {
+            jsonReport = _report.getName().toLowerCase().endsWith(".json");
+         } else if ("json".equals(f)) {
+            jsonReport = true;
+         } else if (! "csv".equals(f)) {
+            throw new BuildException("Invalid value for \"reportFormat\" option: " + quote(_reportFormat) + '.');
+         }
+      }
+
+      // Load the build manifest, if any
+      Manifest manifest = null;
+      if (_manifest) {
+         File manifestFile = new File(_destDir, Manifest.FILE_NAME);
+         try {
+            manifest = new Manifest(manifestFile, _sourceDir);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to read build manifest " + quote(manifestFile.getPath()) + '.', cause);
+         }
+      }
+
+      // Order the files longest first, based on the previous report, if any
+      Schedule schedule = null;
+      if (largestFirst) {
+         Map<String,Long> history = Collections.emptyMap();
+         if (_report != null) {
+            try {
+               history = Schedule.readHistory(_report);
+            } catch (IOException cause) {
+               log("Failed to read durations from previous report " + quote(_report.getPath()) + ": " + cause.getMessage(), MSG_VERBOSE);
+            }
+         }
+         schedule = new Schedule(_sourceDir, history);
+         log("Ordering files by " + (schedule.hasHistory() ? "duration in previous report" : "size") + ", largest first.", MSG_VERBOSE);
+      }
+
+      // The engine applies the pre-flight checks and the color search, if
+      // any, to each file
+      ExecutorService trials = (search != null && transform) ? Executors.newFixedThreadPool(_threads) : null;
+      engine = engine.withPreflight(_preflight).withStreaming(_streaming).withSearch(search, trials);
+
+      // The results of both the processing and the optimization stage end
+      // up in the same queue
+      BlockingQueue<Future<FileResult>>      done = new LinkedBlockingQueue<Future<FileResult>>();
+      ExecutorService                   optimizer = (_optimize && transform) ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
+      CompletionService<FileResult> optimizations = (optimizer == null) ? null : new ExecutorCompletionService<FileResult>(optimizer, done);
+
+      // Determine the palette groups, each is processed as a whole by the
+      // shard of its first member
+      List<String[]> groups = new ArrayList<String[]>();
+      Set<String>   grouped = new HashSet<String>();
+      if (transform) {
+         for (String[] group : paletteGroups()) {
+            grouped.addAll(Arrays.asList(group));
+            if (_shardCount < 2 || Shards.shardOf(group[0], _shardCount) == _shardIndex) {
+               groups.add(group);
+            }
+         }
+      }
+
+      long       deadline = (_deadline > 0L) ? System.currentTimeMillis() + _deadline : 0L;
+      Progress   progress = new Progress(_sourceDir.getPath());
+      Execution execution = new Execution(command, engine, transform, processOption, cache, cacheParameters, manifest, search, optimizations, schedule, groups, grouped, linker, deadline, progress, budget);
+
+      // Consider each individual file for processing/copying
+      log("Transforming from " + _sourceDir.getPath() + " to " + _destDir.getPath() + " using " + _threads + " thread(s).", MSG_VERBOSE);
+      long start = System.currentTimeMillis();
+      String[] inFileNames = walk ? null : getDirectoryScanner(_sourceDir).getIncludedFiles();
+      if (! walk && manifest != null && _sourceDir.equals(_destDir)) {
+         List<String> names = new ArrayList<String>(Arrays.asList(inFileNames));
+         names.remove(Manifest.FILE_NAME);
+         inFileNames = names.toArray(new String[names.size()]);
+      }
+
+      // Members of palette groups are not processed individually
+      if (! walk && ! grouped.isEmpty()) {
+         List<String> names = new ArrayList<String>(Arrays.asList(inFileNames));
+         names.removeAll(grouped);
+         inFileNames = names.toArray(new String[names.size()]);
+      }
+
+      // Only consider the files in this shard
+      if (! walk && _shardCount > 1) {
+         int total = inFileNames.length;
+         inFileNames = shardBySize ? Shards.bySize(_sourceDir, inFileNames, _shardIndex, _shardCount)
+                                   : Shards.byHash(inFileNames, _shardIndex, _shardCount);
+         log("Shard " + _shardIndex + " of " + _shardCount + " contains " + inFileNames.length + " of " + total + " file(s).");
+      }
+
+      // Process only one of each set of identical files
+      Map<String,List<String>> duplicates = Collections.emptyMap();
+      if (_deduplicate) {
+         try {
+            duplicates = Duplicates.find(_sourceDir, inFileNames);
+         } catch (IOException cause) {
+            throw new BuildException("Failed to find duplicate files.", cause);
+         }
+         List<String> names = new ArrayList<String>(Arrays.asList(inFileNames));
+         for (List<String> others : duplicates.values()) {
+            names.removeAll(others);
+         }
+         log("Found " + (inFileNames.length - names.size()) + " duplicate(s) of " + duplicates.size() + " file(s).", MSG_VERBOSE);
+         inFileNames = names.toArray(new String[names.size()]);
+      }
+
+      // Open the report, if any
+      ReportWriter report = null;
+      if (_report != null) {
+         try {
+            report = new ReportWriter(_report, jsonReport);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to create report file " + quote(_report.getPath()) + '.', cause);
+         }
+      }
+
+      // Expose the progress while the files are processed
+      try {
+         progress.register();
+      } catch (JMException cause) {
+         log("Failed to register progress MBean: " + cause.getMessage(), MSG_VERBOSE);
+      }
+
+      try {
+         Totals totals = walk ? walkFiles(execution, done, report)
+                              : processFiles(inFileNames, groups, execution, done, report);
+         if (! duplicates.isEmpty()) {
+            String  mode = _sourceDir.equals(_destDir) ? FileLinker.COPY : (l == null) ? FileLinker.HARDLINK : l;
+            try {
+               linkDuplicates(duplicates, new FileLinker(mode), execution, totals, report);
+            } catch (IOException cause) {
+               throw new BuildException("Failed to write report file " + quote(_report.getPath()) + '.', cause);
+            }
+         }
+         completePass(execution);
+
+         // Export the summary, if requested
+         if (! isEmpty(_summaryPrefix)) {
+            Project project = getProject();
+            project.setNewProperty(_summaryPrefix + ".processed",         String.valueOf(totals._processCount));
+            project.setNewProperty(_summaryPrefix + ".copied",            String.valueOf(totals._copyCount));
+            project.setNewProperty(_summaryPrefix + ".skipped",           String.valueOf(totals._skippedCount));
+            project.setNewProperty(_summaryPrefix + ".failed",            String.valueOf(totals._failedCount));
+            project.setNewProperty(_summaryPrefix + ".preflight",         String.valueOf(totals._preflightCount));
+            project.setNewProperty(_summaryPrefix + ".kept",              String.valueOf(totals._keptCount));
+            project.setNewProperty(_summaryPrefix + ".deduplicated",      String.valueOf(totals._dedupCount));
+            project.setNewProperty(_summaryPrefix + ".bytesDeduplicated", String.valueOf(totals._dedupBytes));
+            project.setNewProperty(_summaryPrefix + ".timeOuts",          String.valueOf(totals._timeOutCount));
+            project.setNewProperty(_summaryPrefix + ".retries",           String.valueOf(totals._retryCount));
+            project.setNewProperty(_summaryPrefix + ".pastDeadline",      String.valueOf(totals._deadlineCount));
+            project.setNewProperty(_summaryPrefix + ".bytesIn",           String.valueOf(totals._bytesIn));
+            project.setNewProperty(_summaryPrefix + ".bytesOut",          String.valueOf(totals._bytesOut));
+            project.setNewProperty(_summaryPrefix + ".bytesSaved",        String.valueOf(totals._bytesIn - totals._bytesOut));
+            project.setNewProperty(_summaryPrefix + ".p50",               String.valueOf(totals._latencies.percentile(50.0)));
+            project.setNewProperty(_summaryPrefix + ".p95",               String.valueOf(totals._latencies.percentile(95.0)));
+            project.setNewProperty(_summaryPrefix + ".p99",               String.valueOf(totals._latencies.percentile(99.0)));
+            if (budget != null) {
+               for (int speed : TimeBudget.SPEEDS) {
+                  project.setNewProperty(_summaryPrefix + ".speed" + speed, String.valueOf(totals._speedCounts[speed]));
+               }
+            }
+         }
+
+         // Keep the cache within its size limit
+         if (cache != null) {
+            log("" + totals._cacheHitCount + " file(s) retrieved from cache.", MSG_VERBOSE);
+            try {
+               int evicted = cache.evict();
+               if (evicted > 0) {
+                  log("Evicted " + evicted + " file(s) from cache.", MSG_VERBOSE);
+               }
+            } catch (IOException cause) {
+               log("Failed to evict files from cache: " + cause.getMessage(), MSG_WARN);
+            }
+         }
+
+         // Log the total result; in watch mode failures are not fatal
+         long duration = System.currentTimeMillis() - start;
+         if (totals._failedCount > 0 && ! _watch) {
+            throw new BuildException(totals.failureMessage(duration));
+         } else if (totals._failedCount > 0) {
+            log(totals.failureMessage(duration), MSG_ERR);
+         } else {
+            log(totals.message(duration));
+         }
+
+         // Keep processing changes until interrupted
+         if (_watch) {
+            watch(execution, done, report);
+         }
+      } finally {
+         try {
+            progress.unregister();
+         } catch (JMException cause) {
+            log("Failed to unregister progress MBean: " + cause.getMessage(), MSG_VERBOSE);
+         }
+         if (trials != null) {
+            trials.shutdownNow();
+         }
+         if (optimizer != null) {
+            optimizer.shutdownNow();
+         }
+         if (report != null) {
+            try {
+               report.close();
+            } catch (IOException cause) {
+               log("Failed to close report file " + quote(_report.getPath()) + ": " + cause.getMessage(), MSG_WARN);
+            }
+         }
+      }
+   }
+
+   /**
+    * Processes (or copies) the specified files, distributing them over a
+    * bounded pool of worker threads. The results are collected (and logged)
+    * on the calling thread only.
+    *
+    * @param inFileNames
+    *    the names of the input files, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param groups
+    *    the palette groups to process, before the individual files,
+    *    cannot be <code>null</code>.
+    *
+    * @param done
+    *    the queue that receives the results of both the processing and the
+    *    optimization stage, cannot be <code>null</code>.
+    *
+    * @param report
+    *    the report to write the result for each file to, or
+    *    <code>null</code>.
+    *
+    * @return
+    *    the totals, never <code>null</code>.
+    *
+    * @throws BuildException
+    *    if processing was interrupted or failed unexpectedly.
+    */
+   private Totals processFiles(String[] inFileNames, List<String[]> groups, Execution execution,
+                               BlockingQueue<Future<FileResult>> done, ReportWriter report)
+   throws BuildException {
+
+      // Group the files in batches, if the command should process multiple
+      // files per invocation; the longest first, if so configured
+      if (execution._schedule != null) {
+         inFileNames = execution._schedule.order(inFileNames);
+      }
+      List<String[]> batches = batches(inFileNames, execution);
+      Totals          totals = new Totals(execution._progress);
+      int               jobs = batches.size();
+      for (String[] group : groups) {
+         jobs += group.length;
+      }
+
+      ThreadPoolExecutor executor = workerPool(jobs);
+      ConcurrencyController controller = _adaptiveThreads ? new ConcurrencyController(executor, Math.min(_threads, Math.max(1, jobs))) : null;
+      CompletionService<FileResult> completion = new ExecutorCompletionService<FileResult>(executor, done);
+      try {
+         int pending = 0;
+         for (String[] group : groups) {
+            pending += submitGroup(group, execution, executor, completion, totals, report);
+         }
+         for (String[] batch : batches) {
+            completion.submit(new FileJob(batch, null, execution));
+         }
+         for (int remaining = pending + batches.size(); remaining > 0; remaining--) {
+            remaining += collect(completion.take(), totals, report, controller);
+         }
+      } catch (IOException cause) {
+         throw new BuildException("Failed to write report file " + quote(_report.getPath()) + '.', cause);
+      } catch (InterruptedException cause) {
+         Thread.currentThread().interrupt();
+         throw new BuildException("Interrupted while processing files.", cause);
+      } catch (ExecutionException cause) {
+         throw new BuildException("Unexpected error while processing files.", cause.getCause());
+      } finally {
+         executor.shutdownNow();
+      }
+      return totals;
+   }
+
+   /**
+    * Processes (or copies) the files in the source directory while the
+    * directory tree is still being traversed. Like
+    * {@link #processFiles(String[],List,Execution,BlockingQueue,ReportWriter)},
+    * but the traversal uses <code>Files.walkFileTree</code> and the
+    * attributes of each file are read only once. Only the include and
+    * exclude patterns are applied, not any selectors.
+    *
+    * @return
+    *    the totals, never <code>null</code>.
+    *
+    * @throws BuildException
+    *    if the traversal or processing was interrupted or failed
+    *    unexpectedly.
+    */
+   private Totals walkFiles(Execution execution, BlockingQueue<Future<FileResult>> done, ReportWriter report)
+   throws BuildException {
+
+      Totals totals = new Totals(execution._progress);
+      ThreadPoolExecutor executor = workerPool(Integer.MAX_VALUE);
+      ConcurrencyController controller = _adaptiveThreads ? new ConcurrencyController(executor, _threads) : null;
+      CompletionService<FileResult> completion = new ExecutorCompletionService<FileResult>(executor, done);
+      FileWalker walker = new FileWalker(execution, completion, totals, report, controller);
+      try {
+         for (String[] group : execution._groups) {
+            walker._pending += submitGroup(group, execution, executor, completion, totals, report);
+         }
+         Set<FileVisitOption> options = fileset.isFollowSymlinks()
+                                      ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+                                      : EnumSet.noneOf(FileVisitOption.class);
+         Files.walkFileTree(walker._root, options, Integer.MAX_VALUE, walker);
+         walker.submit();
+         for (int remaining = walker._pending; remaining > 0; remaining--) {
+            remaining += collect(completion.take(), totals, report, controller);
+         }
+      } catch (IOException cause) {
+         throw new BuildException("Failed to traverse " + quote(_sourceDir.getPath()) + " or to write report file.", cause);
+      } catch (InterruptedException cause) {
+         Thread.currentThread().interrupt();
+         throw new BuildException("Interrupted while processing files.", cause);
+      } catch (ExecutionException cause) {
+         throw new BuildException("Unexpected error while processing files.", cause.getCause());
+      } finally {
+         executor.shutdownNow();
+      }
+
+      if (_shardCount > 1) {
+         log("Shard " + _shardIndex + " of " + _shardCount + " contained " + walker._selected + " of " + walker._matched + " file(s).");
+      }
+      return totals;
+   }
+
+   /**
+    * Creates the pool of worker threads for processing files. Unless the
+    * number of threads is adjusted at runtime, the pool has a fixed size.
+    *
+    * @param jobs
+    *    the number of jobs that will be submitted, if known, otherwise
+    *    {@link Integer#MAX_VALUE}.
+    *
+    * @return
+    *    the pool, never <code>null</code>.
+    */
+   private ThreadPoolExecutor workerPool(int jobs) {
+      int threads = Math.max(1, Math.min(_threads, jobs));
+
+      // Start at one thread per processor; the controller may add more
+      if (_adaptiveThreads) {
+         threads = Math.min(threads, Runtime.getRuntime().availableProcessors());
+      }
+      return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+   }
+
+   /**
+    * Collects the result for a single job: logs its messages and adds it to
+    * the totals. Must be called from the thread that executes the task.
+    *
+    * @param future
+    *    the completed job, cannot be <code>null</code>.
+    *
+    * @param controller
+    *    the controller for the number of worker threads, or
+    *    <code>null</code> if it is fixed.
+    *
+    * @return
+    *    the number of optimization jobs submitted by the job, whose results
+    *    are still to be collected.
+    */
+   private int collect(Future<FileResult> future, Totals totals, ReportWriter report, ConcurrencyController controller)
+   throws InterruptedException, ExecutionException, IOException {
+      FileResult result = future.get();
+      result.flushLog();
+      totals.add(result, report);
+      if (totals._progress.lineDue(_progressInterval)) {
+         log(totals._progress.describe());
+      }
+      if (controller != null) {
+         long bytes = 0L;
+         for (FileRecord record : result._records) {
+            if (! FileRecord.SKIPPED.equals(record._action)) {
+               bytes += Math.max(0L, record._inputBytes);
+            }
+         }
+         if (controller.completed(bytes)) {
+            log("Adjusted concurrency to " + controller + '.', MSG_VERBOSE);
+         }
+      }
+      return result._optimizations;
+   }
+
+   /**
+    * Materializes the output files for the duplicates, from the output of
+    * the file they are identical to. Called on the thread that executes the
+    * task, after that output has been completed.
+    *
+    * @param duplicates
+    *    the duplicates of each processed file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the report could not be written.
+    */
+   private void linkDuplicates(Map<String,List<String>> duplicates, FileLinker linker, Execution execution,
+                               Totals totals, ReportWriter report)
+   throws IOException {
+      for (Map.Entry<String,List<String>> entry : duplicates.entrySet()) {
+         String representative = entry.getKey();
+         File           source = new File(_destDir, representative.replaceFirst("\\.[a-zA-Z]+$", ".png"));
+         boolean     available = ! totals._failedPaths.contains(representative) && source.isFile();
+         FileResult     result = new FileResult();
+         for (String inFileName : entry.getValue()) {
+            long thisStart = System.currentTimeMillis();
+            File    inFile = new File(_sourceDir, inFileName);
+            File   outFile = new File(_destDir, inFileName.replaceFirst("\\.[a-zA-Z]+$", ".png"));
+            long    inSize = inFile.length();
+            if (!_overwrite && isUpToDate(inFileName, inFile, inSize, inFile.lastModified(), outFile, null, execution, result)) {
+               result.log("Skipping " + quote(inFileName) + " because output file is up-to-date.", MSG_VERBOSE);
+               result._skippedCount++;
+               result.record(new FileRecord(inFileName, FileRecord.SKIPPED, System.currentTimeMillis() - thisStart, 0L, inSize, outFile.length(), -1, null));
+               continue;
+            }
+
+            String error;
+            if (! available) {
+               error = "The output of identical file " + quote(representative) + " is not available.";
+            } else {
+               try {
+                  String method = linker.link(source, outFile);
+                  result.log("Linked " + quote(inFileName) + " to the output of identical file " + quote(representative) + " (" + method + ").", MSG_VERBOSE);
+                  result._dedupCount++;
+                  updateManifest(inFileName, inFile, outFile, true, null, execution, result);
+                  result.record(new FileRecord(inFileName, FileRecord.DEDUPLICATED, System.currentTimeMillis() - thisStart, 0L, inSize, outFile.length(), -1, null));
+                  continue;
+               } catch (IOException exception) {
+                  error = "Failed to link " + quote(outFile.getPath()) + " to " + quote(source.getPath()) + ": " + exception.getMessage();
+               }
+            }
+            result.log(error, MSG_ERR);
+            result._failedCount++;
+            updateManifest(inFileName, inFile, outFile, false, null, execution, result);
+            result.record(new FileRecord(inFileName, FileRecord.FAILED, System.currentTimeMillis() - thisStart, 0L, inSize, -1L, -1, error));
+         }
+         result.flushLog();
+         totals.add(result, report);
+      }
+   }
+
+   /**
+    * Completes a pass over the files: forgets the source files that are
+    * gone, deleting their output files if requested, and saves the build
+    * manifest, if any.
+    */
+   private void completePass(Execution execution) {
+      Manifest manifest = execution._manifest;
+      if (manifest != null) {
+         for (File pruned : manifest.prune(_prune)) {
+            log("Deleted " + quote(pruned.getPath()) + " because its source file no longer exists.", MSG_VERBOSE);
+         }
+         try {
+            manifest.store();
+         } catch (IOException cause) {
+            log("Failed to write build manifest: " + cause.getMessage(), MSG_WARN);
+         }
+      }
+   }
+
+   /**
+    * Watches the source directory (recursively) for changes, processing
+    * new and changed files and, if requested, removing the output of
+    * deleted files, until the current thread is interrupted. Bursts of
+    * events are coalesced: changes are processed once no events arrived
+    * for {@value #WATCH_QUIET_PERIOD} ms, or at the latest after
+    * {@value #WATCH_MAX_DELAY} ms.
+    *
+    * @throws BuildException
+    *    if the directory could not be watched.
+    */
+   private void watch(Execution execution, BlockingQueue<Future<FileResult>> done, ReportWriter report)
+   throws BuildException {
+
+      Path                   root = _sourceDir.toPath().toAbsolutePath();
+      Map<WatchKey,Path>     keys = new HashMap<WatchKey,Path>();
+      Set<String>         changed = new LinkedHashSet<String>();
+      Set<String>         deleted = new LinkedHashSet<String>();
+      WatchService        service;
+      try {
+         service = root.getFileSystem().newWatchService();
+         register(service, root, keys);
+      } catch (IOException cause) {
+         throw new BuildException("Unable to watch source directory " + quote(_sourceDir.getPath()) + '.', cause);
+      }
+
+      log("Watching " + quote(_sourceDir.getPath()) + " for changes.");
+      try {
+         long firstEvent = 0L;
+         while (true) {
+
+            // Wait for events; once changes are pending, only briefly
+            long       now = System.currentTimeMillis();
+            boolean pending = ! changed.isEmpty() || ! deleted.isEmpty();
+            WatchKey    key = ! pending
+                            ? service.take()
+                            : (now - firstEvent < WATCH_MAX_DELAY)
+                            ? service.poll(WATCH_QUIET_PERIOD, TimeUnit.MILLISECONDS)
+                            : null;
+
+            // Quiet (or waited long enough): process the pending changes
+            if (key == null) {
+               processChanges(changed, deleted, execution, done, report);
+               changed.clear();
+               deleted.clear();
+               continue;
+            }
+            if (! pending) {
+               firstEvent = System.currentTimeMillis();
+            }
+
+            Path dir = keys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+               WatchEvent.Kind<?> kind = event.kind();
+
+               // Events were lost, consider all files changed
+               if (kind == StandardWatchEventKinds.OVERFLOW) {
+                  changed.addAll(Arrays.asList(scan()));
+                  continue;
+               }
+
+               Path   path = dir.resolve((Path) event.context());
+               String name = root.relativize(path).toString();
+               if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                  changed.remove(name);
+                  deleted.add(name);
+               } else if (Files.isDirectory(path)) {
+                  if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                     register(service, path, keys);
+                     for (String child : scan()) {
+                        if (root.resolve(child).startsWith(path)) {
+                           changed.add(child);
+                        }
+                     }
+                  }
+               } else {
+                  deleted.remove(name);
+                  changed.add(name);
+               }
+            }
+            if (! key.reset()) {
+               keys.remove(key);
+            }
+         }
+      } catch (InterruptedException cause) {
+         Thread.currentThread().interrupt();
+         log("Stopped watching " + quote(_sourceDir.getPath()) + '.');
+      } catch (ClosedWatchServiceException cause) {
+         log("Stopped watching " + quote(_sourceDir.getPath()) + '.');
+      } catch (IOException cause) {
+         throw new BuildException("Unable to watch source directory " + quote(_sourceDir.getPath()) + '.', cause);
+      } finally {
+         try {
+            service.close();
+         } catch (IOException cause) {
+            // ignore
+         }
+      }
+   }
+
+   /**
+    * Registers the specified directory and all its subdirectories with the
+    * specified watch service.
+    */
+   private static void register(final WatchService service, Path dir, final Map<WatchKey,Path> keys) throws IOException {
+      Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+         @Override
+         public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attributes) throws IOException {
+            WatchKey key = subdir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                                    StandardWatchEventKinds.ENTRY_MODIFY,
+                                                    StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, subdir);
+            return FileVisitResult.CONTINUE;
+         }
+      });
+   }
+
+   /**
+    * Processes the files changed and deleted since the last pass, in watch
+    * mode. Only the files that match the include and exclude patterns are
+    * considered.
+    */
+   private void processChanges(Set<String> changed, Set<String> deleted, Execution execution,
+                               BlockingQueue<Future<FileResult>> done, ReportWriter report) {
+
+      long start = System.currentTimeMillis();
+
+      // Remove the output of deleted files, if requested; with a manifest
+      // this is taken care of when the pass is completed
+      int deletedCount = 0;
+      for (String name : deleted) {
+         if (! matchesPatterns(name) || new File(_sourceDir, name).exists()) {
+            continue;
+         }
+         File outFile = new File(_destDir, name.replaceFirst("\\.[a-zA-Z]+$", ".png"));
+         if (_prune && execution._manifest == null && ! _sourceDir.equals(_destDir) && outFile.delete()) {
+            log("Deleted " + quote(outFile.getPath()) + " because its source file no longer exists.", MSG_VERBOSE);
+         }
+         deletedCount++;
+      }
+
+      // A change to a member of a palette group affects the whole group
+      List<String>    names = new ArrayList<String>();
+      List<String[]> groups = new ArrayList<String[]>();
+      for (String name : changed) {
+         if (execution._grouped.contains(name)) {
+            for (String[] group : execution._groups) {
+               if (! groups.contains(group) && Arrays.asList(group).contains(name)) {
+                  groups.add(group);
+               }
+            }
+         } else if (matchesPatterns(name) && new File(_sourceDir, name).isFile()) {
+            names.add(name);
+         }
+      }
+      if (names.isEmpty() && groups.isEmpty() && deletedCount == 0) {
+         return;
+      }
+
+      Totals totals = processFiles(names.toArray(new String[names.size()]), groups, execution, done, report);
+      completePass(execution);
+
+      long duration = System.currentTimeMillis() - start;
+      if (totals._failedCount > 0) {
+         log(totals.failureMessage(duration), MSG_ERR);
+      } else if (! names.isEmpty() || ! groups.isEmpty()) {
+         log(totals.message(duration));
+      }
+      if (deletedCount > 0) {
+         log("" + deletedCount + " source file(s) deleted.");
+      }
+   }
+
+   /**
+    * Scans the source directory, using a fresh scanner so that the result
+    * is never stale.
+    *
+    * @return
+    *    the names of the included files, never <code>null</code>.
+    */
+   private String[] scan() {
+      DirectoryScanner scanner = new DirectoryScanner();
+      scanner.setBasedir(_sourceDir);
+      scanner.setIncludes(fileset.mergeIncludes(getProject()));
+      scanner.setExcludes(fileset.mergeExcludes(getProject()));
+      scanner.setCaseSensitive(fileset.isCaseSensitive());
+      if (fileset.getDefaultexcludes()) {
+         scanner.addDefaultExcludes();
+      }
+      scanner.scan();
+      return scanner.getIncludedFiles();
+   }
+
+   /**
+    * Determines if the specified file matches the include and exclude
+    * patterns of this task, the same way <code>DirectoryScanner</code>
+    * does. Selectors are not taken into account.
+    *
+    * @param name
+    *    the name of the file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    */
+   private boolean matchesPatterns(String name) {
+      return ! name.equals(Manifest.FILE_NAME) && patterns().matches(name);
+   }
+
+   /**
+    * Creates a matcher for the current include and exclude patterns of this
+    * task.
+    *
+    * @return
+    *    the patterns, never <code>null</code>.
+    */
+   private PathPatterns patterns() {
+      return new PathPatterns(fileset.mergeIncludes(getProject()), fileset.mergeExcludes(getProject()),
+                              fileset.getDefaultexcludes(), fileset.isCaseSensitive());
+   }
+
+   /**
+    * Determines the members of each palette group. Only PNG files are
+    * included; a file that is in multiple groups only stays in the first.
+    *
+    * @return
+    *    the non-empty groups, each with its members in order of their path
+    *    relative to the source directory, never <code>null</code>.
+    *
+    * @throws BuildException
+    *    if a group is not in the source directory.
+    */
+   private List<String[]> paletteGroups() throws BuildException {
+      Path                root = _sourceDir.toPath().toAbsolutePath().normalize();
+      Set<String>       seen = new HashSet<String>();
+      List<String[]>  groups = new ArrayList<String[]>();
+      for (FileSet fileSet : _paletteGroups) {
+         if (fileSet.getDir(getProject()) == null) {
+            fileSet.setDir(_sourceDir);
+         }
+         Path dir = fileSet.getDir(getProject()).toPath().toAbsolutePath().normalize();
+         if (! dir.startsWith(root)) {
+            throw new BuildException("Palette group directory " + quote(dir.toString()) + " is not in the source directory " + quote(_sourceDir.getPath()) + '.');
+         }
+         List<String> members = new ArrayList<String>();
+         for (String name : fileSet.getDirectoryScanner(getProject()).getIncludedFiles()) {
+            String member = root.relativize(dir.resolve(name)).toString();
+            if (matches(member.toLowerCase(), "\\.png$") && seen.add(member)) {
+               members.add(member);
+            }
+         }
+         if (! members.isEmpty()) {
+            Collections.sort(members);
+            groups.add(members.toArray(new String[members.size()]));
+         }
+      }
+      return groups;
+   }
+
+   /**
+    * Starts processing a palette group: builds the combined histogram of
+    * all members in parallel, derives the shared palette and submits a job
+    * to remap each member to it. If all members are up-to-date, nothing is
+    * submitted. Called on the thread that executes the task.
+    *
+    * @param members
+    *    the members of the group, cannot be <code>null</code>.
+    *
+    * @param executor
+    *    the executor for building the histograms, cannot be
+    *    <code>null</code>.
+    *
+    * @param completion
+    *    the completion service to submit the remap jobs to, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    the number of jobs submitted to <code>completion</code>.
+    */
+   private int submitGroup(String[] members, Execution execution, ExecutorService executor,
+                           CompletionService<FileResult> completion, Totals totals, ReportWriter report)
+   throws InterruptedException, IOException {
+
+      long     start = System.currentTimeMillis();
+      String   group = groupSignature(members);
+      FileResult result = new FileResult();
+
+      // The whole group is processed if any member is out of date
+      List<FileItem> items = new ArrayList<FileItem>();
+      boolean     upToDate = ! _overwrite;
+      for (String member : members) {
+         File  inFile = new File(_sourceDir, member);
+         File outFile = new File(_destDir, member);
+         if (inFile.length() < 1L) {
+            result.log("Skipping " + quote(member) + " because the file is completely empty.", MSG_WARN);
+            result._skippedCount++;
+            result.record(new FileRecord(member, FileRecord.SKIPPED, 0L, 0L, 0L, -1L, -1, null));
+            continue;
+         }
+         FileItem item = new FileItem(member, inFile, outFile, null, start);
+         item._group   = group;
+         items.add(item);
+         upToDate = upToDate && isUpToDate(member, inFile, inFile.length(), inFile.lastModified(), outFile, group, execution, result);
+      }
+      if (upToDate) {
+         for (FileItem item : items) {
+            result.log("Skipping " + quote(item._inFileName) + " because output file is up-to-date.", MSG_VERBOSE);
+            result._skippedCount++;
+            result.record(new FileRecord(item._inFileName, FileRecord.SKIPPED, System.currentTimeMillis() - start, 0L, item._inFile.length(), item._outFile.length(), -1, null));
+         }
+         items.clear();
+      }
+
+      // Derive the shared palette, from the histograms built in parallel;
+      // members that cannot be decoded are left out of the group
+      File[] inFiles = new File[items.size()];
+      for (int i = 0; i < inFiles.length; i++) {
+         inFiles[i] = items.get(i)._inFile;
+      }
+      IOException[]  failures = new IOException[inFiles.length];
+      int[]           palette = execution._engine.palette(inFiles, executor, failures);
+      List<FileItem> remapped = new ArrayList<FileItem>();
+      for (int i = 0; i < inFiles.length; i++) {
+         if (failures[i] != null) {
+            completeFile(items.get(i), failures[i], true, execution, result);
+         } else {
+            remapped.add(items.get(i));
+         }
+      }
+
+      // Remap each member to the shared palette
+      if (palette != null) {
+         result.log("Derived a palette of " + palette.length + " colors for a group of " + remapped.size() + " file(s) in " + (System.currentTimeMillis() - start) + " ms.", MSG_VERBOSE);
+         for (FileItem item : remapped) {
+            completion.submit(new GroupJob(item, palette, execution));
+         }
+      }
+
+      result.flushLog();
+      totals.add(result, report);
+      return remapped.size();
+   }
+
+   /**
+    * Determines the signature of a palette group, recorded in the manifest
+    * as part of the parameters, so that a change in the membership of the
+    * group causes all members to be processed again.
+    */
+   private static String groupSignature(String[] members) {
+      CRC32 crc = new CRC32();
+      for (String member : members) {
+         crc.update(member.replace(File.separatorChar, '/').getBytes(Charset.forName("UTF-8")));
+         crc.update('\n');
+      }
+      return Long.toHexString(crc.getValue()) + '/' + members.length;
+   }
+
+   /**
+    * Remaps a member of a palette group to the shared palette.
+    *
+    * @throws IOException
+    *    if the file could not be remapped, the message (if any) describes
+    *    the error.
+    */
+   private void quantizeWithPalette(FileItem item, int[] palette, Execution execution, FileResult result)
+   throws IOException {
+      unshare(item._inFile, item._outFile, result);
+      execution._engine.quantize(item._inFile, item._outFile, palette);
+   }
+
+   /**
+    * Groups the specified files in batches, each to be processed with a
+    * single invocation of the command. Batches are limited both by the
+    * configured batch size and by the maximum length of a command line.
+    *
+    * @return
+    *    the batches, never <code>null</code>.
+    */
+   private List<String[]> batches(String[] inFileNames, Execution execution) {
+      int batchSize = batchSize(execution);
+      List<String[]> batches = new ArrayList<String[]>();
+      for (int i = 0; i < inFileNames.length; i += batchSize) {
+         batches.add(Arrays.copyOfRange(inFileNames, i, Math.min(i + batchSize, inFileNames.length)));
+      }
+      return batches;
+   }
+
+   /**
+    * Determines the minimum number of pixels for an image to be streamed
+    * when it is quantized in-process.
+    *
+    * @param inProcess
+    *    <code>true</code> if the Java engine is used.
+    *
+    * @return
+    *    the minimum number of pixels, 0 if all images should be streamed,
+    *    or <code>Long.MAX_VALUE</code> if none should.
+    */
+   private long streamingPixels(boolean inProcess) {
+      if (inProcess && _streaming) {
+         return 0L;
+      }
+      return (_streamingMegapixels > 0) ? _streamingMegapixels * 1000000L : Long.MAX_VALUE;
+   }
+
+   /**
+    * Determines the number of files to process with a single invocation of
+    * the command, limited both by the configured batch size and by the
+    * maximum length of a command line.
+    */
+   private int batchSize(Execution execution) {
+
+      // Batching only applies when actually executing the command
+      if (! execution._transform || ! execution._engine.supportsBatches()) {
+         return 1;
+      }
+
+      // Each temporary input file adds its path to the command line
+      int perFile = System.getProperty("java.io.tmpdir").length() + Quantizer.class.getSimpleName().length() + 32;
+      int  fixed  = execution._command.length() + 16;
+      return Math.max(1, Math.min(_batchSize, (MAX_COMMAND_LENGTH - fixed) / perFile));
+   }
+
+   /**
+    * Processes (or copies) a single file. This method is called on one of
+    * the worker threads, so it must not touch any shared mutable state;
+    * all log messages are collected in the returned result instead.
+    *
+    * @param inFileName
+    *    the name of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param attributes
+    *    the attributes of the input file, if they were already read, or
+    *    <code>null</code>.
+    *
+    * @param execution
+    *    the state of the current execution of this task,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the result for this file, never <code>null</code>.
+    */
+   private FileResult processFile(String inFileName, BasicFileAttributes attributes, Execution execution) {
+
+      FileResult result = new FileResult();
+      FileItem     item = prepareFile(inFileName, attributes, execution, result);
+      if (item == null) {
+         return result;
+      }
+
+      // Quantize the file, using the engine
+      IOException      failure = null;
+      Quantizer.Result outcome = null;
+      if (execution._transform && execution.pastDeadline()) {
+         failure = new IOException("Deadline passed.");
+      } else if (execution._transform) {
+         long processStart = System.currentTimeMillis();
+         try {
+            outcome = quantize(item, execution, result);
+         } catch (IOException exception) {
+            failure = exception;
+         }
+         item._processTime = System.currentTimeMillis() - processStart;
+      }
+
+      if (outcome == null || ! keepOriginal(item, outcome, execution, result)) {
+         finishFile(item, failure, execution, result);
+      }
+      return result;
+   }
+
+   /**
+    * Processes (or copies) a batch of files, using a single invocation of
+    * the command for all files that need to be processed. If the batch
+    * invocation fails, then all files are processed individually instead,
+    * as are the files for which it does not produce any output. Like
+    * {@link #processFile(String,BasicFileAttributes,Execution)} this method
+    * is called on one of the worker threads.
+    *
+    * @param inFileNames
+    *    the names of the input files, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param attributes
+    *    the attributes of the input files, in the same order, if they were
+    *    already read, or <code>null</code>.
+    *
+    * @param execution
+    *    the state of the current execution of this task,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the combined result for all files, never <code>null</code>.
+    */
+   private FileResult processBatch(String[] inFileNames, BasicFileAttributes[] attributes, Execution execution) {
+
+      // Determine which files need to be processed at all
+      FileResult     result = new FileResult();
+      List<FileItem> items  = new ArrayList<FileItem>();
+      for (int i = 0; i < inFileNames.length; i++) {
+         FileItem item = prepareFile(inFileNames[i], attributes == null ? null : attributes[i], execution, result);
+         if (item != null) {
+            items.add(item);
+         }
+      }
+
+      // Process the batch; retry the failed files one by one. The time
+      // spent on the batch is divided evenly over its members
+      long                 batchStart = System.currentTimeMillis();
+      Quantizer.Result[]     outcomes = new Quantizer.Result[items.size()];
+      if (items.size() > 1 && ! execution.pastDeadline()) {
+         File[]  inFiles = new File[items.size()];
+         File[] outFiles = new File[items.size()];
+         long    timeOut = 0L;
+         for (int i = 0; i < inFiles.length; i++) {
+            inFiles[i]  = items.get(i)._inFile;
+            outFiles[i] = items.get(i)._outFile;
+            timeOut    += fileTimeOut(inFiles[i]);
+         }
+         outcomes = execution._engine.processBatch(inFiles, outFiles, execution.limit(timeOut), result);
+      }
+      long batchTime = (System.currentTimeMillis() - batchStart) / Math.max(1, items.size());
+      for (int i = 0; i < items.size(); i++) {
+         FileItem            item = items.get(i);
+         Quantizer.Result outcome = outcomes[i];
+         IOException      failure = null;
+         item._processTime = batchTime;
+         if (outcome == null && execution.pastDeadline()) {
+            failure = new IOException("Deadline passed.");
+         } else if (outcome == null) {
+            long processStart = System.currentTimeMillis();
+            try {
+               outcome = quantize(item, execution, result);
+            } catch (IOException exception) {
+               failure = exception;
+            }
+            item._processTime += System.currentTimeMillis() - processStart;
+         }
+         if (outcome == null || ! keepOriginal(item, outcome, execution, result)) {
+            finishFile(item, failure, execution, result);
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Performs the checks that precede the actual processing of a single
+    * file: the file must be a non-empty PNG file and the output file must
+    * be out of date. If a cached result is available, then it is used.
+    *
+    * @param attributes
+    *    the attributes of the input file, if they were already read, or
+    *    <code>null</code> if the file should be checked.
+    *
+    * @return
+    *    the item to process, or <code>null</code> if the file has already
+    *    been dealt with.
+    */
+   private FileItem prepareFile(String inFileName, BasicFileAttributes attributes, Execution execution, FileResult result) {
+
+      long thisStart = System.currentTimeMillis();
+
+      // Make sure the input file exists
+      File inFile = new File(_sourceDir, inFileName);
+      if (attributes == null && ! inFile.exists()) {
+         return null;
+      }
+      long  inSize = (attributes == null) ? inFile.length()       : attributes.size();
+      long inMtime = (attributes == null) ? inFile.lastModified() : attributes.lastModifiedTime().toMillis();
+
+      // Determine if the file type is supported
+      if (! matches(inFileName.toLowerCase(), "\\.png$")) {
+         result.log("Skipping " + quote(inFileName) + " because the file does not end in \".png\" (case-insensitive).", MSG_VERBOSE);
+         result._skippedCount++;
+         result.record(new FileRecord(inFileName, FileRecord.SKIPPED, System.currentTimeMillis() - thisStart, 0L, -1L, -1L, -1, null));
+         return null;
+      }
+
+      // Some preparations related to the input file and output file
+      String outFileName = inFileName.replaceFirst("\\.[a-zA-Z]+$", ".png");
+      File       outFile = new File(_destDir, outFileName);
+
+      // Skip this file if the output file is up-to-date
+      if (!_overwrite && isUpToDate(inFileName, inFile, inSize, inMtime, outFile, null, execution, result)) {
+         result.log("Skipping " + quote(inFileName) + " because output file is up-to-date.", MSG_VERBOSE);
+         result._skippedCount++;
+         result.record(new FileRecord(inFileName, FileRecord.SKIPPED, System.currentTimeMillis() - thisStart, 0L, inSize, outFile.length(), -1, null));
+         return null;
+
+      // Skip each empty file
+      } else if (inSize < 1L) {
+         result.log("Skipping " + quote(inFileName) + " because the file is completely empty.", MSG_WARN);
+         result._skippedCount++;
+         result.record(new FileRecord(inFileName, FileRecord.SKIPPED, System.currentTimeMillis() - thisStart, 0L, 0L, -1L, -1, null));
+         return null;
+      }
+
+      // The output file may be linked to the output of an identical file,
+      // make sure that one is not overwritten as well
+      unshare(inFile, outFile, result);
+
+      // Use the cached result, if there is one
+      String cacheKey = null;
+      if (execution._transform && execution._cache != null) {
+         try {
+            cacheKey = execution._cache.key(inFile, execution._cacheParameters);
+         } catch (IOException exception) {
+            result.log("Failed to compute cache key for " + quote(inFile.getPath()) + '.', MSG_WARN);
+         }
+         if (cacheKey != null && execution._cache.get(cacheKey, outFile)) {
+            if (keepCachedOriginal(inFile, outFile, result)) {
+               completeFile(new FileItem(inFileName, inFile, outFile, null, thisStart), null, false, execution, result);
+               return null;
+            }
+            long thisDuration = System.currentTimeMillis() - thisStart;
+            result.log("Processed " + quote(inFileName) + " in " + thisDuration + " ms (cached).", MSG_VERBOSE);
+            result._processCount++;
+            result._cacheHitCount++;
+            updateManifest(inFileName, inFile, outFile, true, null, execution, result);
+            result.record(new FileRecord(inFileName, FileRecord.PROCESSED, thisDuration, 0L, inSize, outFile.length(), execution._search == null ? _numColors : -1, null));
+            return null;
+         }
+      }
+
+      return new FileItem(inFileName, inFile, outFile, cacheKey, thisStart);
+   }
+
+   /**
+    * Makes sure that writing the output file does not change another file
+    * it is linked to. Only output files that this task may have linked,
+    * to the output of an identical file or to the input file itself, are
+    * considered: when deduplicating, or with a link mode. Those are removed
+    * if they have multiple links. The input file is never removed, even
+    * when processing in place.
+    */
+   private void unshare(File inFile, File outFile, FileResult result) {
+      if (! _deduplicate && _linkMode == null) {
+         return;
+      }
+      try {
+         if (! inFile.getCanonicalFile().equals(outFile.getCanonicalFile())) {
+            FileLinker.unshare(outFile);
+         }
+      } catch (IOException exception) {
+         result.log("Failed to unlink " + quote(outFile.getPath()) + ": " + exception.getMessage(), MSG_WARN);
+      }
+   }
+
+   /**
+    * Handles the outcome of quantizing a single file with the engine. If
+    * the engine kept the original, because it is already quantized or
+    * because the output is not smaller, then the file is copied and
+    * completed right away. In the latter case, the original is stored in
+    * the cache, if any, so that a cache hit keeps the original as well.
+    *
+    * @return
+    *    <code>true</code> if the original was kept and the file completed,
+    *    <code>false</code> if the output file should be used.
+    */
+   private boolean keepOriginal(FileItem item, Quantizer.Result outcome, Execution execution, FileResult result) {
+      String action = outcome.getAction();
+      if (Quantizer.Result.PROCESSED.equals(action)) {
+         item._colors = outcome.getColors();
+         if (outcome.getMessage() != null) {
+            result.log("Processed " + quote(item._inFileName) + ": " + outcome.getMessage(), MSG_WARN);
+         }
+         return false;
+      }
+
+      result.log("Keeping original " + quote(item._inFile.getPath()) + ": " + outcome.getMessage(), MSG_VERBOSE);
+      if (Quantizer.Result.INDEXED.equals(action)) {
+         result._preflightCount++;
+      } else {
+         result._keptCount++;
+         if (item._cacheKey != null) {
+            execution._cache.put(item._cacheKey, item._inFile);
+         }
+      }
+      completeFile(item, null, false, execution, result);
+      return true;
+   }
+
+   /**
+    * Determines if the original file should be kept, because the cached
+    * output is not smaller. This check is skipped if the pre-flight checks
+    * are disabled, or if the input file is the output file.
+    *
+    * @return
+    *    <code>true</code> if the original should be kept,
+    *    <code>false</code> if the output file should be used.
+    */
+   private boolean keepCachedOriginal(File inFile, File outFile, FileResult result) {
+      if (! _preflight || inFile.equals(outFile) || outFile.length() < inFile.length()) {
+         return false;
+      }
+      result.log("Keeping original " + quote(inFile.getPath()) + " because the output (" + outFile.length() + " bytes) is not smaller.", MSG_VERBOSE);
+      result._keptCount++;
+      return true;
+   }
+
+   /**
+    * Determines if the specified output file is up-to-date, either using
+    * the build manifest or, if there is none, by comparing the modification
+    * times. Without a manifest, an output file that is a hard link to the
+    * input file (see {@link #setLinkMode(String)}) is up-to-date as well,
+    * since it has the same modification time.
+    *
+    * @param inSize
+    *    the size of the input file.
+    *
+    * @param inMtime
+    *    the modification time of the input file.
+    *
+    * @param group
+    *    the signature of the palette group, or <code>null</code> if the
+    *    file is not in a group.
+    */
+   private boolean isUpToDate(String inFileName, File inFile, long inSize, long inMtime, File outFile, String group, Execution execution, FileResult result) {
+      if (execution._manifest == null) {
+         long outMtime = outFile.lastModified();
+         return outMtime != 0L && (outMtime > inMtime || isLinked(inFile, outFile));
+      }
+      try {
+         return execution._manifest.isUpToDate(inFileName, inFile, inSize, inMtime, outFile, execution.manifestParameters(group));
+      } catch (IOException exception) {
+         result.log("Failed to check if output for " + quote(inFileName) + " is up-to-date: " + exception.getMessage(), MSG_WARN);
+         return false;
+      }
+   }
+
+   /**
+    * Determines if the specified output file is a hard link to the input
+    * file, under another path.
+    */
+   private static boolean isLinked(File inFile, File outFile) {
+      try {
+         return ! inFile.getCanonicalFile().equals(outFile.getCanonicalFile())
+             && Files.isSameFile(inFile.toPath(), outFile.toPath());
+      } catch (IOException exception) {
+         return false;
+      }
+   }
+
+   /**
+    * Records the outcome for a single file in the build manifest, if any.
+    *
+    * @param success
+    *    <code>true</code> if the output file was successfully generated,
+    *    <code>false</code> if it was not, in which case it will be
+    *    considered out of date next time.
+    *
+    * @param group
+    *    the signature of the palette group, or <code>null</code> if the
+    *    file is not in a group.
+    */
+   private void updateManifest(String inFileName, File inFile, File outFile, boolean success, String group, Execution execution, FileResult result) {
+      if (execution._manifest == null) {
+         return;
+      } else if (! success) {
+         execution._manifest.remove(inFileName);
+         return;
+      }
+      try {
+         execution._manifest.put(inFileName, inFile, outFile, execution.manifestParameters(group));
+      } catch (IOException exception) {
+         execution._manifest.remove(inFileName);
+         result.log("Failed to record " + quote(inFileName) + " in build manifest: " + exception.getMessage(), MSG_WARN);
+      }
+   }
+
+   /**
+    * Finishes the processing of a single file: if the file was processed
+    * successfully and should be optimized, then it is handed over to the
+    * optimization stage, which completes it. Otherwise the file is
+    * completed right away.
+    *
+    * @param failure
+    *    the reason processing failed, or <code>null</code> if processing
+    *    succeeded or was not attempted at all.
+    */
+   private void finishFile(FileItem item, IOException failure, Execution execution, FileResult result) {
+      if (failure != null && execution.pastDeadline()) {
+         missDeadline(item, execution, result);
+      } else if (failure == null && execution._transform && execution._optimizer != null) {
+         execution._optimizer.submit(new OptimizeJob(item, execution));
+         result._optimizations++;
+      } else {
+         completeFile(item, failure, execution._transform, execution, result);
+      }
+   }
+
+   /**
+    * Completes a single file that was not processed before the deadline:
+    * it is copied, unless processing is mandatory, in which case it fails.
+    */
+   private void missDeadline(FileItem item, Execution execution, FileResult result) {
+      result._deadlineCount++;
+      if (execution._processOption == ProcessOption.MUST) {
+         completeFile(item, new IOException("Not processed before the deadline."), true, execution, result);
+      } else {
+         result.log("Copying " + quote(item._inFileName) + " because it was not processed before the deadline.", MSG_VERBOSE);
+         completeFile(item, null, false, execution, result);
+      }
+   }
+
+   /**
+    * Completes the processing of a single file: logs the result and, if
+    * required, copies the input file to the output file unchanged.
+    *
+    * @param failure
+    *    the reason processing failed, or <code>null</code> if processing
+    *    succeeded or was not attempted at all.
+    *
+    * @param transformed
+    *    <code>true</code> if processing was attempted, <code>false</code>
+    *    if the file should just be copied.
+    */
+   private void completeFile(FileItem item, IOException failure, boolean transformed, Execution execution, FileResult result) {
+
+      String  inFileName = item._inFileName;
+      String  inFilePath = item._inFile.getPath();
+      String outFilePath = item._outFile.getPath();
+
+      // File transformation was attempted
+      boolean copy = !transformed;
+      String action = null, errorMessage = null;
+      if (transformed) {
+
+         // Log the result for this individual file
+         long thisDuration = System.currentTimeMillis() - item._start;
+         if (failure != null) {
+            errorMessage        = failure.getMessage();
+            action              = FileRecord.FAILED;
+            String   logMessage = "Failed to process " + quote(inFilePath) + " (took " + thisDuration + " ms)";
+            if (isEmpty(errorMessage)) {
+               logMessage += '.';
+            } else {
+               logMessage += ": " + errorMessage;
+            }
+            result.log(logMessage, MSG_ERR);
+            result._failedCount++;
+
+            // Failed, but then instead copy the input file unchanged
+            if (execution._processOption != ProcessOption.MUST) {
+               copy = true;
+            }
+
+         // Store the output in the cache, if any
+         } else {
+            if (item._cacheKey != null) {
+               execution._cache.put(item._cacheKey, item._outFile);
+            }
+            result.log("Processed " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
+            result._processCount++;
+            action = FileRecord.PROCESSED;
+         }
+      }
+
+      // Copy the file?
+      if (copy) {
+         try {
+            String    method = execution._linker.link(item._inFile, item._outFile);
+            long thisDuration = System.currentTimeMillis() - item._start;
+            result.log("Copied " + quote(inFileName) + " in " + thisDuration + " ms" + (FileLinker.COPY.equals(method) ? "" : " (" + method + ")") + '.', MSG_VERBOSE);
+            result._copyCount++;
+            action = FileRecord.COPIED;
+         } catch (Throwable exception) {
+            String logMessage = "Failed to copy " + quote(inFilePath) + " to " + quote(outFilePath) + '.';
+            result.log(logMessage, MSG_ERR);
+            result._failedCount++;
+            action       = FileRecord.FAILED;
+            errorMessage = logMessage;
+         }
+      }
+
+      updateManifest(inFileName, item._inFile, item._outFile, failure == null && ! FileRecord.FAILED.equals(action), item._group, execution, result);
+
+      long outputBytes = FileRecord.FAILED.equals(action) ? -1L : item._outFile.length();
+      result.record(new FileRecord(inFileName, action, System.currentTimeMillis() - item._start, item._processTime,
+                                   item._inFile.length(), outputBytes, FileRecord.PROCESSED.equals(action) ? item._colors : -1, errorMessage));
+   }
+
+   /**
+    * Quantizes a single file using the engine. If there is a time budget,
+    * the speed is chosen for this file and the time it took is recorded.
+    * The cache key was computed for the slowest speed; if a faster speed is
+    * chosen, the result is not cached, so that later runs with more time
+    * do not reuse it.
+    *
+    * @return
+    *    the outcome, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be quantized, the message (if any) describes
+    *    the error.
+    */
+   private Quantizer.Result quantize(FileItem item, Execution execution, FileResult result)
+   throws IOException {
+      File       inFile = item._inFile;
+      TimeBudget budget = execution._budget;
+      Quantizer  engine = execution._engine;
+      long       pixels = 0L;
+      int         speed = 0;
+      if (budget != null) {
+         pixels = pixels(inFile);
+         speed  = budget.choose(pixels);
+         engine = engine.withSpeed(speed);
+         result._speedCounts[speed]++;
+         result.log("Quantizing " + quote(inFile.getPath()) + " at speed " + speed + " to fit the time budget.", MSG_VERBOSE);
+         if (speed != TimeBudget.SPEEDS[0]) {
+            item._cacheKey = null;
+         }
+      }
+
+      long start = System.currentTimeMillis();
+      try {
+         return engine.process(inFile, item._outFile, execution.limit(fileTimeOut(inFile)), result);
+      } finally {
+         if (budget != null) {
+            budget.completed(speed, pixels, System.currentTimeMillis() - start);
+         }
+      }
+   }
+
+   /**
+    * Determines the time-out for processing the specified file with the
+    * command: the base time-out plus the time-out per megapixel. The size
+    * of the image is read from its header; if that fails, only the base
+    * time-out applies.
+    *
+    * @return
+    *    the time-out in milliseconds, or 0 if there is none.
+    */
+   private long fileTimeOut(File inFile) {
+      long timeOut = Math.max(0L, _timeOut);
+      if (_timeOutPerMegapixel > 0L) {
+         timeOut += (long) ((double) pixels(inFile) * _timeOutPerMegapixel / 1000000.0);
+      }
+      return timeOut;
+   }
+
+   /**
+    * Determines the number of pixels of the specified file, from its
+    * header.
+    *
+    * @return
+    *    the number of pixels, or 0 if the file is not a valid PNG file or
+    *    could not be read.
+    */
+   private static long pixels(File inFile) {
+      try {
+         PngHeader header = PngHeader.read(inFile);
+         return (header == null) ? 0L : (long) header._width * header._height;
+      } catch (IOException exception) {
+         return 0L;
+      }
+   }
+
+   /**
+    * Tests that the specified command is available and determines its
+    * version. The result of running the command is cached for the
+    * lifetime of the JVM, until the executable changes.
+    *
+    * @return
+    *    the version of the command, or <code>null</code> if the command is
+    *    unavailable or should not be executed at all.
+    */
+   private String testCommand(String command, ProcessOption processOption)
+   throws IllegalArgumentException, BuildException {
+
+      // Check preconditions
+      if (command == null) {
+         throw new IllegalArgumentException("command == null");
+      } else if (processOption == null) {
+         throw new IllegalArgumentException("processOption == null");
+      }
+
+      // Short-circuit if no command should be executed
+      if (processOption == ProcessOption.MUST_NOT) {
+         return null;
+      }
+
+      // Use the cached probe result, if it is still valid
+      File         executable = resolveCommand(command);
+      String            key = (executable == null) ? command : executable.getPath();
+      ProbeResult     probe = PROBE_CACHE.get(key);
+      if (probe != null && probe.isValidFor(executable)) {
+         log("Using cached version information for command " + quote(command) + '.', MSG_VERBOSE);
+      } else {
+         probe = probeCommand(command, executable);
+         PROBE_CACHE.put(key, probe);
+      }
+
+      // Command was executed successfully
+      if (probe._version != null) {
+         log("Using command " + quote(command) + ", version is " + quote(probe._version) + '.', MSG_VERBOSE);
+      } else if (probe._fatal && processOption == ProcessOption.MUST) {
+         throw new BuildException(probe._message, probe._cause);
+      } else {
+         log(probe._message, MSG_ERR);
+      }
+
+      return probe._version;
+   }
+
+   /**
+    * Runs the specified command without arguments, to determine its
+    * version.
+    *
+    * @param command
+    *    the command, cannot be <code>null</code>.
+    *
+    * @param executable
+    *    the executable file the command resolves to,
+    *    or <code>null</code> if unknown.
+    *
+    * @return
+    *    the result, never <code>null</code>.
+    */
+   private ProbeResult probeCommand(String command, File executable) {
+      log("Command line: " + quote(command) + '.', MSG_VERBOSE);
+
+      // Executing the command failed, timed out or resulted in an exit code
+      // other than 0 or 1
+      String version;
+      try {
+         version = new Quantizer(command, 256, true, _timeOut, 0).version();
+      } catch (IOException exception) {
+         String message = "Unable to execute command " + quote(command) + ". " + exception.getMessage();
+         return new ProbeResult(executable, null, message, true, exception);
+      }
+
+      // Command was executed successfully
+      if (version == null) {
+         String message = "Unable to execute command " + quote(command) + ". No version output found (on stderr) when running the command without arguments.";
+         return new ProbeResult(executable, null, message, false, null);
+      } else {
+         return new ProbeResult(executable, version, null, false, null);
+      }
+   }
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Enumeration type for the different process options.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private enum ProcessOption {
+
+      /**
+       * Force processing: if the command is unavailable or fails to execute
+       * successfully, then this task will fail.
+       */
+      MUST,
+         
+      /**
+       * Skip processing completely: just copy the files.
+       */
+      MUST_NOT,
+
+      /**
+       * Attempt processing, but fallback to copying if processing fails.
+       * The task will only fail if the copying also fails to succeed.
+       */
+      SHOULD;
+   }
+   /**
+    * The state of a single execution of this task, shared (read-only) by
+    * all worker threads.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Execution {
+
+      /**
+       * Constructs a new <code>Execution</code>.
+       */
+      Execution(String command, Quantizer engine, boolean transform, ProcessOption processOption,
+                ResultCache cache, String cacheParameters, Manifest manifest, ColorSearch search,
+                CompletionService<FileResult> optimizer, Schedule schedule, List<String[]> groups, Set<String> grouped,
+                FileLinker linker, long deadline, Progress progress, TimeBudget budget) {
+         _command         = command;
+         _engine          = engine;
+         _transform       = transform;
+         _processOption   = processOption;
+         _cache           = cache;
+         _cacheParameters = cacheParameters;
+         _manifest        = manifest;
+         _search          = search;
+         _optimizer       = optimizer;
+         _schedule        = schedule;
+         _groups          = groups;
+         _grouped         = grouped;
+         _linker          = linker;
+         _deadline        = deadline;
+         _progress        = progress;
+         _budget          = budget;
+      }
+
+      /**
+       * The command to execute, never <code>null</code>.
+       */
+      final String _command;
+
+      /**
+       * The quantizer that processes individual files, including the
+       * pre-flight checks and the color search, if any; never
+       * <code>null</code>.
+       */
+      final Quantizer _engine;
+
+      /**
+       * Flag that indicates if the files should be transformed at all.
+       */
+      final boolean _transform;
+
+      /**
+       * The process option, never <code>null</code>.
+       */
+      final ProcessOption _processOption;
+
+      /**
+       * The result cache, or <code>null</code> if no cache is used.
+       */
+      final ResultCache _cache;
+
+      /**
+       * The parameters that affect the output, part of each cache key.
+       */
+      final String _cacheParameters;
+
+      /**
+       * The build manifest, or <code>null</code> if the modification times
+       * should be compared instead.
+       */
+      final Manifest _manifest;
+
+      /**
+       * The color search, or <code>null</code> if each file should be
+       * quantized to the configured number of colors.
+       */
+      final ColorSearch _search;
+
+      /**
+       * The completion service for the optimization stage, or
+       * <code>null</code> if processed files should not be optimized.
+       */
+      final CompletionService<FileResult> _optimizer;
+
+      /**
+       * The schedule that orders the files, or <code>null</code> if they
+       * should be processed in the order they were found.
+       */
+      final Schedule _schedule;
+
+      /**
+       * The palette groups to process in this shard, never
+       * <code>null</code>.
+       */
+      final List<String[]> _groups;
+
+      /**
+       * The members of all palette groups, including those processed by
+       * other shards, never <code>null</code>.
+       */
+      final Set<String> _grouped;
+
+      /**
+       * The linker for files that are copied unchanged, never
+       * <code>null</code>.
+       */
+      final FileLinker _linker;
+
+      /**
+       * The time at which the run should end, or 0 if there is no
+       * deadline.
+       */
+      final long _deadline;
+
+      /**
+       * The progress of the run, never <code>null</code>.
+       */
+      final Progress _progress;
+
+      /**
+       * The time budget, or <code>null</code> if there is none, or if the
+       * files are quantized in-process.
+       */
+      final TimeBudget _budget;
+
+      /**
+       * Determines if the deadline has passed.
+       */
+      boolean pastDeadline() {
+         return _deadline > 0L && System.currentTimeMillis() >= _deadline;
+      }
+
+      /**
+       * Limits the specified time-out to the time left until the deadline.
+       *
+       * @param timeOut
+       *    the time-out in milliseconds, or 0 if there is none.
+       *
+       * @return
+       *    the limited time-out in milliseconds, or 0 if there is none.
+       */
+      long limit(long timeOut) {
+         if (_deadline <= 0L) {
+            return timeOut;
+         }
+         long remaining = Math.max(1L, _deadline - System.currentTimeMillis());
+         return (timeOut > 0L) ? Math.min(timeOut, remaining) : remaining;
+      }
+
+      /**
+       * Returns the parameters that affect the output, as recorded in the
+       * manifest. Unlike the cache parameters, these also distinguish
+       * between processing and copying, and between palette groups.
+       *
+       * @param group
+       *    the signature of the palette group, or <code>null</code> if the
+       *    file is not in a group.
+       */
+      String manifestParameters(String group) {
+         return _cacheParameters + ";transform=" + _transform + (group == null ? "" : ";palettegroup=" + group);
+      }
+   }
+
+   /**
+    * The result of probing a command for its version.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class ProbeResult {
 
-      // Test that the command is available
-      boolean commandAvailable = testCommand(command, processOption);
+      /**
+       * Constructs a new <code>ProbeResult</code>.
+       */
+      ProbeResult(File executable, String version, String message, boolean fatal, Throwable cause) {
+         _length       = (executable == null) ? -1L : executable.length();
+         _lastModified = (executable == null) ? -1L : executable.lastModified();
+         _version      = version;
+         _message      = message;
+         _fatal        = fatal;
+         _cause        = cause;
+      }
 
-      // Determine if transformation should be attempted at all
-      // (alternative is just copying)
-      boolean transform = processOption != ProcessOption.MUST_NOT && commandAvailable;
+      /**
+       * The size of the executable when it was probed, or -1 if unknown.
+       */
+      private final long _length;
 
-      // Determine the number of colors
-      if (_numColors < 2) {
-         throw new BuildException("Number of colors (" + _numColors + ") is invalid, it is too low. It should be between 2 and 256.");
-      } else if (_numColors > 256) {
-         throw new BuildException("Number of colors (" + _numColors + ") is invalid, it is too high. It should be between 2 and 256.");
-      }
+      /**
+       * The modification time of the executable when it was probed,
+       * or -1 if unknown.
+       */
+      private final long _lastModified;
 
-      // Consider each individual file for processing/copying
-      log("Transforming from " + _sourceDir.getPath() + " to " + _destDir.getPath() + '.', MSG_VERBOSE);
-      long start = System.currentTimeMillis();
-      int failedCount = 0, processCount = 0, copyCount = 0, skippedCount = 0;
-      for (String inFileName : getDirectoryScanner(_sourceDir).getIncludedFiles()) {
+      /**
+       * The version of the command, or <code>null</code> if unavailable.
+       */
+      final String _version;
 
-         long thisStart = System.currentTimeMillis();
+      /**
+       * The error message, if the version is unavailable.
+       */
+      final String _message;
 
-         // Make sure the input file exists
-         File inFile = new File(_sourceDir, inFileName);
-         if (! inFile.exists()) {
-            continue;
-         }
+      /**
+       * Flag that indicates if the command could not be executed at all,
+       * which is fatal if processing is required.
+       */
+      final boolean _fatal;
 
-         // Determine if the file type is supported
-         if (! matches(inFileName.toLowerCase(), "\\.png$")) {
-            log("Skipping " + quote(inFileName) + " because the file does not end in \".png\" (case-insensitive).", MSG_VERBOSE);
-            skippedCount++;
-            continue;
-         }
+      /**
+       * The cause of the failure to execute the command, if any.
+       */
+      final Throwable _cause;
 
-         // Some preparations related to the input file and output file
-         String outFileName = inFileName.replaceFirst("\\.[a-zA-Z]+$", ".png");
-         File       outFile = new File(_destDir, outFileName);
-         String outFilePath = outFile.getPath();
-         String  inFilePath = inFile.getPath();
+      /**
+       * Checks if this result still applies to the specified executable,
+       * i.e. if the executable has not changed since it was probed.
+       */
+      boolean isValidFor(File executable) {
+         return (executable == null)
+              ? _length == -1L
+              : executable.length() == _length && executable.lastModified() == _lastModified;
+      }
+   }
 
-         // Skip this file is the output file exists and is newer
-         if (!_overwrite && outFile.exists() && (outFile.lastModified() > inFile.lastModified())) {
-            log("Skipping " + quote(inFileName) + " because output file is newer.", MSG_VERBOSE); 
-            skippedCount++;
-            continue;
+   /**
+    * Task that processes a single file, or a batch of files, on a worker
+    * thread.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class FileJob implements Callable<FileResult> {
 
-         // Skip each empty file
-         } else if (inFile.length() < 1L) {
-            log("Skipping " + quote(inFileName) + " because the file is completely empty.", MSG_WARN); 
-            skippedCount++;
-            continue;
+      /**
+       * Constructs a new <code>FileJob</code>.
+       */
+      FileJob(String[] inFileNames, BasicFileAttributes[] attributes, Execution execution) {
+         _inFileNames = inFileNames;
+         _attributes  = attributes;
+         _execution   = execution;
+         execution._progress.queued(inFileNames.length);
+
+         // The time budget needs the pixels still to be processed
+         long pixels = 0L;
+         if (execution._budget != null) {
+            for (String inFileName : inFileNames) {
+               pixels += pixels(new File(_sourceDir, inFileName));
+            }
+            execution._budget.queued(pixels);
          }
+         _pixels = pixels;
+      }
 
-         // File transformation should be attempted
-         boolean copy = !transform;
-         if (transform) {
+      private final String[]              _inFileNames;
+      private final BasicFileAttributes[] _attributes;
+      private final Execution             _execution;
+      private final long                  _pixels;
 
-            boolean     failure = false;
-            String errorMessage = null;
-            Throwable    caught = null;
+      public FileResult call() {
+         _execution._progress.started(_inFileNames.length);
+         if (_execution._budget != null) {
+            _execution._budget.started(_pixels);
+         }
+         try {
+            return _inFileNames.length == 1
+                 ? processFile(_inFileNames[0], _attributes == null ? null : _attributes[0], _execution)
+                 : processBatch(_inFileNames, _attributes, _execution);
+         } finally {
+            _execution._progress.ended(_inFileNames.length);
+         }
+      }
+   }
 
-            // Create temporary input file
-            File tempInFile = null;
-            try {
-               tempInFile = File.createTempFile(getClass().getSimpleName(), ".png");
-               log("Created temporary input file \"" + tempInFile.getPath() + "\".", MSG_VERBOSE);
-            } catch (Throwable exception) {
-               failure      = true;
-               errorMessage = "Failed to create temporary input file.";
-               caught       = exception;
-            }
+   /**
+    * Visitor that submits the included files to the workers as they are
+    * found, in batches, and collects the results that are already available
+    * in the meantime. Used on the thread that executes the task only.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class FileWalker extends SimpleFileVisitor<Path> {
 
-            if (! failure) try {
+      /**
+       * Constructs a new <code>FileWalker</code>.
+       */
+      FileWalker(Execution execution, CompletionService<FileResult> completion, Totals totals, ReportWriter report,
+                 ConcurrencyController controller) {
+         _root         = _sourceDir.toPath();
+         _patterns     = patterns();
+         _batchSize    = batchSize(execution);
+         _execution    = execution;
+         _completion   = completion;
+         _totals       = totals;
+         _report       = report;
+         _controller   = controller;
+         _names        = new ArrayList<String>();
+         _attributes   = new ArrayList<BasicFileAttributes>();
+         _skipManifest = execution._manifest != null && _sourceDir.equals(_destDir);
+      }
 
-               // TODO: Send stdout output to a NullOutputStream
+      final Path                                  _root;
+      private final PathPatterns                  _patterns;
+      private final int                           _batchSize;
+      private final Execution                     _execution;
+      private final CompletionService<FileResult> _completion;
+      private final Totals                        _totals;
+      private final ReportWriter                  _report;
+      private final ConcurrencyController         _controller;
+      private final List<String>                  _names;
+      private final List<BasicFileAttributes>     _attributes;
+      private final boolean                       _skipManifest;
 
-               // Create stream to out/error buffer
-               ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-               ByteArrayOutputStream errStream = new ByteArrayOutputStream();
- 
-               // Prepare for the command execution
-               PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
-               ExecuteWatchdog        watchdog = (_timeOut > 0L) ? new ExecuteWatchdog(_timeOut) : null;
-               Execute                 execute = new Execute(streamHandler, watchdog);
-               String[]                cmdline = new String[] { command, String.valueOf(_numColors), tempInFile.getPath() };
+      /**
+       * The number of files that match the patterns, and the number of
+       * those that are in the shard to process.
+       */
+      int _matched, _selected;
 
-               initExecute(execute, cmdline);
+      /**
+       * The number of results still to be collected.
+       */
+      int _pending;
 
-               // Execute the command
-               try {
-                  execute.execute();
-                  failure = execute.isFailure();
-               } catch (IOException exception) {
-                  failure = true;
-                  caught  = exception;
-               }
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+         if (dir.equals(_root) || _patterns.couldHoldIncluded(_root.relativize(dir).toString())) {
+            return FileVisitResult.CONTINUE;
+         }
+         return FileVisitResult.SKIP_SUBTREE;
+      }
 
-               String  tempInFileName = tempInFile.getName();
-               String tempOutFileName = tempInFileName.substring(0, tempInFileName.length() - 4) + "-fs8.png";
-               File       tempOutFile = new File(tempInFile.getParent(), tempInFile.getName().substring(0, tempInFile.getName().length() - 4));
-
-               // Output to stderr indicates a failure
-               errorMessage = errStream.toString();
-               if (! isEmpty(errorMessage)) {
-                  failure = true;
-
-               // Empty output also indicates failure
-               } else if (! failure && !tempOutFile.exists()) {
-                  failure      = true;
-                  errorMessage = "No output produced.";
-
-               } else if (! failure && tempOutFile.length() < 1L) {
-                  failure      = true;
-                  errorMessage = "No output produced.";
-                  deleteFile(tempOutFile);
-
-               // Copy the temporary output file to the target location
-               } else try {
-                  FileUtils.getFileUtils().copyFile(tempOutFile, outFile);
-               } catch (Throwable exception) {
-                  failure      = true;
-                  errorMessage = "Failed to copy " + quote(tempOutFile.getPath()) + " to " + quote(outFile.getPath()) + '.';
-                  caught       = exception;
-                  deleteFile(tempOutFile);
-                  deleteFile(outFile);
-               }
-            } finally {
-               tempInFile.delete();
-            }
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+         String name = _root.relativize(file).toString();
+         if (! attributes.isRegularFile() || ! _patterns.matches(name)
+          || (_skipManifest && name.equals(Manifest.FILE_NAME)) || _execution._grouped.contains(name)) {
+            return FileVisitResult.CONTINUE;
+         }
+         _matched++;
+         if (_shardCount > 1 && Shards.shardOf(name, _shardCount) != _shardIndex) {
+            return FileVisitResult.CONTINUE;
+         }
+         _selected++;
+         _names.add(name);
+         _attributes.add(attributes);
+         if (_names.size() >= _batchSize) {
+            submit();
+         }
+         return FileVisitResult.CONTINUE;
+      }
 
-            // Log the result for this individual file
-            long thisDuration = System.currentTimeMillis() - thisStart;
-            if (failure) {
-               String logMessage = "Failed to process " + quote(inFilePath) + " (took " + thisDuration + " ms)";
-               if (isEmpty(errorMessage)) {
-                  logMessage += '.';
-               } else {
-                  logMessage += ": " + errorMessage;
-               }
-               log(logMessage, MSG_ERR);
-               failedCount++;
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exception) {
+         log("Failed to read " + quote(file.toString()) + ": " + exception.getMessage(), MSG_WARN);
+         return FileVisitResult.CONTINUE;
+      }
 
-               // Failed, but then instead copy the input file unchanged
-               if (processOption != ProcessOption.MUST) {
-                  copy = true;
-               }
-            } else {
-               log("Processed " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
-               processCount++;
-            }
+      /**
+       * Submits the current batch, if any, and collects the results that
+       * are available without waiting.
+       */
+      void submit() throws IOException {
+         if (! _names.isEmpty()) {
+            _completion.submit(new FileJob(_names.toArray(new String[_names.size()]),
+                                           _attributes.toArray(new BasicFileAttributes[_attributes.size()]),
+                                           _execution));
+            _names.clear();
+            _attributes.clear();
+            _pending++;
          }
-
-         // Copy the file?
-         if (copy) {
-            try {
-               FileUtils.getFileUtils().copyFile(inFile, outFile);
-               long thisDuration = System.currentTimeMillis() - thisStart;
-               log("Copied " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
-               copyCount++;
-            } catch (Throwable exception) {
-               String logMessage = "Failed to copy " + quote(inFilePath) + " to " + quote(outFilePath) + '.';
-               log(logMessage, MSG_ERR);
-               failedCount++;
+         try {
+            for (Future<FileResult> future = _completion.poll(); future != null; future = _completion.poll()) {
+               _pending += collect(future, _totals, _report, _controller) - 1;
             }
+         } catch (InterruptedException cause) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while processing files.", cause);
+         } catch (ExecutionException cause) {
+            throw new BuildException("Unexpected error while processing files.", cause.getCause());
          }
       }
+   }
 
-      // Log the total result
-      long duration = System.currentTimeMillis() - start;
-      if (failedCount > 0) {
-         throw new BuildException("" + failedCount + " file(s) failed to be processed and/or copied; " + processCount + " file(s) processed; " + copyCount + " file(s) copied; " + skippedCount + " file(s) skipped. Total duration is " + duration + " ms.");
-      } else {
-         log("" + processCount + " file(s) processed and " + copyCount + " file(s) copied in " + duration + " ms; " + skippedCount + " file(s) skipped.");
+   /**
+    * Job that losslessly re-encodes a processed file and then completes
+    * it. Runs on the optimization pool, concurrently with the processing
+    * of other files.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class OptimizeJob implements Callable<FileResult> {
+
+      /**
+       * Constructs a new <code>OptimizeJob</code>.
+       */
+      OptimizeJob(FileItem item, Execution execution) {
+         _item      = item;
+         _execution = execution;
       }
-   }
 
-   private void initExecute(Execute execute, String[] cmdline) {
-      execute.setAntRun(getProject());
-      execute.setCommandline(cmdline);
+      private final FileItem  _item;
+      private final Execution _execution;
 
-      String logMessage = cmdline[0];
-      for (int i = 1; i < cmdline.length; i++) {
-         logMessage += " " + cmdline[i];
+      public FileResult call() {
+         FileResult result = new FileResult();
+         long        start = System.currentTimeMillis();
+         try {
+            long saved = new PngOptimizer(streamingPixels(false)).optimize(_item._outFile);
+            if (saved < 0L) {
+               result.log("Not optimizing " + quote(_item._inFileName) + " because it has at least " + _streamingMegapixels + " megapixels.", MSG_VERBOSE);
+            } else {
+               result.log("Optimized " + quote(_item._inFileName) + ", saved " + saved + " byte(s).", MSG_VERBOSE);
+            }
+         } catch (IOException exception) {
+            result.log("Failed to optimize " + quote(_item._outFile.getPath()) + ": " + exception.getMessage(), MSG_WARN);
+         } catch (RuntimeException exception) {
+            result.log("Failed to optimize " + quote(_item._outFile.getPath()) + ": " + exception, MSG_WARN);
+         }
+         _item._processTime += System.currentTimeMillis() - start;
+         completeFile(_item, null, true, _execution, result);
+         return result;
       }
-      log("Command line: " + quote(logMessage) + '.', MSG_VERBOSE);
    }
 
-   private void deleteFile(File f) {
-      try {
-         f.delete();
-      } catch (Throwable e) {
-         log("Failed to delete file \"" + f.getPath() + "\".", MSG_ERR);
+   /**
+    * Job that remaps a member of a palette group to the shared palette and
+    * then finishes it.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class GroupJob implements Callable<FileResult> {
+
+      /**
+       * Constructs a new <code>GroupJob</code>.
+       */
+      GroupJob(FileItem item, int[] palette, Execution execution) {
+         _item      = item;
+         _palette   = palette;
+         _execution = execution;
+         execution._progress.queued(1);
+      }
+
+      private final FileItem  _item;
+      private final int[]     _palette;
+      private final Execution _execution;
+
+      public FileResult call() {
+         FileResult  result = new FileResult();
+         long         start = System.currentTimeMillis();
+         IOException failure = null;
+         _execution._progress.started(1);
+         try {
+            if (_execution.pastDeadline()) {
+               throw new IOException("Deadline passed.");
+            }
+            quantizeWithPalette(_item, _palette, _execution, result);
+            _item._colors = _palette.length;
+         } catch (IOException exception) {
+            failure = exception;
+         }
+         _item._processTime = System.currentTimeMillis() - start;
+         try {
+            finishFile(_item, failure, _execution, result);
+         } finally {
+            _execution._progress.ended(1);
+         }
+         return result;
       }
    }
 
-   private boolean testCommand(String command, ProcessOption processOption)
-   throws IllegalArgumentException, BuildException {
+   /**
+    * A single file that should be processed (or copied).
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class FileItem {
 
-      // Check preconditions
-      if (command == null) {
-         throw new IllegalArgumentException("command == null");
-      } else if (processOption == null) {
-         throw new IllegalArgumentException("processOption == null");
+      /**
+       * Constructs a new <code>FileItem</code>.
+       */
+      FileItem(String inFileName, File inFile, File outFile, String cacheKey, long start) {
+         _inFileName = inFileName;
+         _inFile     = inFile;
+         _outFile    = outFile;
+         _cacheKey   = cacheKey;
+         _start      = start;
       }
 
-      // Short-circuit if no command should be executed
-      if (processOption == ProcessOption.MUST_NOT) {
-         return false;
+      /**
+       * The name of the input file, relative to the source directory.
+       */
+      final String _inFileName;
+
+      /**
+       * The input file, never <code>null</code>.
+       */
+      final File _inFile;
+
+      /**
+       * The output file, never <code>null</code>.
+       */
+      final File _outFile;
+
+      /**
+       * The cache key, or <code>null</code> if no cache is used or if the
+       * result should not be cached.
+       */
+      String _cacheKey;
+
+      /**
+       * The time processing of this file started.
+       */
+      final long _start;
+
+      /**
+       * The time spent quantizing this file, in milliseconds.
+       */
+      long _processTime;
+
+      /**
+       * The number of colors this file was quantized to, or -1 if unknown.
+       */
+      int _colors = -1;
+
+      /**
+       * The signature of the palette group this file is in, or
+       * <code>null</code> if it is not in a group.
+       */
+      String _group;
+   }
+
+   /**
+    * The totals over a number of file results.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Totals {
+
+      /**
+       * Constructs a new <code>Totals</code>.
+       *
+       * @param progress
+       *    the progress to count the completed files in, cannot be
+       *    <code>null</code>.
+       */
+      Totals(Progress progress) {
+         _progress = progress;
       }
 
-      // Create a watch dog, if a time-out is configured
-      ExecuteWatchdog watchdog = (_timeOut > 0L) ? new ExecuteWatchdog(_timeOut) : null;
+      /**
+       * The progress of the execution, never <code>null</code>.
+       */
+      final Progress _progress;
+
+      int  _failedCount, _processCount, _copyCount, _skippedCount, _cacheHitCount, _preflightCount, _keptCount, _dedupCount;
+      int  _timeOutCount, _retryCount, _deadlineCount;
+      long _bytesIn, _bytesOut, _dedupBytes;
 
-      // Prepare for command execution
-      ByteArrayOutputStream    outAndErr = new ByteArrayOutputStream();
-      ExecuteStreamHandler streamHandler = new PumpStreamHandler(outAndErr);
-      Execute                    execute = new Execute(streamHandler, watchdog);
-      String[]                   cmdline = new String[] { command };
+      /**
+       * The number of files quantized at each speed, to fit the time budget.
+       */
+      final int[] _speedCounts = new int[12];
 
-      initExecute(execute, cmdline);
+      /**
+       * The latencies of all files that were not skipped.
+       */
+      final LatencyHistogram _latencies = new LatencyHistogram();
 
-      // Attempt command execution
-      Throwable caught;
-      try {
-         execute.execute();
-         caught = null;
-      } catch (Throwable e) {
-         caught = e;
-      }
-
-      // Executing the command triggered an exception
-      boolean commandAvailable;
-      if (caught != null) {
-         String message = "Unable to execute command " + quote(command) + '.';
-         if (processOption == ProcessOption.MUST) {
-            throw new BuildException(message, caught);
-         } else {
-            log(message, MSG_ERR);
-            commandAvailable = false;
-         }
-
-      // Executing the command resulted in a exit code other than 0 or 1,
-      // indicating failure
-      // NOTE: There is no way to determine the version of pngquant without
-      //       pngquant returning 1 from the command, d'oh
-      } else if (execute.getExitValue() != 0 && execute.getExitValue() != 1) {
-         String message = "Unable to execute command " + quote(command) + ". Running '" + command + "' resulted in exit code " + execute.getExitValue() + '.';
-         if (processOption == ProcessOption.MUST) {
-            throw new BuildException(message);
-         } else {
-            log(message, MSG_ERR);
-            commandAvailable = false;
+      /**
+       * The paths of the files that failed.
+       */
+      final Set<String> _failedPaths = new HashSet<String>();
+
+      /**
+       * Adds the specified result to the totals and writes the metrics for
+       * each file to the specified report, if any.
+       */
+      void add(FileResult result, ReportWriter report) throws IOException {
+         _failedCount    += result._failedCount;
+         _processCount   += result._processCount;
+         _copyCount      += result._copyCount;
+         _skippedCount   += result._skippedCount;
+         _cacheHitCount  += result._cacheHitCount;
+         _preflightCount += result._preflightCount;
+         _keptCount      += result._keptCount;
+         _dedupCount     += result._dedupCount;
+         _timeOutCount   += result._timeOutCount;
+         _retryCount     += result._retryCount;
+         _deadlineCount  += result._deadlineCount;
+         for (int speed = 0; speed < _speedCounts.length; speed++) {
+            _speedCounts[speed] += result._speedCounts[speed];
+         }
+         for (FileRecord record : result._records) {
+            _progress.completed(record);
+            if (! FileRecord.SKIPPED.equals(record._action)) {
+               _latencies.record(record._wallTime);
+            }
+            if (FileRecord.PROCESSED.equals(record._action)) {
+               _bytesIn  += record._inputBytes;
+               _bytesOut += record._outputBytes;
+            } else if (FileRecord.DEDUPLICATED.equals(record._action)) {
+               _dedupBytes += record._inputBytes;
+            } else if (FileRecord.FAILED.equals(record._action)) {
+               _failedPaths.add(record._path);
+            }
+            if (report != null) {
+               report.write(record);
+            }
          }
+      }
 
-      // Command was executed successfully
-      // NOTE: The version information is sent to stderr instead of stdout,
-      //       there seems to be no way in pngquant 1.0 to change this, d'oh
-      } else {
-         Pattern pattern = Pattern.compile("^[^0-9]*([0-9]+(\\.[0-9]+)*)");
-         Matcher matcher = pattern.matcher(outAndErr.toString());
-         if (! matcher.find()) {
-            log("Unable to execute command " + quote(command) + ". No version output found (on stderr) when running the command without arguments.", MSG_ERR);
-            commandAvailable = false;
-         } else {
-            String version = quote(matcher.group(1));
-            log("Using command " + quote(command) + ", version is " + version + '.', MSG_VERBOSE);
-            commandAvailable = true;
+      /**
+       * Describes the totals, if no files failed.
+       */
+      String message(long duration) {
+         String message = "" + _processCount + " file(s) processed and " + _copyCount + " file(s) copied in " + duration + " ms; " + _skippedCount + " file(s) skipped.";
+         if (_preflightCount > 0 || _keptCount > 0) {
+            message += " Of the copied files " + _preflightCount + " were already quantized and for " + _keptCount + " the output was not smaller.";
+         }
+         if (_dedupCount > 0) {
+            message += " Linked " + _dedupCount + " duplicate file(s) to the output of an identical file, saving " + _dedupCount + " invocation(s) on " + _dedupBytes + " byte(s).";
          }
+         return message + delays() + speeds();
       }
 
-      return commandAvailable;
-   }
+      /**
+       * Describes the time-outs, retries and missed deadlines, if any.
+       */
+      private String delays() {
+         if (_timeOutCount == 0 && _retryCount == 0 && _deadlineCount == 0) {
+            return "";
+         }
+         return " " + _timeOutCount + " command(s) timed out; " + _retryCount + " command(s) retried; " + _deadlineCount + " file(s) not processed before the deadline.";
+      }
 
+      /**
+       * Describes the speeds chosen to fit the time budget, if any.
+       */
+      private String speeds() {
+         String message = "";
+         for (int speed = 0; speed < _speedCounts.length; speed++) {
+            if (_speedCounts[speed] > 0) {
+               message += (message.length() == 0 ? " To fit the time budget, quantized " : ", ") + _speedCounts[speed] + " file(s) at speed " + speed;
+            }
+         }
+         return message.length() == 0 ? "" : message + '.';
+      }
 
-   //-------------------------------------------------------------------------
-   // Inner classes
-   //-------------------------------------------------------------------------
+      /**
+       * Describes the totals, if at least one file failed.
+       */
+      String failureMessage(long duration) {
+         return "" + _failedCount + " file(s) failed to be processed and/or copied; " + _processCount + " file(s) processed; " + _copyCount + " file(s) copied; " + _skippedCount + " file(s) skipped. Total duration is " + duration + " ms." + delays() + speeds();
+      }
+   }
 
    /**
-    * Enumeration type for the different process options.
+    * The result of processing a single file: the counters and the log
+    * messages. The messages are buffered so that the output for different
+    * files does not interleave.
     *
     * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
     */
-   private enum ProcessOption {
+   private final class FileResult implements Quantizer.Listener {
 
       /**
-       * Force processing: if the command is unavailable or fails to execute
-       * successfully, then this task will fail.
+       * The buffered log messages, never <code>null</code>.
        */
-      MUST,
-         
+      private final List<String> _messages = new ArrayList<String>();
+
       /**
-       * Skip processing completely: just copy the files.
+       * The log levels of the buffered messages, never <code>null</code>.
        */
-      MUST_NOT,
+      private final List<Integer> _levels = new ArrayList<Integer>();
 
       /**
-       * Attempt processing, but fallback to copying if processing fails.
-       * The task will only fail if the copying also fails to succeed.
+       * The metrics for each file, never <code>null</code>.
        */
-      SHOULD;
+      final List<FileRecord> _records = new ArrayList<FileRecord>();
+
+      int _failedCount, _processCount, _copyCount, _skippedCount, _cacheHitCount, _preflightCount, _keptCount, _dedupCount;
+
+      /**
+       * The number of commands that timed out, the number of retries to
+       * start a command and the number of files not processed before the
+       * deadline. The first two are updated by concurrent trials.
+       */
+      int _timeOutCount, _retryCount, _deadlineCount;
+
+      /**
+       * The number of files quantized at each speed, to fit the time budget.
+       */
+      final int[] _speedCounts = new int[12];
+
+      /**
+       * The number of optimization jobs submitted while producing this
+       * result; each produces a result of its own.
+       */
+      int _optimizations;
+
+      /**
+       * Adds the metrics for a single file.
+       */
+      void record(FileRecord record) {
+         _records.add(record);
+      }
+
+      /**
+       * Counts a command that timed out.
+       */
+      public synchronized void timedOut() {
+         _timeOutCount++;
+      }
+
+      /**
+       * Counts a retry to start a command.
+       */
+      public synchronized void retried() {
+         _retryCount++;
+      }
+
+      /**
+       * Buffers a verbose log message.
+       */
+      public void log(String message) {
+         log(message, MSG_VERBOSE);
+      }
+
+      /**
+       * Buffers a log message.
+       */
+      synchronized void log(String message, int level) {
+         _messages.add(message);
+         _levels.add(level);
+      }
+
+      /**
+       * Logs all buffered messages. Must be called from the thread that
+       * executes the task.
+       */
+      void flushLog() {
+         for (int i = 0; i < _messages.size(); i++) {
+            PngquantTask.this.log(_messages.get(i), _levels.get(i));
+         }
+      }
    }
 }
@@ -0,0 +1,323 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The progress of a running {@link PngquantTask}, exposed as an MBean.
+ *
+ * <p>The worker threads only update the counters for files being started
+ * and ended, which are {@link LongAdder}s, so they do not contend. All
+ * other updates are made by the thread that collects the results. The
+ * latencies are kept in two {@link LatencyHistogram}s, for the current and
+ * the previous window of {@value #WINDOW} ms, guarded by this object.
+ *
+ * <p>Instances of this class can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Progress implements ProgressMBean {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The domain of the MBean names.
+    */
+   static final String DOMAIN = "com.pensioenpage.jynx.pngquant";
+
+   /**
+    * The duration of a window for the rate and the latencies, in
+    * milliseconds.
+    */
+   static final long WINDOW = 60000L;
+
+   /**
+    * The number of instances registered so far, to make the names unique.
+    */
+   private static final AtomicInteger REGISTERED = new AtomicInteger();
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Progress</code>.
+    *
+    * @param sourceDir
+    *    the path of the source directory, cannot be <code>null</code>.
+    */
+   Progress(String sourceDir) {
+      _sourceDir     = sourceDir;
+      _start         = System.currentTimeMillis();
+      _windowStart   = _start;
+      _previousStart = _start;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   private final String _sourceDir;
+   private final long   _start;
+
+   /**
+    * The number of files submitted, started and ended by the workers.
+    */
+   private final LongAdder _queued  = new LongAdder(),
+                           _started = new LongAdder(),
+                           _ended   = new LongAdder();
+
+   /**
+    * The number of files completed, by outcome, and the byte totals.
+    */
+   private final LongAdder _done      = new LongAdder(),
+                           _processed = new LongAdder(),
+                           _failed    = new LongAdder(),
+                           _copied    = new LongAdder(),
+                           _skipped   = new LongAdder(),
+                           _bytesIn   = new LongAdder(),
+                           _bytesOut  = new LongAdder();
+
+   /**
+    * The latencies in the current and the previous window, and the start
+    * of these windows. Guarded by this object.
+    */
+   private LatencyHistogram _current  = new LatencyHistogram(),
+                            _previous = new LatencyHistogram();
+   private long             _windowStart, _previousStart;
+
+   /**
+    * The name this instance is registered under, or <code>null</code> if it
+    * is not registered.
+    */
+   private ObjectName _name;
+
+   /**
+    * The time the next progress line is due. Used by the collecting thread
+    * only.
+    */
+   private long _nextLine;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Registers this instance with the platform MBean server.
+    *
+    * @throws JMException
+    *    if the registration failed.
+    */
+   void register() throws JMException {
+      ObjectName name = new ObjectName(DOMAIN + ":type=" + PngquantTask.class.getSimpleName()
+                                     + ",id=" + REGISTERED.incrementAndGet()
+                                     + ",dir=" + ObjectName.quote(_sourceDir));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, ProgressMBean.class), name);
+      _name = name;
+   }
+
+   /**
+    * Unregisters this instance, if it is registered.
+    *
+    * @throws JMException
+    *    if the unregistration failed.
+    */
+   void unregister() throws JMException {
+      if (_name != null) {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName    name = _name;
+         _name = null;
+         server.unregisterMBean(name);
+      }
+   }
+
+   /**
+    * Counts files submitted to the workers.
+    */
+   void queued(int count) {
+      _queued.add(count);
+   }
+
+   /**
+    * Counts files started by a worker.
+    */
+   void started(int count) {
+      _started.add(count);
+   }
+
+   /**
+    * Counts files ended by a worker.
+    */
+   void ended(int count) {
+      _ended.add(count);
+   }
+
+   /**
+    * Counts a completed file. Called by the collecting thread.
+    */
+   void completed(FileRecord record) {
+      _done.increment();
+      if (FileRecord.PROCESSED.equals(record._action)) {
+         _processed.increment();
+         _bytesIn.add(record._inputBytes);
+         _bytesOut.add(record._outputBytes);
+      } else if (FileRecord.COPIED.equals(record._action) || FileRecord.DEDUPLICATED.equals(record._action)) {
+         _copied.increment();
+      } else if (FileRecord.SKIPPED.equals(record._action)) {
+         _skipped.increment();
+         return;
+      } else if (FileRecord.FAILED.equals(record._action)) {
+         _failed.increment();
+      }
+      synchronized (this) {
+         rotate(System.currentTimeMillis());
+         _current.record(record._wallTime);
+      }
+   }
+
+   /**
+    * Starts a new window, if the current one has passed. If more than a
+    * complete window has passed, the previous window is empty.
+    */
+   private void rotate(long now) {
+      if (now - _windowStart >= WINDOW) {
+         if (now - _windowStart < 2L * WINDOW) {
+            _previous      = _current;
+            _previousStart = _windowStart;
+         } else {
+            _previous      = new LatencyHistogram();
+            _previousStart = now - WINDOW;
+         }
+         _current     = new LatencyHistogram();
+         _windowStart = now;
+      }
+   }
+
+   /**
+    * Combines the latencies of the current and the previous window.
+    */
+   private synchronized LatencyHistogram latencies() {
+      rotate(System.currentTimeMillis());
+      LatencyHistogram latencies = new LatencyHistogram();
+      latencies.add(_previous);
+      latencies.add(_current);
+      return latencies;
+   }
+
+   /**
+    * Determines if a progress line is due, and if so, when the next one
+    * is. Called by the collecting thread.
+    *
+    * @param interval
+    *    the interval between progress lines, in milliseconds, or 0 (or
+    *    lower) if no progress lines should be logged.
+    */
+   boolean lineDue(long interval) {
+      long now = System.currentTimeMillis();
+      if (interval <= 0L || now < _nextLine) {
+         return false;
+      }
+      boolean due = _nextLine > 0L;
+      _nextLine = now + interval;
+      return due;
+   }
+
+   /**
+    * Describes the progress, in a single line.
+    */
+   String describe() {
+      long remaining = getSecondsRemaining();
+      String message = "Progress: " + getFilesDone() + " file(s) done (" + getFilesProcessed() + " processed, "
+                      + getFilesCopied() + " copied, " + getFilesSkipped() + " skipped, " + getFilesFailed() + " failed), "
+                      + getFilesInFlight() + " in flight, " + getFilesQueued() + " queued; "
+                      + String.format(Locale.US, "%.1f", getFilesPerSecond()) + " file(s)/s";
+      return message + (remaining < 0L ? "." : ", about " + remaining + " s remaining.");
+   }
+
+   public String getSourceDirectory() {
+      return _sourceDir;
+   }
+
+   public long getElapsedMillis() {
+      return System.currentTimeMillis() - _start;
+   }
+
+   public long getFilesQueued() {
+      return Math.max(0L, _queued.sum() - _started.sum());
+   }
+
+   public long getFilesInFlight() {
+      return Math.max(0L, _started.sum() - _ended.sum());
+   }
+
+   public long getFilesDone() {
+      return _done.sum();
+   }
+
+   public long getFilesProcessed() {
+      return _processed.sum();
+   }
+
+   public long getFilesFailed() {
+      return _failed.sum();
+   }
+
+   public long getFilesCopied() {
+      return _copied.sum();
+   }
+
+   public long getFilesSkipped() {
+      return _skipped.sum();
+   }
+
+   public long getBytesIn() {
+      return _bytesIn.sum();
+   }
+
+   public long getBytesOut() {
+      return _bytesOut.sum();
+   }
+
+   public double getFilesPerSecond() {
+      long count, duration;
+      synchronized (this) {
+         long now = System.currentTimeMillis();
+         rotate(now);
+         count    = _previous.count() + _current.count();
+         duration = now - _previousStart;
+      }
+      return duration <= 0L ? 0.0 : count * 1000.0 / duration;
+   }
+
+   public long getSecondsRemaining() {
+      double rate = getFilesPerSecond();
+      if (rate <= 0.0) {
+         return -1L;
+      }
+      return (long) Math.ceil((getFilesQueued() + getFilesInFlight()) / rate);
+   }
+
+   public long getLatencyP50() {
+      return latencies().percentile(50.0);
+   }
+
+   public long getLatencyP95() {
+      return latencies().percentile(95.0);
+   }
+
+   public long getLatencyP99() {
+      return latencies().percentile(99.0);
+   }
+}
@@ -0,0 +1,100 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+/**
+ * Management interface for the progress of a running {@link PngquantTask}.
+ * An instance is registered with the platform MBean server while the task
+ * executes, under the domain <code>com.pensioenpage.jynx.pngquant</code>.
+ *
+ * <p>The rate, the estimated time remaining and the latency percentiles
+ * are based on the files completed during the last one to two minutes.
+ * Skipped files are not taken into account for these.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public interface ProgressMBean {
+
+   /**
+    * Returns the source directory, never <code>null</code>.
+    */
+   String getSourceDirectory();
+
+   /**
+    * Returns the time since the task started executing, in milliseconds.
+    */
+   long getElapsedMillis();
+
+   /**
+    * Returns the number of files submitted, but not yet started.
+    */
+   long getFilesQueued();
+
+   /**
+    * Returns the number of files being processed.
+    */
+   long getFilesInFlight();
+
+   /**
+    * Returns the number of files completed, whatever the outcome.
+    */
+   long getFilesDone();
+
+   /**
+    * Returns the number of files processed.
+    */
+   long getFilesProcessed();
+
+   /**
+    * Returns the number of files that failed to be processed and/or
+    * copied.
+    */
+   long getFilesFailed();
+
+   /**
+    * Returns the number of files copied unchanged, including the outputs
+    * of duplicates.
+    */
+   long getFilesCopied();
+
+   /**
+    * Returns the number of files skipped, because their output was
+    * up-to-date.
+    */
+   long getFilesSkipped();
+
+   /**
+    * Returns the total size of the files processed, in bytes.
+    */
+   long getBytesIn();
+
+   /**
+    * Returns the total size of the output of the files processed, in bytes.
+    */
+   long getBytesOut();
+
+   /**
+    * Returns the current number of files completed per second.
+    */
+   double getFilesPerSecond();
+
+   /**
+    * Returns the estimated time until all files submitted so far are
+    * completed, in seconds, or -1 if it cannot be estimated yet.
+    */
+   long getSecondsRemaining();
+
+   /**
+    * Returns the median duration of a file, in milliseconds.
+    */
+   long getLatencyP50();
+
+   /**
+    * Returns the 95th percentile of the duration of a file, in milliseconds.
+    */
+   long getLatencyP95();
+
+   /**
+    * Returns the 99th percentile of the duration of a file, in milliseconds.
+    */
+   long getLatencyP99();
+}
@@ -0,0 +1,1598 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Quantizes individual PNG images, either by executing pngquant or
+ * in-process, using the {@link JavaQuantizer}. This class has no
+ * dependencies on Ant, so it can be embedded in other applications, for
+ * example to quantize uploaded images at runtime; see
+ * {@link QuantizerServer}. The {@link PngquantTask} uses it for each file.
+ *
+ * <p>For files, {@link #process(File,File,long,Listener)} applies the
+ * complete pipeline: with the pre-flight checks, images that already have
+ * few enough colors are kept as they are, and so are images for which the
+ * output is not smaller; the output is always checked to be a valid PNG
+ * image. Files can also be processed in batches, with a single invocation
+ * of the command, with a search for the number of colors, or with a
+ * palette shared by a group of images. For images in memory,
+ * {@link #quantize(byte[])} applies the same pipeline, always with the
+ * pre-flight checks, and if quantization fails the original is returned
+ * instead.
+ *
+ * <p>Commands are executed without any threads of their own: stdout is
+ * discarded or written to a file, stderr is read by the calling thread, up
+ * to {@value #MAX_ERROR_OUTPUT} bytes, and time-outs are enforced by a
+ * single scheduler thread shared by all invocations.
+ *
+ * <p>Instances of this class are immutable and can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class Quantizer {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The delay before the first retry when the command could not be
+    * started, in milliseconds. The delay doubles with each retry.
+    */
+   static final long RETRY_DELAY = 100L;
+
+   /**
+    * The maximum number of bytes of error output kept per invocation of the
+    * command; the remainder is read and discarded.
+    */
+   static final int MAX_ERROR_OUTPUT = 8192;
+
+   /**
+    * Factory for the daemon threads created by this class.
+    */
+   private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+      private final AtomicInteger _count = new AtomicInteger();
+      public Thread newThread(Runnable runnable) {
+         Thread thread = new Thread(runnable, Quantizer.class.getSimpleName() + '-' + _count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   };
+
+   /**
+    * The scheduler that kills commands that time out, shared by all
+    * invocations.
+    */
+   private static final ScheduledThreadPoolExecutor KILLER = new ScheduledThreadPoolExecutor(1, DAEMON_THREADS);
+   static {
+      KILLER.setRemoveOnCancelPolicy(true);
+   }
+
+   /**
+    * The pattern that extracts the version from the output of the command.
+    */
+   private static final Pattern VERSION_PATTERN = Pattern.compile("^[^0-9]*([0-9]+(\\.[0-9]+)*)");
+
+   /**
+    * Listener that ignores all events.
+    */
+   private static final Listener NO_LISTENER = new Listener() {
+      public void log(String message) {
+         // empty
+      }
+      public void retried() {
+         // empty
+      }
+      public void timedOut() {
+         // empty
+      }
+   };
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Creates a temporary copy of the specified input file, for the command
+    * to process. The name of the copy ends in <code>".png"</code>.
+    *
+    * @throws IOException
+    *    if the temporary file could not be created.
+    */
+   static File tempCopy(File inFile) throws IOException {
+      File tempInFile = null;
+      try {
+         tempInFile = File.createTempFile(Quantizer.class.getSimpleName(), ".png");
+         FileLinker.copy(inFile, tempInFile);
+      } catch (IOException exception) {
+         if (tempInFile != null) {
+            tempInFile.delete();
+         }
+         throw new IOException("Failed to create temporary input file.");
+      }
+      return tempInFile;
+   }
+
+   private static void write(byte[] data, File file) throws IOException {
+      OutputStream out = new FileOutputStream(file);
+      try {
+         out.write(data);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Copies an output file into place. If that fails, the target is
+    * deleted.
+    *
+    * @throws IOException
+    *    if the file could not be copied.
+    */
+   private static void copy(File from, File to) throws IOException {
+      try {
+         FileLinker.copy(from, to);
+      } catch (IOException exception) {
+         delete(to);
+         throw new IOException("Failed to copy \"" + from.getPath() + "\" to \"" + to.getPath() + "\".");
+      }
+   }
+
+   /**
+    * Creates a temporary file in the directory of the specified output
+    * file, creating that directory if needed. Its name ends in
+    * <code>".tmp"</code>, so it is not taken for an image.
+    *
+    * @throws IOException
+    *    if the temporary file could not be created.
+    */
+   private static File tempFile(File outFile) throws IOException {
+      File outDir = outFile.getAbsoluteFile().getParentFile();
+      if (! outDir.isDirectory() && ! outDir.mkdirs()) {
+         throw new IOException("Failed to create directory \"" + outDir.getPath() + "\".");
+      }
+      try {
+         return File.createTempFile('.' + Quantizer.class.getSimpleName(), ".tmp", outDir);
+      } catch (IOException exception) {
+         throw new IOException("Failed to create temporary output file in \"" + outDir.getPath() + "\".");
+      }
+   }
+
+   /**
+    * Atomically replaces the output file by a temporary file created with
+    * {@link #tempFile(File)}, so that readers never see a partially written
+    * output file. If that fails, the output file is left as it was.
+    *
+    * @throws IOException
+    *    if the temporary file could not be moved.
+    */
+   private static void moveIntoPlace(File tempFile, File outFile) throws IOException {
+      try {
+         Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException exception) {
+         throw new IOException("Failed to rename \"" + tempFile.getPath() + "\" to \"" + outFile.getPath() + "\".");
+      }
+   }
+
+   /**
+    * Copies a file to a temporary file in the directory of the output file,
+    * which then replaces the output file, see
+    * {@link #moveIntoPlace(File,File)}.
+    *
+    * @throws IOException
+    *    if the file could not be copied.
+    */
+   private static void install(File from, File outFile) throws IOException {
+      File tempFile = tempFile(outFile);
+      try {
+         FileLinker.copy(from, tempFile);
+         moveIntoPlace(tempFile, outFile);
+      } catch (IOException exception) {
+         throw new IOException("Failed to copy \"" + from.getPath() + "\" to \"" + outFile.getPath() + "\".");
+      } finally {
+         delete(tempFile);
+      }
+   }
+
+   private static void delete(File file) {
+      if (file != null) {
+         file.delete();
+      }
+   }
+
+   /**
+    * Creates an executor that runs each task in a new virtual thread, if
+    * the runtime supports them (Java 21 or later), and otherwise in a pooled
+    * daemon thread.
+    */
+   static ExecutorService newExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException exception) {
+         return Executors.newCachedThreadPool(DAEMON_THREADS);
+      }
+   }
+
+   /**
+    * Describes the specified command line, for logging.
+    */
+   private static String describe(String[] cmdline) {
+      StringBuilder description = new StringBuilder(cmdline[0]);
+      for (int i = 1; i < cmdline.length; i++) {
+         description.append(' ').append(cmdline[i]);
+      }
+      return "Command line: \"" + description + "\".";
+   }
+
+   /**
+    * Waits for the specified process to finish, reading its output in the
+    * calling thread. The process and its descendants are killed by the
+    * shared scheduler if it takes longer than the time-out, which also ends
+    * its output.
+    *
+    * @param in
+    *    the output of the process, cannot be <code>null</code>.
+    *
+    * @param out
+    *    the stream to copy the first {@value #MAX_ERROR_OUTPUT} bytes of the
+    *    output to, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the process finished,
+    *    <code>false</code> if it was killed.
+    */
+   private static boolean waitFor(final Process process, InputStream in, OutputStream out, long timeOut)
+   throws IOException {
+      final AtomicBoolean killed = new AtomicBoolean();
+      ScheduledFuture<?>  killer = null;
+      if (timeOut > 0L) {
+         killer = KILLER.schedule(new Runnable() {
+            public void run() {
+               if (process.isAlive()) {
+                  killed.set(true);
+
+                  // Kill any child processes as well, since these may keep
+                  // the output open
+                  Iterator<ProcessHandle> descendants = process.descendants().iterator();
+                  while (descendants.hasNext()) {
+                     descendants.next().destroyForcibly();
+                  }
+                  process.destroyForcibly();
+               }
+            }
+         }, timeOut, TimeUnit.MILLISECONDS);
+      }
+
+      try {
+         byte[] buffer = new byte[4096];
+         long    total = 0L;
+         try {
+            for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+               if (total < MAX_ERROR_OUTPUT) {
+                  out.write(buffer, 0, (int) Math.min(count, MAX_ERROR_OUTPUT - total));
+               }
+               total += count;
+            }
+         } catch (IOException exception) {
+            // the process was killed
+         } finally {
+            in.close();
+         }
+         process.waitFor();
+      } catch (InterruptedException exception) {
+         process.destroyForcibly();
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted.");
+      } finally {
+         if (killer != null) {
+            killer.cancel(false);
+         }
+      }
+      return ! killed.get();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Quantizer</code> that never streams images
+    * in-process.
+    *
+    * @param command
+    *    the pngquant command to execute, or <code>null</code> to quantize
+    *    in-process.
+    *
+    * @param numColors
+    *    the maximum number of colors, between 2 and 256.
+    *
+    * @param dithering
+    *    <code>true</code> for Floyd-Steinberg dithering,
+    *    <code>false</code> for ordered dithering.
+    *
+    * @param timeOut
+    *    the time-out for the command in milliseconds, or 0 (or lower) if no
+    *    time-out should be applied.
+    *
+    * @param retries
+    *    the number of times to retry starting the command, 0 or more.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>numColors &lt; 2 || numColors &gt; 256</code>.
+    */
+   public Quantizer(String command, int numColors, boolean dithering, long timeOut, int retries)
+   throws IllegalArgumentException {
+      this(command, numColors, dithering, timeOut, retries, Long.MAX_VALUE);
+   }
+
+   /**
+    * Constructs a new <code>Quantizer</code>.
+    *
+    * @param command
+    *    the pngquant command to execute, or <code>null</code> to quantize
+    *    in-process.
+    *
+    * @param numColors
+    *    the maximum number of colors, between 2 and 256.
+    *
+    * @param dithering
+    *    <code>true</code> for Floyd-Steinberg dithering,
+    *    <code>false</code> for ordered dithering.
+    *
+    * @param timeOut
+    *    the time-out for the command in milliseconds, or 0 (or lower) if no
+    *    time-out should be applied.
+    *
+    * @param retries
+    *    the number of times to retry starting the command, 0 or more.
+    *
+    * @param streamingPixels
+    *    the minimum number of pixels for an image to be streamed row by row
+    *    when it is quantized in-process; 0 to stream all images and
+    *    <code>Long.MAX_VALUE</code> to stream none.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>numColors &lt; 2 || numColors &gt; 256</code>.
+    */
+   public Quantizer(String command, int numColors, boolean dithering, long timeOut, int retries, long streamingPixels)
+   throws IllegalArgumentException {
+      _command   = command;
+      _numColors = numColors;
+      _dithering = dithering;
+      _timeOut   = Math.max(0L, timeOut);
+      _retries   = Math.max(0, retries);
+      _java            = (command == null) ? new JavaQuantizer(numColors, dithering, streamingPixels) : null;
+      _streamingPixels = streamingPixels;
+      _speed           = 0;
+      _quality         = null;
+      _posterize       = -1;
+      _preflight       = false;
+      _streaming       = false;
+      _search          = null;
+      _trials          = null;
+   }
+
+   /**
+    * Constructs a copy of the specified <code>Quantizer</code>, with other
+    * options.
+    */
+   private Quantizer(Quantizer original, int speed, String quality, int posterize, boolean preflight,
+                     boolean streaming, ColorSearch search, ExecutorService trials) {
+      _command         = original._command;
+      _numColors       = original._numColors;
+      _dithering       = original._dithering;
+      _timeOut         = original._timeOut;
+      _retries         = original._retries;
+      _java            = original._java;
+      _streamingPixels = original._streamingPixels;
+      _speed           = speed;
+      _quality         = quality;
+      _posterize       = posterize;
+      _preflight       = preflight;
+      _streaming       = streaming;
+      _search          = search;
+      _trials          = trials;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The command to execute, or <code>null</code> if images are quantized
+    * in-process.
+    */
+   private final String _command;
+
+   /**
+    * The maximum number of colors, between 2 and 256.
+    */
+   private final int _numColors;
+
+   /**
+    * Flag that indicates if Floyd-Steinberg dithering should be used.
+    */
+   private final boolean _dithering;
+
+   /**
+    * The time-out for the command, in milliseconds, or 0 if there is none.
+    */
+   private final long _timeOut;
+
+   /**
+    * The number of times to retry starting the command.
+    */
+   private final int _retries;
+
+   /**
+    * The in-process quantizer, or <code>null</code> if the command is
+    * executed.
+    */
+   private final JavaQuantizer _java;
+
+   /**
+    * The minimum number of pixels for an image to be streamed row by row
+    * when it is quantized in-process.
+    */
+   private final long _streamingPixels;
+
+   /**
+    * The speed/quality trade-off for the command, between 1 (slowest) and
+    * 11 (fastest), or 0 for the default of the command.
+    */
+   private final int _speed;
+
+   /**
+    * The quality range for the command, as <code>"min-max"</code>, or
+    * <code>null</code> for the default of the command.
+    */
+   private final String _quality;
+
+   /**
+    * The number of least significant bits to ignore per color channel,
+    * between 0 and 4, or -1 for the default of the command.
+    */
+   private final int _posterize;
+
+   /**
+    * Flag that indicates if the pre-flight checks are applied to files.
+    */
+   private final boolean _preflight;
+
+   /**
+    * Flag that indicates if files are piped through the command.
+    */
+   private final boolean _streaming;
+
+   /**
+    * The color search, or <code>null</code> if each file is quantized to
+    * the configured number of colors.
+    */
+   private final ColorSearch _search;
+
+   /**
+    * The executor for the trials of the color search, or <code>null</code>
+    * if there is no color search.
+    */
+   private final ExecutorService _trials;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns a <code>Quantizer</code> like this one, that passes the
+    * specified options to the command. These options require pngquant 2
+    * or later and are ignored when quantizing in-process.
+    *
+    * @param speed
+    *    the speed/quality trade-off, between 1 (slowest, best quality) and
+    *    11 (fastest), or 0 for the default of the command.
+    *
+    * @param quality
+    *    the quality range, as <code>"min-max"</code> with both between 0
+    *    and 100; if the minimum cannot be met, the command fails. Use
+    *    <code>null</code> for the default of the command.
+    *
+    * @param posterize
+    *    the number of least significant bits to ignore per color channel,
+    *    between 0 and 4, or -1 for the default of the command.
+    *
+    * @return
+    *    the new <code>Quantizer</code>, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if any of the options is out of range.
+    */
+   public Quantizer withOptions(int speed, String quality, int posterize) throws IllegalArgumentException {
+      if (speed < 0 || speed > 11) {
+         throw new IllegalArgumentException("Speed (" + speed + ") should be between 1 and 11, or 0 for the default.");
+      } else if (quality != null && ! quality.matches("[0-9]{1,3}(-[0-9]{1,3})?")) {
+         throw new IllegalArgumentException("Quality (\"" + quality + "\") should be \"min-max\", with both between 0 and 100.");
+      } else if (posterize < -1 || posterize > 4) {
+         throw new IllegalArgumentException("Posterize (" + posterize + ") should be between 0 and 4.");
+      }
+      return new Quantizer(this, speed, quality, posterize, _preflight, _streaming, _search, _trials);
+   }
+
+   /**
+    * Returns a <code>Quantizer</code> like this one, with another speed.
+    *
+    * @param speed
+    *    the speed/quality trade-off, between 1 (slowest, best quality) and
+    *    11 (fastest), or 0 for the default of the command.
+    *
+    * @return
+    *    the new <code>Quantizer</code>, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if the speed is out of range.
+    */
+   public Quantizer withSpeed(int speed) throws IllegalArgumentException {
+      return withOptions(speed, _quality, _posterize);
+   }
+
+   /**
+    * Returns a <code>Quantizer</code> like this one, that does or does not
+    * apply the pre-flight checks to files: images that already have at
+    * most the configured number of colors are kept as they are, and so
+    * are images for which the output is not smaller. By default, these
+    * checks are not applied to files.
+    *
+    * @param preflight
+    *    <code>true</code> if the pre-flight checks should be applied.
+    *
+    * @return
+    *    the new <code>Quantizer</code>, never <code>null</code>.
+    */
+   public Quantizer withPreflight(boolean preflight) {
+      return new Quantizer(this, _speed, _quality, _posterize, preflight, _streaming, _search, _trials);
+   }
+
+   /**
+    * Returns a <code>Quantizer</code> like this one, that does or does not
+    * pipe files through the command; see
+    * {@link #quantizeStreaming(File,File,long,Listener)}.
+    *
+    * @param streaming
+    *    <code>true</code> if files should be piped through the command.
+    *
+    * @return
+    *    the new <code>Quantizer</code>, never <code>null</code>.
+    */
+   public Quantizer withStreaming(boolean streaming) {
+      return new Quantizer(this, _speed, _quality, _posterize, _preflight, streaming, _search, _trials);
+   }
+
+   /**
+    * Returns a <code>Quantizer</code> like this one, that quantizes each
+    * file with each of the candidate color counts of the specified color
+    * search, in parallel, and keeps the smallest output that meets the
+    * target.
+    *
+    * @param search
+    *    the color search, or <code>null</code> for none.
+    *
+    * @param trials
+    *    the executor to run the trials on, cannot be <code>null</code> if
+    *    <code>search != null</code>.
+    *
+    * @return
+    *    the new <code>Quantizer</code>, never <code>null</code>.
+    */
+   Quantizer withSearch(ColorSearch search, ExecutorService trials) {
+      return new Quantizer(this, _speed, _quality, _posterize, _preflight, _streaming, search, trials);
+   }
+
+   /**
+    * Determines if files can be processed in batches, with a single
+    * invocation of the command. This is only the case when executing the
+    * command, without streaming and without a color search.
+    *
+    * @return
+    *    <code>true</code> if {@link #processBatch(File[],File[],long,Listener)}
+    *    processes files in batches, <code>false</code> if it leaves all
+    *    files to be processed individually.
+    */
+   public boolean supportsBatches() {
+      return _java == null && ! _streaming && _search == null;
+   }
+
+   /**
+    * Determines the version of the quantizer, by running the command
+    * without arguments. For in-process quantization, this is the version of
+    * the algorithm.
+    *
+    * @return
+    *    the version, or <code>null</code> if the command ran but did not
+    *    report a version.
+    *
+    * @throws IOException
+    *    if the command could not be executed, if it timed out or if it
+    *    exited with a code other than 0 or 1.
+    */
+   public String version() throws IOException {
+      if (_java != null) {
+         return JavaQuantizer.VERSION;
+      }
+
+      ProcessBuilder builder = new ProcessBuilder(_command);
+      builder.redirectErrorStream(true);
+      Process process = builder.start();
+      process.getOutputStream().close();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      if (! waitFor(process, process.getInputStream(), output, _timeOut)) {
+         throw new IOException("Timed out after " + _timeOut + " ms.");
+      }
+
+      // NOTE: There is no way to determine the version of pngquant without
+      //       pngquant returning 1 from the command, d'oh
+      int exitCode = process.exitValue();
+      if (exitCode != 0 && exitCode != 1) {
+         throw new IOException("Running '" + _command + "' resulted in exit code " + exitCode + '.');
+      }
+
+      // NOTE: The version information is sent to stderr instead of stdout,
+      //       there seems to be no way in pngquant 1.0 to change this, d'oh
+      Matcher matcher = VERSION_PATTERN.matcher(output.toString());
+      return matcher.find() ? matcher.group(1) : null;
+   }
+
+   /**
+    * Quantizes a PNG image in memory, applying the complete pipeline,
+    * including the pre-flight checks. The original image is returned if it
+    * already has at most the configured number of colors, if the output is
+    * not smaller, or if quantization fails.
+    *
+    * @param png
+    *    the PNG image, cannot be <code>null</code>.
+    *
+    * @return
+    *    the result, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the image is not a valid PNG image, or if it could not be
+    *    written to a temporary file.
+    */
+   public Result quantize(byte[] png) throws IOException {
+      File  inFile = File.createTempFile(Quantizer.class.getSimpleName(), ".png");
+      File outFile = null;
+      try {
+         write(png, inFile);
+         if (PngHeader.read(inFile) == null) {
+            throw new IOException("Not a PNG image.");
+         }
+
+         outFile = File.createTempFile(Quantizer.class.getSimpleName(), ".png");
+         Result result;
+         try {
+            result = process(inFile, outFile, _timeOut, NO_LISTENER, true);
+         } catch (IOException exception) {
+            return new Result(png, Result.COPIED, exception.getMessage(), -1);
+         }
+         if (! Result.PROCESSED.equals(result.getAction())) {
+            return new Result(png, result.getAction(), result.getMessage(), -1);
+         }
+         return new Result(Files.readAllBytes(outFile.toPath()), Result.PROCESSED, result.getMessage(), result.getColors());
+      } finally {
+         delete(outFile);
+         delete(inFile);
+      }
+   }
+
+   /**
+    * Quantizes a PNG image in memory, asynchronously. See
+    * {@link #quantize(byte[])}.
+    *
+    * @param png
+    *    the PNG image, cannot be <code>null</code>.
+    *
+    * @param executor
+    *    the executor to quantize on, cannot be <code>null</code>.
+    *
+    * @return
+    *    the future result, never <code>null</code>; completes exceptionally
+    *    with an <code>IOException</code> if the image is not a valid PNG
+    *    image.
+    */
+   public CompletableFuture<Result> quantizeAsync(final byte[] png, Executor executor) {
+      final CompletableFuture<Result> future = new CompletableFuture<Result>();
+      Runnable job = new Runnable() {
+         public void run() {
+            try {
+               future.complete(quantize(png));
+            } catch (Throwable exception) {
+               future.completeExceptionally(exception);
+            }
+         }
+      };
+      try {
+         executor.execute(job);
+      } catch (RuntimeException exception) {
+         future.completeExceptionally(exception);
+      }
+      return future;
+   }
+
+   /**
+    * Processes a PNG file, applying the complete pipeline: the pre-flight
+    * checks (if enabled, see {@link #withPreflight(boolean)}), quantization
+    * using the configured method and validation of the output. The output
+    * file is only written if the image is processed; if it is not, the
+    * caller decides what to do with the original, for example copy it.
+    *
+    * <p>The output is written to a temporary file in the directory of the
+    * output file, which is validated and only then renamed to the output
+    * file, atomically. So readers never see a partially written output
+    * file, and an existing output file (or, when processing in place, the
+    * input file) is left alone unless the new output is used.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>; may be the input file.
+    *
+    * @param timeOut
+    *    the time-out for the command in milliseconds, or 0 if there is
+    *    none.
+    *
+    * @param listener
+    *    the listener to notify, or <code>null</code>.
+    *
+    * @return
+    *    the result, never <code>null</code>; the action is
+    *    {@link Result#PROCESSED}, {@link Result#INDEXED} or
+    *    {@link Result#KEPT}, and the data is always <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be quantized or if the output is not a valid
+    *    PNG image, the message (if any) describes the error.
+    */
+   public Result process(File inFile, File outFile, long timeOut, Listener listener) throws IOException {
+      return process(inFile, outFile, timeOut, listener, _preflight);
+   }
+
+   private Result process(File inFile, File outFile, long timeOut, Listener listener, boolean preflight)
+   throws IOException {
+      listener = (listener == null) ? NO_LISTENER : listener;
+
+      // Keep images that are already quantized, judging from the header
+      Result indexed = preflight ? probe(inFile, listener) : null;
+      if (indexed != null) {
+         return indexed;
+      }
+
+      // The output is written to a temporary file next to the output file,
+      // which only replaces the output file once it is known to be used
+      long inLength = inFile.length();
+      File   output = tempFile(outFile);
+      try {
+         Result result;
+         if (_search != null) {
+            result = search(inFile, output, timeOut, listener);
+         } else {
+            if (_streaming && _java == null) {
+               pipe(inFile, output, timeOut, listener);
+            } else {
+               quantize(inFile, output, timeOut, listener);
+            }
+            result = new Result(null, Result.PROCESSED, null, _numColors);
+         }
+
+         result = validate(output, inLength, preflight, result);
+         if (Result.PROCESSED.equals(result.getAction())) {
+            moveIntoPlace(output, outFile);
+         }
+         return result;
+      } finally {
+         delete(output);
+      }
+   }
+
+   /**
+    * Processes a number of PNG files using a single invocation of the
+    * command, like {@link #process(File,File,long,Listener)} does for each
+    * of them. The invocation is validated like that of a single file: if it
+    * fails to execute, exits with a code other than 0 or produces error
+    * output, then none of the outputs are used. Otherwise the output for
+    * each file is validated individually.
+    *
+    * @param inFiles
+    *    the input files, cannot be <code>null</code>.
+    *
+    * @param outFiles
+    *    the output files, in the same order, cannot be <code>null</code>.
+    *
+    * @param timeOut
+    *    the time-out for the complete batch in milliseconds, or 0 if there
+    *    is none.
+    *
+    * @param listener
+    *    the listener to notify, or <code>null</code>.
+    *
+    * @return
+    *    the results, in the same order, never <code>null</code>; an
+    *    element is <code>null</code> if the file was not processed in the
+    *    batch and should be processed individually instead. If batches are
+    *    not supported (see {@link #supportsBatches()}), all elements are
+    *    <code>null</code>.
+    */
+   public Result[] processBatch(File[] inFiles, File[] outFiles, long timeOut, Listener listener) {
+      listener = (listener == null) ? NO_LISTENER : listener;
+
+      Result[] results = new Result[inFiles.length];
+      if (! supportsBatches()) {
+         return results;
+      }
+
+      // Create a temporary copy of each input file that is not already
+      // quantized
+      List<Integer> members     = new ArrayList<Integer>();
+      List<File>    tempInFiles = new ArrayList<File>();
+      for (int i = 0; i < inFiles.length; i++) {
+         results[i] = _preflight ? probe(inFiles[i], listener) : null;
+         if (results[i] == null) {
+            try {
+               tempInFiles.add(tempCopy(inFiles[i]));
+               members.add(i);
+               listener.log("Created temporary input file \"" + tempInFiles.get(tempInFiles.size() - 1).getPath() + "\".");
+            } catch (IOException exception) {
+               // processed individually
+            }
+         }
+      }
+
+      try {
+         if (members.isEmpty()) {
+            return results;
+         }
+
+         // Execute the command
+         ByteArrayOutputStream errStream = new ByteArrayOutputStream();
+         String[]                cmdline = commandLine(_numColors, tempInFiles);
+         boolean               succeeded = false;
+         try {
+            int         exitCode = run(cmdline, null, null, errStream, timeOut, listener);
+            String errorMessage = errStream.toString();
+            if (errorMessage.length() > 0) {
+               listener.log("Batch of " + members.size() + " file(s) produced error output: " + errorMessage);
+            } else if (exitCode != 0) {
+               listener.log("Batch of " + members.size() + " file(s) exited with code " + exitCode + '.');
+            } else {
+               succeeded = true;
+            }
+         } catch (IOException exception) {
+            listener.log("Failed to execute batch of " + members.size() + " file(s): " + exception.getMessage());
+         }
+
+         // Pick up and validate the output for each file
+         int failed = 0;
+         for (int j = 0; j < members.size(); j++) {
+            int             i = members.get(j);
+            File  tempOutFile = outputFile(tempInFiles.get(j));
+            try {
+               if (! succeeded) {
+                  throw new IOException("Batch failed.");
+               } else if (! tempOutFile.exists() || tempOutFile.length() < 1L) {
+                  throw new IOException("No output produced.");
+               }
+               Result result = validate(tempOutFile, inFiles[i].length(), _preflight, new Result(null, Result.PROCESSED, null, _numColors));
+               if (Result.PROCESSED.equals(result.getAction())) {
+                  install(tempOutFile, outFiles[i]);
+               }
+               results[i] = result;
+            } catch (IOException exception) {
+               failed++;
+            } finally {
+               delete(tempOutFile);
+            }
+         }
+
+         if (failed > 0) {
+            listener.log("" + failed + " of " + members.size() + " file(s) in batch failed, these will be processed individually.");
+         }
+         return results;
+      } finally {
+         for (File tempInFile : tempInFiles) {
+            delete(tempInFile);
+         }
+      }
+   }
+
+   /**
+    * Checks if the specified file is already quantized, judging from its
+    * header. This check does not apply with a color search, which may
+    * still reduce the number of colors.
+    *
+    * @return
+    *    the result if the file should be kept as it is, or
+    *    <code>null</code> if it should be processed.
+    */
+   private Result probe(File inFile, Listener listener) {
+      if (_search != null) {
+         return null;
+      }
+      PngHeader header;
+      try {
+         header = PngHeader.read(inFile);
+      } catch (IOException exception) {
+         listener.log("Failed to read header of \"" + inFile.getPath() + "\".");
+         return null;
+      }
+      int maxColors = (header == null) ? -1 : header.maxColors();
+      if (maxColors > 0 && maxColors <= _numColors) {
+         return new Result(null, Result.INDEXED, "Image is already quantized (" + header + ", " + maxColors + " colors).", -1);
+      }
+      return null;
+   }
+
+   /**
+    * Validates the output of quantizing a file: it must be a valid PNG
+    * image and, with the pre-flight checks, it must be smaller than the
+    * original.
+    *
+    * @param inLength
+    *    the size of the original, in bytes.
+    *
+    * @param processed
+    *    the result if the output is used, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>processed</code> if the output should be used, or a
+    *    {@link Result#KEPT} result if the original should be kept.
+    *
+    * @throws IOException
+    *    if the output is not a valid PNG image.
+    */
+   private static Result validate(File output, long inLength, boolean preflight, Result processed) throws IOException {
+      PngHeader header;
+      try {
+         header = PngHeader.read(output);
+      } catch (IOException exception) {
+         header = null;
+      }
+      long outLength = output.length();
+      if (header == null) {
+         throw new IOException("Output is not a valid PNG image.");
+      } else if (preflight && outLength >= inLength) {
+         return new Result(null, Result.KEPT, "Output (" + outLength + " bytes) is not smaller than the original.", -1);
+      }
+      return processed;
+   }
+
+   /**
+    * Quantizes a file with each of the candidate color counts of the color
+    * search, in parallel, and keeps the smallest output that meets the
+    * target. The input file is decoded only once; all trials are compared
+    * against the same pixels.
+    *
+    * @return
+    *    the result, never <code>null</code>; the message is set if no color
+    *    count meets the target.
+    *
+    * @throws IOException
+    *    if the file could not be quantized with any of the candidate color
+    *    counts, the message (if any) describes the error.
+    */
+   private Result search(File inFile, File outFile, long timeOut, Listener listener) throws IOException {
+
+      ColorSearch.Pixels source = ColorSearch.Pixels.read(inFile);
+      int[]          candidates = _search.candidates();
+
+      // Run the trials, on the shared pool of trial threads
+      List<Future<ColorSearch.Trial>> futures = new ArrayList<Future<ColorSearch.Trial>>();
+      List<ColorSearch.Trial>          trials = new ArrayList<ColorSearch.Trial>();
+      IOException                     failure = null;
+      try {
+         for (int colors : candidates) {
+            futures.add(_trials.submit(new TrialJob(inFile, source, colors, timeOut, listener)));
+         }
+         for (int i = 0; i < futures.size(); i++) {
+            try {
+               trials.add(futures.get(i).get());
+            } catch (ExecutionException exception) {
+               Throwable cause = exception.getCause();
+               listener.log("Failed to quantize \"" + inFile.getPath() + "\" to " + candidates[i] + " colors: " + cause.getMessage());
+               failure = (cause instanceof IOException) ? (IOException) cause : new IOException(String.valueOf(cause.getMessage()));
+            }
+         }
+
+         ColorSearch.Trial chosen = _search.choose(trials);
+         if (chosen == null) {
+            throw (failure != null) ? failure : new IOException("No output produced.");
+         }
+         listener.log("Chose " + chosen._colors + " colors for \"" + inFile.getPath() + "\" (" + _search.format(chosen._quality) + ", " + chosen._bytes + " bytes).");
+         copy(chosen._file, outFile);
+
+         String message = _search.meets(chosen) ? null : "No color count meets the target, using " + chosen._colors + " colors.";
+         return new Result(null, Result.PROCESSED, message, chosen._colors);
+      } catch (InterruptedException exception) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted.");
+      } finally {
+         for (Future<ColorSearch.Trial> future : futures) {
+            future.cancel(true);
+         }
+         for (ColorSearch.Trial trial : trials) {
+            delete(trial._file);
+         }
+      }
+   }
+
+   /**
+    * Derives a single palette for a number of images, from their combined
+    * histogram, so that they can all be quantized to the same colors using
+    * {@link #quantize(File,File,int[])}. The histograms are built in
+    * parallel. This is always done in-process, whatever the command.
+    *
+    * @param inFiles
+    *    the images, cannot be <code>null</code>.
+    *
+    * @param executor
+    *    the executor to build the histograms on, cannot be
+    *    <code>null</code>.
+    *
+    * @param failures
+    *    the array to store the reason an image could not be read in, in the
+    *    same order as the images, cannot be <code>null</code>; these images
+    *    are left out of the palette.
+    *
+    * @return
+    *    the palette, or <code>null</code> if none of the images could be
+    *    read.
+    *
+    * @throws InterruptedException
+    *    if the calling thread was interrupted.
+    */
+   public int[] palette(File[] inFiles, ExecutorService executor, IOException[] failures) throws InterruptedException {
+      JavaQuantizer quantizer = inProcess();
+      List<Future<JavaQuantizer.IntHistogram>> futures = new ArrayList<Future<JavaQuantizer.IntHistogram>>();
+      for (File inFile : inFiles) {
+         futures.add(executor.submit(new HistogramJob(quantizer, inFile)));
+      }
+
+      JavaQuantizer.IntHistogram histogram = new JavaQuantizer.IntHistogram();
+      boolean                         read = false;
+      for (int i = 0; i < futures.size(); i++) {
+         try {
+            histogram.addAll(futures.get(i).get());
+            read = true;
+         } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            failures[i] = (cause instanceof IOException) ? (IOException) cause : new IOException(String.valueOf(cause.getMessage()));
+         }
+      }
+      return read ? quantizer.palette(histogram) : null;
+   }
+
+   /**
+    * Quantizes a PNG file to the specified palette, in-process. If that
+    * fails, the output file is deleted.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param palette
+    *    the palette, as ARGB colors, see
+    *    {@link #palette(File[],ExecutorService,IOException[])}; cannot be
+    *    <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be quantized, the message (if any) describes
+    *    the error.
+    */
+   public void quantize(File inFile, File outFile, int[] palette) throws IOException {
+      File outDir = outFile.getAbsoluteFile().getParentFile();
+      if (outDir != null && ! outDir.isDirectory() && ! outDir.mkdirs()) {
+         throw new IOException("Failed to create directory \"" + outDir.getPath() + "\".");
+      }
+      try {
+         inProcess().quantize(inFile, outFile, palette);
+      } catch (IOException exception) {
+         delete(outFile);
+         throw exception;
+      } catch (RuntimeException exception) {
+         delete(outFile);
+         throw new IOException("Failed to quantize image: " + exception.getMessage());
+      }
+   }
+
+   /**
+    * Returns the in-process quantizer, also when the command is executed.
+    */
+   private JavaQuantizer inProcess() {
+      return (_java != null) ? _java : new JavaQuantizer(_numColors, _dithering, _streamingPixels);
+   }
+
+   /**
+    * Quantizes a PNG file. Unlike {@link #quantize(byte[])}, the output is
+    * always written; it is up to the caller to decide whether to keep it.
+    * If quantization fails, the output file is deleted.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param timeOut
+    *    the time-out for the command in milliseconds, or 0 if there is
+    *    none.
+    *
+    * @param listener
+    *    the listener to notify, or <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be quantized, the message (if any) describes
+    *    the error.
+    */
+   public void quantize(File inFile, File outFile, long timeOut, Listener listener) throws IOException {
+      listener = (listener == null) ? NO_LISTENER : listener;
+
+      File outDir = outFile.getAbsoluteFile().getParentFile();
+      if (outDir != null && ! outDir.isDirectory() && ! outDir.mkdirs()) {
+         throw new IOException("Failed to create directory \"" + outDir.getPath() + "\".");
+      }
+
+      // Quantize in-process
+      if (_java != null) {
+         try {
+            _java.quantize(inFile, outFile);
+         } catch (IOException exception) {
+            delete(outFile);
+            throw exception;
+         } catch (RuntimeException exception) {
+            delete(outFile);
+            throw new IOException("Failed to quantize image: " + exception.getMessage());
+         }
+         return;
+      }
+
+      // Execute the command on a temporary copy of the input file
+      File  tempInFile = tempCopy(inFile);
+      File tempOutFile = outputFile(tempInFile);
+      listener.log("Created temporary input file \"" + tempInFile.getPath() + "\".");
+      try {
+         runCommand(tempInFile, _numColors, timeOut, listener);
+         copy(tempOutFile, outFile);
+      } finally {
+         delete(tempOutFile);
+         delete(tempInFile);
+      }
+   }
+
+   /**
+    * Quantizes a PNG file by piping it through the command. The output is
+    * written to a temporary file in the directory of the output file, which
+    * is renamed to the output file once complete, so that readers never see
+    * a partially written output file. This requires a command that reads
+    * from stdin and writes to stdout when <code>"-"</code> is passed as the
+    * file name. For in-process quantization, this is the same as
+    * {@link #quantize(File,File,long,Listener)}.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param timeOut
+    *    the time-out for the command in milliseconds, or 0 if there is
+    *    none.
+    *
+    * @param listener
+    *    the listener to notify, or <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be quantized, the message (if any) describes
+    *    the error.
+    */
+   public void quantizeStreaming(File inFile, File outFile, long timeOut, Listener listener) throws IOException {
+      if (_java != null) {
+         quantize(inFile, outFile, timeOut, listener);
+         return;
+      }
+      listener = (listener == null) ? NO_LISTENER : listener;
+
+      File tempOutFile = tempFile(outFile);
+      try {
+         pipe(inFile, tempOutFile, timeOut, listener);
+         moveIntoPlace(tempOutFile, outFile);
+      } finally {
+         delete(tempOutFile);
+      }
+   }
+
+   /**
+    * Pipes a PNG file through the command, writing the output to the
+    * specified file directly.
+    *
+    * @throws IOException
+    *    if the command failed, the message (if any) describes the error.
+    */
+   private void pipe(File inFile, File outFile, long timeOut, Listener listener) throws IOException {
+      ByteArrayOutputStream errStream = new ByteArrayOutputStream();
+      String[]                cmdline = commandLine(_numColors, Collections.singletonList(new File("-")));
+      int                    exitCode = run(cmdline, inFile, outFile, errStream, timeOut, listener);
+
+      // Output to stderr indicates a failure
+      String errorMessage = errStream.toString();
+      if (errorMessage.length() > 0) {
+         throw new IOException(errorMessage);
+      } else if (exitCode != 0) {
+         throw new IOException("Command exited with code " + exitCode + '.');
+
+      // Empty output also indicates failure
+      } else if (outFile.length() < 1L) {
+         throw new IOException("No output produced.");
+      }
+   }
+
+   /**
+    * Executes the command on a temporary input file. The output is written
+    * to the file determined by {@link #outputFile(File)}.
+    *
+    * @param colors
+    *    the number of colors, which may differ from the configured number.
+    *
+    * @throws IOException
+    *    if the command failed, the message (if any) describes the error.
+    */
+   void runCommand(File tempInFile, int colors, long timeOut, Listener listener) throws IOException {
+      ByteArrayOutputStream errStream = new ByteArrayOutputStream();
+      String[]                cmdline = commandLine(colors, Collections.singletonList(tempInFile));
+      int                    exitCode = run(cmdline, null, null, errStream, timeOut, listener);
+
+      // Output to stderr indicates a failure
+      File   tempOutFile  = outputFile(tempInFile);
+      String errorMessage = errStream.toString();
+      if (errorMessage.length() > 0) {
+         throw new IOException(errorMessage);
+      } else if (exitCode != 0) {
+         throw new IOException("Command exited with code " + exitCode + '.');
+
+      // Empty output also indicates failure
+      } else if (! tempOutFile.exists() || tempOutFile.length() < 1L) {
+         throw new IOException("No output produced.");
+      }
+   }
+
+   /**
+    * Determines the output file the command writes for the specified input
+    * file; pngquant derives the name of the output file from the name of
+    * the input file.
+    */
+   File outputFile(File tempInFile) {
+      String  tempInFileName = tempInFile.getName();
+      String tempOutFileName = tempInFileName.substring(0, tempInFileName.length() - 4) + (_dithering ? "-fs8.png" : "-or8.png");
+      return new File(tempInFile.getParent(), tempOutFileName);
+   }
+
+   /**
+    * Builds the command line for processing the specified files.
+    */
+   String[] commandLine(int colors, List<File> tempInFiles) {
+      List<String> cmdline = new ArrayList<String>();
+      cmdline.add(_command);
+      if (! _dithering) {
+         cmdline.add("-nofs");
+      }
+      if (_speed > 0) {
+         cmdline.add("--speed");
+         cmdline.add(String.valueOf(_speed));
+      }
+      if (_quality != null) {
+         cmdline.add("--quality");
+         cmdline.add(_quality);
+      }
+      if (_posterize >= 0) {
+         cmdline.add("--posterize");
+         cmdline.add(String.valueOf(_posterize));
+      }
+      cmdline.add(String.valueOf(colors));
+      for (File tempInFile : tempInFiles) {
+         cmdline.add(tempInFile.getPath());
+      }
+      return cmdline.toArray(new String[cmdline.size()]);
+   }
+
+   /**
+    * Executes a command line, retrying with exponential backoff if the
+    * command could not be started at all. A command that was started but
+    * timed out is not retried.
+    *
+    * @param input
+    *    the file to pass on stdin, or <code>null</code> if none.
+    *
+    * @param output
+    *    the file to write stdout to, or <code>null</code> to discard it.
+    *
+    * @param err
+    *    the stream to write the first {@value #MAX_ERROR_OUTPUT} bytes of
+    *    stderr to, cannot be <code>null</code>.
+    *
+    * @param timeOut
+    *    the time-out in milliseconds, or 0 if there is none.
+    *
+    * @return
+    *    the exit code.
+    *
+    * @throws IOException
+    *    if the command could not be started, not even after retrying, or
+    *    if it timed out.
+    */
+   int run(String[] cmdline, File input, File output, OutputStream err, long timeOut, Listener listener)
+   throws IOException {
+      listener.log(describe(cmdline));
+
+      ProcessBuilder builder = new ProcessBuilder(cmdline);
+      if (input != null) {
+         builder.redirectInput(input);
+      }
+      builder.redirectOutput(output != null ? ProcessBuilder.Redirect.to(output) : ProcessBuilder.Redirect.DISCARD);
+
+      for (int attempt = 0; ; attempt++) {
+         Process process;
+         try {
+            process = builder.start();
+         } catch (IOException exception) {
+            if (attempt >= _retries) {
+               throw new IOException("Failed to execute command: " + exception.getMessage());
+            }
+            long delay = RETRY_DELAY << attempt;
+            listener.log("Failed to execute command, retrying in " + delay + " ms: " + exception.getMessage());
+            listener.retried();
+            try {
+               Thread.sleep(delay);
+            } catch (InterruptedException cause) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted.");
+            }
+            continue;
+         }
+
+         if (input == null) {
+            process.getOutputStream().close();
+         }
+         if (! waitFor(process, process.getErrorStream(), err, timeOut)) {
+            listener.timedOut();
+            throw new IOException("Timed out after " + timeOut + " ms.");
+         }
+         return process.exitValue();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Receives the events that occur while quantizing a file. Methods may
+    * be called from multiple threads concurrently.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   public interface Listener {
+
+      /**
+       * Reports a diagnostic message.
+       *
+       * @param message
+       *    the message, never <code>null</code>.
+       */
+      void log(String message);
+
+      /**
+       * Reports that the command could not be started and is retried.
+       */
+      void retried();
+
+      /**
+       * Reports that the command timed out and was killed.
+       */
+      void timedOut();
+   }
+
+   /**
+    * Job that quantizes a single file with a specific number of colors, as
+    * part of the color search.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class TrialJob implements Callable<ColorSearch.Trial> {
+
+      /**
+       * Constructs a new <code>TrialJob</code>.
+       */
+      TrialJob(File inFile, ColorSearch.Pixels source, int colors, long timeOut, Listener listener) {
+         _inFile   = inFile;
+         _source   = source;
+         _colors   = colors;
+         _timeOut  = timeOut;
+         _listener = listener;
+      }
+
+      private final File               _inFile;
+      private final ColorSearch.Pixels _source;
+      private final int                _colors;
+      private final long               _timeOut;
+      private final Listener           _listener;
+
+      public ColorSearch.Trial call() throws IOException {
+
+         // Produce the output, in a temporary file
+         File outFile;
+         if (_java != null) {
+            outFile = File.createTempFile(Quantizer.class.getSimpleName(), ".png");
+            try {
+               new JavaQuantizer(_colors, _dithering).quantize(_source._argb, _source._width, _source._height, outFile);
+            } catch (IOException exception) {
+               delete(outFile);
+               throw exception;
+            } catch (RuntimeException exception) {
+               delete(outFile);
+               throw new IOException("Failed to quantize image: " + exception.getMessage());
+            }
+         } else {
+            File tempInFile = tempCopy(_inFile);
+            _listener.log("Created temporary input file \"" + tempInFile.getPath() + "\".");
+            outFile = outputFile(tempInFile);
+            try {
+               runCommand(tempInFile, _colors, _timeOut, _listener);
+            } catch (IOException exception) {
+               delete(outFile);
+               throw exception;
+            } finally {
+               delete(tempInFile);
+            }
+         }
+
+         // Measure the quality against the decoded source
+         try {
+            return new ColorSearch.Trial(_colors, outFile, _search.quality(_source, ColorSearch.Pixels.read(outFile)));
+         } catch (IOException exception) {
+            delete(outFile);
+            throw exception;
+         }
+      }
+   }
+
+   /**
+    * Job that builds the histogram of an image, for a shared palette.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class HistogramJob implements Callable<JavaQuantizer.IntHistogram> {
+
+      /**
+       * Constructs a new <code>HistogramJob</code>.
+       */
+      HistogramJob(JavaQuantizer quantizer, File inFile) {
+         _quantizer = quantizer;
+         _inFile    = inFile;
+      }
+
+      private final JavaQuantizer _quantizer;
+      private final File          _inFile;
+
+      public JavaQuantizer.IntHistogram call() throws IOException {
+         try {
+            return _quantizer.histogram(_inFile);
+         } catch (RuntimeException exception) {
+            throw new IOException("Failed to read image: " + exception.getMessage());
+         }
+      }
+   }
+
+   /**
+    * The result of quantizing an image, in memory or as a file.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   public static final class Result {
+
+      /**
+       * Action indicating the image was quantized.
+       */
+      public static final String PROCESSED = "processed";
+
+      /**
+       * Action indicating the original image was kept, since it already has
+       * at most the configured number of colors.
+       */
+      public static final String INDEXED = "indexed";
+
+      /**
+       * Action indicating the original image was kept, since quantization
+       * would not have reduced it.
+       */
+      public static final String KEPT = "kept";
+
+      /**
+       * Action indicating the original image was kept, since quantization
+       * failed.
+       */
+      public static final String COPIED = "copied";
+
+      Result(byte[] data, String action, String message, int colors) {
+         _data    = data;
+         _action  = action;
+         _message = message;
+         _colors  = colors;
+      }
+
+      private final byte[] _data;
+      private final String _action;
+      private final String _message;
+      private final int    _colors;
+
+      /**
+       * Returns the resulting image, or <code>null</code> if this is the
+       * result of processing a file.
+       */
+      public byte[] getData() {
+         return _data;
+      }
+
+      /**
+       * Returns the action: {@link #PROCESSED}, {@link #INDEXED},
+       * {@link #KEPT} or {@link #COPIED}.
+       */
+      public String getAction() {
+         return _action;
+      }
+
+      /**
+       * Returns the reason the original was kept or, if the image was
+       * quantized, a remark on the output, such as a color search not
+       * meeting its target; <code>null</code> if there is none.
+       */
+      public String getMessage() {
+         return _message;
+      }
+
+      /**
+       * Returns the number of colors the image was quantized to, or -1 if
+       * it was not quantized.
+       */
+      public int getColors() {
+         return _colors;
+      }
+   }
+}
@@ -0,0 +1,432 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP endpoint in front of a {@link Quantizer}, based on the
+ * HTTP server built into the JDK. A PNG image posted to
+ * <code>/quantize</code> is answered with the result of
+ * {@link Quantizer#quantize(byte[])}; the action taken is reported in the
+ * <code>X-Pngquant-Action</code> response header.
+ *
+ * <p>Requests are keyed by the SHA-256 digest of their content. Concurrent
+ * requests for identical content are coalesced: the image is only
+ * quantized once and all of them get the same response. Results are kept
+ * in an in-memory LRU cache that is bounded by the total size of the
+ * cached images; whether a response came from the cache is reported in
+ * the <code>X-Pngquant-Cache</code> response header (<code>hit</code>,
+ * <code>coalesced</code> or <code>miss</code>).
+ *
+ * <p>Usage from the command line:
+ *
+ * <blockquote><code>java com.pensioenpage.jynx.pngquant.QuantizerServer
+ * [<em>port</em> [<em>command</em> [<em>address</em>]]]</code></blockquote>
+ *
+ * <p>where <em>command</em> is the pngquant command, or <code>java</code>
+ * (the default) to quantize in-process, and <em>address</em> is the
+ * address to listen on. Since the endpoint has no authentication, it
+ * listens on the loopback address by default; to accept requests from
+ * other hosts, an address such as <code>0.0.0.0</code> must be passed
+ * explicitly.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class QuantizerServer {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The path the endpoint is bound to.
+    */
+   public static final String PATH = "/quantize";
+
+   /**
+    * The default port: 8080.
+    */
+   public static final int DEFAULT_PORT = 8080;
+
+   /**
+    * The default size of the cache: 64 MB.
+    */
+   public static final long DEFAULT_CACHE_SIZE = 64L * 1024L * 1024L;
+
+   /**
+    * The maximum size of a request body: 64 MB.
+    */
+   public static final int MAX_REQUEST_SIZE = 64 * 1024 * 1024;
+
+   /**
+    * The logger for the server.
+    */
+   private static final Logger LOG = Logger.getLogger(QuantizerServer.class.getName());
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Starts a server from the command line. Unless an address is passed,
+    * the server only listens on the loopback address.
+    *
+    * @param args
+    *    the optional port, the optional command and the optional address
+    *    to listen on, cannot be <code>null</code>.
+    *
+    * @throws Exception
+    *    if the server could not be started.
+    */
+   public static void main(String[] args) throws Exception {
+      int                 port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+      String           command = (args.length > 1 && ! "java".equals(args[1])) ? args[1] : null;
+      InetAddress      address = (args.length > 2) ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+      Quantizer      quantizer = new Quantizer(command, 256, true, PngquantTask.DEFAULT_TIMEOUT, PngquantTask.DEFAULT_RETRIES);
+      QuantizerServer   server = new QuantizerServer(quantizer, new InetSocketAddress(address, port), DEFAULT_CACHE_SIZE,
+                                                     Runtime.getRuntime().availableProcessors());
+      server.start();
+      LOG.info("Listening on " + server.getAddress().getAddress().getHostAddress() + ", port " + server.getAddress().getPort() + ", path " + PATH + '.');
+   }
+
+   /**
+    * Computes the SHA-256 digest of the specified data, as a hexadecimal
+    * string.
+    */
+   private static String digest(byte[] data) {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException cause) {
+         throw new IllegalStateException("SHA-256 is not available.", cause);
+      }
+      StringBuilder hex = new StringBuilder(64);
+      for (byte b : digest.digest(data)) {
+         hex.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+   }
+
+   /**
+    * Reads a request body, up to {@link #MAX_REQUEST_SIZE} bytes.
+    *
+    * @return
+    *    the body, or <code>null</code> if it is too large.
+    */
+   private static byte[] readBody(InputStream in) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[]              buffer = new byte[8192];
+      try {
+         for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+            if (body.size() + count > MAX_REQUEST_SIZE) {
+               return null;
+            }
+            body.write(buffer, 0, count);
+         }
+      } finally {
+         in.close();
+      }
+      return body.toByteArray();
+   }
+
+   /**
+    * Sends a plain text response.
+    */
+   private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+      byte[] body = (text + '\n').getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(body);
+      } finally {
+         out.close();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>QuantizerServer</code>. The server does not
+    * accept requests until it is started.
+    *
+    * @param quantizer
+    *    the quantizer, cannot be <code>null</code>.
+    *
+    * @param address
+    *    the address to listen on, cannot be <code>null</code>.
+    *
+    * @param cacheSize
+    *    the maximum total size of the cached images, in bytes, 0 (or lower)
+    *    to cache nothing.
+    *
+    * @param threads
+    *    the number of threads that quantize images, at least 1.
+    *
+    * @throws IOException
+    *    if the address could not be bound.
+    */
+   public QuantizerServer(Quantizer quantizer, InetSocketAddress address, long cacheSize, int threads)
+   throws IOException {
+      this(quantizer, address, cacheSize, Executors.newFixedThreadPool(Math.max(1, threads)));
+   }
+
+   /**
+    * Constructs a new <code>QuantizerServer</code> that quantizes images on
+    * the specified executor, which is shut down when the server is stopped.
+    */
+   QuantizerServer(Quantizer quantizer, InetSocketAddress address, long cacheSize, ExecutorService workers)
+   throws IOException {
+      _quantizer = quantizer;
+      _cache     = new MemoryCache(cacheSize);
+      _workers   = workers;
+      _server    = HttpServer.create(address, 0);
+      _server.createContext(PATH, new QuantizeHandler());
+      _server.setExecutor(Quantizer.newExecutor());
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The quantizer, never <code>null</code>.
+    */
+   private final Quantizer _quantizer;
+
+   /**
+    * The results of earlier requests, never <code>null</code>.
+    */
+   private final MemoryCache _cache;
+
+   /**
+    * The requests being quantized, indexed by the digest of their content.
+    */
+   private final ConcurrentMap<String,CompletableFuture<Quantizer.Result>> _pending = new ConcurrentHashMap<String,CompletableFuture<Quantizer.Result>>();
+
+   /**
+    * The threads that quantize images, never <code>null</code>.
+    */
+   private final ExecutorService _workers;
+
+   /**
+    * The HTTP server, never <code>null</code>.
+    */
+   private final HttpServer _server;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Starts accepting requests.
+    */
+   public void start() {
+      _server.start();
+   }
+
+   /**
+    * Stops accepting requests and shuts down the threads, after the
+    * requests being handled have completed or the delay has passed.
+    *
+    * @param delay
+    *    the maximum time to wait for requests to complete, in seconds.
+    */
+   public void stop(int delay) {
+      _server.stop(delay);
+      _workers.shutdownNow();
+      ((ExecutorService) _server.getExecutor()).shutdownNow();
+   }
+
+   /**
+    * Returns the address the server listens on, never <code>null</code>.
+    */
+   public InetSocketAddress getAddress() {
+      return _server.getAddress();
+   }
+
+   /**
+    * Quantizes the specified image, unless it is cached or already being
+    * quantized.
+    *
+    * @param png
+    *    the PNG image, cannot be <code>null</code>.
+    *
+    * @param source
+    *    the array to store the source of the result in: <code>"hit"</code>,
+    *    <code>"coalesced"</code> or <code>"miss"</code>.
+    *
+    * @return
+    *    the future result, never <code>null</code>.
+    */
+   CompletableFuture<Quantizer.Result> quantize(byte[] png, String[] source) {
+      final String key = digest(png);
+
+      Quantizer.Result cached = _cache.get(key);
+      if (cached != null) {
+         source[0] = "hit";
+         return CompletableFuture.completedFuture(cached);
+      }
+
+      CompletableFuture<Quantizer.Result> future = new CompletableFuture<Quantizer.Result>();
+      CompletableFuture<Quantizer.Result> earlier = _pending.putIfAbsent(key, future);
+      if (earlier != null) {
+         source[0] = "coalesced";
+         return earlier;
+      }
+
+      // Check the cache again, the result may have been stored just before
+      // the pending request was removed
+      cached = _cache.get(key);
+      if (cached != null) {
+         _pending.remove(key, future);
+         future.complete(cached);
+         source[0] = "hit";
+         return future;
+      }
+
+      source[0] = "miss";
+      final CompletableFuture<Quantizer.Result> pending = future;
+      _quantizer.quantizeAsync(png, _workers).whenComplete(new BiConsumer<Quantizer.Result,Throwable>() {
+         public void accept(Quantizer.Result result, Throwable failure) {
+            if (failure == null) {
+               _cache.put(key, result);
+            }
+            _pending.remove(key, pending);
+            if (failure == null) {
+               pending.complete(result);
+            } else {
+               pending.completeExceptionally(failure);
+            }
+         }
+      });
+      return future;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Handles requests for the endpoint. The response is sent when the
+    * result is available, so the thread that received the request is not
+    * blocked while the image is quantized.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class QuantizeHandler implements HttpHandler {
+
+      public void handle(final HttpExchange exchange) throws IOException {
+         if (! "POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendText(exchange, 405, "Only POST is supported.");
+            return;
+         }
+         byte[] png = readBody(exchange.getRequestBody());
+         if (png == null) {
+            sendText(exchange, 413, "Images of more than " + MAX_REQUEST_SIZE + " bytes are not accepted.");
+            return;
+         }
+
+         final String[] source = new String[1];
+         quantize(png, source).whenComplete(new BiConsumer<Quantizer.Result,Throwable>() {
+            public void accept(Quantizer.Result result, Throwable failure) {
+               try {
+                  if (failure != null) {
+                     Throwable cause = (failure.getCause() != null) ? failure.getCause() : failure;
+                     sendText(exchange, (cause instanceof IOException) ? 400 : 500, String.valueOf(cause.getMessage()));
+                     return;
+                  }
+                  byte[] data = result.getData();
+                  exchange.getResponseHeaders().set("Content-Type",      "image/png");
+                  exchange.getResponseHeaders().set("X-Pngquant-Action", result.getAction());
+                  exchange.getResponseHeaders().set("X-Pngquant-Cache",  source[0]);
+                  exchange.sendResponseHeaders(200, data.length);
+                  OutputStream out = exchange.getResponseBody();
+                  try {
+                     out.write(data);
+                  } finally {
+                     out.close();
+                  }
+               } catch (IOException exception) {
+                  exchange.close();
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * In-memory LRU cache of results, bounded by the total size of the
+    * images.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   static final class MemoryCache {
+
+      MemoryCache(long maxSize) {
+         _maxSize = maxSize;
+      }
+
+      private final long _maxSize;
+
+      /**
+       * The entries, in access order, least recently used first.
+       */
+      private final LinkedHashMap<String,Quantizer.Result> _entries = new LinkedHashMap<String,Quantizer.Result>(16, 0.75f, true);
+
+      /**
+       * The total size of the cached images, in bytes.
+       */
+      private long _size;
+
+      synchronized Quantizer.Result get(String key) {
+         return _entries.get(key);
+      }
+
+      /**
+       * Stores a result, evicting the least recently used results until
+       * the total size is within bounds. A result that is larger than the
+       * cache is not stored at all.
+       */
+      synchronized void put(String key, Quantizer.Result result) {
+         long size = result.getData().length;
+         if (size > _maxSize) {
+            return;
+         }
+         Quantizer.Result previous = _entries.put(key, result);
+         _size += size - (previous == null ? 0L : previous.getData().length);
+         for (Iterator<Map.Entry<String,Quantizer.Result>> i = _entries.entrySet().iterator(); _size > _maxSize && i.hasNext(); ) {
+            _size -= i.next().getValue().getData().length;
+            i.remove();
+         }
+      }
+   }
+}
@@ -0,0 +1,295 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a report written by {@link ReportWriter}, one record at a time. The
+ * format (CSV or JSON) is detected from the contents. A JSON report that
+ * was not completed (for example because the build that wrote it was
+ * aborted) is rejected.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class ReportReader {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Splits a CSV line into fields, handling quoted fields.
+    */
+   private static List<String> splitCsv(String line) throws IOException {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean      quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted && c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+            field.append('"');
+            i++;
+         } else if (c == '"') {
+            quoted = ! quoted;
+         } else if (c == ',' && ! quoted) {
+            fields.add(field.toString());
+            field.setLength(0);
+         } else {
+            field.append(c);
+         }
+      }
+      if (quoted) {
+         throw new IOException("Unterminated quoted field: " + line);
+      }
+      fields.add(field.toString());
+      return fields;
+   }
+
+   /**
+    * Parses a single JSON object, as written by {@link ReportWriter}, into
+    * a map from name to value. String values are unescaped, other values
+    * are returned as-is; <code>null</code> values are mapped to
+    * <code>null</code>.
+    */
+   private static Map<String,String> parseJson(String s) throws IOException {
+      Map<String,String> values = new HashMap<String,String>();
+      int i = skipSpace(s, 0);
+      if (i >= s.length() || s.charAt(i) != '{') {
+         throw new IOException("Expected JSON object: " + s);
+      }
+      i = skipSpace(s, i + 1);
+      while (i < s.length() && s.charAt(i) != '}') {
+         StringBuilder name = new StringBuilder();
+         i = skipSpace(s, parseString(s, i, name));
+         if (i >= s.length() || s.charAt(i) != ':') {
+            throw new IOException("Expected ':' in JSON object: " + s);
+         }
+         i = skipSpace(s, i + 1);
+         String value;
+         if (i < s.length() && s.charAt(i) == '"') {
+            StringBuilder buffer = new StringBuilder();
+            i     = parseString(s, i, buffer);
+            value = buffer.toString();
+         } else {
+            int start = i;
+            while (i < s.length() && s.charAt(i) != ',' && s.charAt(i) != '}') {
+               i++;
+            }
+            value = s.substring(start, i).trim();
+            if ("null".equals(value)) {
+               value = null;
+            }
+         }
+         values.put(name.toString(), value);
+         i = skipSpace(s, i);
+         if (i < s.length() && s.charAt(i) == ',') {
+            i = skipSpace(s, i + 1);
+         }
+      }
+      if (i >= s.length()) {
+         throw new IOException("Unterminated JSON object: " + s);
+      }
+      return values;
+   }
+
+   /**
+    * Parses a JSON string starting at the specified index, appending the
+    * unescaped contents to the buffer.
+    *
+    * @return
+    *    the index just after the closing quote.
+    */
+   private static int parseString(String s, int i, StringBuilder buffer) throws IOException {
+      if (i >= s.length() || s.charAt(i) != '"') {
+         throw new IOException("Expected JSON string: " + s);
+      }
+      for (i++; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"') {
+            return i + 1;
+         } else if (c != '\\') {
+            buffer.append(c);
+         } else if (++i < s.length()) {
+            c = s.charAt(i);
+            switch (c) {
+               case 'n': buffer.append('\n'); break;
+               case 'r': buffer.append('\r'); break;
+               case 't': buffer.append('\t'); break;
+               case 'u':
+                  if (i + 4 >= s.length()) {
+                     throw new IOException("Invalid JSON escape: " + s);
+                  }
+                  try {
+                     buffer.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                  } catch (NumberFormatException cause) {
+                     throw new IOException("Invalid JSON escape: " + s);
+                  }
+                  i += 4;
+                  break;
+               default:
+                  buffer.append(c);
+            }
+         }
+      }
+      throw new IOException("Unterminated JSON string: " + s);
+   }
+
+   private static int skipSpace(String s, int i) {
+      while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+         i++;
+      }
+      return i;
+   }
+
+   /**
+    * Creates a record from the specified field values.
+    */
+   private static FileRecord record(String path, String action, String wallTime, String processTime,
+                                    String inputBytes, String outputBytes, String colors, String error)
+   throws IOException {
+      if (path == null || action == null) {
+         throw new IOException("Record without path or action.");
+      }
+      try {
+         return new FileRecord(path, action, Long.parseLong(wallTime), Long.parseLong(processTime),
+                               Long.parseLong(inputBytes), Long.parseLong(outputBytes),
+                               Integer.parseInt(colors), isEmpty(error) ? null : error);
+      } catch (NumberFormatException cause) {
+         throw new IOException("Invalid number in record for " + path + '.');
+      }
+   }
+
+   private static int count(String s, char c) {
+      int count = 0;
+      for (int i = 0; i < s.length(); i++) {
+         if (s.charAt(i) == c) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   private static boolean isEmpty(String s) {
+      return s == null || s.length() < 1;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ReportReader</code> and opens the report file.
+    *
+    * @param file
+    *    the report file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the report file could not be opened or is empty.
+    */
+   ReportReader(File file) throws IOException {
+      _in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String first = _in.readLine();
+         if (first == null) {
+            throw new IOException("Report file is empty.");
+         }
+         _json = first.trim().startsWith("[");
+      } catch (IOException cause) {
+         _in.close();
+         throw cause;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The reader for the report file.
+    */
+   private final BufferedReader _in;
+
+   /**
+    * Flag that indicates if the report is in JSON format.
+    */
+   private final boolean _json;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if the report is in JSON format.
+    */
+   boolean isJson() {
+      return _json;
+   }
+
+   /**
+    * Reads the next record.
+    *
+    * @return
+    *    the next record, or <code>null</code> if there are no more records.
+    *
+    * @throws IOException
+    *    if reading fails, or if the report is malformed or incomplete.
+    */
+   FileRecord next() throws IOException {
+      for (String line = _in.readLine(); line != null; line = _in.readLine()) {
+         String trimmed = line.trim();
+         if (trimmed.length() < 1) {
+            continue;
+         }
+         if (! _json) {
+
+            // A quoted field may span multiple lines
+            while (count(line, '"') % 2 != 0) {
+               String more = _in.readLine();
+               if (more == null) {
+                  throw new IOException("Unterminated quoted field: " + line);
+               }
+               line += '\n' + more;
+            }
+            List<String> f = splitCsv(line);
+            if (f.size() != 9) {
+               throw new IOException("Expected 9 fields, found " + f.size() + ": " + line);
+            }
+            return record(f.get(0), f.get(1), f.get(2), f.get(3), f.get(4), f.get(5), f.get(7), f.get(8));
+         }
+         if ("]".equals(trimmed)) {
+            return null;
+         }
+         if (trimmed.endsWith(",")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+         }
+         Map<String,String> v = parseJson(trimmed);
+         return record(v.get("path"), v.get("action"), v.get("wallTime"), v.get("processTime"),
+                       v.get("inputBytes"), v.get("outputBytes"), v.get("colors"), v.get("error"));
+      }
+      if (_json) {
+         throw new IOException("Report is incomplete.");
+      }
+      return null;
+   }
+
+   /**
+    * Closes the report file.
+    *
+    * @throws IOException
+    *    if closing fails.
+    */
+   void close() throws IOException {
+      _in.close();
+   }
+}
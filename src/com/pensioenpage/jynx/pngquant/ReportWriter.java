@@ -0,0 +1,169 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Writes a report with one record per file, in either CSV or JSON format.
+ * Records are written as they are added, so the report is never held in
+ * memory as a whole.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class ReportWriter {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Quotes a string for use in CSV, if needed.
+    */
+   private static String csv(String s) {
+      if (s == null) {
+         return "";
+      } else if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+         return s;
+      }
+      return '"' + s.replace("\"", "\"\"") + '"';
+   }
+
+   /**
+    * Quotes a string for use in JSON.
+    */
+   private static String json(String s) {
+      if (s == null) {
+         return "null";
+      }
+      StringBuilder buffer = new StringBuilder(s.length() + 2);
+      buffer.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"':  buffer.append("\\\""); break;
+            case '\\': buffer.append("\\\\"); break;
+            case '\n': buffer.append("\\n");  break;
+            case '\r': buffer.append("\\r");  break;
+            case '\t': buffer.append("\\t");  break;
+            default:
+               if (c < 0x20) {
+                  buffer.append(String.format("\\u%04x", (int) c));
+               } else {
+                  buffer.append(c);
+               }
+         }
+      }
+      return buffer.append('"').toString();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ReportWriter</code>, creating the report file.
+    *
+    * @param file
+    *    the report file, cannot be <code>null</code>.
+    *
+    * @param json
+    *    <code>true</code> for JSON format, <code>false</code> for CSV.
+    *
+    * @throws IOException
+    *    if the report file could not be created.
+    */
+   ReportWriter(File file, boolean json) throws IOException {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (dir != null && ! dir.isDirectory()) {
+         dir.mkdirs();
+      }
+      _out  = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      _json = json;
+      _out.write(json ? "[" : "path,action,wallTime,processTime,inputBytes,outputBytes,ratio,colors,error\n");
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The writer for the report file.
+    */
+   private final Writer _out;
+
+   /**
+    * Flag that indicates if the report is in JSON format.
+    */
+   private final boolean _json;
+
+   /**
+    * The number of records written so far.
+    */
+   private long _count;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Writes a single record.
+    *
+    * @param record
+    *    the record, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if writing fails.
+    */
+   void write(FileRecord record) throws IOException {
+      String ratio = String.format(Locale.US, "%.4f", record.ratio());
+      if (_json) {
+         _out.write((_count == 0L ? "\n" : ",\n")
+                  + "{\"path\":"        + json(record._path)
+                  + ",\"action\":"      + json(record._action)
+                  + ",\"wallTime\":"    + record._wallTime
+                  + ",\"processTime\":" + record._processTime
+                  + ",\"inputBytes\":"  + record._inputBytes
+                  + ",\"outputBytes\":" + record._outputBytes
+                  + ",\"ratio\":"       + ratio
+                  + ",\"colors\":"      + record._colors
+                  + ",\"error\":"       + json(record._error)
+                  + '}');
+      } else {
+         _out.write(csv(record._path)     + ','
+                  + record._action        + ','
+                  + record._wallTime      + ','
+                  + record._processTime   + ','
+                  + record._inputBytes    + ','
+                  + record._outputBytes   + ','
+                  + ratio                 + ','
+                  + record._colors        + ','
+                  + csv(record._error)    + '\n');
+      }
+      _count++;
+   }
+
+   /**
+    * Completes and closes the report.
+    *
+    * @throws IOException
+    *    if writing fails.
+    */
+   void close() throws IOException {
+      try {
+         if (_json) {
+            _out.write("\n]\n");
+         }
+      } finally {
+         _out.close();
+      }
+   }
+}
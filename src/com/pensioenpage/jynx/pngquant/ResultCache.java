@@ -0,0 +1,368 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent, content-addressed cache of quantization results. Each entry
+ * is keyed by a hash of the input file contents combined with the
+ * parameters that affect the output (see {@link #key(File,String)}).
+ *
+ * <p>The cache directory can safely be shared by multiple JVMs: entries are
+ * written to a temporary file first and then renamed into place, so readers
+ * never see a partially written entry, and eviction is guarded by a file
+ * lock. Eviction is least-recently-used, based on the modification time of
+ * the entries, which is updated on each hit.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class ResultCache {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The suffix of cache entries: <code>".png"</code>.
+    */
+   private static final String ENTRY_SUFFIX = ".png";
+
+   /**
+    * The name of the lock file used during eviction.
+    */
+   private static final String LOCK_FILE_NAME = ".lock";
+
+   /**
+    * The age after which left-over temporary files are removed during
+    * eviction: 1 hour.
+    */
+   private static final long STALE_TEMP_FILE_AGE = 60L * 60L * 1000L;
+
+   /**
+    * Hexadecimal digits, used to convert digests to strings.
+    */
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Converts the specified bytes to a lower-case hexadecimal string.
+    *
+    * @param bytes
+    *    the bytes to convert, cannot be <code>null</code>.
+    *
+    * @return
+    *    the hexadecimal string, never <code>null</code>.
+    */
+   static String toHex(byte[] bytes) {
+      char[] chars = new char[bytes.length * 2];
+      for (int i = 0; i < bytes.length; i++) {
+         chars[i * 2]     = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+         chars[i * 2 + 1] = HEX_DIGITS[ bytes[i]       & 0x0f];
+      }
+      return new String(chars);
+   }
+
+   /**
+    * Computes the SHA-1 digest of the specified parameters string followed
+    * by the contents of the specified file.
+    *
+    * @param file
+    *    the file to hash, cannot be <code>null</code>.
+    *
+    * @param parameters
+    *    the parameters to include in the hash, or <code>null</code>.
+    *
+    * @return
+    *    the hexadecimal digest, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file could not be read.
+    */
+   static String hash(File file, String parameters) throws IOException {
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException cause) {
+         throw new Error("SHA-1 algorithm unavailable.", cause);
+      }
+
+      if (parameters != null) {
+         digest.update(parameters.getBytes("UTF-8"));
+         digest.update((byte) 0);
+      }
+
+      InputStream in = new FileInputStream(file);
+      try {
+         byte[] buffer = new byte[8192];
+         for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+            digest.update(buffer, 0, count);
+         }
+      } finally {
+         in.close();
+      }
+
+      return toHex(digest.digest());
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ResultCache</code>.
+    *
+    * @param dir
+    *    the cache directory, cannot be <code>null</code>; it will be created
+    *    if it does not exist.
+    *
+    * @param maxSize
+    *    the maximum total size of all entries, in bytes.
+    *
+    * @throws IOException
+    *    if the cache directory does not exist and could not be created.
+    */
+   ResultCache(File dir, long maxSize) throws IOException {
+      if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+         throw new IOException("Unable to create cache directory \"" + dir.getPath() + "\".");
+      }
+      _dir     = dir;
+      _maxSize = maxSize;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The cache directory, never <code>null</code>.
+    */
+   private final File _dir;
+
+   /**
+    * The maximum total size of all entries, in bytes.
+    */
+   private final long _maxSize;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Computes the cache key for the specified input file.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param parameters
+    *    a string describing all parameters that affect the output,
+    *    e.g. the command version and the number of colors,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the key, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the input file could not be read.
+    */
+   String key(File inFile, String parameters) throws IOException {
+      return hash(inFile, parameters);
+   }
+
+   /**
+    * Determines the file for the specified cache entry. Entries are spread
+    * over 256 subdirectories to keep directory sizes reasonable.
+    */
+   private File entryFile(String key) {
+      return new File(new File(_dir, key.substring(0, 2)), key + ENTRY_SUFFIX);
+   }
+
+   /**
+    * Retrieves the entry with the specified key, copying it to the
+    * specified file.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the file to copy the entry to, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the entry was found and copied;
+    *    <code>false</code> if there was no such entry.
+    */
+   boolean get(String key, File outFile) {
+      File entry = entryFile(key);
+      if (! entry.isFile()) {
+         return false;
+      }
+
+      // The entry may be evicted concurrently, in which case this is a miss
+      try {
+         FileLinker.copy(entry, outFile);
+      } catch (IOException cause) {
+         outFile.delete();
+         return false;
+      }
+
+      // Mark the entry as recently used
+      entry.setLastModified(System.currentTimeMillis());
+      return true;
+   }
+
+   /**
+    * Stores the specified file in the cache under the specified key.
+    * Failures are not reported, since a cache is only an optimization.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @param file
+    *    the file to store, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the entry was stored;
+    *    <code>false</code> otherwise.
+    */
+   boolean put(String key, File file) {
+      File entry = entryFile(key);
+      File   dir = entry.getParentFile();
+      File  temp = null;
+      try {
+         if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+            return false;
+         }
+
+         // Write to a temporary file and then rename it into place, so that
+         // other readers never see a partially written entry
+         temp = File.createTempFile(key, ".tmp", dir);
+         FileLinker.copy(file, temp);
+         if (temp.renameTo(entry)) {
+            temp = null;
+            return true;
+         }
+
+         // Another process may have stored the same entry in the meantime
+         return entry.isFile();
+      } catch (IOException cause) {
+         return false;
+      } finally {
+         if (temp != null) {
+            temp.delete();
+         }
+      }
+   }
+
+   /**
+    * Evicts the least-recently-used entries until the total size of the
+    * cache no longer exceeds the maximum. If another process is already
+    * evicting, then this method returns immediately.
+    *
+    * @return
+    *    the number of evicted entries.
+    *
+    * @throws IOException
+    *    if the lock file could not be opened.
+    */
+   int evict() throws IOException {
+      RandomAccessFile lockFile = new RandomAccessFile(new File(_dir, LOCK_FILE_NAME), "rw");
+      try {
+         FileChannel channel = lockFile.getChannel();
+         FileLock       lock = channel.tryLock();
+         if (lock == null) {
+            return 0;
+         }
+         try {
+            return evictLocked();
+         } finally {
+            lock.release();
+         }
+      } finally {
+         lockFile.close();
+      }
+   }
+
+   private int evictLocked() {
+
+      // Collect all entries, removing stale temporary files along the way
+      List<Entry> entries = new ArrayList<Entry>();
+      long      totalSize = 0L;
+      long     staleStart = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+      File[]      subdirs = _dir.listFiles();
+      for (File subdir : (subdirs == null ? new File[0] : subdirs)) {
+         File[] files = subdir.listFiles();
+         if (files == null) {
+            continue;
+         }
+         for (File file : files) {
+            if (file.getName().endsWith(ENTRY_SUFFIX)) {
+               Entry entry = new Entry(file);
+               entries.add(entry);
+               totalSize += entry._length;
+            } else if (file.lastModified() < staleStart) {
+               file.delete();
+            }
+         }
+      }
+
+      if (totalSize <= _maxSize) {
+         return 0;
+      }
+
+      // Sort by last use, least recently used first
+      Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+      Arrays.sort(sorted, new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            return a._lastModified < b._lastModified ? -1 : (a._lastModified == b._lastModified ? 0 : 1);
+         }
+      });
+
+      int evicted = 0;
+      for (int i = 0; i < sorted.length && totalSize > _maxSize; i++) {
+         if (sorted[i]._file.delete()) {
+            totalSize -= sorted[i]._length;
+            evicted++;
+         }
+      }
+      return evicted;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Snapshot of the attributes of a cache entry, taken during eviction.
+    */
+   private static final class Entry {
+
+      Entry(File file) {
+         _file         = file;
+         _length       = file.length();
+         _lastModified = file.lastModified();
+      }
+
+      final File _file;
+      final long _length;
+      final long _lastModified;
+   }
+}
@@ -0,0 +1,166 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Orders files so that the ones that take longest are processed first. This
+ * avoids a long tail at the end of a run, where a single large file keeps
+ * one worker busy while all others are idle.
+ *
+ * <p>The duration of each file is estimated from the report of a previous
+ * run, if available. Files that are not in that report are estimated from
+ * their size, using the average time per byte in the report, or just by
+ * their size if there is no report.
+ *
+ * <p>Instances of this class are immutable and can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Schedule {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Reads the durations of the processed files from a report written by a
+    * previous run.
+    *
+    * @param report
+    *    the report file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the durations in milliseconds, indexed by path, never
+    *    <code>null</code>; empty if the report does not exist.
+    *
+    * @throws IOException
+    *    if the report exists but could not be read.
+    */
+   static Map<String,Long> readHistory(File report) throws IOException {
+      if (! report.isFile()) {
+         return Collections.emptyMap();
+      }
+      Map<String,Long> history = new HashMap<String,Long>();
+      ReportReader      reader = new ReportReader(report);
+      try {
+         for (FileRecord record = reader.next(); record != null; record = reader.next()) {
+            if (FileRecord.PROCESSED.equals(record._action) && record._inputBytes > 0L) {
+               history.put(record._path, record._wallTime);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return history;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Schedule</code>.
+    *
+    * @param dir
+    *    the source directory, cannot be <code>null</code>.
+    *
+    * @param history
+    *    the durations of files in a previous run, in milliseconds, indexed
+    *    by path, cannot be <code>null</code>.
+    */
+   Schedule(File dir, Map<String,Long> history) {
+      _dir     = dir;
+      _history = history;
+
+      // Determine the average time per byte
+      long time = 0L, bytes = 0L;
+      for (Map.Entry<String,Long> entry : history.entrySet()) {
+         long size = new File(dir, entry.getKey()).length();
+         if (size > 0L) {
+            time  += entry.getValue();
+            bytes += size;
+         }
+      }
+      _msPerByte = (time > 0L && bytes > 0L) ? (double) time / bytes : 0.0;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The source directory, never <code>null</code>.
+    */
+   private final File _dir;
+
+   /**
+    * The durations of files in a previous run, never <code>null</code>.
+    */
+   private final Map<String,Long> _history;
+
+   /**
+    * The average time per byte in the previous run, in milliseconds, or 0
+    * if unknown.
+    */
+   private final double _msPerByte;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if durations of a previous run are available.
+    */
+   boolean hasHistory() {
+      return _msPerByte > 0.0;
+   }
+
+   /**
+    * Orders the specified files by estimated duration, longest first. Ties
+    * are broken by path, so the order is deterministic.
+    *
+    * @param fileNames
+    *    the paths of the files, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the ordered files, a new array, never <code>null</code>.
+    */
+   String[] order(String[] fileNames) {
+      final Map<String,Double> costs = new HashMap<String,Double>();
+      for (String fileName : fileNames) {
+         costs.put(fileName, estimate(fileName));
+      }
+      String[] ordered = fileNames.clone();
+      Arrays.sort(ordered, new Comparator<String>() {
+         public int compare(String a, String b) {
+            int c = costs.get(b).compareTo(costs.get(a));
+            return c != 0 ? c : a.compareTo(b);
+         }
+      });
+      return ordered;
+   }
+
+   /**
+    * Estimates the duration of the specified file, in milliseconds if there
+    * is a history, otherwise in bytes.
+    */
+   private double estimate(String fileName) {
+      Long duration = _history.get(fileName);
+      if (duration != null && _msPerByte > 0.0) {
+         return duration;
+      }
+      long size = new File(_dir, fileName).length();
+      return (_msPerByte > 0.0) ? size * _msPerByte : size;
+   }
+}
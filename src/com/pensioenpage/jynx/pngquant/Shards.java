@@ -0,0 +1,146 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Deterministic partitioning of a set of files over a number of shards, so
+ * that multiple machines can each process a part of the same file set.
+ * Every machine computes the same partitioning, as long as they all see the
+ * same files; no coordination is needed.
+ *
+ * <p>Files are either assigned by a hash of their relative path (with
+ * <code>'/'</code> as the separator, on all platforms), which keeps the
+ * assignment of a file stable when other files are added or removed, or
+ * by size, which balances the total number of bytes per shard.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Shards {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the shard for the specified file, based on a hash of its
+    * path.
+    *
+    * @param fileName
+    *    the path of the file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param shardCount
+    *    the number of shards, at least 1.
+    *
+    * @return
+    *    the index of the shard, between 0 and <code>shardCount - 1</code>.
+    */
+   static int shardOf(String fileName, int shardCount) {
+      CRC32 crc = new CRC32();
+      try {
+         crc.update(fileName.replace(File.separatorChar, '/').getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException cause) {
+         throw new Error(cause);
+      }
+      return (int) (crc.getValue() % shardCount);
+   }
+
+   /**
+    * Selects the files that belong to the specified shard, by hash.
+    *
+    * @param fileNames
+    *    the paths of all files, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the files in the shard, in their original order, never
+    *    <code>null</code>.
+    */
+   static String[] byHash(String[] fileNames, int shardIndex, int shardCount) {
+      List<String> selected = new ArrayList<String>();
+      for (String fileName : fileNames) {
+         if (shardOf(fileName, shardCount) == shardIndex) {
+            selected.add(fileName);
+         }
+      }
+      return selected.toArray(new String[selected.size()]);
+   }
+
+   /**
+    * Selects the files that belong to the specified shard, by size. The
+    * files are assigned largest first, each to the shard with the lowest
+    * total size so far; ties are broken by path and by shard index, so the
+    * result does not depend on the order of <code>fileNames</code>.
+    *
+    * @param dir
+    *    the source directory, cannot be <code>null</code>.
+    *
+    * @param fileNames
+    *    the paths of all files, relative to <code>dir</code>,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the files in the shard, in their original order, never
+    *    <code>null</code>.
+    */
+   static String[] bySize(File dir, String[] fileNames, int shardIndex, int shardCount) {
+
+      final long[] sizes = new long[fileNames.length];
+      final String[] paths = new String[fileNames.length];
+      Integer[]    order = new Integer[fileNames.length];
+      for (int i = 0; i < fileNames.length; i++) {
+         sizes[i] = new File(dir, fileNames[i]).length();
+         paths[i] = fileNames[i].replace(File.separatorChar, '/');
+         order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            if (sizes[a] != sizes[b]) {
+               return sizes[a] > sizes[b] ? -1 : 1;
+            }
+            return paths[a].compareTo(paths[b]);
+         }
+      });
+
+      long[]     totals = new long[shardCount];
+      boolean[] selected = new boolean[fileNames.length];
+      for (int i : order) {
+         int shard = 0;
+         for (int s = 1; s < shardCount; s++) {
+            if (totals[s] < totals[shard]) {
+               shard = s;
+            }
+         }
+         totals[shard] += sizes[i];
+         selected[i]    = shard == shardIndex;
+      }
+
+      List<String> result = new ArrayList<String>();
+      for (int i = 0; i < fileNames.length; i++) {
+         if (selected[i]) {
+            result.add(fileNames[i]);
+         }
+      }
+      return result.toArray(new String[result.size()]);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Shards</code>. This constructor is private,
+    * since this class only has class functions.
+    */
+   private Shards() {
+      // empty
+   }
+}
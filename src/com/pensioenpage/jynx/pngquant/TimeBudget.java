@@ -0,0 +1,179 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the pngquant speed setting per file, so that the run completes
+ * within a time budget. For each file, the slowest speed (which gives the
+ * best quality) is chosen for which the estimated time to quantize this
+ * file and all files not started yet still fits in the remaining budget.
+ * As the run falls behind, faster speeds are chosen.
+ *
+ * <p>The cost of a file is estimated from its number of pixels and the
+ * throughput measured so far. The measurements for all speeds are
+ * combined, using the relative cost of each speed; until enough has been
+ * measured, a conservative prior throughput is assumed.
+ *
+ * <p>Instances of this class can be used concurrently.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class TimeBudget {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The speeds to choose from, slowest first.
+    */
+   static final int[] SPEEDS = { 1, 3, 6, 10 };
+
+   /**
+    * The cost per pixel of each of the {@link #SPEEDS}, relative to speed 3,
+    * the default of pngquant.
+    */
+   private static final double[] COSTS = { 3.0, 1.0, 0.5, 0.25 };
+
+   /**
+    * The prior throughput at speed 3, as a number of pixels in a number of
+    * milliseconds; it weighs as much as a single 1 megapixel image.
+    */
+   private static final double PRIOR_PIXELS = 1000000.0,
+                               PRIOR_MILLIS = 1000.0;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the relative cost per pixel of the specified speed.
+    */
+   private static double cost(int speed) {
+      for (int i = 0; i < SPEEDS.length; i++) {
+         if (SPEEDS[i] == speed) {
+            return COSTS[i];
+         }
+      }
+      throw new IllegalArgumentException("Unsupported speed: " + speed + '.');
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>TimeBudget</code>, starting now.
+    *
+    * @param budget
+    *    the budget, in milliseconds, at least 1.
+    *
+    * @param threads
+    *    the number of files processed concurrently, at least 1.
+    */
+   TimeBudget(long budget, int threads) {
+      _end     = System.currentTimeMillis() + budget;
+      _threads = threads;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The time at which the budget is spent.
+    */
+   private final long _end;
+
+   /**
+    * The number of files processed concurrently.
+    */
+   private final int _threads;
+
+   /**
+    * The number of pixels in the files submitted, but not started yet.
+    */
+   private final AtomicLong _pending = new AtomicLong();
+
+   /**
+    * The measured work, in pixels weighed by the cost of their speed, and
+    * the time it took, in milliseconds. Guarded by this object.
+    */
+   private double _work, _millis;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Counts files submitted for processing.
+    *
+    * @param pixels
+    *    the total number of pixels in the files.
+    */
+   void queued(long pixels) {
+      _pending.addAndGet(pixels);
+   }
+
+   /**
+    * Counts files started; these are no longer pending.
+    *
+    * @param pixels
+    *    the total number of pixels in the files.
+    */
+   void started(long pixels) {
+      _pending.addAndGet(-pixels);
+   }
+
+   /**
+    * Chooses the speed for a file.
+    *
+    * @param pixels
+    *    the number of pixels in the file, or 0 if unknown.
+    *
+    * @return
+    *    the chosen speed, one of {@link #SPEEDS}.
+    */
+   int choose(long pixels) {
+      long remaining = _end - System.currentTimeMillis();
+      if (remaining <= 0L) {
+         return SPEEDS[SPEEDS.length - 1];
+      }
+
+      double throughput;
+      synchronized (this) {
+         throughput = (PRIOR_PIXELS + _work) / (PRIOR_MILLIS + _millis);
+      }
+      double work = Math.max(0L, _pending.get()) / (double) _threads + pixels;
+      for (int i = 0; i < SPEEDS.length; i++) {
+         if (work * COSTS[i] / throughput <= remaining) {
+            return SPEEDS[i];
+         }
+      }
+      return SPEEDS[SPEEDS.length - 1];
+   }
+
+   /**
+    * Records the time it took to quantize a file.
+    *
+    * @param speed
+    *    the speed used, one of {@link #SPEEDS}.
+    *
+    * @param pixels
+    *    the number of pixels in the file, or 0 if unknown.
+    *
+    * @param millis
+    *    the duration, in milliseconds.
+    */
+   synchronized void completed(int speed, long pixels, long millis) {
+      if (pixels > 0L) {
+         _work   += pixels * cost(speed);
+         _millis += Math.max(1L, millis);
+      }
+   }
+}
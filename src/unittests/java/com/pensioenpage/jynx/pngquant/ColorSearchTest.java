@@ -0,0 +1,131 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link ColorSearch}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ColorSearchTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ColorSearchTest());
+   }
+
+   private static void assertClose(String message, double expected, double actual) {
+      assertTrue(message + " Expected <" + expected + ">, but was <" + actual + ">.", Math.abs(expected - actual) < 1e-9);
+   }
+
+   /**
+    * Creates an opaque gray image with a gradient and some random detail.
+    */
+   private static int[] image(int width, int height, Random random) {
+      int[] argb = new int[width * height];
+      for (int i = 0; i < argb.length; i++) {
+         int gray = Math.min(255, (i % width) * 4 + random.nextInt(32));
+         argb[i] = 0xff000000 | gray << 16 | gray << 8 | gray;
+      }
+      return argb;
+   }
+
+   /**
+    * Creates a trial with an output file of the specified size.
+    */
+   private ColorSearch.Trial trial(int colors, int bytes, double quality) throws IOException {
+      return new ColorSearch.Trial(colors, write(file(colors + ".png"), new byte[bytes]), quality);
+   }
+
+   public void testPsnr() {
+      int[] a = { 0xff000000, 0xff102000, 0x80ffffff, 0x00ff0000 };
+      int[] b = { 0xff000000, 0xff102000, 0x80ffffff, 0x0000ff00 };
+      assertEquals("Identical.", Double.valueOf(Double.POSITIVE_INFINITY), Double.valueOf(ColorSearch.psnr(a, b)));
+
+      // A difference of 255 in 1 of 16 channels: the mean squared error is
+      // 255 * 255 / 16
+      b[1] = 0xff1020ff;
+      assertClose("One channel.", 10.0 * Math.log10(16.0), ColorSearch.psnr(a, b));
+      assertClose("Symmetric.", ColorSearch.psnr(a, b), ColorSearch.psnr(b, a));
+
+      // The alpha channel counts as well
+      b[1] = 0xff102000;
+      b[2] = 0x7fffffff;
+      assertClose("Alpha.", 10.0 * Math.log10(255.0 * 255.0 * 16.0), ColorSearch.psnr(a, b));
+   }
+
+   public void testSsim() {
+      Random random = new Random(1L);
+
+      // The 10x9 image has partial windows at the right and bottom
+      int[] a = image(10, 9, random);
+      assertClose("Identical.", 1.0, ColorSearch.ssim(a, a.clone(), 10, 9));
+      assertClose("Empty.",     1.0, ColorSearch.ssim(new int[0], new int[0], 0, 0));
+
+      int[] noisy = a.clone(), inverted = a.clone();
+      for (int i = 0; i < a.length; i++) {
+         int gray = Math.max(0, Math.min(255, (a[i] & 0xff) + random.nextInt(17) - 8));
+         noisy[i]    = 0xff000000 | gray << 16 | gray << 8 | gray;
+         inverted[i] = a[i] ^ 0x00ffffff;
+      }
+      double slight = ColorSearch.ssim(a, noisy, 10, 9), severe = ColorSearch.ssim(a, inverted, 10, 9);
+      assertTrue("Noise not detected: " + slight + '.', slight < 1.0);
+      assertTrue("Noise worse than inversion: " + slight + " <= " + severe + '.', slight > severe);
+
+      // Pixels are composited on black, so transparency counts
+      int[] transparent = a.clone();
+      transparent[0] = a[0] & 0x00ffffff;
+      assertTrue("Transparency not detected.", ColorSearch.ssim(a, transparent, 10, 9) < 1.0);
+   }
+
+   public void testCandidates() {
+      assertEquals("256 colors.", Arrays.toString(new int[] { 256, 128, 64, 32, 16, 8, 4, 2 }),
+                   Arrays.toString(new ColorSearch(false, 30.0, 0L, 256).candidates()));
+      assertEquals("100 colors.", Arrays.toString(new int[] { 100, 50, 25, 13, 7, 4, 2 }),
+                   Arrays.toString(new ColorSearch(false, 30.0, 0L, 100).candidates()));
+      assertEquals("2 colors.", Arrays.toString(new int[] { 2 }),
+                   Arrays.toString(new ColorSearch(false, 30.0, 0L, 2).candidates()));
+   }
+
+   public void testQualitySizeMismatch() {
+      ColorSearch.Pixels source = new ColorSearch.Pixels(2, 2, new int[4]);
+      try {
+         new ColorSearch(false, 30.0, 0L, 256).quality(source, new ColorSearch.Pixels(4, 1, new int[4]));
+         fail("Different sizes accepted.");
+      } catch (IOException exception) {
+         // expected
+      }
+   }
+
+   public void testChoose() throws Exception {
+      List<ColorSearch.Trial> trials = new ArrayList<ColorSearch.Trial>();
+      trials.add(trial(256, 1000, 40.0));
+      trials.add(trial( 64,  600, 35.0));
+      trials.add(trial( 16,  300, 28.0));
+
+      // The smallest output that meets the target is chosen
+      assertEquals("Quality target.", Integer.valueOf(64), Integer.valueOf(new ColorSearch(false, 30.0, 0L, 256).choose(trials)._colors));
+      assertEquals("Size target.",    Integer.valueOf(16), Integer.valueOf(new ColorSearch(false, 0.0, 700L, 256).choose(trials)._colors));
+      assertEquals("Both targets.",   Integer.valueOf(64), Integer.valueOf(new ColorSearch(false, 30.0, 600L, 256).choose(trials)._colors));
+
+      // If none does, the best quality is chosen if there is a quality
+      // target, otherwise the smallest output
+      ColorSearch search = new ColorSearch(false, 30.0, 500L, 256);
+      assertTrue("Target met.", ! search.meets(search.choose(trials)));
+      assertEquals("Quality fallback.", Integer.valueOf(256), Integer.valueOf(search.choose(trials)._colors));
+      search = new ColorSearch(false, 0.0, 200L, 256);
+      assertTrue("Target met.", ! search.meets(search.choose(trials)));
+      assertEquals("Size fallback.", Integer.valueOf(16), Integer.valueOf(search.choose(trials)._colors));
+
+      // The order of the trials does not matter
+      Collections.reverse(trials);
+      assertEquals("Reversed.", Integer.valueOf(64), Integer.valueOf(new ColorSearch(false, 30.0, 0L, 256).choose(trials)._colors));
+
+      assertTrue("Chosen without trials.", new ColorSearch(false, 30.0, 0L, 256).choose(new ArrayList<ColorSearch.Trial>()) == null);
+   }
+}
@@ -0,0 +1,94 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link ConcurrencyController}, passing the time and
+ * the load average explicitly.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ConcurrencyControllerTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ConcurrencyControllerTest());
+   }
+
+   private static ThreadPoolExecutor pool(int threads) {
+      return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+   }
+
+   private static void assertThreads(String message, int expected, ThreadPoolExecutor pool) {
+      assertEquals(message + " Maximum.", Integer.valueOf(expected), Integer.valueOf(pool.getMaximumPoolSize()));
+      assertEquals(message + " Core.",    Integer.valueOf(expected), Integer.valueOf(pool.getCorePoolSize()));
+   }
+
+   public void testReversesWhenThroughputDrops() {
+      ThreadPoolExecutor pool = pool(2);
+      try {
+         ConcurrencyController controller = new ConcurrencyController(pool, 8, 8, 0L);
+
+         // Nothing changes before the end of a window
+         assertTrue("Adjusted within a window.", ! controller.completed(500L, 500L, 0.0));
+         assertThreads("Within a window.", 2, pool);
+
+         // The pool grows at first, and keeps growing while that helps
+         assertTrue("Not adjusted.", controller.completed(500L, 1000L, 0.0));
+         assertThreads("First window.", 3, pool);
+         assertTrue("Not adjusted.", controller.completed(2000L, 2000L, 0.0));
+         assertThreads("Improved.", 4, pool);
+
+         // When the throughput drops, the direction is reversed, each time
+         assertTrue("Not adjusted.", controller.completed(1000L, 3000L, 0.0));
+         assertThreads("Dropped.", 3, pool);
+         assertTrue("Not adjusted.", controller.completed(500L, 4000L, 0.0));
+         assertThreads("Dropped again.", 4, pool);
+
+         // When it stays the same, the extra thread did not help
+         assertTrue("Not adjusted.", controller.completed(500L, 5000L, 0.0));
+         assertThreads("Unchanged.", 3, pool);
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   public void testCappedByMaximum() {
+      ThreadPoolExecutor pool = pool(2);
+      try {
+         ConcurrencyController controller = new ConcurrencyController(pool, 2, 8, 0L);
+         assertTrue("Adjusted beyond the maximum.", ! controller.completed(1000L, 1000L, 0.0));
+         assertThreads("At the maximum.", 2, pool);
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   public void testCappedByLoadAverage() {
+      ThreadPoolExecutor pool = pool(4);
+      try {
+         ConcurrencyController controller = new ConcurrencyController(pool, 16, 4, 0L);
+
+         // With a load of 6 on 4 processors, of which this pool accounts for
+         // 4, other work keeps 2 processors busy
+         assertTrue("Not adjusted.", controller.completed(1000L, 1000L, 6.0));
+         assertThreads("Other work on 2 processors.", 2, pool);
+
+         // Once the other work is done, the pool can grow again
+         assertTrue("Not adjusted.", controller.completed(2000L, 2000L, 2.0));
+         assertThreads("No other work.", 3, pool);
+
+         // The pool keeps at least one thread, however busy the system is
+         assertTrue("Not adjusted.", controller.completed(3000L, 3000L, 9.0));
+         assertThreads("Other work on all processors.", 1, pool);
+
+         // Without a load average, only the maximum applies
+         assertTrue("Not adjusted.", controller.completed(4000L, 4000L, -1.0));
+         assertThreads("Unknown load average.", 2, pool);
+      } finally {
+         pool.shutdown();
+      }
+   }
+}
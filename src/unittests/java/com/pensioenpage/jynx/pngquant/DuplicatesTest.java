@@ -0,0 +1,49 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link Duplicates}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class DuplicatesTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new DuplicatesTest());
+   }
+
+   public void testGrouping() throws Exception {
+      write(file("b/logo.png"),  "logo");
+      write(file("a/logo.png"),  "logo");
+      write(file("c/logo.png"),  "logo");
+      write(file("icon.png"),    "icon");
+      write(file("other.png"),   "ICON");
+      write(file("copy.png"),    "icon");
+      write(file("unique.png"),  "unique");
+      String[] names = { "b/logo.png", "c/logo.png", "icon.png", "other.png", "a/logo.png", "copy.png", "unique.png" };
+
+      Map<String,List<String>> duplicates = Duplicates.find(dir(), names);
+
+      // The representative is the lowest path; files of the same size but
+      // with different contents are not duplicates
+      assertEquals("Representatives.", Arrays.asList("a/logo.png", "copy.png"), new ArrayList<String>(duplicates.keySet()));
+      assertEquals("Duplicates of a/logo.png.", Arrays.asList("b/logo.png", "c/logo.png"), duplicates.get("a/logo.png"));
+      assertEquals("Duplicates of copy.png.",   Arrays.asList("icon.png"),                  duplicates.get("copy.png"));
+   }
+
+   public void testIgnoredFiles() throws Exception {
+      write(file("a.png"),   new byte[0]);
+      write(file("b.png"),   new byte[0]);
+      write(file("c.txt"),   "text");
+      write(file("d.txt"),   "text");
+      write(file("e.png"),   "single");
+
+      Map<String,List<String>> duplicates = Duplicates.find(dir(), new String[] { "a.png", "b.png", "c.txt", "d.txt", "e.png", "missing.png" });
+      assertTrue("Empty, missing or non-PNG files grouped: " + duplicates, duplicates.isEmpty());
+   }
+}
@@ -0,0 +1,115 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Unit tests for the {@link FileLinker}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class FileLinkerTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new FileLinkerTest());
+   }
+
+   /**
+    * Finds a writable directory on another file system than the temporary
+    * directory of the test, to make hard links fail.
+    *
+    * @return
+    *    the directory, or <code>null</code> if there is none.
+    */
+   private File otherFileSystem() throws Exception {
+      FileStore store = Files.getFileStore(dir().toPath());
+      for (String path : new String[] { System.getProperty("filelinker.otherdir"), "/dev/shm", "/run/shm" }) {
+         File candidate = (path == null) ? null : new File(path);
+         if (candidate != null && candidate.isDirectory() && candidate.canWrite()
+          && ! store.equals(Files.getFileStore(candidate.toPath()))) {
+            return Files.createTempDirectory(candidate.toPath(), getClass().getSimpleName()).toFile();
+         }
+      }
+      return null;
+   }
+
+   private static void assertCopy(File source, File target, String method) throws Exception {
+      assertTrue("Target differs from source.", Arrays.equals(read(source), read(target)));
+      assertEquals("Target is a hard link.", Boolean.valueOf(FileLinker.HARDLINK.equals(method)),
+                   Boolean.valueOf(Files.isSameFile(source.toPath(), target.toPath())));
+   }
+
+   public void testHardLink() throws Exception {
+      File source = write(file("a.png"), "contents");
+      File target = file("out/a.png");
+
+      FileLinker linker = new FileLinker(FileLinker.HARDLINK);
+      assertEquals("Method.", FileLinker.HARDLINK, linker.link(source, target));
+      assertCopy(source, target, FileLinker.HARDLINK);
+   }
+
+   public void testReflinkFallsBackToCopy() throws Exception {
+      File source = write(file("a.png"), "contents");
+
+      // Reflinks depend on the file system; if unsupported, the linker
+      // copies and does not try again
+      FileLinker linker = new FileLinker(FileLinker.REFLINK);
+      String      first = linker.link(source, file("out/a.png"));
+      assertTrue("Unexpected method: " + first, FileLinker.REFLINK.equals(first) || FileLinker.COPY.equals(first));
+      assertCopy(source, file("out/a.png"), first);
+      assertEquals("Method after the first link.", first, linker.link(source, file("out/b.png")));
+      assertCopy(source, file("out/b.png"), first);
+   }
+
+   public void testCopy() throws Exception {
+      File source = write(file("a.png"), "contents");
+      File target = write(file("out/a.png"), "existing, longer contents");
+
+      assertEquals("Method.", FileLinker.COPY, new FileLinker(FileLinker.COPY).link(source, target));
+      assertCopy(source, target, FileLinker.COPY);
+   }
+
+   public void testFallbackOrder() throws Exception {
+      File other = otherFileSystem();
+      if (other == null) {
+         System.out.println("No other file system available, skipping fallback test.");
+         return;
+      }
+      try {
+         File source = write(file("a.png"), "contents");
+
+         // A hard link across file systems fails, and so does a reflink;
+         // neither is attempted again
+         FileLinker linker = new FileLinker(FileLinker.HARDLINK);
+         assertEquals("Method across file systems.", FileLinker.COPY, linker.link(source, new File(other, "a.png")));
+         assertCopy(source, new File(other, "a.png"), FileLinker.COPY);
+         assertEquals("Method after a failed hard link.", FileLinker.COPY, linker.link(source, file("out/a.png")));
+         assertCopy(source, file("out/a.png"), FileLinker.COPY);
+      } finally {
+         new File(other, "a.png").delete();
+         other.delete();
+      }
+   }
+
+   public void testSameFile() throws Exception {
+      File source = write(file("a.png"), "contents");
+
+      assertEquals("Method.", FileLinker.COPY, new FileLinker(FileLinker.HARDLINK).link(source, file("./a.png")));
+      assertEquals("Contents.", "contents", new String(read(source), "UTF-8"));
+   }
+
+   public void testUnshare() throws Exception {
+      File single = write(file("single.png"), "contents");
+      File linked = write(file("linked.png"), "contents");
+      Files.createLink(file("link.png").toPath(), linked.toPath());
+
+      FileLinker.unshare(single);
+      FileLinker.unshare(linked);
+      assertTrue("File without other links removed.", single.exists());
+      assertTrue("File with other links not removed.", ! linked.exists());
+      assertTrue("Other link removed.", file("link.png").exists());
+   }
+}
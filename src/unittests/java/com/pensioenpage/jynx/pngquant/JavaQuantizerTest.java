@@ -0,0 +1,106 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Unit tests for the {@link JavaQuantizer}, comparing images that are
+ * streamed row by row with images that are quantized in memory.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class JavaQuantizerTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new JavaQuantizerTest());
+   }
+
+   /**
+    * Writes an image with at most 64 distinct colors, some of them
+    * translucent, so that a palette of 256 colors fits all of them.
+    */
+   private static File fewColors(File file, boolean interlaced) throws Exception {
+      BufferedImage image = new BufferedImage(150, 70, BufferedImage.TYPE_INT_ARGB);
+      for (int y = 0; y < image.getHeight(); y++) {
+         for (int x = 0; x < image.getWidth(); x++) {
+            int alpha = (x / 10) % 4 == 3 ? 0x80 : 0xff;
+            image.setRGB(x, y, alpha << 24 | ((x / 10) * 17) << 16 | ((y / 20) * 60) << 8 | 0x40);
+         }
+      }
+      file.getParentFile().mkdirs();
+      ImageWriter         writer = ImageIO.getImageWritersByFormatName("png").next();
+      ImageWriteParam      param = writer.getDefaultWriteParam();
+      ImageOutputStream      out = ImageIO.createImageOutputStream(file);
+      param.setProgressiveMode(interlaced ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+      try {
+         writer.setOutput(out);
+         writer.write(null, new IIOImage(image, null, null), param);
+      } finally {
+         out.close();
+         writer.dispose();
+      }
+      return file;
+   }
+
+   private static void assertSamePixels(String message, int[][] expected, int[][] actual) {
+      assertEquals(message + " Height.", Integer.valueOf(expected.length), Integer.valueOf(actual.length));
+      for (int y = 0; y < expected.length; y++) {
+         assertTrue(message + " Row " + y + " differs.", Arrays.equals(expected[y], actual[y]));
+      }
+   }
+
+   public void testStreamingMatchesInMemory() throws Exception {
+      File   inFile = fewColors(file("in.png"), false);
+      int[][] input = PngRowReaderTest.decodeWithImageIo(inFile);
+
+      // Both paths produce the same pixels, whatever the dithering; with
+      // every color in the palette, error diffusion reproduces the input
+      for (boolean dithering : new boolean[] { false, true }) {
+         File streamed = file("streamed-" + dithering + ".png");
+         File inMemory = file("in-memory-" + dithering + ".png");
+         new JavaQuantizer(256, dithering, 1L).quantize(inFile, streamed);
+         new JavaQuantizer(256, dithering).quantize(inFile, inMemory);
+         int[][] pixels = PngRowReaderTest.decodeWithImageIo(inMemory);
+         assertSamePixels("Streamed, dithering " + dithering + '.', pixels, PngRowReaderTest.decodeWithImageIo(streamed));
+         if (dithering) {
+            assertSamePixels("In memory.", input, pixels);
+         }
+      }
+
+      // With fewer colors, the outputs are reduced in the same way
+      File streamed = file("streamed.png"), inMemory = file("in-memory.png");
+      new JavaQuantizer(16, true, 1L).quantize(inFile, streamed);
+      new JavaQuantizer(16, true).quantize(inFile, inMemory);
+      assertTrue("Too many colors.", PngHeader.read(streamed).maxColors() <= 16);
+      assertSamePixels("Streamed, 16 colors.", PngRowReaderTest.decodeWithImageIo(inMemory), PngRowReaderTest.decodeWithImageIo(streamed));
+   }
+
+   public void testStreamingWithPalette() throws Exception {
+      File        inFile = fewColors(file("in.png"), false);
+      JavaQuantizer java = new JavaQuantizer(256, true);
+      int[]      palette = java.palette(java.histogram(inFile));
+
+      File streamed = file("streamed.png"), inMemory = file("in-memory.png");
+      new JavaQuantizer(256, true, 1L).quantize(inFile, streamed, palette);
+      java.quantize(inFile, inMemory, palette);
+      assertSamePixels("Streamed.", PngRowReaderTest.decodeWithImageIo(inMemory), PngRowReaderTest.decodeWithImageIo(streamed));
+   }
+
+   public void testInterlacedNotStreamed() throws Exception {
+      File inFile = fewColors(file("in.png"), true);
+      assertTrue("Input is not interlaced.", PngHeader.read(inFile)._interlaced);
+
+      // Interlaced images cannot be read row by row, they are quantized in
+      // memory instead
+      File outFile = file("out.png");
+      new JavaQuantizer(256, true, 1L).quantize(inFile, outFile);
+      assertSamePixels("Output.", PngRowReaderTest.decodeWithImageIo(inFile), PngRowReaderTest.decodeWithImageIo(outFile));
+   }
+}
@@ -0,0 +1,119 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link Manifest}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ManifestTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ManifestTest());
+   }
+
+   private File _sourceDir, _destDir, _manifestFile;
+
+   private Manifest load() throws Exception {
+      _sourceDir    = file("src");
+      _destDir      = file("dest");
+      _manifestFile = new File(_destDir, Manifest.FILE_NAME);
+      _sourceDir.mkdirs();
+      _destDir.mkdirs();
+      return new Manifest(_manifestFile, _sourceDir);
+   }
+
+   private boolean isUpToDate(Manifest manifest, String name, String parameters) throws Exception {
+      File inFile = new File(_sourceDir, name);
+      return manifest.isUpToDate(name, inFile, inFile.length(), inFile.lastModified(), new File(_destDir, name), parameters);
+   }
+
+   public void testUpToDate() throws Exception {
+      Manifest manifest = load();
+      File       inFile = write(new File(_sourceDir, "a.png"), "input");
+      File      outFile = write(new File(_destDir,   "a.png"), "output");
+
+      assertTrue("Unrecorded file is up-to-date.", ! isUpToDate(manifest, "a.png", "colors=256"));
+      manifest.put("a.png", inFile, outFile, "colors=256");
+      assertTrue("Recorded file is not up-to-date.", isUpToDate(manifest, "a.png", "colors=256"));
+      assertTrue("File is up-to-date with other parameters.", ! isUpToDate(manifest, "a.png", "colors=16"));
+
+      // Touching a file without changing it does not make it out of date
+      inFile.setLastModified(inFile.lastModified() - 10000L);
+      assertTrue("Touched file is not up-to-date.", isUpToDate(manifest, "a.png", "colors=256"));
+
+      write(inFile, "changed input");
+      assertTrue("Changed input file is up-to-date.", ! isUpToDate(manifest, "a.png", "colors=256"));
+      manifest.put("a.png", inFile, outFile, "colors=256");
+      write(outFile, "changed output");
+      assertTrue("Changed output file is up-to-date.", ! isUpToDate(manifest, "a.png", "colors=256"));
+      outFile.delete();
+      assertTrue("Missing output file is up-to-date.", ! isUpToDate(manifest, "a.png", "colors=256"));
+   }
+
+   public void testStore() throws Exception {
+      Manifest manifest = load();
+      manifest.store();
+      assertTrue("Unchanged manifest written.", ! _manifestFile.exists());
+
+      File inFile = write(new File(_sourceDir, "sub/a.png"), "input");
+      manifest.put("sub/a.png", inFile, write(new File(_destDir, "sub/a.png"), "output"), "colors=256");
+      manifest.store();
+      assertTrue("Manifest not written.", _manifestFile.isFile());
+
+      // Entries for another source directory are kept
+      Manifest other = new Manifest(_manifestFile, file("other"));
+      other.put("b.png", write(file("other/b.png"), "other"), write(new File(_destDir, "b.png"), "other output"), "colors=256");
+      other.store();
+
+      Manifest reloaded = new Manifest(_manifestFile, _sourceDir);
+      assertTrue("Reloaded entry is not up-to-date.", isUpToDate(reloaded, "sub/a.png", "colors=256"));
+      assertTrue("Entry of other source directory visible.", ! isUpToDate(reloaded, "b.png", "colors=256"));
+      reloaded.remove("sub/a.png");
+      reloaded.store();
+
+      assertTrue("Removed entry is up-to-date.", ! isUpToDate(new Manifest(_manifestFile, _sourceDir), "sub/a.png", "colors=256"));
+      Manifest otherReloaded = new Manifest(_manifestFile, file("other"));
+      assertTrue("Entry of other source directory lost.",
+                 otherReloaded.isUpToDate("b.png", file("other/b.png"), file("other/b.png").length(), file("other/b.png").lastModified(),
+                                          new File(_destDir, "b.png"), "colors=256"));
+   }
+
+   public void testPruneKeepsOutputsByDefault() throws Exception {
+      Manifest manifest = load();
+      File       inFile = write(new File(_sourceDir, "a.png"), "input");
+      File      outFile = write(new File(_destDir,   "a.png"), "output");
+      manifest.put("a.png", inFile, outFile, "colors=256");
+      inFile.delete();
+
+      assertTrue("Output deleted.", manifest.prune(false).isEmpty());
+      assertTrue("Output file gone.", outFile.exists());
+
+      // The entry is gone, even though the output file was kept
+      write(inFile, "input");
+      assertTrue("Pruned entry is up-to-date.", ! isUpToDate(manifest, "a.png", "colors=256"));
+   }
+
+   public void testPrune() throws Exception {
+      Manifest manifest = load();
+      for (String name : new String[] { "a.png", "b.png", "c.png" }) {
+         manifest.put(name, write(new File(_sourceDir, name), "input " + name), write(new File(_destDir, name), "output " + name), "");
+      }
+      new File(_sourceDir, "a.png").delete();
+      new File(_sourceDir, "b.png").delete();
+
+      // Output files changed by others are not deleted
+      File changed = write(new File(_destDir, "b.png"), "changed by someone else");
+
+      List<File> pruned = manifest.prune(true);
+      assertEquals("Pruned files.", 1, pruned.size());
+      assertEquals("Pruned file.", new File(_destDir, "a.png"), pruned.get(0));
+      assertTrue("Output of removed file still exists.", ! new File(_destDir, "a.png").exists());
+      assertTrue("Changed output file deleted.", changed.exists());
+      assertTrue("Output of existing file deleted.", new File(_destDir, "c.png").exists());
+      assertTrue("Remaining entry not up-to-date.", isUpToDate(manifest, "c.png", ""));
+   }
+}
@@ -0,0 +1,43 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for the {@link PngOptimizer}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class PngOptimizerTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new PngOptimizerTest());
+   }
+
+   private static int[] pixels(File file) throws Exception {
+      BufferedImage image = ImageIO.read(file);
+      return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+   }
+
+   public void testLossless() throws Exception {
+      File     file = png(file("a.png"), 100, 80);
+      int[]  before = pixels(file);
+      long   length = file.length();
+
+      long saved = new PngOptimizer(Long.MAX_VALUE).optimize(file);
+      assertEquals("Bytes saved.", Long.valueOf(length - file.length()), Long.valueOf(saved));
+      assertTrue("Pixels changed.", Arrays.equals(before, pixels(file)));
+   }
+
+   public void testPixelLimit() throws Exception {
+      File      file = png(file("a.png"), 100, 80);
+      byte[] before = read(file);
+
+      assertEquals("Result at the limit.", Long.valueOf(-1L), Long.valueOf(new PngOptimizer(100L * 80L).optimize(file)));
+      assertTrue("File changed.", Arrays.equals(before, read(file)));
+      assertTrue("Not optimized below the limit.", new PngOptimizer(100L * 80L + 1L).optimize(file) >= 0L);
+   }
+}
@@ -0,0 +1,404 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for the {@link PngRowReader}. The images are encoded by the
+ * tests themselves, so that all color types, bit depths and chunk layouts
+ * can be covered, or by ImageIO, which uses all filter types.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class PngRowReaderTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new PngRowReaderTest());
+   }
+
+   /**
+    * The PNG color types.
+    */
+   private static final int GRAYSCALE       = 0,
+                            TRUECOLOR       = 2,
+                            INDEXED         = 3,
+                            GRAYSCALE_ALPHA = 4,
+                            TRUECOLOR_ALPHA = 6;
+
+   /**
+    * The size of the images encoded by the tests; the width is not a
+    * multiple of 8, so that rows end in a partial byte.
+    */
+   private static final int WIDTH = 13, HEIGHT = 7;
+
+   /**
+    * Describes a PNG image to encode.
+    */
+   private static final class Image {
+
+      Image(int bitDepth, int colorType, int[][] samples) {
+         _bitDepth  = bitDepth;
+         _colorType = colorType;
+         _samples   = samples;
+      }
+
+      final int     _bitDepth, _colorType;
+
+      /**
+       * The samples of each row, as stored.
+       */
+      final int[][] _samples;
+
+      byte[]  _palette, _transparency;
+      boolean _interlaced;
+
+      /**
+       * The maximum size of an <code>IDAT</code> chunk.
+       */
+      int _chunkSize = Integer.MAX_VALUE;
+   }
+
+   private static byte[] chunk(String type, byte[] data) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream        out = new DataOutputStream(bytes);
+      CRC32                   crc = new CRC32();
+      crc.update(type.getBytes("US-ASCII"));
+      crc.update(data);
+      out.writeInt(data.length);
+      out.writeBytes(type);
+      out.write(data);
+      out.writeInt((int) crc.getValue());
+      return bytes.toByteArray();
+   }
+
+   private static byte[] shorts(int... values) {
+      byte[] bytes = new byte[values.length * 2];
+      for (int i = 0; i < values.length; i++) {
+         bytes[i * 2]     = (byte) (values[i] >>> 8);
+         bytes[i * 2 + 1] = (byte)  values[i];
+      }
+      return bytes;
+   }
+
+   /**
+    * Packs samples into a row of bytes, as stored in a PNG image.
+    */
+   private static byte[] pack(int[] samples, int bitDepth) {
+      if (bitDepth == 16) {
+         return shorts(samples);
+      }
+      byte[] row = new byte[(samples.length * bitDepth + 7) / 8];
+      for (int i = 0; i < samples.length; i++) {
+         int   bit = i * bitDepth;
+         int shift = 8 - bitDepth - (bit & 7);
+         row[bit >>> 3] |= (byte) (samples[i] << shift);
+      }
+      return row;
+   }
+
+   /**
+    * Encodes an image, using the "none" filter for even rows and the "up"
+    * filter for odd rows.
+    */
+   private static byte[] encode(Image image) throws IOException {
+      int height = image._samples.length;
+      int  width = image._samples[0].length / (image._colorType == TRUECOLOR       ? 3
+                                             : image._colorType == GRAYSCALE_ALPHA ? 2
+                                             : image._colorType == TRUECOLOR_ALPHA ? 4
+                                             : 1);
+
+      // Filter and deflate the rows
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+      DeflaterOutputStream      data = new DeflaterOutputStream(deflated, new Deflater());
+      byte[]                   prior = null;
+      for (int y = 0; y < height; y++) {
+         byte[]   row = pack(image._samples[y], image._bitDepth);
+         byte[] bytes = row.clone();
+         if (y % 2 == 1) {
+            for (int i = 0; i < bytes.length; i++) {
+               bytes[i] = (byte) (row[i] - prior[i]);
+            }
+         }
+         data.write(y % 2 == 1 ? 2 : 0);
+         data.write(bytes);
+         prior = row;
+      }
+      data.close();
+
+      // Write the chunks
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+      byte[] header = new byte[13];
+      System.arraycopy(shorts(0, width, 0, height), 0, header, 0, 8);
+      header[8]  = (byte) image._bitDepth;
+      header[9]  = (byte) image._colorType;
+      header[12] = (byte) (image._interlaced ? 1 : 0);
+      out.write(chunk("IHDR", header));
+      if (image._palette != null) {
+         out.write(chunk("PLTE", image._palette));
+      }
+      if (image._transparency != null) {
+         out.write(chunk("tRNS", image._transparency));
+      }
+      byte[] idat = deflated.toByteArray();
+      for (int offset = 0; offset < idat.length; offset += image._chunkSize) {
+         out.write(chunk("IDAT", Arrays.copyOfRange(idat, offset, (int) Math.min(idat.length, (long) offset + image._chunkSize))));
+      }
+      out.write(chunk("IEND", new byte[0]));
+      return out.toByteArray();
+   }
+
+   /**
+    * Decodes all rows of the specified file.
+    */
+   static int[][] decode(File file) throws IOException {
+      PngRowReader reader = new PngRowReader(file);
+      try {
+         int[][] rows = new int[reader._height][reader._width];
+         for (int[] row : rows) {
+            reader.readRow(row);
+         }
+         return rows;
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Decodes all rows of the specified file using ImageIO.
+    */
+   static int[][] decodeWithImageIo(File file) throws IOException {
+      BufferedImage image = ImageIO.read(file);
+      int[][]        rows = new int[image.getHeight()][image.getWidth()];
+      for (int y = 0; y < rows.length; y++) {
+         image.getRGB(0, y, rows[y].length, 1, rows[y], 0, rows[y].length);
+      }
+      return rows;
+   }
+
+   /**
+    * Generates random samples of the specified bit depth. Samples of 16
+    * bits have equal bytes, so they scale to 8 bits exactly.
+    */
+   private static int[][] samples(Random random, int channels, int bitDepth) {
+      int[][] samples = new int[HEIGHT][WIDTH * channels];
+      for (int[] row : samples) {
+         for (int i = 0; i < row.length; i++) {
+            row[i] = bitDepth == 16 ? random.nextInt(256) * 257 : random.nextInt(1 << bitDepth);
+         }
+      }
+      return samples;
+   }
+
+   /**
+    * Scales a sample to 8 bits.
+    */
+   private static int scale(int sample, int bitDepth) {
+      return bitDepth == 16 ? sample >>> 8 : sample * 255 / ((1 << bitDepth) - 1);
+   }
+
+   private static int argb(int a, int r, int g, int b) {
+      return (a << 24) | (r << 16) | (g << 8) | b;
+   }
+
+   private void assertDecodes(String message, Image image, int[][] expected) throws IOException {
+      File file = write(file("image.png"), encode(image));
+      int[][] actual = decode(file);
+      for (int y = 0; y < expected.length; y++) {
+         assertTrue(message + " Row " + y + " differs: " + Arrays.toString(actual[y]) + '.', Arrays.equals(expected[y], actual[y]));
+      }
+   }
+
+   public void testGrayscale() throws Exception {
+      Random random = new Random(1L);
+      for (int bitDepth : new int[] { 1, 2, 4, 8, 16 }) {
+         int[][] samples = samples(random, 1, bitDepth);
+         int transparent = samples[0][0];
+
+         // Without and with a transparent gray level
+         for (boolean trns : new boolean[] { false, true }) {
+            Image image = new Image(bitDepth, GRAYSCALE, samples);
+            image._transparency = trns ? shorts(transparent) : null;
+            int[][] expected = new int[HEIGHT][WIDTH];
+            for (int y = 0; y < HEIGHT; y++) {
+               for (int x = 0; x < WIDTH; x++) {
+                  int gray = scale(samples[y][x], bitDepth);
+                  expected[y][x] = argb(trns && samples[y][x] == transparent ? 0 : 255, gray, gray, gray);
+               }
+            }
+            assertDecodes("Bit depth " + bitDepth + ", tRNS " + trns + '.', image, expected);
+         }
+      }
+   }
+
+   public void testTruecolor() throws Exception {
+      Random random = new Random(2L);
+      for (int bitDepth : new int[] { 8, 16 }) {
+         int[][] samples = samples(random, 3, bitDepth);
+         int[]     color = Arrays.copyOfRange(samples[1], 6, 9);
+         samples[2][6] = color[0];
+         samples[2][7] = color[1];
+         samples[2][8] = color[2];
+
+         // Without and with a transparent color, which occurs twice
+         for (boolean trns : new boolean[] { false, true }) {
+            Image image = new Image(bitDepth, TRUECOLOR, samples);
+            image._transparency = trns ? shorts(color) : null;
+            int[][] expected = new int[HEIGHT][WIDTH];
+            for (int y = 0; y < HEIGHT; y++) {
+               for (int x = 0; x < WIDTH; x++) {
+                  int[]    rgb = Arrays.copyOfRange(samples[y], x * 3, x * 3 + 3);
+                  expected[y][x] = argb(trns && Arrays.equals(rgb, color) ? 0 : 255,
+                                        scale(rgb[0], bitDepth), scale(rgb[1], bitDepth), scale(rgb[2], bitDepth));
+               }
+            }
+            assertDecodes("Bit depth " + bitDepth + ", tRNS " + trns + '.', image, expected);
+         }
+         assertEquals("Transparent pixels.", Integer.valueOf(0), Integer.valueOf(decode(file("image.png"))[2][2] >>> 24));
+      }
+   }
+
+   public void testGrayscaleAlpha() throws Exception {
+      Random random = new Random(3L);
+      for (int bitDepth : new int[] { 8, 16 }) {
+         int[][] samples = samples(random, 2, bitDepth);
+         int[][] expected = new int[HEIGHT][WIDTH];
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               int gray = scale(samples[y][x * 2], bitDepth);
+               expected[y][x] = argb(scale(samples[y][x * 2 + 1], bitDepth), gray, gray, gray);
+            }
+         }
+         assertDecodes("Bit depth " + bitDepth + '.', new Image(bitDepth, GRAYSCALE_ALPHA, samples), expected);
+      }
+   }
+
+   public void testTruecolorAlpha() throws Exception {
+      Random random = new Random(4L);
+      for (int bitDepth : new int[] { 8, 16 }) {
+         int[][] samples = samples(random, 4, bitDepth);
+         int[][] expected = new int[HEIGHT][WIDTH];
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               int[] s = samples[y];
+               expected[y][x] = argb(scale(s[x * 4 + 3], bitDepth), scale(s[x * 4], bitDepth),
+                                     scale(s[x * 4 + 1], bitDepth), scale(s[x * 4 + 2], bitDepth));
+            }
+         }
+         assertDecodes("Bit depth " + bitDepth + '.', new Image(bitDepth, TRUECOLOR_ALPHA, samples), expected);
+      }
+   }
+
+   public void testIndexed() throws Exception {
+      Random random = new Random(5L);
+      for (int bitDepth : new int[] { 1, 2, 4, 8 }) {
+         int       size = 1 << bitDepth;
+         byte[] palette = new byte[size * 3];
+         random.nextBytes(palette);
+         int[][] samples = samples(random, 1, bitDepth);
+
+         // Without transparency, and with alpha values for only the first
+         // entries; the others are opaque
+         for (boolean trns : new boolean[] { false, true }) {
+            Image image = new Image(bitDepth, INDEXED, samples);
+            image._palette      = palette;
+            image._transparency = trns ? new byte[] { 0, (byte) 128 } : null;
+            int[][] expected = new int[HEIGHT][WIDTH];
+            for (int y = 0; y < HEIGHT; y++) {
+               for (int x = 0; x < WIDTH; x++) {
+                  int index = samples[y][x];
+                  int alpha = ! trns || index > 1 ? 255 : (index == 0 ? 0 : 128);
+                  expected[y][x] = argb(alpha, palette[index * 3] & 0xff, palette[index * 3 + 1] & 0xff, palette[index * 3 + 2] & 0xff);
+               }
+            }
+            assertDecodes("Bit depth " + bitDepth + ", tRNS " + trns + '.', image, expected);
+         }
+      }
+   }
+
+   public void testMultipleDataChunks() throws Exception {
+      Image image = new Image(8, TRUECOLOR_ALPHA, samples(new Random(6L), 4, 8));
+      int[][] expected = decode(write(file("single.png"), encode(image)));
+
+      // The image data may be split anywhere
+      for (int chunkSize : new int[] { 1, 7, 64 }) {
+         image._chunkSize = chunkSize;
+         assertDecodes("Chunk size " + chunkSize + '.', image, expected);
+      }
+   }
+
+   public void testImageIo() throws Exception {
+      Random random = new Random(7L);
+      int      size = 64;
+      byte[]    rgb = new byte[16 * 3];
+      random.nextBytes(rgb);
+      byte[] r = new byte[16], g = new byte[16], b = new byte[16];
+      for (int i = 0; i < 16; i++) {
+         r[i] = rgb[i * 3];
+         g[i] = rgb[i * 3 + 1];
+         b[i] = rgb[i * 3 + 2];
+      }
+
+      // ImageIO picks a filter per row, so all filter types are covered
+      BufferedImage[] images = {
+         new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB),
+         new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB),
+         new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(2, 4, r, g, b)),
+         new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(4, 16, r, g, b)),
+         new BufferedImage(size, size, BufferedImage.TYPE_BYTE_INDEXED)
+      };
+      for (int i = 0; i < images.length; i++) {
+         BufferedImage image = images[i];
+         for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+               int gradient = argb(255, x * 4, y * 4, (x + y) * 2);
+               image.setRGB(x, y, random.nextInt(4) == 0 ? random.nextInt() : gradient);
+            }
+         }
+         File file = file(i + ".png");
+         ImageIO.write(image, "png", file);
+         int[][] expected = decodeWithImageIo(file), actual = decode(file);
+         for (int y = 0; y < size; y++) {
+            assertTrue("Image " + i + ", row " + y + " differs.", Arrays.equals(expected[y], actual[y]));
+         }
+      }
+   }
+
+   public void testTruncated() throws Exception {
+      byte[] encoded = encode(new Image(8, TRUECOLOR, samples(new Random(8L), 3, 8)));
+
+      // Cut off in the header, and in the image data
+      for (int length : new int[] { 20, 40, encoded.length - 30 }) {
+         File file = write(file("image.png"), Arrays.copyOf(encoded, length));
+         try {
+            decode(file);
+            fail("Image truncated to " + length + " bytes accepted.");
+         } catch (IOException exception) {
+            // expected
+         }
+      }
+   }
+
+   public void testInterlacedRejected() throws Exception {
+      Image image = new Image(8, GRAYSCALE, samples(new Random(9L), 1, 8));
+      image._interlaced = true;
+      File file = write(file("image.png"), encode(image));
+      try {
+         new PngRowReader(file).close();
+         fail("Interlaced image accepted.");
+      } catch (IOException exception) {
+         assertTrue("Unexpected message: " + exception.getMessage(), exception.getMessage().indexOf("Interlaced") >= 0);
+      }
+   }
+}
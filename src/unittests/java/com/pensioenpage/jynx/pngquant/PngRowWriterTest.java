@@ -0,0 +1,144 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link PngRowWriter}. The images written are decoded
+ * with both the {@link PngRowReader} and ImageIO.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class PngRowWriterTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new PngRowWriterTest());
+   }
+
+   /**
+    * Writes an image with random palette indices.
+    *
+    * @return
+    *    the expected pixels, never <code>null</code>.
+    */
+   private static int[][] write(File file, int width, int height, int[] palette, Random random) throws IOException {
+      int[][]   expected = new int[height][width];
+      byte[]     indices = new byte[width];
+      PngRowWriter writer = new PngRowWriter(file, width, height, palette);
+      try {
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               int index = random.nextInt(palette.length);
+               indices[x]     = (byte) index;
+               expected[y][x] = palette[index];
+            }
+            writer.writeRow(indices);
+         }
+         writer.finish();
+      } finally {
+         writer.close();
+      }
+      return expected;
+   }
+
+   private static int[] palette(int size, Random random, boolean opaque) {
+      int[] palette = new int[size];
+      for (int i = 0; i < size; i++) {
+         palette[i] = opaque ? random.nextInt() | 0xff000000 : random.nextInt();
+      }
+      return palette;
+   }
+
+   /**
+    * Counts the chunks of the specified type in a PNG file.
+    */
+   private static int count(byte[] png, String type) throws IOException {
+      byte[] name = type.getBytes("US-ASCII");
+      int   count = 0;
+      for (int offset = 8; offset + 8 <= png.length; ) {
+         int length = ((png[offset] & 0xff) << 24) | ((png[offset + 1] & 0xff) << 16)
+                    | ((png[offset + 2] & 0xff) << 8) | (png[offset + 3] & 0xff);
+         if (Arrays.equals(name, Arrays.copyOfRange(png, offset + 4, offset + 8))) {
+            count++;
+         }
+         offset += 12 + length;
+      }
+      return count;
+   }
+
+   private void assertDecodes(String message, File file, int[][] expected) throws IOException {
+      int[][] actual = PngRowReaderTest.decode(file), imageIo = PngRowReaderTest.decodeWithImageIo(file);
+      for (int y = 0; y < expected.length; y++) {
+         assertTrue(message + " Row " + y + " differs.",             Arrays.equals(expected[y], actual[y]));
+         assertTrue(message + " Row " + y + " differs for ImageIO.", Arrays.equals(expected[y], imageIo[y]));
+      }
+   }
+
+   public void testBitDepths() throws Exception {
+      Random random = new Random(1L);
+
+      // The smallest bit depth that fits the palette is used
+      int[] sizes  = { 2, 3, 4, 16, 17, 256 };
+      int[] depths = { 1, 2, 2,  4,  8,   8 };
+      for (int i = 0; i < sizes.length; i++) {
+         File      file = file(sizes[i] + ".png");
+         int[][] pixels = write(file, 13, 5, palette(sizes[i], random, true), random);
+         assertEquals("Bit depth for " + sizes[i] + " colors.", Integer.valueOf(depths[i]), Integer.valueOf(read(file)[24]));
+         assertDecodes("Palette of " + sizes[i] + " colors.", file, pixels);
+      }
+   }
+
+   public void testTransparency() throws Exception {
+      Random random = new Random(2L);
+
+      // A tRNS chunk is only written if there are translucent colors
+      File      file = file("opaque.png");
+      int[][] pixels = write(file, 16, 16, palette(16, random, true), random);
+      assertEquals("Number of tRNS chunks.", Integer.valueOf(0), Integer.valueOf(count(read(file), "tRNS")));
+      assertDecodes("Opaque.", file, pixels);
+
+      int[] palette = palette(16, random, true);
+      palette[0] = 0x00000000;
+      palette[5] = 0x80336699;
+      file   = file("translucent.png");
+      pixels = write(file, 16, 16, palette, random);
+      assertEquals("Number of tRNS chunks.", Integer.valueOf(1), Integer.valueOf(count(read(file), "tRNS")));
+      assertDecodes("Translucent.", file, pixels);
+   }
+
+   public void testMultipleDataChunks() throws Exception {
+      Random random = new Random(3L);
+
+      // Random indices do not compress, so the image data exceeds a chunk
+      File      file = file("large.png");
+      int[][] pixels = write(file, 512, 512, palette(256, random, false), random);
+      assertTrue("Single IDAT chunk.", count(read(file), "IDAT") > 1);
+      assertDecodes("Large.", file, pixels);
+   }
+
+   public void testRowCount() throws Exception {
+      PngRowWriter writer = new PngRowWriter(file("a.png"), 4, 2, new int[] { 0xff000000, 0xffffffff });
+      try {
+         writer.writeRow(new byte[4]);
+         try {
+            writer.finish();
+            fail("Missing row accepted.");
+         } catch (IOException exception) {
+            // expected
+         }
+         writer.writeRow(new byte[4]);
+         try {
+            writer.writeRow(new byte[4]);
+            fail("Extra row accepted.");
+         } catch (IOException exception) {
+            // expected
+         }
+         writer.finish();
+      } finally {
+         writer.close();
+      }
+   }
+}
@@ -0,0 +1,116 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Unit tests for the {@link PngquantMergeTask}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class PngquantMergeTaskTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new PngquantMergeTaskTest());
+   }
+
+   /**
+    * Writes a report fragment with the specified records.
+    */
+   private static void fragment(File file, boolean json, FileRecord... records) throws Exception {
+      ReportWriter writer = new ReportWriter(file, json);
+      for (FileRecord record : records) {
+         writer.write(record);
+      }
+      writer.close();
+   }
+
+   /**
+    * Creates a merge task for all fragments in the <code>shards</code>
+    * directory, setting the summary properties with prefix
+    * <code>"s"</code>.
+    */
+   private PngquantMergeTask task(int shardCount) {
+      Project project = new Project();
+      project.init();
+      PngquantMergeTask task = new PngquantMergeTask();
+      task.setProject(project);
+      task.setTaskName("pngquantmerge");
+      FileSet fragments = new FileSet();
+      fragments.setDir(file("shards"));
+      task.addFileset(fragments);
+      task.setShardCount(shardCount);
+      task.setSummaryPrefix("s");
+      return task;
+   }
+
+   private void assertFails(PngquantMergeTask task, String expected) {
+      try {
+         task.execute();
+         fail("Merge succeeded.");
+      } catch (BuildException exception) {
+         assertTrue("Unexpected message: " + exception.getMessage(), exception.getMessage().indexOf(expected) >= 0);
+      }
+   }
+
+   public void testMerge() throws Exception {
+      fragment(file("shards/0.json"), true,
+               new FileRecord("a.png", FileRecord.PROCESSED, 20L, 15L, 1000L, 400L, 256, null),
+               new FileRecord("b.png", FileRecord.SKIPPED,    1L,  0L,  500L, 200L,  -1, null));
+      fragment(file("shards/1.csv"), false,
+               new FileRecord("c.png", FileRecord.PROCESSED, 30L, 25L, 2000L, 600L, 256, null),
+               new FileRecord("d.png", FileRecord.COPIED,     5L,  0L,  100L, 100L,  -1, null));
+
+      PngquantMergeTask task = task(2);
+      task.setReport(file("report.csv"));
+      task.execute();
+
+      Project project = task.getProject();
+      assertEquals("Shards.",      "2",    project.getProperty("s.shards"));
+      assertEquals("Processed.",   "2",    project.getProperty("s.processed"));
+      assertEquals("Copied.",      "1",    project.getProperty("s.copied"));
+      assertEquals("Skipped.",     "1",    project.getProperty("s.skipped"));
+      assertEquals("Bytes saved.", "2000", project.getProperty("s.bytesSaved"));
+
+      ReportReader reader = new ReportReader(file("report.csv"));
+      try {
+         int count = 0;
+         while (reader.next() != null) {
+            count++;
+         }
+         assertEquals("Records in merged report.", Integer.valueOf(4), Integer.valueOf(count));
+      } finally {
+         reader.close();
+      }
+   }
+
+   public void testMissingFragment() throws Exception {
+      fragment(file("shards/0.csv"), false, new FileRecord("a.png", FileRecord.PROCESSED, 20L, 15L, 1000L, 400L, 256, null));
+      fragment(file("shards/1.csv"), false, new FileRecord("b.png", FileRecord.PROCESSED, 20L, 15L, 1000L, 400L, 256, null));
+      assertFails(task(3), "Expected 3 report fragment(s), found 2.");
+   }
+
+   public void testIncompleteFragment() throws Exception {
+      fragment(file("shards/0.csv"), false, new FileRecord("a.png", FileRecord.PROCESSED, 20L, 15L, 1000L, 400L, 256, null));
+      fragment(file("shards/1.json"), true, new FileRecord("b.png", FileRecord.PROCESSED, 20L, 15L, 1000L, 400L, 256, null));
+
+      // Cut off the end, as if the shard did not complete
+      String contents = new String(read(file("shards/1.json")), "UTF-8");
+      write(file("shards/1.json"), contents.substring(0, contents.lastIndexOf(']')));
+      assertFails(task(2), "Report is incomplete.");
+   }
+
+   public void testEmptyFragment() throws Exception {
+      fragment(file("shards/0.csv"), false, new FileRecord("a.png", FileRecord.PROCESSED, 20L, 15L, 1000L, 400L, 256, null));
+      write(file("shards/1.csv"), new byte[0]);
+      assertFails(task(2), "Report file is empty.");
+   }
+
+   public void testFailedFile() throws Exception {
+      fragment(file("shards/0.csv"), false, new FileRecord("a.png", FileRecord.FAILED, 20L, 15L, 1000L, -1L, -1, "Broken."));
+      assertFails(task(1), "1 file(s) failed");
+   }
+}
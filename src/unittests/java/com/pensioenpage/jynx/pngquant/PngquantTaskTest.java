@@ -0,0 +1,522 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Unit tests for the {@link PngquantTask}, using the Java engine or the
+ * stub command of the benchmarks, so that pngquant is not required.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class PngquantTaskTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new PngquantTaskTest());
+   }
+
+   /**
+    * Creates a task that quantizes the files in the specified directory
+    * with the Java engine, setting the summary properties with prefix
+    * <code>"s"</code>.
+    */
+   private static PngquantTask task(File dir, File toDir) {
+      Project project = new Project();
+      project.init();
+      PngquantTask task = new PngquantTask();
+      task.setProject(project);
+      task.setTaskName("pngquant");
+      task.setDir(dir);
+      task.setToDir(toDir);
+      task.setEngine("java");
+      task.setSummaryPrefix("s");
+      return task;
+   }
+
+   /**
+    * Creates a task like {@link #task(File,File)} does, but executing the
+    * stub command of the benchmarks, see {@link UnitTest#stub()}.
+    */
+   private static PngquantTask stubTask(File dir, File toDir) {
+      PngquantTask task = task(dir, toDir);
+      task.setEngine("pngquant");
+      task.setCommand(stub().getPath());
+      return task;
+   }
+
+   /**
+    * Writes a command that behaves like the stub command, but takes a
+    * second for each invocation that does any work.
+    */
+   private File slowStub() throws Exception {
+      File command = write(file("slow"), "#!/bin/sh\n"
+                                       + "if [ $# -eq 0 ]; then exec \"" + stub().getPath() + "\"; fi\n"
+                                       + "sleep 1\n"
+                                       + "exec \"" + stub().getPath() + "\" \"$@\"\n");
+      command.setExecutable(true);
+      return command;
+   }
+
+   /**
+    * Counts the entries in a result cache.
+    */
+   private static int cacheEntries(File cacheDir) {
+      int count = 0;
+      File[] files = cacheDir.listFiles();
+      for (File file : (files == null ? new File[0] : files)) {
+         count += file.isDirectory() ? cacheEntries(file) : (file.getName().endsWith(".png") ? 1 : 0);
+      }
+      return count;
+   }
+
+   /**
+    * Lists the files in a directory and its subdirectories, sorted.
+    */
+   private static List<String> list(File dir, String prefix, List<String> names) {
+      File[] files = dir.listFiles();
+      for (File file : (files == null ? new File[0] : files)) {
+         if (file.isDirectory()) {
+            list(file, prefix + file.getName() + '/', names);
+         } else {
+            names.add(prefix + file.getName());
+         }
+      }
+      Collections.sort(names);
+      return names;
+   }
+
+   /**
+    * Copies the selected files with the specified traversal mode, using
+    * the include and exclude patterns as nested elements.
+    *
+    * @return
+    *    the names of the files copied, sorted.
+    */
+   private List<String> select(String traversal, String[] includes, String[] excludes, boolean defaultExcludes, boolean caseSensitive) {
+      File toDir = file("out-" + traversal + '-' + dir().list().length);
+      toDir.mkdirs();
+
+      PngquantTask task = task(file("in"), toDir);
+      task.setProcess("false");
+      task.setTraversal(traversal);
+      task.setDefaultexcludes(defaultExcludes);
+      task.setCaseSensitive(caseSensitive);
+      for (String include : includes) {
+         task.createInclude().setName(include);
+      }
+      for (String exclude : excludes) {
+         task.createExclude().setName(exclude);
+      }
+      task.execute();
+      return list(toDir, "", new ArrayList<String>());
+   }
+
+   /**
+    * Creates a task like {@link #task(File,File)} does, with a build
+    * manifest and a palette group of the files matching
+    * <code>"sprite-*.png"</code>.
+    */
+   private static PngquantTask groupTask(File dir, File toDir) {
+      PngquantTask task = task(dir, toDir);
+      task.setManifest(true);
+      FileSet group = new FileSet();
+      group.setProject(task.getProject());
+      group.setDir(dir);
+      group.setIncludes("sprite-*.png");
+      task.addPaletteGroup(group);
+      return task;
+   }
+
+   /**
+    * Returns the data of the first chunk of the specified type in a PNG
+    * file.
+    *
+    * @return
+    *    the data, or <code>null</code> if there is no such chunk.
+    */
+   private static byte[] chunk(File file, String type) throws Exception {
+      byte[] png  = read(file);
+      byte[] name = type.getBytes("US-ASCII");
+      for (int offset = 8; offset + 8 <= png.length; ) {
+         int length = ((png[offset] & 0xff) << 24) | ((png[offset + 1] & 0xff) << 16)
+                    | ((png[offset + 2] & 0xff) << 8) | (png[offset + 3] & 0xff);
+         if (Arrays.equals(name, Arrays.copyOfRange(png, offset + 4, offset + 8))) {
+            return Arrays.copyOfRange(png, offset + 8, offset + 8 + length);
+         }
+         offset += 12 + length;
+      }
+      return null;
+   }
+
+   private static String property(PngquantTask task, String name) {
+      return task.getProject().getProperty("s." + name);
+   }
+
+   public void testAlreadyQuantized() throws Exception {
+      File inFile = indexedPng(file("in/a.png"));
+      file("out").mkdirs();
+
+      PngquantTask task = task(file("in"), file("out"));
+      task.setPreflight(true);
+      task.execute();
+      assertEquals("Pre-flight count.", "1", property(task, "preflight"));
+      assertEquals("Processed count.",  "0", property(task, "processed"));
+      assertTrue("Output differs from the input.", Arrays.equals(read(inFile), read(file("out/a.png"))));
+   }
+
+   public void testNotSmaller() throws Exception {
+      File inFile = solidPng(file("in/a.png"), 1, 1);
+      file("out").mkdirs();
+
+      PngquantTask task = task(file("in"), file("out"));
+      task.setPreflight(true);
+      task.execute();
+      assertEquals("Kept count.",      "1", property(task, "kept"));
+      assertEquals("Processed count.", "0", property(task, "processed"));
+      assertTrue("Output differs from the input.", Arrays.equals(read(inFile), read(file("out/a.png"))));
+   }
+
+   public void testPreflightInCacheKey() throws Exception {
+      File inFile = solidPng(file("in/a.png"), 1, 1);
+      file("out1").mkdirs();
+      file("out2").mkdirs();
+
+      // With pre-flight checks, the original is kept, and cached
+      PngquantTask task = task(file("in"), file("out1"));
+      task.setCacheDir(file("cache"));
+      task.setPreflight(true);
+      task.execute();
+      assertEquals("Kept count.", "1", property(task, "kept"));
+
+      // Without them, that cached original must not be used as the output
+      task = task(file("in"), file("out2"));
+      task.setCacheDir(file("cache"));
+      task.execute();
+      assertEquals("Kept count.",      "0", property(task, "kept"));
+      assertEquals("Processed count.", "1", property(task, "processed"));
+      assertTrue("Cached original used.", ! Arrays.equals(read(inFile), read(file("out2/a.png"))));
+   }
+
+   public void testWithoutPreflight() throws Exception {
+      indexedPng(file("in/a.png"));
+      File inFile = solidPng(file("in/b.png"), 1, 1);
+      file("out").mkdirs();
+
+      // Pre-flight checks are disabled by default
+      PngquantTask task = task(file("in"), file("out"));
+      task.execute();
+      assertEquals("Pre-flight count.", "0", property(task, "preflight"));
+      assertEquals("Kept count.",       "0", property(task, "kept"));
+      assertEquals("Processed count.",  "2", property(task, "processed"));
+      assertTrue("Larger output not used.", file("out/b.png").length() >= inFile.length());
+   }
+
+   public void testWatchInPlaceRequiresManifest() throws Exception {
+      png(file("in/a.png"), 8, 8);
+
+      PngquantTask task = task(file("in"), file("in"));
+      task.setWatch(true);
+      try {
+         task.execute();
+         fail("Watching in place without a manifest accepted.");
+      } catch (BuildException exception) {
+         assertTrue("Unexpected message: " + exception.getMessage(), exception.getMessage().indexOf("\"manifest\"") >= 0);
+      }
+   }
+
+   public void testHardLinkedInPlace() throws Exception {
+      for (boolean deduplicate : new boolean[] { false, true }) {
+         File inFile = png(file("in" + deduplicate + "/a.png"), 16, 16);
+         File   link = file("elsewhere" + deduplicate + "/a.png");
+         link.getParentFile().mkdirs();
+         Files.createLink(link.toPath(), inFile.toPath());
+
+         // The input file has two links, it must be quantized in place and
+         // not be removed
+         PngquantTask task = task(inFile.getParentFile(), inFile.getParentFile());
+         task.setDeduplicate(deduplicate);
+         task.execute();
+         assertTrue("Input file removed (deduplicate=" + deduplicate + ").", inFile.isFile());
+         assertEquals("Failed count.",    "0", property(task, "failed"));
+         assertEquals("Processed count.", "1", property(task, "processed"));
+      }
+   }
+
+   public void testHardLinkedOutputIsUpToDate() throws Exception {
+      File inFile = png(file("in/a.png"), 16, 16);
+      file("out").mkdirs();
+
+      PngquantTask task = task(file("in"), file("out"));
+      task.setProcess("false");
+      task.setLinkMode("hardlink");
+      task.execute();
+      assertEquals("Copied count.", "1", property(task, "copied"));
+      assertTrue("Output is not a hard link.", Files.isSameFile(inFile.toPath(), file("out/a.png").toPath()));
+
+      // The output has the same modification time as the input
+      task = task(file("in"), file("out"));
+      task.setProcess("false");
+      task.setLinkMode("hardlink");
+      task.execute();
+      assertEquals("Skipped count.", "1", property(task, "skipped"));
+      assertEquals("Copied count.",  "0", property(task, "copied"));
+   }
+
+   public void testTimeBudgetCachesSlowestSpeedOnly() throws Exception {
+      png(file("in/a.png"), 64, 64);
+      png(file("in/b.png"), 72, 64);
+      file("out1").mkdirs();
+      file("out2").mkdirs();
+
+      // With a budget of 1 ms, even the first file only fits at the fastest
+      // speed; those results are not cached
+      PngquantTask task = stubTask(file("in"), file("out1"));
+      task.setCacheDir(file("cache"));
+      task.setTimeBudget(1L);
+      task.execute();
+      assertEquals("Processed at speed 10.", "2", property(task, "speed10"));
+      assertEquals("Cache entries.", Integer.valueOf(0), Integer.valueOf(cacheEntries(file("cache"))));
+
+      // With ample time, the slowest speed is chosen and cached
+      task = stubTask(file("in"), file("out2"));
+      task.setCacheDir(file("cache"));
+      task.setTimeBudget(3600000L);
+      task.execute();
+      assertEquals("Processed at speed 1.", "2", property(task, "speed1"));
+      assertEquals("Cache entries.", Integer.valueOf(2), Integer.valueOf(cacheEntries(file("cache"))));
+   }
+
+   public void testTimeOutPerMegapixel() throws Exception {
+      png(file("in/a.png"), 1000, 1000);
+      file("out1").mkdirs();
+      file("out2").mkdirs();
+
+      // The base time-out is too short for the slow command
+      PngquantTask task = stubTask(file("in"), file("out1"));
+      task.setCommand(slowStub().getPath());
+      task.setTimeOut(300L);
+      try {
+         task.execute();
+         fail("Time-out not applied.");
+      } catch (BuildException exception) {
+         assertEquals("Time-out count.", "1", property(task, "timeOuts"));
+      }
+
+      // With the time per megapixel added, the 1 MP image fits; a file that
+      // is not a valid PNG image only gets the base time-out
+      write(file("in/b.png"), "not an image");
+      task = stubTask(file("in"), file("out2"));
+      task.setCommand(slowStub().getPath());
+      task.setTimeOut(300L);
+      task.setTimeOutPerMegapixel(5000L);
+      try {
+         task.execute();
+         fail("Time-out not applied to invalid image.");
+      } catch (BuildException exception) {
+         assertEquals("Time-out count.",  "1", property(task, "timeOuts"));
+         assertEquals("Processed count.", "1", property(task, "processed"));
+      }
+      assertTrue("Output differs from the input.", Arrays.equals(read(file("in/a.png")), read(file("out2/a.png"))));
+   }
+
+   public void testDeadline() throws Exception {
+      png(file("in/a.png"), 16, 16);
+      png(file("in/b.png"), 24, 16);
+      file("out1").mkdirs();
+      file("out2").mkdirs();
+
+      // Files not processed before the deadline are copied
+      PngquantTask task = stubTask(file("in"), file("out1"));
+      task.setCommand(slowStub().getPath());
+      task.setProcess("try");
+      task.setThreads(1);
+      task.setDeadline(300L);
+      task.execute();
+      assertEquals("Past deadline count.", "2", property(task, "pastDeadline"));
+      assertEquals("Copied count.",        "2", property(task, "copied"));
+      assertEquals("Failed count.",        "0", property(task, "failed"));
+      assertTrue("Output differs from the input.", Arrays.equals(read(file("in/b.png")), read(file("out1/b.png"))));
+
+      // Unless processing is mandatory, then they fail
+      task = stubTask(file("in"), file("out2"));
+      task.setCommand(slowStub().getPath());
+      task.setProcess("true");
+      task.setThreads(1);
+      task.setDeadline(300L);
+      try {
+         task.execute();
+         fail("Missed deadline accepted with process=\"true\".");
+      } catch (BuildException exception) {
+         assertEquals("Past deadline count.", "2", property(task, "pastDeadline"));
+         assertEquals("Failed count.",        "2", property(task, "failed"));
+         assertEquals("Copied count.",        "0", property(task, "copied"));
+      }
+   }
+
+   public void testTraversalsSelectSameFiles() throws Exception {
+      String[] names = { "a.png", "b.PNG", "sub/c.png", "sub/deep/d.png", "sub/deep/E.png",
+                         "skip/f.png", "CVS/g.png", "sub/.svn/h.png", "i.png~" };
+      for (String name : names) {
+         png(file("in/" + name), 4, 4);
+      }
+
+      String[][] includes = { {},
+                              { "**/*.png" },
+                              { "sub/**/*.png", "*.png" },
+                              { "**/deep/" },
+                              { "SUB/**" } };
+      String[][] excludes = { {},
+                              { "skip/**" },
+                              { "**/deep/e.png" },
+                              { "sub/deep/*.png" },
+                              { "**/*.PNG" } };
+      for (int i = 0; i < includes.length; i++) {
+         for (boolean defaultExcludes : new boolean[] { true, false }) {
+            for (boolean caseSensitive : new boolean[] { true, false }) {
+               String message = "Includes " + Arrays.asList(includes[i]) + ", excludes " + Arrays.asList(excludes[i])
+                              + ", defaultexcludes " + defaultExcludes + ", casesensitive " + caseSensitive + '.';
+               List<String> scanned = select("scanner", includes[i], excludes[i], defaultExcludes, caseSensitive);
+               assertEquals(message, scanned, select("walk", includes[i], excludes[i], defaultExcludes, caseSensitive));
+            }
+         }
+      }
+
+      // Check a few of the selections, so the comparison is not vacuous;
+      // output files always get a lower case extension
+      assertEquals("Default excludes.", Arrays.asList("a.png", "b.png", "skip/f.png", "sub/c.png", "sub/deep/E.png", "sub/deep/d.png"),
+                   select("walk", new String[0], new String[0], true, true));
+      assertEquals("Case-sensitive.", Arrays.asList("a.png", "sub/c.png", "sub/deep/E.png", "sub/deep/d.png"),
+                   select("walk", includes[2], excludes[2], true, true));
+      assertEquals("Case-insensitive.", Arrays.asList("a.png", "b.png", "sub/c.png", "sub/deep/d.png"),
+                   select("walk", includes[2], excludes[2], true, false));
+   }
+
+   public void testPaletteGroup() throws Exception {
+      String[] members = { "sprite-a.png", "sprite-b.png", "sprite-c.png" };
+      png(file("in/sprite-a.png"), 16, 16);
+      png(file("in/sprite-b.png"), 24, 16);
+      png(file("in/sprite-c.png"),  8, 32);
+      png(file("in/other.png"),    24, 24);
+      file("out").mkdirs();
+
+      // All members get the same palette; the other file is quantized on
+      // its own
+      PngquantTask task = groupTask(file("in"), file("out"));
+      task.execute();
+      assertEquals("Processed count.", "4", property(task, "processed"));
+      byte[] palette = chunk(file("out/sprite-a.png"), "PLTE");
+      assertTrue("No palette.", palette != null);
+      for (String member : members) {
+         assertTrue("Palette of " + member + " differs.", Arrays.equals(palette, chunk(file("out/" + member), "PLTE")));
+      }
+      assertTrue("Palette of a file outside the group is shared.", ! Arrays.equals(palette, chunk(file("out/other.png"), "PLTE")));
+
+      task = groupTask(file("in"), file("out"));
+      task.execute();
+      assertEquals("Skipped count.",   "4", property(task, "skipped"));
+      assertEquals("Processed count.", "0", property(task, "processed"));
+
+      // A new member makes all members stale, and they share a new palette
+      png(file("in/sprite-d.png"), 32, 8);
+      task = groupTask(file("in"), file("out"));
+      task.execute();
+      assertEquals("Processed count.", "4", property(task, "processed"));
+      assertEquals("Skipped count.",   "1", property(task, "skipped"));
+      palette = chunk(file("out/sprite-d.png"), "PLTE");
+      for (String member : members) {
+         assertTrue("Palette of " + member + " differs.", Arrays.equals(palette, chunk(file("out/" + member), "PLTE")));
+      }
+
+      // So does removing a member
+      assertTrue("Failed to delete member.", file("in/sprite-d.png").delete());
+      task = groupTask(file("in"), file("out"));
+      task.execute();
+      assertEquals("Processed count.", "3", property(task, "processed"));
+      assertEquals("Skipped count.",   "1", property(task, "skipped"));
+   }
+
+   public void testProbeCached() throws Exception {
+      File log = file("probes.log");
+      File command = write(file("probing"), "#!/bin/sh\n"
+                                          + "if [ $# -eq 0 ]; then echo probed >> \"" + log.getPath() + "\"; fi\n"
+                                          + "exec \"" + stub().getPath() + "\" \"$@\"\n");
+      command.setExecutable(true);
+      file("in").mkdirs();
+
+      // The command is probed once, then the result is reused
+      for (int run = 0; run < 2; run++) {
+         PngquantTask task = stubTask(file("in"), file("in"));
+         task.setCommand(command.getPath());
+         task.execute();
+         assertEquals("Probes after run " + run + '.', "probed\n", new String(read(log), "US-ASCII"));
+      }
+
+      // Until the size of the executable changes
+      long lastModified = command.lastModified();
+      write(command, new String(read(command), "US-ASCII") + "# Changed.\n");
+      command.setLastModified(lastModified);
+      PngquantTask task = stubTask(file("in"), file("in"));
+      task.setCommand(command.getPath());
+      task.execute();
+      assertEquals("Probes after the size changed.", "probed\nprobed\n", new String(read(log), "US-ASCII"));
+
+      // Or its modification time
+      command.setLastModified(lastModified + 10000L);
+      task = stubTask(file("in"), file("in"));
+      task.setCommand(command.getPath());
+      task.execute();
+      assertEquals("Probes after the modification time changed.", "probed\nprobed\nprobed\n", new String(read(log), "US-ASCII"));
+   }
+
+   public void testThreads() throws Exception {
+      for (int i = 0; i < 12; i++) {
+         png(file("in/" + i + ".png"), 16 + i, 16);
+      }
+      write(file("in/broken1.png"), "not an image");
+      write(file("in/broken2.png"), "not an image either");
+
+      // The counts are the same with one thread and with several, and so is
+      // the failure, since processing is required
+      String[] names = { "processed", "failed", "skipped", "copied", "bytesIn", "bytesOut" };
+      String[][] counts = new String[2][];
+      int[]     threads = { 1, 4 };
+      for (int i = 0; i < threads.length; i++) {
+         file("out" + threads[i]).mkdirs();
+         PngquantTask task = task(file("in"), file("out" + threads[i]));
+         task.setProcess("true");
+         task.setThreads(threads[i]);
+         try {
+            task.execute();
+            fail("Failures accepted with " + threads[i] + " thread(s).");
+         } catch (BuildException exception) {
+            // expected
+         }
+         counts[i] = new String[names.length];
+         for (int j = 0; j < names.length; j++) {
+            counts[i][j] = property(task, names[j]);
+         }
+         assertEquals("Processed count with " + threads[i] + " thread(s).", "12", property(task, "processed"));
+         assertEquals("Failed count with "    + threads[i] + " thread(s).",  "2", property(task, "failed"));
+         assertEquals("Output files with "    + threads[i] + " thread(s).", Integer.valueOf(12), Integer.valueOf(file("out" + threads[i]).list().length));
+      }
+      assertEquals("Counts.", Arrays.asList(counts[0]), Arrays.asList(counts[1]));
+
+      // Without failures, the run succeeds
+      assertTrue("Failed to delete file.", file("in/broken1.png").delete() && file("in/broken2.png").delete());
+      PngquantTask task = task(file("in"), file("out4"));
+      task.setProcess("true");
+      task.setThreads(4);
+      task.setOverwrite(true);
+      task.execute();
+      assertEquals("Processed count.", "12", property(task, "processed"));
+      assertEquals("Failed count.",     "0", property(task, "failed"));
+   }
+}
@@ -0,0 +1,155 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link QuantizerServer}, using the Java engine, so
+ * that pngquant is not required. The requests are made directly, without
+ * HTTP.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class QuantizerServerTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new QuantizerServerTest());
+   }
+
+   private static QuantizerServer server(ExecutorService workers) throws Exception {
+      return new QuantizerServer(new Quantizer(null, 256, true, 0L, 0), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                                 QuantizerServer.DEFAULT_CACHE_SIZE, workers);
+   }
+
+   private static Quantizer.Result result(int size) {
+      return new Quantizer.Result(new byte[size], Quantizer.Result.PROCESSED, null, 256);
+   }
+
+   public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+      QuantizerServer.MemoryCache cache = new QuantizerServer.MemoryCache(100L);
+      Quantizer.Result a = result(40), b = result(40), c = result(40);
+      cache.put("a", a);
+      cache.put("b", b);
+
+      // Using "a" makes "b" the least recently used; storing "c" exceeds
+      // the size, so "b" is evicted
+      assertTrue("Entry missing.", cache.get("a") == a);
+      cache.put("c", c);
+      assertEquals("Evicted entry.", null, cache.get("b"));
+      assertTrue("Entry evicted.", cache.get("a") == a && cache.get("c") == c);
+
+      // Replacing an entry counts its new size only
+      Quantizer.Result larger = result(70);
+      cache.put("c", larger);
+      assertTrue("Replaced entry missing.", cache.get("c") == larger);
+      assertEquals("Evicted entry.", null, cache.get("a"));
+   }
+
+   public void testCacheSkipsResultsLargerThanTheCache() throws Exception {
+      QuantizerServer.MemoryCache cache = new QuantizerServer.MemoryCache(100L);
+      Quantizer.Result a = result(50);
+      cache.put("a", a);
+      cache.put("b", result(101));
+      assertEquals("Oversized entry.", null, cache.get("b"));
+      assertTrue("Entry evicted for an oversized entry.", cache.get("a") == a);
+
+      // An empty cache stores nothing
+      cache = new QuantizerServer.MemoryCache(0L);
+      cache.put("a", result(1));
+      assertEquals("Entry in an empty cache.", null, cache.get("a"));
+   }
+
+   public void testCoalescing() throws Exception {
+      byte[] png = read(png(file("a.png"), 64, 64));
+
+      // Block the single worker, so the first request stays pending
+      ExecutorService     workers = Executors.newSingleThreadExecutor();
+      final CountDownLatch  latch = new CountDownLatch(1);
+      QuantizerServer      server = server(workers);
+      try {
+         workers.execute(new Runnable() {
+            public void run() {
+               try {
+                  latch.await();
+               } catch (InterruptedException exception) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         });
+
+         String[] first = new String[1], second = new String[1], third = new String[1];
+         CompletableFuture<Quantizer.Result> future1 = server.quantize(png, first);
+         CompletableFuture<Quantizer.Result> future2 = server.quantize(png, second);
+         assertEquals("Source of the first request.",  "miss",      first[0]);
+         assertEquals("Source of the second request.", "coalesced", second[0]);
+         assertTrue("Second request not coalesced.", future1 == future2);
+         assertTrue("Request completed while blocked.", ! future1.isDone());
+
+         latch.countDown();
+         Quantizer.Result result = future1.get(30L, TimeUnit.SECONDS);
+         assertEquals("Action.", Quantizer.Result.PROCESSED, result.getAction());
+
+         // Once completed, the result comes from the cache
+         CompletableFuture<Quantizer.Result> future3 = server.quantize(png, third);
+         assertEquals("Source of the third request.", "hit", third[0]);
+         assertTrue("Result differs.", future3.get() == result);
+      } finally {
+         latch.countDown();
+         server.stop(0);
+      }
+   }
+
+   public void testConcurrentRequestsQuantizeOnce() throws Exception {
+      final int        threads = 8;
+      ExecutorService  clients = Executors.newFixedThreadPool(threads);
+      QuantizerServer   server = server(Executors.newFixedThreadPool(2));
+      try {
+
+         // Each round, all clients request the same new image at the same
+         // time; whether they find it pending or cached, it is quantized
+         // only once
+         for (int round = 0; round < 20; round++) {
+            final byte[]              png = read(png(file(round + ".png"), 8 + round, 8));
+            final CyclicBarrier   barrier = new CyclicBarrier(threads);
+            final QuantizerServer  target = server;
+            List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+            for (int i = 0; i < threads; i++) {
+               futures.add(clients.submit(new Callable<Object[]>() {
+                  public Object[] call() throws Exception {
+                     String[] source = new String[1];
+                     barrier.await();
+                     Quantizer.Result result = target.quantize(png, source).get(30L, TimeUnit.SECONDS);
+                     return new Object[] { source[0], result };
+                  }
+               }));
+            }
+
+            int                misses = 0;
+            Quantizer.Result expected = null;
+            for (Future<Object[]> future : futures) {
+               Object[] outcome = future.get();
+               if ("miss".equals(outcome[0])) {
+                  misses++;
+               }
+               expected = (expected == null) ? (Quantizer.Result) outcome[1] : expected;
+               assertTrue("Results differ in round " + round + '.', outcome[1] == expected);
+            }
+            assertEquals("Misses in round " + round + '.', Integer.valueOf(1), Integer.valueOf(misses));
+         }
+      } finally {
+         clients.shutdownNow();
+         server.stop(0);
+      }
+   }
+}
@@ -0,0 +1,238 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the {@link Quantizer}, using the Java engine or small
+ * shell scripts, so that pngquant is not required.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class QuantizerTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new QuantizerTest());
+   }
+
+   private static Quantizer quantizer() {
+      return new Quantizer(null, 256, true, 0L, 0);
+   }
+
+   /**
+    * Listener that counts the retries and time-outs.
+    */
+   private static final class CountingListener implements Quantizer.Listener {
+      final AtomicInteger _retries  = new AtomicInteger(),
+                          _timeOuts = new AtomicInteger();
+      public void log(String message) {
+         // empty
+      }
+      public void retried() {
+         _retries.incrementAndGet();
+      }
+      public void timedOut() {
+         _timeOuts.incrementAndGet();
+      }
+   }
+
+   public void testProcess() throws Exception {
+      File inFile = png(file("a.png"), 64, 64);
+
+      Quantizer.Result result = quantizer().withPreflight(true).process(inFile, file("out/a.png"), 0L, null);
+      assertEquals("Action.", Quantizer.Result.PROCESSED, result.getAction());
+      assertEquals("Colors.", Integer.valueOf(256), Integer.valueOf(result.getColors()));
+      assertTrue("Output is not a valid PNG image.", PngHeader.read(file("out/a.png")) != null);
+      assertTrue("Output is not smaller.", file("out/a.png").length() < inFile.length());
+   }
+
+   public void testProcessIndexed() throws Exception {
+      File inFile = indexedPng(file("a.png"));
+
+      Quantizer.Result result = quantizer().withPreflight(true).process(inFile, file("out/a.png"), 0L, null);
+      assertEquals("Action.", Quantizer.Result.INDEXED, result.getAction());
+      assertTrue("Output written.", ! file("out/a.png").exists());
+
+      // Without the pre-flight checks, the image is quantized anyway
+      result = quantizer().process(inFile, file("out/a.png"), 0L, null);
+      assertEquals("Action without pre-flight checks.", Quantizer.Result.PROCESSED, result.getAction());
+   }
+
+   public void testProcessNotSmaller() throws Exception {
+      File inFile = solidPng(file("a.png"), 1, 1);
+
+      Quantizer.Result result = quantizer().withPreflight(true).process(inFile, file("out/a.png"), 0L, null);
+      assertEquals("Action.", Quantizer.Result.KEPT, result.getAction());
+      assertTrue("Output written.", ! file("out/a.png").exists());
+   }
+
+   public void testProcessInPlace() throws Exception {
+      File   inFile = solidPng(file("a.png"), 1, 1);
+      byte[] before = read(inFile);
+
+      // The original is kept, so it must still be there
+      Quantizer.Result result = quantizer().withPreflight(true).process(inFile, inFile, 0L, null);
+      assertEquals("Action.", Quantizer.Result.KEPT, result.getAction());
+      assertTrue("Input changed.", Arrays.equals(before, read(inFile)));
+
+      result = quantizer().process(inFile, inFile, 0L, null);
+      assertEquals("Action without pre-flight checks.", Quantizer.Result.PROCESSED, result.getAction());
+      assertTrue("Input not replaced.", ! Arrays.equals(before, read(inFile)));
+   }
+
+   public void testProcessLeavesOutputAlone() throws Exception {
+      File inFile = png(file("a.png"), 64, 64);
+      File outFile = solidPng(file("out/a.png"), 1, 1);
+      byte[] inBefore = read(inFile), outBefore = read(outFile);
+
+      // A command that produces an invalid output, through a pipe
+      File command = write(file("garbage"), "#!/bin/sh\ncat > /dev/null\necho garbage\n");
+      command.setExecutable(true);
+      Quantizer quantizer = new Quantizer(command.getPath(), 256, true, 0L, 0).withStreaming(true);
+
+      // Neither the existing output, nor the input when processing in
+      // place, is touched by an invalid output
+      for (File target : new File[] { outFile, inFile }) {
+         try {
+            quantizer.process(inFile, target, 0L, null);
+            fail("Invalid output accepted.");
+         } catch (IOException exception) {
+            // expected
+         }
+      }
+      assertTrue("Output changed.", Arrays.equals(outBefore, read(outFile)));
+      assertTrue("Input changed.",  Arrays.equals(inBefore,  read(inFile)));
+
+      // Neither is it by an output that is not smaller
+      Quantizer.Result result = quantizer().withPreflight(true).process(solidPng(file("b.png"), 1, 1), outFile, 0L, null);
+      assertEquals("Action.", Quantizer.Result.KEPT, result.getAction());
+      assertTrue("Output changed.", Arrays.equals(outBefore, read(outFile)));
+
+      // No temporary files are left behind
+      assertEquals("Files in output directory.", Arrays.asList("a.png"), Arrays.asList(file("out").list()));
+      assertEquals("Files in input directory.", Integer.valueOf(4), Integer.valueOf(dir().list().length));
+   }
+
+   public void testRetriesWithBackoff() throws Exception {
+      File inFile = png(file("a.png"), 16, 16);
+
+      // A command that cannot be started is retried after 100 and 200 ms
+      CountingListener listener = new CountingListener();
+      long                start = System.currentTimeMillis();
+      try {
+         new Quantizer(file("missing").getPath(), 256, true, 0L, 2).process(inFile, file("out/a.png"), 0L, listener);
+         fail("Missing command accepted.");
+      } catch (IOException exception) {
+         assertTrue("Unexpected message: " + exception.getMessage(), exception.getMessage().startsWith("Failed to execute command"));
+      }
+      assertEquals("Retries.", Integer.valueOf(2), Integer.valueOf(listener._retries.get()));
+      assertTrue("No backoff.", System.currentTimeMillis() - start >= 300L);
+
+      // A command that can be started on a later attempt succeeds
+      final File command = write(file("later"), "#!/bin/sh\nexec cat\n");
+      new Thread() {
+         public void run() {
+            try {
+               Thread.sleep(150L);
+            } catch (InterruptedException exception) {
+               // make it executable right away
+            }
+            command.setExecutable(true);
+         }
+      }.start();
+      listener = new CountingListener();
+      Quantizer.Result result = new Quantizer(command.getPath(), 256, true, 0L, 3).withStreaming(true).process(inFile, file("out/a.png"), 0L, listener);
+      assertEquals("Action.", Quantizer.Result.PROCESSED, result.getAction());
+      assertTrue("Not retried.", listener._retries.get() >= 1);
+      assertTrue("Output differs.", Arrays.equals(read(inFile), read(file("out/a.png"))));
+   }
+
+   public void testTimeOutNotRetried() throws Exception {
+      File  inFile = png(file("a.png"), 16, 16);
+      File command = write(file("slow"), "#!/bin/sh\nexec sleep 10\n");
+      command.setExecutable(true);
+
+      CountingListener listener = new CountingListener();
+      long                start = System.currentTimeMillis();
+      try {
+         new Quantizer(command.getPath(), 256, true, 0L, 2).withStreaming(true).process(inFile, file("out/a.png"), 200L, listener);
+         fail("Slow command did not time out.");
+      } catch (IOException exception) {
+         assertTrue("Unexpected message: " + exception.getMessage(), exception.getMessage().startsWith("Timed out"));
+      }
+      assertEquals("Time-outs.", Integer.valueOf(1), Integer.valueOf(listener._timeOuts.get()));
+      assertEquals("Retries.",   Integer.valueOf(0), Integer.valueOf(listener._retries.get()));
+      assertTrue("Command not killed.", System.currentTimeMillis() - start < 5000L);
+      assertTrue("Output written.", ! file("out/a.png").exists());
+   }
+
+   public void testProcessInvalidInput() throws Exception {
+      File inFile = write(file("a.png"), "not an image");
+      try {
+         quantizer().process(inFile, file("out/a.png"), 0L, null);
+         fail("Invalid input accepted.");
+      } catch (IOException exception) {
+         assertTrue("Output written.", ! file("out/a.png").exists());
+      }
+   }
+
+   public void testBatchesNotSupportedInProcess() throws Exception {
+      File[]  inFiles = { png(file("a.png"), 16, 16), png(file("b.png"), 16, 16) };
+      File[] outFiles = { file("out/a.png"), file("out/b.png") };
+
+      // All files are left to be processed individually
+      assertTrue("Batches supported.", ! quantizer().supportsBatches());
+      assertTrue("Batches supported with a command and streaming.", ! new Quantizer("pngquant", 256, true, 0L, 0).withStreaming(true).supportsBatches());
+      Quantizer.Result[] results = quantizer().processBatch(inFiles, outFiles, 0L, null);
+      assertEquals("Result count.", Integer.valueOf(2), Integer.valueOf(results.length));
+      assertTrue("Batch processed.", results[0] == null && results[1] == null && ! outFiles[0].exists());
+   }
+
+   public void testPalette() throws Exception {
+      File[] inFiles = { png(file("a.png"), 32, 32), write(file("b.png"), "not an image"), solidPng(file("c.png"), 8, 8) };
+
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         IOException[] failures = new IOException[inFiles.length];
+         int[]          palette = new Quantizer(null, 16, true, 0L, 0).palette(inFiles, executor, failures);
+         assertTrue("No palette.", palette != null && palette.length > 0 && palette.length <= 16);
+         assertTrue("Unexpected failures.", failures[0] == null && failures[1] != null && failures[2] == null);
+
+         // Both images use the same palette
+         quantizer().quantize(inFiles[0], file("out/a.png"), palette);
+         quantizer().quantize(inFiles[2], file("out/c.png"), palette);
+         assertTrue("Output exceeds the palette.", PngHeader.read(file("out/a.png")).maxColors() <= 16);
+         assertTrue("Output exceeds the palette.", PngHeader.read(file("out/c.png")).maxColors() <= 16);
+
+         // No palette without any readable image
+         failures = new IOException[1];
+         assertEquals("Palette.", null, quantizer().palette(new File[] { inFiles[1] }, executor, failures));
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   public void testQuantizeInMemory() throws Exception {
+      byte[]   indexed = read(indexedPng(file("a.png")));
+      byte[] trueColor = read(png(file("b.png"), 64, 64));
+
+      Quantizer.Result result = quantizer().quantize(indexed);
+      assertEquals("Action for an indexed image.", Quantizer.Result.INDEXED, result.getAction());
+      assertTrue("Data differs.", Arrays.equals(indexed, result.getData()));
+
+      result = quantizer().quantize(trueColor);
+      assertEquals("Action.", Quantizer.Result.PROCESSED, result.getAction());
+      assertTrue("Output is not smaller.", result.getData().length < trueColor.length);
+      try {
+         quantizer().quantize("not an image".getBytes("UTF-8"));
+         fail("Invalid image accepted.");
+      } catch (IOException exception) {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,93 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for the {@link ReportWriter}; the reports it writes are read
+ * back using the {@link ReportReader}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ReportWriterTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ReportWriterTest());
+   }
+
+   /**
+    * The records written by each test; the paths and error messages need
+    * quoting in both formats.
+    */
+   private static final FileRecord[] RECORDS = {
+      new FileRecord("a/1.png", FileRecord.PROCESSED, 120L, 100L, 2000L, 500L, 256, null),
+      new FileRecord("b,\"2\".png", FileRecord.FAILED, 30L, 25L, 1000L, -1L, -1, "Line one\nline \"two\", \\ and a\ttab."),
+      new FileRecord("c.png", FileRecord.SKIPPED, 1L, 0L, 0L, -1L, -1, null)
+   };
+
+   public void testCsvRoundTrip() throws Exception {
+      roundTrip(false);
+   }
+
+   public void testJsonRoundTrip() throws Exception {
+      roundTrip(true);
+   }
+
+   public void testRatio() {
+      assertEquals("Ratio.",                    Double.valueOf(0.25), Double.valueOf(RECORDS[0].ratio()));
+      assertEquals("Ratio without output.",     Double.valueOf(-1.0), Double.valueOf(RECORDS[1].ratio()));
+      assertEquals("Ratio of an empty input.", Double.valueOf(-1.0), Double.valueOf(RECORDS[2].ratio()));
+   }
+
+   public void testIncompleteJson() throws Exception {
+      File             file = file("report.json");
+      ReportWriter   writer = new ReportWriter(file, true);
+      writer.write(RECORDS[0]);
+      writer.close();
+
+      // Cut off the closing bracket, as if the writer never completed
+      String contents = new String(read(file), "UTF-8");
+      write(file, contents.substring(0, contents.lastIndexOf(']')));
+
+      ReportReader reader = new ReportReader(file);
+      try {
+         reader.next();
+         reader.next();
+         fail("Incomplete report accepted.");
+      } catch (IOException exception) {
+         assertEquals("Message.", "Report is incomplete.", exception.getMessage());
+      } finally {
+         reader.close();
+      }
+   }
+
+   private void roundTrip(boolean json) throws Exception {
+      File           file = file(json ? "report.json" : "report.csv");
+      ReportWriter writer = new ReportWriter(file, json);
+      for (FileRecord record : RECORDS) {
+         writer.write(record);
+      }
+      writer.close();
+
+      ReportReader reader = new ReportReader(file);
+      try {
+         assertEquals("Format.", Boolean.valueOf(json), Boolean.valueOf(reader.isJson()));
+         for (FileRecord expected : RECORDS) {
+            FileRecord actual = reader.next();
+            assertTrue("Record missing: " + expected._path, actual != null);
+            assertEquals("Path.",         expected._path,                      actual._path);
+            assertEquals("Action.",       expected._action,                    actual._action);
+            assertEquals("Wall time.",    Long.valueOf(expected._wallTime),    Long.valueOf(actual._wallTime));
+            assertEquals("Process time.", Long.valueOf(expected._processTime), Long.valueOf(actual._processTime));
+            assertEquals("Input bytes.",  Long.valueOf(expected._inputBytes),  Long.valueOf(actual._inputBytes));
+            assertEquals("Output bytes.", Long.valueOf(expected._outputBytes), Long.valueOf(actual._outputBytes));
+            assertEquals("Colors.",       Integer.valueOf(expected._colors),   Integer.valueOf(actual._colors));
+            assertEquals("Error.",        expected._error,                     actual._error);
+         }
+         assertEquals("Record after the last one.", null, reader.next());
+      } finally {
+         reader.close();
+      }
+   }
+}
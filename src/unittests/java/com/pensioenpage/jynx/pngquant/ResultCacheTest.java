@@ -0,0 +1,68 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Unit tests for the {@link ResultCache}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ResultCacheTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ResultCacheTest());
+   }
+
+   public void testRoundTrip() throws Exception {
+      ResultCache cache = new ResultCache(file("cache"), 1024L * 1024L);
+      File       inFile = write(file("in.png"), "input");
+      File      outFile = write(file("out.png"), "output");
+      String        key = cache.key(inFile, "colors=256");
+
+      assertTrue("Entry found in an empty cache.", ! cache.get(key, file("copy.png")));
+      assertTrue("Entry not stored.", cache.put(key, outFile));
+      assertTrue("Entry not found.",  cache.get(key, file("copy.png")));
+      assertTrue("Entry differs from what was stored.", Arrays.equals(read(outFile), read(file("copy.png"))));
+   }
+
+   public void testKeyDependsOnContentsAndParameters() throws Exception {
+      ResultCache cache = new ResultCache(file("cache"), 1024L * 1024L);
+      File            a = write(file("a.png"), "same");
+      File            b = write(file("b.png"), "same");
+      File            c = write(file("c.png"), "different");
+
+      assertEquals("Keys of identical files differ.", cache.key(a, "colors=256"), cache.key(b, "colors=256"));
+      assertTrue("Keys of different files are equal.",      ! cache.key(a, "colors=256").equals(cache.key(c, "colors=256")));
+      assertTrue("Keys of different parameters are equal.", ! cache.key(a, "colors=256").equals(cache.key(a, "colors=16")));
+   }
+
+   public void testEvictLeastRecentlyUsed() throws Exception {
+      ResultCache cache = new ResultCache(file("cache"), 250L);
+      byte[]    entry = new byte[100];
+      String[]   keys = new String[3];
+      long        now = System.currentTimeMillis();
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = cache.key(write(file("in" + i + ".png"), "input " + i), "");
+         cache.put(keys[i], write(file("out" + i + ".png"), entry));
+      }
+
+      // Entry 0 is the oldest, but it is used after entry 1 is stored
+      setLastUsed(keys[0], now - 30000L);
+      setLastUsed(keys[1], now - 20000L);
+      setLastUsed(keys[2], now - 10000L);
+      assertTrue("Entry not found.", cache.get(keys[0], file("copy.png")));
+
+      assertEquals("Number of evicted entries.", 1, cache.evict());
+      assertTrue("Recently used entry evicted.", cache.get(keys[0], file("copy.png")));
+      assertTrue("Least recently used entry not evicted.", ! cache.get(keys[1], file("copy.png")));
+      assertTrue("Recently stored entry evicted.", cache.get(keys[2], file("copy.png")));
+
+      assertEquals("Number of evicted entries within the maximum size.", 0, cache.evict());
+   }
+
+   private void setLastUsed(String key, long time) {
+      file("cache/" + key.substring(0, 2) + '/' + key + ".png").setLastModified(time);
+   }
+}
@@ -0,0 +1,71 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for the {@link Schedule}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ScheduleTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ScheduleTest());
+   }
+
+   private File files(String[] names, int[] sizes) throws Exception {
+      for (int i = 0; i < names.length; i++) {
+         write(file("in/" + names[i]), new byte[sizes[i]]);
+      }
+      return file("in");
+   }
+
+   public void testOrderWithoutHistory() throws Exception {
+      File dir = files(new String[] { "a.png", "b.png", "c.png", "d.png" }, new int[] { 10, 30, 20, 30 });
+
+      // Largest first; "b.png" and "d.png" are the same size
+      Schedule schedule = new Schedule(dir, Collections.<String,Long>emptyMap());
+      assertTrue("History available.", ! schedule.hasHistory());
+      assertEquals("Order.", Arrays.asList("b.png", "d.png", "c.png", "a.png"),
+                   Arrays.asList(schedule.order(new String[] { "d.png", "a.png", "b.png", "c.png" })));
+      assertEquals("Order.", Arrays.asList("b.png", "d.png", "c.png", "a.png"),
+                   Arrays.asList(schedule.order(new String[] { "c.png", "b.png", "a.png", "d.png" })));
+   }
+
+   public void testOrderWithHistory() throws Exception {
+      File dir = files(new String[] { "a.png", "b.png", "c.png", "d.png" }, new int[] { 10, 30, 30, 20 });
+
+      // 800 ms for 40 bytes, so 20 ms per byte for files without history;
+      // files that no longer exist do not count
+      Map<String,Long> history = new HashMap<String,Long>();
+      history.put("a.png",    Long.valueOf(400L));
+      history.put("c.png",    Long.valueOf(400L));
+      history.put("gone.png", Long.valueOf(5000L));
+      Schedule schedule = new Schedule(dir, history);
+      assertTrue("No history available.", schedule.hasHistory());
+
+      // "b.png" takes an estimated 600 ms, all others 400 ms
+      String[] names = { "d.png", "c.png", "b.png", "a.png" };
+      assertEquals("Order.", Arrays.asList("b.png", "a.png", "c.png", "d.png"), Arrays.asList(schedule.order(names)));
+      assertEquals("Input modified.", Arrays.asList("d.png", "c.png", "b.png", "a.png"), Arrays.asList(names));
+   }
+
+   public void testReadHistory() throws Exception {
+      assertEquals("History without report.", Collections.emptyMap(), Schedule.readHistory(file("missing.csv")));
+
+      // Only processed files with contents are used
+      File         file = file("report.csv");
+      ReportWriter writer = new ReportWriter(file, false);
+      writer.write(new FileRecord("a.png", FileRecord.PROCESSED, 400L, 350L, 10L, 5L, 16, null));
+      writer.write(new FileRecord("b.png", FileRecord.FAILED,    300L, 250L, 10L, -1L, -1, "Failed."));
+      writer.write(new FileRecord("c.png", FileRecord.SKIPPED,     1L,   0L, 10L, -1L, -1, null));
+      writer.write(new FileRecord("d.png", FileRecord.PROCESSED,   5L,   5L,  0L,  0L, -1, null));
+      writer.close();
+      assertEquals("History.", Collections.singletonMap("a.png", Long.valueOf(400L)), Schedule.readHistory(file));
+   }
+}
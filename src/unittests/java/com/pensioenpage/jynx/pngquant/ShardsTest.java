@@ -0,0 +1,108 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link Shards}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class ShardsTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new ShardsTest());
+   }
+
+   private static String[] names(int count) {
+      String[] names = new String[count];
+      for (int i = 0; i < count; i++) {
+         names[i] = "dir" + (i % 7) + '/' + i + ".png";
+      }
+      return names;
+   }
+
+   /**
+    * Checks that each of the specified files is in exactly one of the
+    * specified shards.
+    */
+   private static void assertPartition(String[] names, String[][] shards) {
+      Set<String> seen = new HashSet<String>();
+      for (String[] shard : shards) {
+         for (String name : shard) {
+            assertTrue("File in multiple shards: " + name, seen.add(name));
+         }
+      }
+      assertEquals("Files in shards.", new HashSet<String>(Arrays.asList(names)), seen);
+   }
+
+   public void testShardOfIsStable() {
+
+      // Every machine, on every platform, must compute the same shard
+      assertEquals("Shard of images/logo.png.",      Integer.valueOf(7), Integer.valueOf(Shards.shardOf("images/logo.png", 8)));
+      assertEquals("Shard of a.png.",                Integer.valueOf(7), Integer.valueOf(Shards.shardOf("a.png", 8)));
+      assertEquals("Shard of icons/16x16/home.png.", Integer.valueOf(6), Integer.valueOf(Shards.shardOf("icons/16x16/home.png", 8)));
+      assertEquals("Shard with platform separator.", Integer.valueOf(Shards.shardOf("b/c/d.png", 8)),
+                   Integer.valueOf(Shards.shardOf("b" + File.separatorChar + "c" + File.separatorChar + "d.png", 8)));
+   }
+
+   public void testByHash() {
+      String[]    names = names(500);
+      String[][] shards = new String[4][];
+      for (int i = 0; i < shards.length; i++) {
+         shards[i] = Shards.byHash(names, i, shards.length);
+         assertTrue("Shard " + i + " is unbalanced: " + shards[i].length, shards[i].length > 75 && shards[i].length < 175);
+      }
+      assertPartition(names, shards);
+
+      // Adding and removing files does not move the other files
+      List<String> changed = new ArrayList<String>(Arrays.asList(names).subList(100, 500));
+      changed.addAll(Arrays.asList("new/1.png", "new/2.png", "new/3.png"));
+      String[] changedNames = changed.toArray(new String[0]);
+      for (int i = 0; i < shards.length; i++) {
+         Set<String> before = new HashSet<String>(Arrays.asList(shards[i]));
+         for (String name : Shards.byHash(changedNames, i, shards.length)) {
+            assertTrue("File moved to shard " + i + ": " + name, before.contains(name) || name.startsWith("new/"));
+         }
+      }
+   }
+
+   public void testBySizeIsBalanced() throws Exception {
+      String[] names = new String[10];
+      long     total = 0L;
+      for (int i = 0; i < names.length; i++) {
+         names[i] = "f" + i + ".png";
+         write(file(names[i]), new byte[(i + 1) * 100]);
+         total += (i + 1) * 100;
+      }
+
+      String[][] shards = new String[3][];
+      for (int i = 0; i < shards.length; i++) {
+         shards[i] = Shards.bySize(dir(), names, i, shards.length);
+         long size = 0L;
+         for (String name : shards[i]) {
+            size += file(name).length();
+         }
+
+         // Greedy assignment keeps each shard within the largest file of
+         // the average
+         assertTrue("Shard " + i + " is unbalanced: " + size + " bytes.", Math.abs(size - total / shards.length) <= 1000L);
+      }
+      assertPartition(names, shards);
+
+      // The assignment does not depend on the order of the files
+      List<String> shuffled = new ArrayList<String>(Arrays.asList(names));
+      Collections.reverse(shuffled);
+      for (int i = 0; i < shards.length; i++) {
+         Set<String> expected = new HashSet<String>(Arrays.asList(shards[i]));
+         Set<String>   actual = new HashSet<String>(Arrays.asList(Shards.bySize(dir(), shuffled.toArray(new String[0]), i, shards.length)));
+         assertEquals("Shard " + i + " after reordering.", expected, actual);
+      }
+   }
+}
@@ -0,0 +1,82 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+/**
+ * Unit tests for the {@link TimeBudget}. Until something is measured, the
+ * prior throughput applies: 1000 pixels per millisecond at speed 3, so a
+ * megapixel takes 3000, 1000, 500 and 250 ms at speeds 1, 3, 6 and 10.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class TimeBudgetTest extends UnitTest {
+
+   public static void main(String[] args) {
+      run(new TimeBudgetTest());
+   }
+
+   private static final long MEGAPIXEL = 1000000L;
+
+   private static void assertSpeed(String message, int expected, int actual) {
+      assertEquals(message, Integer.valueOf(expected), Integer.valueOf(actual));
+   }
+
+   public void testChoose() throws Exception {
+
+      // The slowest speed that fits is chosen
+      assertSpeed("Budget of 10 s.",   1, new TimeBudget(10000L, 1).choose(MEGAPIXEL));
+      assertSpeed("Budget of 2 s.",    3, new TimeBudget(2000L,  1).choose(MEGAPIXEL));
+      assertSpeed("Budget of 0.7 s.",  6, new TimeBudget(700L,   1).choose(MEGAPIXEL));
+      assertSpeed("Budget of 0.3 s.", 10, new TimeBudget(300L,   1).choose(MEGAPIXEL));
+
+      // If nothing fits, or the budget is spent, the fastest speed is chosen
+      assertSpeed("Budget of 0.1 s.", 10, new TimeBudget(100L,   1).choose(MEGAPIXEL));
+      assertSpeed("Budget spent.",    10, new TimeBudget(-1L,    1).choose(0L));
+   }
+
+   public void testFallsBehind() throws Exception {
+      TimeBudget budget = new TimeBudget(1300L, 1);
+      assertSpeed("Initially.", 3, budget.choose(MEGAPIXEL));
+
+      // As the remaining time shrinks, faster speeds are chosen
+      Thread.sleep(450L);
+      assertSpeed("After 450 ms.", 6, budget.choose(MEGAPIXEL));
+      Thread.sleep(450L);
+      assertSpeed("After 900 ms.", 10, budget.choose(MEGAPIXEL));
+   }
+
+   public void testPendingFiles() throws Exception {
+      TimeBudget budget = new TimeBudget(1900L, 2);
+      assertSpeed("Without pending files.", 3, budget.choose(MEGAPIXEL));
+
+      // Pending files are shared by the threads
+      budget.queued(2L * MEGAPIXEL);
+      assertSpeed("With 1 MP pending per thread.", 6, budget.choose(MEGAPIXEL));
+      budget.queued(4L * MEGAPIXEL);
+      assertSpeed("With 3 MP pending per thread.", 10, budget.choose(MEGAPIXEL));
+
+      // Files started are no longer pending
+      budget.started(6L * MEGAPIXEL);
+      assertSpeed("After starting the pending files.", 3, budget.choose(MEGAPIXEL));
+   }
+
+   public void testMeasuredThroughput() throws Exception {
+      TimeBudget budget = new TimeBudget(2000L, 1);
+      assertSpeed("Prior throughput.", 3, budget.choose(MEGAPIXEL));
+
+      // Faster than the prior: with 9 MP at speed 3 in 1 s, that makes 5000
+      // pixels per ms, so 1 MP takes 600 ms at speed 1
+      budget.completed(3, 9L * MEGAPIXEL, 1000L);
+      assertSpeed("Faster than the prior.", 1, budget.choose(MEGAPIXEL));
+
+      // Files of unknown size are not measured
+      budget.completed(3, 0L, 100000L);
+      assertSpeed("Unknown size.", 1, budget.choose(MEGAPIXEL));
+
+      // Slower than the prior: with 10 MP at speed 10 in 10 s, that makes
+      // about 320 pixels per ms at speed 3, so 1 MP takes over 3 s at speed
+      // 3 and about 1.6 s at speed 6
+      budget = new TimeBudget(2000L, 1);
+      budget.completed(10, 10L * MEGAPIXEL, 10000L);
+      assertSpeed("Slower than the prior.", 6, budget.choose(MEGAPIXEL));
+   }
+}
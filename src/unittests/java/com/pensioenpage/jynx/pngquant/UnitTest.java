@@ -0,0 +1,249 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.pngquant;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Base class for the unit tests of individual classes. Every public method
+ * without parameters whose name starts with <code>test</code> is a test.
+ * The tests run in alphabetical order, each with a new, empty temporary
+ * directory, and a test fails by throwing an exception.
+ *
+ * <p>Subclasses have a <code>main</code> method that calls
+ * {@link #run(UnitTest)}; the unit tests are executed by the
+ * <code>unittests</code> target of the build file.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+abstract class UnitTest {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Runs all tests of the specified instance, reporting each on standard
+    * output. If any test fails, the JVM exits with status 1.
+    *
+    * @param test
+    *    the instance to run the tests of, cannot be <code>null</code>.
+    */
+   static void run(UnitTest test) {
+      List<String> names = new ArrayList<String>();
+      for (Method method : test.getClass().getMethods()) {
+         if (method.getName().startsWith("test") && method.getParameterTypes().length == 0
+          && ! Modifier.isStatic(method.getModifiers())) {
+            names.add(method.getName());
+         }
+      }
+      Collections.sort(names);
+
+      String className = test.getClass().getSimpleName();
+      int     failures = 0;
+      for (String name : names) {
+         try {
+            test._dir = Files.createTempDirectory(className).toFile();
+            try {
+               test.getClass().getMethod(name).invoke(test);
+            } finally {
+               delete(test._dir);
+            }
+            System.out.println(className + '.' + name + ": passed");
+         } catch (Throwable cause) {
+            if (cause instanceof InvocationTargetException) {
+               cause = cause.getCause();
+            }
+            System.out.println(className + '.' + name + ": FAILED");
+            cause.printStackTrace(System.out);
+            failures++;
+         }
+      }
+
+      if (failures > 0) {
+         System.out.println(className + ": " + failures + " of " + names.size() + " test(s) failed.");
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Deletes the specified file or directory, including its contents.
+    */
+   private static void delete(File file) {
+      File[] files = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+      for (File child : (files == null ? new File[0] : files)) {
+         delete(child);
+      }
+      file.delete();
+   }
+
+   /**
+    * Fails the current test with the specified message.
+    */
+   static void fail(String message) {
+      throw new AssertionError(message);
+   }
+
+   /**
+    * Fails the current test with the specified message, unless the
+    * specified condition holds.
+    */
+   static void assertTrue(String message, boolean condition) {
+      if (! condition) {
+         fail(message);
+      }
+   }
+
+   /**
+    * Fails the current test, unless the specified objects are equal.
+    */
+   static void assertEquals(String message, Object expected, Object actual) {
+      if (expected == null ? actual != null : ! expected.equals(actual)) {
+         fail(message + " Expected <" + expected + ">, but was <" + actual + ">.");
+      }
+   }
+
+   /**
+    * Writes the specified bytes to the specified file, creating its parent
+    * directory if needed.
+    */
+   static File write(File file, byte[] contents) throws IOException {
+      file.getParentFile().mkdirs();
+      OutputStream out = new FileOutputStream(file);
+      try {
+         out.write(contents);
+      } finally {
+         out.close();
+      }
+      return file;
+   }
+
+   /**
+    * Writes the specified string to the specified file, as UTF-8.
+    */
+   static File write(File file, String contents) throws IOException {
+      return write(file, contents.getBytes("UTF-8"));
+   }
+
+   /**
+    * Reads the contents of the specified file.
+    */
+   static byte[] read(File file) throws IOException {
+      return Files.readAllBytes(file.toPath());
+   }
+
+   /**
+    * Writes a true color PNG image with a gradient to the specified file.
+    *
+    * @param file
+    *    the file to write, cannot be <code>null</code>.
+    *
+    * @param width
+    *    the width of the image, at least 1.
+    *
+    * @param height
+    *    the height of the image, at least 1.
+    */
+   static File png(File file, int width, int height) throws IOException {
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | ((x + y) & 0xff));
+         }
+      }
+      file.getParentFile().mkdirs();
+      if (! ImageIO.write(image, "png", file)) {
+         throw new IOException("No PNG writer available.");
+      }
+      return file;
+   }
+
+   /**
+    * Writes a 2-color indexed PNG image to the specified file.
+    */
+   static File indexedPng(File file) throws IOException {
+      BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_BYTE_BINARY);
+      for (int y = 0; y < 32; y++) {
+         for (int x = 0; x < 32; x++) {
+            image.setRGB(x, y, ((x ^ y) & 4) == 0 ? 0xffffff : 0x000000);
+         }
+      }
+      file.getParentFile().mkdirs();
+      if (! ImageIO.write(image, "png", file)) {
+         throw new IOException("No PNG writer available.");
+      }
+      return file;
+   }
+
+   /**
+    * Writes a true color PNG image of a single color to the specified file;
+    * when small, quantizing it makes it larger.
+    */
+   static File solidPng(File file, int width, int height) throws IOException {
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            image.setRGB(x, y, 0x336699);
+         }
+      }
+      file.getParentFile().mkdirs();
+      if (! ImageIO.write(image, "png", file)) {
+         throw new IOException("No PNG writer available.");
+      }
+      return file;
+   }
+
+
+   /**
+    * Returns the stub command of the benchmarks, which mimics the command
+    * line interface of pngquant, copying the input unchanged. Its location
+    * is passed by the build file, in the system property
+    * <code>unittests.stub</code>.
+    */
+   static File stub() {
+      File stub = new File(System.getProperty("unittests.stub", "benchmarks/stub/pngquant"));
+      stub.setExecutable(true);
+      return stub;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The temporary directory of the current test.
+    */
+   private File _dir;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the temporary directory of the current test; it is deleted
+    * after the test.
+    */
+   File dir() {
+      return _dir;
+   }
+
+   /**
+    * Returns a file in the temporary directory of the current test.
+    */
+   File file(String path) {
+      return new File(_dir, path);
+   }
+}